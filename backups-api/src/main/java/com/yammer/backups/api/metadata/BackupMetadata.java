@@ -39,6 +39,8 @@ import org.joda.time.DateTime;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -82,6 +84,14 @@ public class BackupMetadata extends AbstractMetadata<BackupMetadata.State> {
     @JsonProperty
     private final AtomicInteger pendingUploads;
 
+    // Chunks stored on each offsite replica, only kept when offsite storage is replicated
+    @JsonProperty
+    private final Map<String, AtomicInteger> replicatedChunks;
+
+    // Where chunks are written while receiving, backups sent directly offsite skip the local upload queue
+    @JsonProperty
+    private final EnumSet<Location> storeLocations;
+
     @JsonCreator
     public BackupMetadata(
             @JsonProperty("service") String service,
@@ -99,7 +109,9 @@ public class BackupMetadata extends AbstractMetadata<BackupMetadata.State> {
             @JsonProperty("pendingUploads") AtomicInteger pendingUploads,
             @JsonProperty("transitions") List<Transition<State>> transitions,
             @JsonProperty("modelVersion") int modelVersion,
-            @JsonProperty("verificationId") Optional<String> verificationId) {
+            @JsonProperty("verificationId") Optional<String> verificationId,
+            @JsonProperty("replicatedChunks") Map<String, AtomicInteger> replicatedChunks,
+            @JsonProperty("storeLocations") EnumSet<Location> storeLocations) {
         super (service, id, state, sourceAddress, startedDate, completedDate, nodeName, transitions, modelVersion);
 
         this.originalSize = originalSize;
@@ -109,11 +121,18 @@ public class BackupMetadata extends AbstractMetadata<BackupMetadata.State> {
         this.pendingStores = pendingStores == null ? new AtomicInteger(0) : pendingStores;
         this.pendingUploads = pendingUploads == null ? new AtomicInteger(0) : pendingUploads;
         this.verificationId = verificationId;
+        this.replicatedChunks = replicatedChunks == null ? new ConcurrentHashMap<String, AtomicInteger>() : new ConcurrentHashMap<>(replicatedChunks);
+        this.storeLocations = storeLocations == null || storeLocations.isEmpty() ? EnumSet.of(Location.LOCAL) : storeLocations;
     }
 
     public BackupMetadata(String service, String sourceAddress, String nodeName) {
+        this(service, sourceAddress, nodeName, EnumSet.of(Location.LOCAL));
+    }
+
+    public BackupMetadata(String service, String sourceAddress, String nodeName, EnumSet<Location> storeLocations) {
         this(service, randomID(), sourceAddress, DateTime.now(), Optional.<DateTime>absent(), nodeName,
-                State.WAITING, 0, 0, null, null, null, null, null, BackupMetadata.MODEL_VERSION, Optional.<String>absent());
+                State.WAITING, 0, 0, null, null, null, null, null, BackupMetadata.MODEL_VERSION, Optional.<String>absent(), null,
+                EnumSet.copyOf(storeLocations));
     }
 
     @JsonIgnore
@@ -155,6 +174,28 @@ public class BackupMetadata extends AbstractMetadata<BackupMetadata.State> {
         return pendingUploads.decrementAndGet();
     }
 
+    public int getReplicatedChunks(String replica) {
+        final AtomicInteger count = replicatedChunks.get(replica);
+        return count == null ? 0 : count.get();
+    }
+
+    public synchronized int incrementAndGetReplicatedChunks(String replica) {
+        if (!replicatedChunks.containsKey(replica)) {
+            replicatedChunks.put(replica, new AtomicInteger(0));
+        }
+
+        return replicatedChunks.get(replica).incrementAndGet();
+    }
+
+    public EnumSet<Location> getStoreLocations() {
+        return EnumSet.copyOf(storeLocations);
+    }
+
+    @JsonIgnore
+    public boolean isDirectOffsite() {
+        return storeLocations.contains(Location.OFFSITE);
+    }
+
     public long getOriginalSize() {
         return originalSize;
     }
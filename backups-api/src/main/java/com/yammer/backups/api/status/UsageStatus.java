@@ -0,0 +1,42 @@
+package com.yammer.backups.api.status;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.dropwizard.util.Size;
+
+public class UsageStatus {
+
+    private final Size usedCapacity;
+    private final long objects;
+
+    public UsageStatus(Size usedCapacity, long objects) {
+        this.usedCapacity = usedCapacity;
+        this.objects = objects;
+    }
+
+    public Size getUsedCapacity() {
+        return usedCapacity;
+    }
+
+    public long getObjects() {
+        return objects;
+    }
+}
@@ -20,9 +20,14 @@ package com.yammer.backups.api.metadata;
  * #L%
  */
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.yammer.backups.api.CompressionCodec;
+import com.yammer.backups.api.Location;
+import io.dropwizard.jackson.Jackson;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.EnumSet;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
@@ -67,4 +72,30 @@ public class BackupMetadataTest extends AbstractMetadataTest<BackupMetadata> {
         data.addChunk("test2", "test2-id-1", 300, 500, "hash", "localhost", CompressionCodec.SNAPPY);
         assertEquals(1000, data.getOriginalSize());
     }
+
+    @Test
+    public void testReplicatedChunksSurviveSerialization() throws IOException {
+        data.incrementAndGetReplicatedChunks("primary");
+        data.incrementAndGetReplicatedChunks("primary");
+        data.incrementAndGetReplicatedChunks("secondary");
+
+        final ObjectMapper json = Jackson.newObjectMapper();
+        final BackupMetadata deserialized = json.readValue(json.writeValueAsString(data), BackupMetadata.class);
+
+        assertEquals(2, deserialized.getReplicatedChunks("primary"));
+        assertEquals(1, deserialized.getReplicatedChunks("secondary"));
+        assertEquals(0, deserialized.getReplicatedChunks("other"));
+    }
+
+    @Test
+    public void testStoreLocationsSurviveSerialization() throws IOException {
+        final ObjectMapper json = Jackson.newObjectMapper();
+        assertFalse(json.readValue(json.writeValueAsString(data), BackupMetadata.class).isDirectOffsite());
+
+        final BackupMetadata direct = new BackupMetadata("service", "localhost", "localhost", EnumSet.of(Location.OFFSITE));
+        final BackupMetadata deserialized = json.readValue(json.writeValueAsString(direct), BackupMetadata.class);
+
+        assertTrue(deserialized.isDirectOffsite());
+        assertEquals(EnumSet.of(Location.OFFSITE), deserialized.getStoreLocations());
+    }
 }
@@ -0,0 +1,201 @@
+package com.yammer.io.codec.compression;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.yammer.io.codec.StreamCodec;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+
+// Splits the stream into frames that are compressed independently on a ForkJoin pool and written out in order.
+// Each frame is complete in the underlying format, so the output can be read by the sequential codec.
+public abstract class ParallelCompressionCodec implements StreamCodec {
+
+    public static final int DEFAULT_FRAME_SIZE = 1024 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int frameSize;
+    private final int maxFramesInFlight;
+
+    protected ParallelCompressionCodec(ForkJoinPool pool, int frameSize) {
+        Preconditions.checkArgument(frameSize > 0, "frameSize must be positive");
+
+        this.pool = pool;
+        this.frameSize = frameSize;
+
+        // Enough to keep every worker busy while the oldest frame is written out
+        maxFramesInFlight = pool.getParallelism() * 2;
+    }
+
+    protected void writeHeader(OutputStream out) throws IOException {
+        // Most formats have no stream header
+    }
+
+    // Formats with a trailer over the whole stream are given the CRC-32 and length of everything written
+    protected boolean hasTrailer() {
+        return false;
+    }
+
+    protected void writeTrailer(OutputStream out, long crc, long length) throws IOException {
+        // Most formats have no stream trailer
+    }
+
+    protected abstract byte[] compressFrame(byte[] data, int length) throws IOException;
+
+    @Override
+    public OutputStream output(OutputStream out) throws IOException {
+        this.writeHeader(out);
+        return new FrameOutputStream(out);
+    }
+
+    private class FrameOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Deque<ForkJoinTask<byte[]>> frames = new ArrayDeque<>();
+
+        private final CRC32 crc = new CRC32();
+        private long length = 0;
+
+        private byte[] buffer = new byte[frameSize];
+        private int count = 0;
+        private boolean closed = false;
+
+        private FrameOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                this.submitFrame();
+            }
+
+            buffer[count++] = (byte) b;
+            this.updateTrailer(buffer, count - 1, 1);
+        }
+
+        private void updateTrailer(byte[] b, int off, int len) {
+            if (hasTrailer()) {
+                crc.update(b, off, len);
+                length += len;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.updateTrailer(b, off, len);
+
+            while (len > 0) {
+                if (count == buffer.length) {
+                    this.submitFrame();
+                }
+
+                final int copied = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, copied);
+
+                count += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        private void submitFrame() throws IOException {
+            if (count == 0) {
+                return;
+            }
+
+            final byte[] data = buffer;
+            final int length = count;
+
+            frames.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return compressFrame(data, length);
+                }
+            }));
+
+            // The task owns the old buffer now
+            buffer = new byte[frameSize];
+            count = 0;
+
+            while (frames.size() > maxFramesInFlight) {
+                this.writeFrame();
+            }
+        }
+
+        private void writeFrame() throws IOException {
+            try {
+                out.write(frames.remove().get());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for compressed frame");
+            }
+            catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw new IOException("Failed to compress frame", e.getCause());
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Flushing ends the current frame early, so a partial frame can be read back straight away
+            this.submitFrame();
+            while (!frames.isEmpty()) {
+                this.writeFrame();
+            }
+
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                this.flush();
+                writeTrailer(out, crc.getValue(), length);
+            }
+            finally {
+                for (ForkJoinTask<byte[]> frame : frames) {
+                    frame.cancel(false);
+                }
+
+                frames.clear();
+                out.close();
+            }
+        }
+    }
+}
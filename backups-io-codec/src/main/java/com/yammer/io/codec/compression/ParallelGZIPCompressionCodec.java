@@ -0,0 +1,99 @@
+package com.yammer.io.codec.compression;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+// Writes a single gzip member like pigz: frames are deflated independently and end with a sync flush, so they join
+// into one deflate stream under one header and trailer. Any gzip reader can decode it.
+public class ParallelGZIPCompressionCodec extends ParallelCompressionCodec {
+
+    // What GZIPOutputStream writes: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    // An empty final block with fixed codes ends the deflate stream
+    private static final byte[] FINAL_BLOCK = { 0x03, 0x00 };
+
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+    public ParallelGZIPCompressionCodec(ForkJoinPool pool) {
+        this (pool, DEFAULT_FRAME_SIZE);
+    }
+
+    public ParallelGZIPCompressionCodec(ForkJoinPool pool, int frameSize) {
+        super (pool, frameSize);
+    }
+
+    @Override
+    protected void writeHeader(OutputStream out) throws IOException {
+        out.write(HEADER);
+    }
+
+    @Override
+    protected byte[] compressFrame(byte[] data, int length) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(length / 2);
+        final byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        try {
+            deflater.setInput(data, 0, length);
+
+            // A full buffer means there may be more to come
+            int deflated;
+            do {
+                deflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                bout.write(buffer, 0, deflated);
+            }
+            while (deflated == buffer.length);
+        }
+        finally {
+            deflater.end();
+        }
+
+        return bout.toByteArray();
+    }
+
+    @Override
+    protected boolean hasTrailer() {
+        return true;
+    }
+
+    // Both little endian, the length modulo 2^32
+    @Override
+    protected void writeTrailer(OutputStream out, long crc, long length) throws IOException {
+        out.write(FINAL_BLOCK);
+        out.write(new byte[] {
+                (byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+                (byte) length, (byte) (length >> 8), (byte) (length >> 16), (byte) (length >> 24)
+        });
+    }
+
+    @Override
+    public InputStream input(InputStream in) throws IOException {
+        return new GZIPInputStream(in);
+    }
+}
@@ -0,0 +1,70 @@
+package com.yammer.io.codec.compression;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.iq80.snappy.Snappy;
+import org.iq80.snappy.SnappyInputStream;
+import org.iq80.snappy.SnappyOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// The snappy stream format is already a sequence of independently compressed 32KB blocks, so frames only need
+// the stream header dropped. With a frame size that's a multiple of the block size the output is the same as
+// SnappyOutputStream's.
+public class ParallelSnappyCompressionCodec extends ParallelCompressionCodec {
+
+    private static final byte[] STREAM_HEADER = { 's', 'n', 'a', 'p', 'p', 'y', 0 };
+
+    public ParallelSnappyCompressionCodec(ForkJoinPool pool) {
+        this (pool, DEFAULT_FRAME_SIZE);
+    }
+
+    public ParallelSnappyCompressionCodec(ForkJoinPool pool, int frameSize) {
+        super (pool, frameSize);
+    }
+
+    @Override
+    protected void writeHeader(OutputStream out) throws IOException {
+        out.write(STREAM_HEADER);
+    }
+
+    @Override
+    protected byte[] compressFrame(byte[] data, int length) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(Snappy.maxCompressedLength(length));
+
+        try (final OutputStream out = new SnappyOutputStream(bout)) {
+            out.write(data, 0, length);
+        }
+
+        final byte[] frame = bout.toByteArray();
+        return Arrays.copyOfRange(frame, STREAM_HEADER.length, frame.length);
+    }
+
+    @Override
+    public InputStream input(InputStream in) throws IOException {
+        return new SnappyInputStream(in);
+    }
+}
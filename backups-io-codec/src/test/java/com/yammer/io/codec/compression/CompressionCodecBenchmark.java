@@ -0,0 +1,106 @@
+package com.yammer.io.codec.compression;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.yammer.io.codec.StreamCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Compares compression throughput of the sequential and parallel codecs, run by hand rather than as a test:
+//   mvn -pl backups-io-codec test-compile exec:java -Dexec.classpathScope=test \
+//       -Dexec.mainClass=com.yammer.io.codec.compression.CompressionCodecBenchmark -Dexec.args="512 5"
+public class CompressionCodecBenchmark {
+
+    private static final int DEFAULT_SIZE_MB = 256;
+    private static final int DEFAULT_ITERATIONS = 3;
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    // Text-like input, random bytes wouldn't compress and would flatter the faster codecs
+    private static byte[] createInput(int size) {
+        final String[] words = "now this is the story all about how my life got flipped turned upside down".split(" ");
+        final Random random = new Random(0);
+        final byte[] bytes = new byte[size];
+
+        int position = 0;
+        while (position < size) {
+            final byte[] word = (words[random.nextInt(words.length)] + (random.nextInt(10) == 0 ? "\n" : " ")).getBytes();
+            final int length = Math.min(word.length, size - position);
+
+            System.arraycopy(word, 0, bytes, position, length);
+            position += length;
+        }
+
+        return bytes;
+    }
+
+    private static long compress(StreamCodec codec, byte[] input) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+
+        try (final OutputStream out = codec.output(counter)) {
+            for (int offset = 0;offset < input.length;offset += WRITE_SIZE) {
+                out.write(input, offset, Math.min(WRITE_SIZE, input.length - offset));
+            }
+        }
+
+        return counter.getCount();
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SIZE_MB;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        final byte[] input = createInput(sizeMB * 1024 * 1024);
+        final ForkJoinPool pool = new ForkJoinPool();
+
+        final Map<String, StreamCodec> codecs = ImmutableMap.of(
+                "gzip", new GZIPCompressionCodec(),
+                "gzip (parallel)", new ParallelGZIPCompressionCodec(pool),
+                "snappy", new SnappyCompressionCodec(),
+                "snappy (parallel)", new ParallelSnappyCompressionCodec(pool)
+        );
+
+        System.out.printf("Compressing %dMB, %d iterations, %d threads%n", sizeMB, iterations, pool.getParallelism());
+
+        for (Map.Entry<String, StreamCodec> codec : codecs.entrySet()) {
+            // Warm up so the JIT has compiled the codec before timing it
+            compress(codec.getValue(), input);
+
+            long compressedSize = 0;
+            final long start = System.nanoTime();
+            for (int i = 0;i < iterations;i++) {
+                compressedSize = compress(codec.getValue(), input);
+            }
+
+            final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            System.out.printf("%-20s %8.1f MB/s  ratio %.3f%n", codec.getKey(), sizeMB * iterations / seconds, compressedSize / (double) input.length);
+        }
+
+        pool.shutdown();
+    }
+}
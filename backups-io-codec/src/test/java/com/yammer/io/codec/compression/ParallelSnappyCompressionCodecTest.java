@@ -0,0 +1,115 @@
+package com.yammer.io.codec.compression;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.yammer.io.codec.StreamCodecTestWrapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class ParallelSnappyCompressionCodecTest {
+
+    private static final byte[] BYTES = "Now this is the story all about how, My life got flipped, turned upside down, And I'd like to take a minute just sit right there, I'll tell you how I became the prince of a town called Bel-air.".getBytes();
+    private static final int FRAME_SIZE = 64 * 1024;
+
+    private ForkJoinPool pool;
+    private ParallelSnappyCompressionCodec parallelCodec;
+
+    private static byte[] randomText(int length) {
+        final String[] words = new String(BYTES).split(" ");
+        final Random random = new Random(length);
+        final StringBuilder text = new StringBuilder(length);
+
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+
+        return text.substring(0, length).getBytes();
+    }
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+        parallelCodec = new ParallelSnappyCompressionCodec(pool, FRAME_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testCompressDecompress() throws IOException {
+        final StreamCodecTestWrapper codec = new StreamCodecTestWrapper(parallelCodec);
+
+        final byte[] compressed = codec.encode(BYTES);
+        Assert.assertFalse(Arrays.equals(BYTES, compressed));
+
+        final byte[] decompressed = codec.decode(compressed);
+        Assert.assertTrue(Arrays.equals(BYTES, decompressed));
+    }
+
+    @Test
+    public void testManyFramesReadableBySequentialCodec() throws IOException {
+        final byte[] bytes = randomText(FRAME_SIZE * 20 + 123);
+
+        final byte[] compressed = new StreamCodecTestWrapper(parallelCodec).encode(bytes);
+        Assert.assertTrue(compressed.length < bytes.length);
+
+        final byte[] decompressed = new StreamCodecTestWrapper(new SnappyCompressionCodec()).decode(compressed);
+        Assert.assertArrayEquals(bytes, decompressed);
+    }
+
+    @Test
+    public void testFlushEndsFrame() throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        try (final OutputStream out = parallelCodec.output(bout)) {
+            out.write(BYTES);
+            out.flush();
+
+            // Everything written so far can be read back before the stream is closed
+            Assert.assertArrayEquals(BYTES, new StreamCodecTestWrapper(parallelCodec).decode(bout.toByteArray()));
+
+            out.write(BYTES);
+        }
+
+        final byte[] decompressed = new StreamCodecTestWrapper(parallelCodec).decode(bout.toByteArray());
+        Assert.assertEquals(BYTES.length * 2, decompressed.length);
+    }
+
+    @Test
+    public void testSameOutputAsSequentialCodec() throws IOException {
+        final byte[] bytes = randomText(FRAME_SIZE * 3 + 1000);
+
+        final byte[] parallel = new StreamCodecTestWrapper(parallelCodec).encode(bytes);
+        final byte[] sequential = new StreamCodecTestWrapper(new SnappyCompressionCodec()).encode(bytes);
+        Assert.assertArrayEquals(sequential, parallel);
+    }
+}
@@ -21,8 +21,12 @@ package com.yammer.backups;
  */
 
 import com.codahale.metrics.health.HealthCheck;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.microsoft.windowsazure.services.blob.client.CloudBlobContainer;
 import com.sun.jersey.api.model.Parameter;
 import com.sun.jersey.spi.inject.InjectableProvider;
@@ -37,8 +41,13 @@ import com.yammer.backups.auth.TokenAuthProvider;
 import com.yammer.backups.auth.TokenAuthenticator;
 import com.yammer.backups.auth.TypedAuthProvider;
 import com.yammer.backups.codec.BackupCodecFactory;
-import com.yammer.backups.codec.CodecFactory;
+import com.yammer.backups.command.MigrateLocalStorageCommand;
 import com.yammer.backups.config.BackupConfiguration;
+import com.yammer.backups.config.ErasureCodingConfiguration;
+import com.yammer.backups.config.IngestConfiguration;
+import com.yammer.backups.config.LocalConfiguration;
+import com.yammer.backups.config.OffsiteConfiguration;
+import com.yammer.backups.config.TieringConfiguration;
 import com.yammer.backups.error.*;
 import com.yammer.backups.healthchecks.FileStorageConnectivityHealthCheck;
 import com.yammer.backups.healthchecks.ScheduledHealthCheck;
@@ -52,10 +61,17 @@ import com.yammer.backups.lock.LockManager;
 import com.yammer.backups.policy.*;
 import com.yammer.backups.processor.BackupProcessor;
 import com.yammer.backups.processor.BackupProcessorListener;
+import com.yammer.backups.processor.BackupProcessorOptions;
+import com.yammer.backups.processor.IngestPipeline;
 import com.yammer.backups.processor.ServiceRegistry;
+import com.yammer.backups.processor.UsageIndex;
 import com.yammer.backups.processor.VerificationProcessor;
+import com.yammer.backups.processor.scheduled.ChunkCollectionProcessor;
+import com.yammer.backups.processor.scheduled.ErasureRepairProcessor;
+import com.yammer.backups.processor.scheduled.MetadataFlushProcessor;
 import com.yammer.backups.processor.scheduled.OrphanedVerificationProcessor;
 import com.yammer.backups.processor.scheduled.RetentionPolicyProcessor;
+import com.yammer.backups.processor.scheduled.TierMigrationProcessor;
 import com.yammer.backups.processor.scheduled.TimedOutMetadataProcessor;
 import com.yammer.backups.provider.BackupMetadataProvider;
 import com.yammer.backups.provider.VerificationMetadataProvider;
@@ -65,14 +81,26 @@ import com.yammer.backups.resources.api.ServicesResource;
 import com.yammer.backups.resources.api.StatusResource;
 import com.yammer.backups.resources.api.VerificationResource;
 import com.yammer.backups.service.metadata.ServiceMetadata;
+import com.yammer.backups.service.metadata.UsageMetadata;
 import com.yammer.backups.storage.metadata.MetadataStorage;
 import com.yammer.backups.storage.metadata.azure.AzureTableMetadataStorage;
+import com.yammer.backups.tasks.BandwidthLimitTask;
 import com.yammer.dropwizard.authenticator.LdapAuthenticator;
 import com.yammer.dropwizard.authenticator.ResourceAuthenticator;
 import com.yammer.storage.file.FileStorage;
 import com.yammer.storage.file.azure.AzureFileStorage;
+import com.yammer.storage.file.azure.AzureFileStorageConfiguration;
+import com.yammer.storage.file.caching.CachingFileStorage;
+import com.yammer.storage.file.caching.CachingFileStorageConfiguration;
+import com.yammer.storage.file.erasure.ErasureCodedFileStorage;
 import com.yammer.storage.file.instrumented.InstrumentedFileStorage;
 import com.yammer.storage.file.local.LocalFileStorage;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import com.yammer.storage.file.replicated.ReplicatedFileStorage;
+import com.yammer.storage.file.resilient.ResilientFileStorage;
+import com.yammer.storage.file.striped.StripedFileStorage;
+import com.yammer.storage.file.throttled.ThrottledFileStorage;
+import com.yammer.storage.file.tiered.TieredFileStorage;
 import io.dropwizard.Application;
 import io.dropwizard.assets.AssetsBundle;
 import io.dropwizard.auth.Auth;
@@ -91,6 +119,8 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -98,6 +128,7 @@ public class BackupService extends Application<BackupConfiguration> {
 
     private static final Duration HEALTH_CHECK_FREQUENCY = Duration.minutes(2);
     private static final String AZURE_LOCK_BUCKET = "DISTRIBUTEDLOCKS";
+    private static final String PRIMARY_REPLICA = "primary";
 
     @SuppressWarnings("SignatureDeclareThrowsException")
     public static void main(String[] args) throws Exception {
@@ -109,22 +140,72 @@ public class BackupService extends Application<BackupConfiguration> {
         bootstrap.addBundle(new AssetsBundle("/assets", "/assets", "index.htm", "assets"));
         bootstrap.addBundle(new AssetsBundle("/META-INF/resources/webjars", "/webjars", "index.htm", "webjars"));
         bootstrap.addBundle(new ViewBundle());
+        bootstrap.addCommand(new MigrateLocalStorageCommand());
     }
 
     @Override
     public void run(BackupConfiguration configuration, Environment environment) throws URISyntaxException, InvalidKeyException, InvalidKeySpecException, NoSuchAlgorithmException, IOException {
-        final FileStorage localStorage = new InstrumentedFileStorage("local-files", new LocalFileStorage(
-            configuration.getLocalConfiguration().getStorageConfiguration()), environment.metrics());
+        final LocalConfiguration localConfiguration = configuration.getLocalConfiguration();
+        final Optional<TieringConfiguration> tieringConfiguration = localConfiguration.getTieringConfiguration();
+
+        // With tiering enabled each tier is instrumented on its own, so their occupancy is reported separately
+        final Optional<ErasureCodedFileStorage> erasureCodedStorage = this.createErasureCodedStorage(localConfiguration, environment);
+        final FileStorage hotStorage = erasureCodedStorage.isPresent() ? erasureCodedStorage.get() : this.createLocalStorage(localConfiguration);
+        final Optional<TieredFileStorage> tieredStorage;
+        if (tieringConfiguration.isPresent()) {
+            tieredStorage = Optional.of(new TieredFileStorage("local-tiers",
+                    new InstrumentedFileStorage("local-hot-files", hotStorage, environment.metrics()),
+                    new InstrumentedFileStorage("local-cold-files", new LocalFileStorage(tieringConfiguration.get().getColdStorageConfiguration()), environment.metrics()),
+                    tieringConfiguration.get().getAccessWindow(), environment.metrics()));
+        }
+        else {
+            tieredStorage = Optional.absent();
+        }
+
+        final FileStorage localStorage = new InstrumentedFileStorage("local-files",
+                tieredStorage.isPresent() ? tieredStorage.get() : hotStorage, environment.metrics());
         environment.lifecycle().manage(localStorage);
 
         final AzureFileStorage azureFileStorage = new AzureFileStorage(
-                configuration.getOffsiteConfiguration().getStorageConfiguration(), "");
-        final FileStorage offsiteStorage = new InstrumentedFileStorage("azure-files", azureFileStorage, environment.metrics());
+                configuration.getOffsiteConfiguration().getStorageConfiguration(), "", environment.metrics());
+
+        // Bandwidth is shaped before the fan out to replicas, charging uploads once per copy so the limits hold for
+        // the uplink as a whole
+        final Optional<ReplicatedFileStorage> replicatedStorage = this.createReplicatedStorage(configuration.getOffsiteConfiguration(), azureFileStorage, environment);
+        final ThrottledFileStorage throttledStorage = new ThrottledFileStorage(
+                replicatedStorage.isPresent() ? replicatedStorage.get() : azureFileStorage,
+                configuration.getOffsiteConfiguration().getBandwidthConfiguration(),
+                configuration.getOffsiteConfiguration().getReplicaConfigurations().size() + 1);
+        environment.admin().addTask(new BandwidthLimitTask(throttledStorage));
+
+        // Retried and hedged requests are throttled like any other
+        final FileStorage resilientStorage = new ResilientFileStorage("azure-reads", throttledStorage,
+                configuration.getOffsiteConfiguration().getReadConfiguration(), environment.metrics());
+
+        // Cache hits skip the retries and throttling below it, misses are filled through them
+        final Optional<CachingFileStorageConfiguration> cacheConfiguration = configuration.getOffsiteConfiguration().getCacheConfiguration();
+        final FileStorage cachedStorage;
+        if (cacheConfiguration.isPresent()) {
+            // Async downloads fill the cache on these rather than holding the caller
+            final int cacheThreads = configuration.getOffsiteConfiguration().getUploaderThreadPoolSize();
+            final ExecutorService cacheWorkers = environment.lifecycle().executorService("offsite-cache-worker-%s")
+                    .minThreads(cacheThreads).maxThreads(cacheThreads).build();
+
+            cachedStorage = new CachingFileStorage("offsite-cache", resilientStorage, new LocalFileStorage(cacheConfiguration.get().getStorageConfiguration()),
+                    cacheConfiguration.get().getMaxSize(), cacheConfiguration.get().getEviction(), cacheWorkers, environment.metrics());
+        }
+        else {
+            cachedStorage = resilientStorage;
+        }
+
+        final FileStorage offsiteStorage = new InstrumentedFileStorage("azure-files", cachedStorage, environment.metrics());
         environment.lifecycle().manage(offsiteStorage);
 
-        final CodecFactory codecFactory = new BackupCodecFactory(
-                configuration.getEncryptionConfiguration(), configuration.getCompressionConfiguration().getCodec()
+        final BackupCodecFactory codecFactory = new BackupCodecFactory(
+                configuration.getEncryptionConfiguration(), configuration.getCompressionConfiguration().getCodec(),
+                configuration.getCompressionConfiguration().getParallelism()
         );
+        environment.lifecycle().manage(codecFactory);
 
         final int offsiteUploadExecutorThreads = configuration.getOffsiteConfiguration().getUploaderThreadPoolSize();
         final ExecutorService offsiteUploadWorkers = environment.lifecycle().executorService("offsite-uploader-worker-%s")
@@ -135,6 +216,7 @@ public class BackupService extends Application<BackupConfiguration> {
         final MetadataStorage<ClientPermission> clientPermissionMetadataStorage = new AzureTableMetadataStorage<>(ClientPermission.class, configuration.getOffsiteConfiguration().getStorageConfiguration(),"clientpermissions", environment.metrics());
         final MetadataStorage<Node> nodeMetadataStorage = new AzureTableMetadataStorage<>(Node.class,configuration.getOffsiteConfiguration().getStorageConfiguration(),"nodes", environment.metrics());
         final MetadataStorage<ServiceMetadata> serviceMetadataStorage = new AzureTableMetadataStorage<>(ServiceMetadata.class, configuration.getOffsiteConfiguration().getStorageConfiguration(), "services", environment.metrics());
+        final MetadataStorage<UsageMetadata> usageMetadataStorage = new AzureTableMetadataStorage<>(UsageMetadata.class, configuration.getOffsiteConfiguration().getStorageConfiguration(), "usage", environment.metrics());
 
         final Node node = new Node(configuration.getNodeConfiguration().getName(),configuration.getNodeConfiguration().getUrl());
         nodeMetadataStorage.put(node);
@@ -149,17 +231,38 @@ public class BackupService extends Application<BackupConfiguration> {
         );
 
         final FileStorage backupLogStorage = new InstrumentedFileStorage("azure-backup-logs", new AzureFileStorage(
-                configuration.getOffsiteConfiguration().getStorageConfiguration(), "backuplogs"
+                configuration.getOffsiteConfiguration().getStorageConfiguration(), "backuplogs", environment.metrics()
         ), environment.metrics());
+        environment.lifecycle().manage(backupLogStorage);
 
         final ServiceRegistry serviceRegistry = new ServiceRegistry(serviceMetadataStorage);
 
+        // Bytes and objects stored per service, kept up to date by the backup processor rather than by scanning storage
+        final ScheduledExecutorService usageIndexExecutor = environment.lifecycle().scheduledExecutorService("usage-index-%s").build();
+        final UsageIndex usageIndex = new UsageIndex(usageMetadataStorage, backupMetadataStorage, node.getName(), usageIndexExecutor, environment.metrics());
+        environment.lifecycle().manage(usageIndex);
+
         // Main handler for backups
         final BackupProcessor backupProcessor = new BackupProcessor(lockManager, backupMetadataStorage, localStorage, offsiteStorage,
                 codecFactory, offsiteUploadWorkers, configuration.getChunkSize(), backupLogStorage, node.getName(),
-                configuration.getCompressionConfiguration().getFileExtensions(), environment.metrics(), ImmutableList.<BackupProcessorListener>of(serviceRegistry));
+                configuration.getCompressionConfiguration().getFileExtensions(), environment.metrics(), ImmutableList.<BackupProcessorListener>of(serviceRegistry, usageIndex),
+                new BackupProcessorOptions()
+                        .withDeduplicatedChunks(configuration.isDeduplicateChunks())
+                        .withIngestPipeline(this.createIngestPipeline(configuration.getIngestConfiguration(), environment))
+                        .withFollowBufferSize(configuration.getOffsiteConfiguration().getFollowBufferSize())
+                        .withCoalescedMetadataUpdates(configuration.getIngestConfiguration().isCoalesceMetadata()));
         environment.lifecycle().manage(backupProcessor);
 
+        if (configuration.getIngestConfiguration().isCoalesceMetadata()) {
+            final ScheduledExecutorService metadataFlushExecutor = environment.lifecycle().scheduledExecutorService("metadata-flush-%s").build();
+            environment.lifecycle().manage(new MetadataFlushProcessor(metadataFlushExecutor, backupProcessor,
+                    configuration.getIngestConfiguration().getMetadataFlushInterval(), environment.metrics()));
+        }
+
+        if (replicatedStorage.isPresent()) {
+            replicatedStorage.get().addListener(backupProcessor);
+        }
+
         // Backup timeout processing
         final TimedOutMetadataProcessor<BackupMetadata> backupTimeoutProcessor = this.createTimedOutProcessor(
                 backupMetadataStorage,
@@ -169,8 +272,9 @@ public class BackupService extends Application<BackupConfiguration> {
         environment.lifecycle().manage(backupTimeoutProcessor);
 
         final FileStorage verificationLogStorage = new InstrumentedFileStorage("azure-verification-logs", new AzureFileStorage(
-                configuration.getOffsiteConfiguration().getStorageConfiguration(), "verificationlogs"
+                configuration.getOffsiteConfiguration().getStorageConfiguration(), "verificationlogs", environment.metrics()
         ), environment.metrics());
+        environment.lifecycle().manage(verificationLogStorage);
 
         // Main handler for verifications
         final VerificationProcessor verificationProcessor = new VerificationProcessor(lockManager, verificationMetadataStorage, verificationLogStorage, node.getName(), backupProcessor);
@@ -212,6 +316,47 @@ public class BackupService extends Application<BackupConfiguration> {
         );
         environment.lifecycle().manage(offsiteRetentionPolicyProcessor);
 
+        // Moving old chunks from the hot to the cold tier
+        if (tieredStorage.isPresent()) {
+            final ScheduledExecutorService tierMigrationExecutor = environment.lifecycle().scheduledExecutorService("tier-migration-%s").build();
+            final TierMigrationProcessor tierMigrationProcessor = new TierMigrationProcessor(
+                    tieredStorage.get(),
+                    backupProcessor,
+                    tierMigrationExecutor,
+                    tieringConfiguration.get(),
+                    configuration.getNodeConfiguration().getName(),
+                    environment.metrics()
+            );
+            environment.lifecycle().manage(tierMigrationProcessor);
+        }
+
+        // Rebuilding shards lost with a disk or found corrupt
+        if (erasureCodedStorage.isPresent()) {
+            final ScheduledExecutorService erasureRepairExecutor = environment.lifecycle().scheduledExecutorService("erasure-repair-%s").build();
+            final ErasureRepairProcessor erasureRepairProcessor = new ErasureRepairProcessor(
+                    erasureCodedStorage.get(),
+                    backupProcessor,
+                    erasureRepairExecutor,
+                    configuration.getNodeConfiguration().getName(),
+                    environment.metrics()
+            );
+            environment.lifecycle().manage(erasureRepairProcessor);
+        }
+
+        // Reclaiming deduplicated chunks once no backup refers to them
+        if (configuration.isDeduplicateChunks()) {
+            final ScheduledExecutorService chunkCollectionExecutor = environment.lifecycle().scheduledExecutorService("chunk-collection-%s").build();
+            for (Location location : Location.values()) {
+                environment.lifecycle().manage(new ChunkCollectionProcessor(
+                        Location.LOCAL.equals(location) ? localStorage : offsiteStorage,
+                        location,
+                        backupProcessor,
+                        chunkCollectionExecutor,
+                        environment.metrics()
+                ));
+            }
+        }
+
         final ScheduledExecutorService failedRetentionPolicyExecutor = environment.lifecycle().scheduledExecutorService("failed-retention-policy-%s").build();
         final RetentionPolicyProcessor failedRetentionPolicyProcessor = new RetentionPolicyProcessor(
                 localStorage,
@@ -323,14 +468,82 @@ public class BackupService extends Application<BackupConfiguration> {
         environment.jersey().register(new VerificationMetadataProvider(verificationMetadataStorage));
 
         environment.jersey().register(new DashboardResource(tokenGenerator));
-        environment.jersey().register(new StatusResource(backupProcessor, localStorage, offsiteStorage));
+        environment.jersey().register(new StatusResource(backupProcessor, localStorage, offsiteStorage, usageIndex));
         environment.jersey().register(new BackupResource(
-                backupProcessor, clientPermissionMetadataStorage,
+                backupProcessor, clientPermissionMetadataStorage, serviceRegistry,
                 configuration.getNodeConfiguration().getName()));
         environment.jersey().register(new VerificationResource(verificationProcessor));
         environment.jersey().register(new ServicesResource(serviceRegistry));
     }
 
+    private FileStorage createLocalStorage(LocalConfiguration config) throws IOException {
+        final FileStorage storage = new LocalFileStorage(config.getStorageConfiguration());
+        if (config.getStripeConfigurations().isEmpty()) {
+            return storage;
+        }
+
+        final List<FileStorage> stripes = Lists.newArrayList(storage);
+        for (LocalFileStorageConfiguration stripeConfiguration : config.getStripeConfigurations()) {
+            stripes.add(new LocalFileStorage(stripeConfiguration));
+        }
+
+        return new StripedFileStorage(stripes);
+    }
+
+    private Optional<ErasureCodedFileStorage> createErasureCodedStorage(LocalConfiguration config, Environment environment) throws IOException {
+        final Optional<ErasureCodingConfiguration> erasureCoding = config.getErasureCodingConfiguration();
+        if (!erasureCoding.isPresent()) {
+            return Optional.absent();
+        }
+
+        if (!config.getStripeConfigurations().isEmpty()) {
+            throw new IllegalArgumentException("Local storage can be striped or erasure coded, not both");
+        }
+
+        final List<FileStorage> shards = Lists.<FileStorage>newArrayList(new LocalFileStorage(config.getStorageConfiguration()));
+        for (LocalFileStorageConfiguration rootConfiguration : erasureCoding.get().getRootConfigurations()) {
+            shards.add(new LocalFileStorage(rootConfiguration));
+        }
+
+        return Optional.of(new ErasureCodedFileStorage("local-shards", shards, erasureCoding.get().getDataShards(),
+                erasureCoding.get().getParityShards(), erasureCoding.get().getUnitSize(), environment.metrics()));
+    }
+
+    private Optional<ReplicatedFileStorage> createReplicatedStorage(OffsiteConfiguration config, FileStorage primary, Environment environment) throws URISyntaxException, InvalidKeyException {
+        if (config.getReplicaConfigurations().isEmpty()) {
+            return Optional.absent();
+        }
+
+        final Map<String, FileStorage> replicas = Maps.newLinkedHashMap();
+        replicas.put(PRIMARY_REPLICA, primary);
+        for (Map.Entry<String, AzureFileStorageConfiguration> replica : config.getReplicaConfigurations().entrySet()) {
+            if (replicas.put(replica.getKey(), new AzureFileStorage(replica.getValue(), "", environment.metrics())) != null) {
+                throw new IllegalArgumentException("Offsite replica name already in use: " + replica.getKey());
+            }
+        }
+
+        // Only existence checks and completions run here, the uploads themselves are pipelined by the Azure storages
+        final ExecutorService replicaWorkers = environment.lifecycle().executorService("offsite-replica-worker-%s")
+                .minThreads(config.getUploaderThreadPoolSize()).maxThreads(config.getUploaderThreadPoolSize()).build();
+
+        return Optional.of(new ReplicatedFileStorage("offsite-replicas", replicas, config.getWriteQuorum(),
+                MoreExecutors.listeningDecorator(replicaWorkers), environment.metrics()));
+    }
+
+    private Optional<IngestPipeline> createIngestPipeline(IngestConfiguration config, Environment environment) {
+        if (!config.isPipelined()) {
+            return Optional.absent();
+        }
+
+        // Stage workers block on each other's buffers, so there is a thread for every stage of every chunk allowed at once
+        final int threads = IngestPipeline.getWorkerThreads(config.getMaxConcurrentChunks());
+        final ExecutorService ingestWorkers = environment.lifecycle().executorService("ingest-worker-%s")
+                .minThreads(threads).maxThreads(threads).build();
+
+        return Optional.of(new IngestPipeline(ingestWorkers, config.getBufferSize(), config.getBuffersPerStage(), config.getMaxChunksInFlight(),
+                config.getMaxConcurrentChunks()));
+    }
+
     private void addScheduledHealthCheck(Environment environment, HealthCheck healthCheck, String name) {
         final ScheduledExecutorService executor = environment.lifecycle().scheduledExecutorService("healthcheck-%s").build();
         final ScheduledHealthCheck wrappedHealthCheck = ScheduledHealthCheck.wrap(healthCheck, name, executor, HEALTH_CHECK_FREQUENCY, environment.metrics());
@@ -20,39 +20,77 @@ package com.yammer.backups.codec;
  * #L%
  */
 
+import com.google.common.base.Optional;
 import com.google.common.collect.Maps;
 import com.yammer.backups.api.CompressionCodec;
 import com.yammer.io.codec.CombinedStreamCodec;
 import com.yammer.io.codec.StreamCodec;
 import com.yammer.io.codec.compression.GZIPCompressionCodec;
+import com.yammer.io.codec.compression.ParallelGZIPCompressionCodec;
+import com.yammer.io.codec.compression.ParallelSnappyCompressionCodec;
 import com.yammer.io.codec.compression.SnappyCompressionCodec;
 import com.yammer.io.codec.encryption.AESCipherEncryptionCodec;
 import com.yammer.io.codec.encryption.AESCipherEncryptionConfiguration;
 import com.yammer.io.codec.noop.NullStreamCodec;
+import io.dropwizard.lifecycle.Managed;
 
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.EnumMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
-public class BackupCodecFactory implements CodecFactory {
+// Managed so the parallel compression pool, if there is one, is shut down with the service
+public class BackupCodecFactory implements CodecFactory, Managed {
+
+    private static final long SHUTDOWN_SECONDS = 5;
 
     private final CompressionCodec defaultCompressionCodec;
     private final EnumMap<CompressionCodec, StreamCodec> compressionCodecs;
     private final StreamCodec encryptionCodec;
+    private final Optional<ForkJoinPool> compressionPool;
 
     public BackupCodecFactory(AESCipherEncryptionConfiguration encryptionConfiguration, CompressionCodec defaultCompressionCodec) throws InvalidKeySpecException, NoSuchAlgorithmException, UnsupportedEncodingException {
+        this (encryptionConfiguration, defaultCompressionCodec, 1);
+    }
+
+    public BackupCodecFactory(AESCipherEncryptionConfiguration encryptionConfiguration, CompressionCodec defaultCompressionCodec, int compressionParallelism) throws InvalidKeySpecException, NoSuchAlgorithmException, UnsupportedEncodingException {
         this.defaultCompressionCodec = defaultCompressionCodec;
 
         compressionCodecs = Maps.newEnumMap(CompressionCodec.class);
 
-        compressionCodecs.put(CompressionCodec.GZIP, new GZIPCompressionCodec());
-        compressionCodecs.put(CompressionCodec.SNAPPY, new SnappyCompressionCodec());
+        // The parallel codecs write the same formats, so chunks compressed either way read back the same
+        if (compressionParallelism > 1) {
+            final ForkJoinPool pool = new ForkJoinPool(compressionParallelism);
+            compressionCodecs.put(CompressionCodec.GZIP, new ParallelGZIPCompressionCodec(pool));
+            compressionCodecs.put(CompressionCodec.SNAPPY, new ParallelSnappyCompressionCodec(pool));
+            compressionPool = Optional.of(pool);
+        }
+        else {
+            compressionPool = Optional.absent();
+            compressionCodecs.put(CompressionCodec.GZIP, new GZIPCompressionCodec());
+            compressionCodecs.put(CompressionCodec.SNAPPY, new SnappyCompressionCodec());
+        }
+
         compressionCodecs.put(CompressionCodec.NONE, new NullStreamCodec());
 
         encryptionCodec = new AESCipherEncryptionCodec(encryptionConfiguration);
     }
 
+    @Override
+    public void start() {
+        // The pool starts threads as frames are submitted
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        if (compressionPool.isPresent()) {
+            compressionPool.get().shutdown();
+            compressionPool.get().awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
     @Override
     public CompressionCodec getDefaultCompressionCodec() {
         return defaultCompressionCodec;
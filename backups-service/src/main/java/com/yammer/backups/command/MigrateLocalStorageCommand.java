@@ -0,0 +1,62 @@
+package com.yammer.backups.command;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.yammer.backups.config.BackupConfiguration;
+import com.yammer.backups.config.LocalConfiguration;
+import com.yammer.storage.file.local.LocalFileStorage;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import io.dropwizard.cli.ConfiguredCommand;
+import io.dropwizard.setup.Bootstrap;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.IOException;
+import java.util.List;
+
+// Moves existing local backup files into the directory layout set by shardDepth. Run it while the service is stopped.
+public class MigrateLocalStorageCommand extends ConfiguredCommand<BackupConfiguration> {
+
+    public MigrateLocalStorageCommand() {
+        super("migrate-local-storage", "Moves local backup files into the configured directory layout");
+    }
+
+    @Override
+    protected void run(Bootstrap<BackupConfiguration> bootstrap, Namespace namespace, BackupConfiguration configuration) throws IOException {
+        final LocalConfiguration localConfiguration = configuration.getLocalConfiguration();
+
+        final List<LocalFileStorageConfiguration> storageConfigurations = Lists.newArrayList(localConfiguration.getStorageConfiguration());
+        storageConfigurations.addAll(localConfiguration.getStripeConfigurations());
+        if (localConfiguration.getTieringConfiguration().isPresent()) {
+            storageConfigurations.add(localConfiguration.getTieringConfiguration().get().getColdStorageConfiguration());
+        }
+
+        for (final LocalFileStorageConfiguration storageConfiguration : storageConfigurations) {
+            final LocalFileStorage storage = new LocalFileStorage(storageConfiguration);
+            try {
+                storage.migrate();
+            }
+            finally {
+                storage.stop();
+            }
+        }
+    }
+}
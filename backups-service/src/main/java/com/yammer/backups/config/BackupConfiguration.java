@@ -78,6 +78,11 @@ public class BackupConfiguration extends Configuration {
     @JsonProperty("compression")
     private CompressionConfiguration compressionConfiguration = new CompressionConfiguration();
 
+    @Valid
+    @NotNull
+    @JsonProperty("ingest")
+    private IngestConfiguration ingestConfiguration = new IngestConfiguration();
+
     @Valid
     @NotNull
     @JsonProperty
@@ -98,6 +103,10 @@ public class BackupConfiguration extends Configuration {
     @JsonProperty
     private Size chunkSize = DEFAULT_CHUNK_SIZE;
 
+    // Store chunks under a hash of their content so identical chunks are kept, and uploaded, once per service
+    @JsonProperty
+    private boolean deduplicateChunks = false;
+
     public LocalConfiguration getLocalConfiguration() {
         return localConfiguration;
     }
@@ -126,6 +135,10 @@ public class BackupConfiguration extends Configuration {
         return chunkSize;
     }
 
+    public boolean isDeduplicateChunks() {
+        return deduplicateChunks;
+    }
+
     public LdapConfiguration getLdapConfiguration() {
         return ldapConfiguration;
     }
@@ -145,4 +158,8 @@ public class BackupConfiguration extends Configuration {
     public CompressionConfiguration getCompressionConfiguration() {
         return compressionConfiguration;
     }
+
+    public IngestConfiguration getIngestConfiguration() {
+        return ingestConfiguration;
+    }
 }
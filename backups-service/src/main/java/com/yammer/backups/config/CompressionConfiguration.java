@@ -24,6 +24,7 @@ import com.google.common.collect.ImmutableSet;
 import com.yammer.backups.api.CompressionCodec;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.util.Set;
 
@@ -38,6 +39,10 @@ public class CompressionConfiguration {
     @NotNull
     private Set<String> fileExtensions = ImmutableSet.of(".gz", ".bz2", ".zip");
 
+    // Threads compressing independent frames of each stream, the output is still readable as a single stream
+    @Min(1)
+    private int parallelism = 1;
+
     public CompressionCodec getCodec() {
         return codec;
     }
@@ -45,4 +50,8 @@ public class CompressionConfiguration {
     public Set<String> getFileExtensions() {
         return fileExtensions;
     }
+
+    public int getParallelism() {
+        return parallelism;
+    }
 }
@@ -0,0 +1,73 @@
+package com.yammer.backups.config;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import io.dropwizard.util.Size;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+@SuppressWarnings("FieldCanBeLocal")
+public class ErasureCodingConfiguration {
+
+    private static final Size DEFAULT_UNIT_SIZE = Size.megabytes(1);
+
+    @Min(1)
+    @JsonProperty
+    private int dataShards;
+
+    // Disks that can be lost without losing any backups
+    @Min(1)
+    @JsonProperty
+    private int parityShards;
+
+    // Bytes written to each disk per stripe, a stripe holds dataShards units of data
+    @NotNull
+    @JsonProperty
+    private Size unitSize = DEFAULT_UNIT_SIZE;
+
+    // One root per disk for every shard after the first, which is kept in the main local storage
+    @Valid
+    @NotNull
+    @JsonProperty("roots")
+    private List<LocalFileStorageConfiguration> rootConfigurations = ImmutableList.of();
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public Size getUnitSize() {
+        return unitSize;
+    }
+
+    public List<LocalFileStorageConfiguration> getRootConfigurations() {
+        return rootConfigurations;
+    }
+}
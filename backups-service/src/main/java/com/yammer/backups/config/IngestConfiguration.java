@@ -0,0 +1,102 @@
+package com.yammer.backups.config;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import io.dropwizard.validation.MinDuration;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("FieldCanBeLocal")
+public class IngestConfiguration {
+
+    private static final Size DEFAULT_BUFFER_SIZE = Size.megabytes(1);
+    private static final int DEFAULT_BUFFERS_PER_STAGE = 8;
+    private static final int DEFAULT_MAX_CHUNKS_IN_FLIGHT = 2;
+    private static final int DEFAULT_MAX_CONCURRENT_CHUNKS = 16;
+    private static final Duration DEFAULT_METADATA_FLUSH_INTERVAL = Duration.seconds(5);
+
+    // Receive, encode and write each upload on separate threads rather than all on the request thread
+    @JsonProperty
+    private boolean pipelined = false;
+
+    @NotNull
+    @JsonProperty
+    private Size bufferSize = DEFAULT_BUFFER_SIZE;
+
+    // Buffers queued between each pair of stages, so each chunk in flight holds at most twice this many
+    @Min(1)
+    @JsonProperty
+    private int buffersPerStage = DEFAULT_BUFFERS_PER_STAGE;
+
+    // Chunks of a single upload being encoded or written while the next one is received
+    @Min(1)
+    @JsonProperty
+    private int maxChunksInFlight = DEFAULT_MAX_CHUNKS_IN_FLIGHT;
+
+    // Chunks being encoded or written across all uploads, each takes two ingest workers. Further chunks wait.
+    @Min(1)
+    @JsonProperty
+    private int maxConcurrentChunks = DEFAULT_MAX_CONCURRENT_CHUNKS;
+
+    // Write chunk and upload bookkeeping for a backup being stored together with its state changes, rather than
+    // taking the metadata lock and rewriting the metadata for every chunk
+    @JsonProperty
+    private boolean coalesceMetadata = false;
+
+    // How long coalesced metadata may lag behind while stores are in flight, in whole seconds
+    @NotNull
+    @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+    @JsonProperty
+    private Duration metadataFlushInterval = DEFAULT_METADATA_FLUSH_INTERVAL;
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public Size getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBuffersPerStage() {
+        return buffersPerStage;
+    }
+
+    public int getMaxChunksInFlight() {
+        return maxChunksInFlight;
+    }
+
+    public int getMaxConcurrentChunks() {
+        return maxConcurrentChunks;
+    }
+
+    public boolean isCoalesceMetadata() {
+        return coalesceMetadata;
+    }
+
+    public Duration getMetadataFlushInterval() {
+        return metadataFlushInterval;
+    }
+}
@@ -21,10 +21,13 @@ package com.yammer.backups.config;
  */
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.sun.istack.NotNull;
 import com.yammer.storage.file.local.LocalFileStorageConfiguration;
 
 import javax.validation.Valid;
+import java.util.List;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class LocalConfiguration extends AbstractLocationConfiguration {
@@ -34,7 +37,35 @@ public class LocalConfiguration extends AbstractLocationConfiguration {
     @JsonProperty("storage")
     private LocalFileStorageConfiguration storageConfiguration;
 
+    // Additional roots, typically on other disks, that files are striped across along with the main storage
+    @Valid
+    @NotNull
+    @JsonProperty("stripes")
+    private List<LocalFileStorageConfiguration> stripeConfigurations = ImmutableList.of();
+
+    // Optional, when set files are split into data and parity shards across the storage above and further roots
+    @Valid
+    @JsonProperty("erasureCoding")
+    private ErasureCodingConfiguration erasureCodingConfiguration;
+
+    // Optional, when set the storage above is the hot tier and old chunks are moved to a cold one
+    @Valid
+    @JsonProperty("tiering")
+    private TieringConfiguration tieringConfiguration;
+
     public LocalFileStorageConfiguration getStorageConfiguration() {
         return storageConfiguration;
     }
+
+    public List<LocalFileStorageConfiguration> getStripeConfigurations() {
+        return stripeConfigurations;
+    }
+
+    public Optional<ErasureCodingConfiguration> getErasureCodingConfiguration() {
+        return Optional.fromNullable(erasureCodingConfiguration);
+    }
+
+    public Optional<TieringConfiguration> getTieringConfiguration() {
+        return Optional.fromNullable(tieringConfiguration);
+    }
 }
@@ -21,12 +21,22 @@ package com.yammer.backups.config;
  */
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 import com.yammer.storage.file.azure.AzureFileStorageConfiguration;
+import com.yammer.storage.file.caching.CachingFileStorageConfiguration;
+import com.yammer.storage.file.resilient.ResilientFileStorageConfiguration;
+import com.yammer.storage.file.throttled.ThrottledFileStorageConfiguration;
+import io.dropwizard.util.Size;
+import io.dropwizard.util.SizeUnit;
+import io.dropwizard.validation.MaxSize;
+import io.dropwizard.validation.MinSize;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.Map;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class OffsiteConfiguration extends AbstractLocationConfiguration {
@@ -38,16 +48,76 @@ public class OffsiteConfiguration extends AbstractLocationConfiguration {
     @JsonProperty("storage")
     private AzureFileStorageConfiguration storageConfiguration;
 
+    // Further accounts, typically in other regions, that every chunk is also written to, keyed by a name for metrics
+    @Valid
+    @NotNull
+    @JsonProperty("replicas")
+    private Map<String, AzureFileStorageConfiguration> replicaConfigurations = ImmutableMap.of();
+
+    // Copies, counting the main storage, that must be stored before a chunk is offsite. Defaults to a majority.
+    @Min(1)
+    @JsonProperty
+    private Integer writeQuorum;
+
     @Valid
     @Min(1)
     @Max(100)
     private int uploaderThreadPoolSize = DEFAULT_OFFSITE_UPLOADER_THREAD_POOL_SIZE;
 
+    // Optional, when set chunks are uploaded while they're still being written, keeping up to this much in memory
+    // for each. Uploads that fall further behind catch up from the local copy once the chunk is finished.
+    // Each buffer is a single array, so it has to stay well under 2GB.
+    @MinSize(1)
+    @MaxSize(value = 1, unit = SizeUnit.GIGABYTES)
+    @JsonProperty("followBuffer")
+    private Size followBufferSize;
+
+    // Unlimited unless configured, it can also be changed at runtime through the offsite-bandwidth task
+    @Valid
+    @NotNull
+    @JsonProperty("bandwidth")
+    private ThrottledFileStorageConfiguration bandwidthConfiguration = new ThrottledFileStorageConfiguration();
+
+    // Retries, resuming and hedging of downloads, which restores fall back to when a backup isn't local
+    @Valid
+    @NotNull
+    @JsonProperty("reads")
+    private ResilientFileStorageConfiguration readConfiguration = new ResilientFileStorageConfiguration();
+
+    // Optional, when set downloads are kept on local disk so repeated restores of offsite backups don't refetch them
+    @Valid
+    @JsonProperty("cache")
+    private CachingFileStorageConfiguration cacheConfiguration;
+
     public AzureFileStorageConfiguration getStorageConfiguration() {
         return storageConfiguration;
     }
 
+    public Map<String, AzureFileStorageConfiguration> getReplicaConfigurations() {
+        return replicaConfigurations;
+    }
+
+    public int getWriteQuorum() {
+        return writeQuorum == null ? (replicaConfigurations.size() + 1) / 2 + 1 : writeQuorum;
+    }
+
     public int getUploaderThreadPoolSize() {
         return uploaderThreadPoolSize;
     }
+
+    public Optional<Size> getFollowBufferSize() {
+        return Optional.fromNullable(followBufferSize);
+    }
+
+    public ThrottledFileStorageConfiguration getBandwidthConfiguration() {
+        return bandwidthConfiguration;
+    }
+
+    public ResilientFileStorageConfiguration getReadConfiguration() {
+        return readConfiguration;
+    }
+
+    public Optional<CachingFileStorageConfiguration> getCacheConfiguration() {
+        return Optional.fromNullable(cacheConfiguration);
+    }
 }
@@ -0,0 +1,74 @@
+package com.yammer.backups.config;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import io.dropwizard.util.Duration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+@SuppressWarnings("FieldCanBeLocal")
+public class TieringConfiguration {
+
+    private static final Duration DEFAULT_DEMOTE_AFTER = Duration.days(7);
+    private static final Duration DEFAULT_ACCESS_WINDOW = Duration.days(1);
+    private static final int DEFAULT_MIN_ACCESSES = 2;
+
+    // Capacity tier that chunks are moved to once they are no longer hot
+    @Valid
+    @NotNull
+    @JsonProperty("coldStorage")
+    private LocalFileStorageConfiguration coldStorageConfiguration;
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration demoteAfter = DEFAULT_DEMOTE_AFTER;
+
+    // Chunks read at least minAccesses times within the access window stay hot however old they are
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration accessWindow = DEFAULT_ACCESS_WINDOW;
+
+    @Min(1)
+    @JsonProperty
+    private int minAccesses = DEFAULT_MIN_ACCESSES;
+
+    public LocalFileStorageConfiguration getColdStorageConfiguration() {
+        return coldStorageConfiguration;
+    }
+
+    public Duration getDemoteAfter() {
+        return demoteAfter;
+    }
+
+    public Duration getAccessWindow() {
+        return accessWindow;
+    }
+
+    public int getMinAccesses() {
+        return minAccesses;
+    }
+}
@@ -74,14 +74,17 @@ public class MissingBackupsHealthCheck extends HealthCheck {
 
         for (BackupMetadata backup : backups) {
             if (!serviceRegistry.healthCheckDisabled(backup.getService())) {
+                final Set<String> paths = Sets.newHashSet();
                 for (Chunk chunk : backup.getChunks()) {
-                    final String path = chunk.getPath();
-                    if (!fileStorage.exists(backup.getService(), path)) {
-                        LOG.warn("Found missing backup {} file {}", backup, path);
-                        missingBackups.add(backup);
-                    } else {
-                        LOG.trace("Found file {} for backup {}, skipping", path, backup);
-                    }
+                    paths.add(chunk.getPath());
+                }
+
+                final Set<String> missingPaths = Sets.difference(paths, fileStorage.existsAll(backup.getService(), paths));
+                if (!missingPaths.isEmpty()) {
+                    LOG.warn("Found missing backup {} files {}", backup, missingPaths);
+                    missingBackups.add(backup);
+                } else {
+                    LOG.trace("Found all files for backup {}, skipping", backup);
                 }
             }
         }
@@ -21,6 +21,8 @@ package com.yammer.backups.processor;
  */
 
 import com.google.common.base.*;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.yammer.backups.api.metadata.AbstractMetadata;
@@ -38,7 +40,10 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class AbstractMetadataProcessor<T extends AbstractMetadata<S>, S> implements Managed {
 
@@ -49,12 +54,22 @@ public abstract class AbstractMetadataProcessor<T extends AbstractMetadata<S>, S
     private final MetadataStorage<T> metadataStorage;
     private final FileStorage logStorage;
     private final String nodeName;
+    private final boolean coalesceUpdates;
+
+    // Items with operations in flight on this node, whose deferred updates haven't been written yet
+    private final ConcurrentMap<String, MetadataSession<T>> sessions = Maps.newConcurrentMap();
 
     public AbstractMetadataProcessor(DistributedLockManager lockManager, MetadataStorage<T> metadataStorage, FileStorage logStorage, String nodeName) {
+        this (lockManager, metadataStorage, logStorage, nodeName, false);
+    }
+
+    public AbstractMetadataProcessor(DistributedLockManager lockManager, MetadataStorage<T> metadataStorage, FileStorage logStorage, String nodeName,
+                                     boolean coalesceUpdates) {
         this.lockManager = lockManager;
         this.metadataStorage = metadataStorage;
         this.logStorage = logStorage;
         this.nodeName = nodeName;
+        this.coalesceUpdates = coalesceUpdates;
     }
 
     public Optional<T> get(String service, String id) {
@@ -129,21 +144,180 @@ public abstract class AbstractMetadataProcessor<T extends AbstractMetadata<S>, S
         return item;
     }
 
+    private static String getSessionKey(AbstractMetadata<?> item) {
+        return item.getRowKey() + "/" + item.getColumnKey();
+    }
+
+    // Until the matching closeSession, deferred updates to this item are only written along with the next update, flush
+    // or once the last operation closes the session. Crash safe as long as the item is running while a session is open,
+    // since running items are failed on restart and never trusted with what a lost update would have recorded.
+    protected void openSession(T item) {
+        if (!coalesceUpdates) {
+            return;
+        }
+
+        final String key = getSessionKey(item);
+        List<Function<T, T>> leftover = ImmutableList.of();
+        while (true) {
+            MetadataSession<T> session = sessions.get(key);
+            if (session == null) {
+                final MetadataSession<T> created = new MetadataSession<>(item);
+                session = Optional.fromNullable(sessions.putIfAbsent(key, created)).or(created);
+            }
+
+            synchronized (session) {
+                if (session.open()) {
+                    session.requeue(leftover);
+                    return;
+                }
+
+                // Closed by its last operation while we were joining it, or its final write failed. Anything it still
+                // holds is carried over into the new session rather than lost.
+                leftover = ImmutableList.<Function<T, T>>builder().addAll(leftover).addAll(session.drain()).build();
+            }
+
+            sessions.remove(key, session);
+        }
+    }
+
+    protected void closeSession(T item) throws MetadataNotFoundException {
+        final String key = getSessionKey(item);
+        final MetadataSession<T> session = sessions.get(key);
+        if (session == null) {
+            return;
+        }
+
+        synchronized (session) {
+            if (!session.close()) {
+                return;
+            }
+
+            // If the write fails the closed session stays, and what it holds goes with the next update or flush
+            this.write(item, Optional.of(session), Optional.<Function<T, T>>absent());
+            sessions.remove(key, session);
+        }
+    }
+
+    // Mutations that nothing waits on, and that have no side effects outside the item. They needn't be idempotent:
+    // each is applied to the stored item once, by whichever write carrying it succeeds.
+    protected void defer(T item, Function<T, T> function) throws MetadataNotFoundException {
+        final MetadataSession<T> session = sessions.get(getSessionKey(item));
+        if (session != null) {
+            synchronized (session) {
+                if (!session.isClosed()) {
+                    session.defer(function);
+                    return;
+                }
+            }
+        }
+
+        this.update(item, function);
+    }
+
+    // Writes what has been deferred to this item, for when other nodes have to see it before the session closes
+    protected void flush(T item) throws MetadataNotFoundException {
+        final MetadataSession<T> session = sessions.get(getSessionKey(item));
+        if (session == null) {
+            return;
+        }
+
+        synchronized (session) {
+            this.write(item, Optional.of(session), Optional.<Function<T, T>>absent());
+        }
+    }
+
+    // Writes whatever has been deferred, so readers elsewhere don't fall too far behind long running operations.
+    // A session that fails to write keeps its updates for the next flush, and doesn't hold up the others.
+    public void flushSessions() {
+        for (final Map.Entry<String, MetadataSession<T>> entry : sessions.entrySet()) {
+            final MetadataSession<T> session = entry.getValue();
+
+            synchronized (session) {
+                try {
+                    this.write(session.getItem(), Optional.of(session), Optional.<Function<T, T>>absent());
+
+                    // Left behind by a close whose write failed, now everything it held is written
+                    if (session.isClosed()) {
+                        sessions.remove(entry.getKey(), session);
+                    }
+                }
+                catch (MetadataNotFoundException e) {
+                    LOG.warn("Failed to find metadata for: " + session.getItem(), e);
+                }
+                catch (RuntimeException e) {
+                    LOG.warn("Failed to flush metadata for: " + session.getItem(), e);
+                }
+            }
+        }
+    }
+
     protected T update(T item, Function<T, T> function) throws MetadataNotFoundException {
+        final MetadataSession<T> session = sessions.get(getSessionKey(item));
+        if (session == null) {
+            return this.write(item, Optional.<MetadataSession<T>>absent(), Optional.of(function));
+        }
+
+        // Anything deferred goes along with this update, and in the order it was made
+        synchronized (session) {
+            return this.write(item, Optional.of(session), Optional.of(function));
+        }
+    }
+
+    // Callers hold the session's monitor, its deferred updates are only dropped from it once they've been written
+    private T write(T item, Optional<MetadataSession<T>> session, Optional<Function<T, T>> function) throws MetadataNotFoundException {
+        final List<Function<T, T>> pending = session.isPresent() ? session.get().getPending() : ImmutableList.<Function<T, T>>of();
+        if (pending.isEmpty() && !function.isPresent()) {
+            return item;
+        }
+
         try (final DistributedLock lock = lockManager.lock(item.getId())) {
             lockManager.acquire(lock);
 
-            final Optional<T> mutable = metadataStorage.get(item.getRowKey(), item.getColumnKey());
-            if (!mutable.isPresent()) {
-                throw new MetadataNotFoundException(item.getService(), item.getId());
+            T result = this.read(item);
+            for (final Function<T, T> deferred : pending) {
+                result = deferred.apply(result);
             }
 
-            final T result = function.apply(mutable.get());
-            metadataStorage.update(result);
+            if (function.isPresent()) {
+                try {
+                    result = function.get().apply(result);
+                }
+                catch (RuntimeException e) {
+                    // Don't lose the deferred updates along with the one that failed, or keep anything it half applied
+                    if (!pending.isEmpty()) {
+                        T deferredOnly = this.read(item);
+                        for (final Function<T, T> deferred : pending) {
+                            deferredOnly = deferred.apply(deferredOnly);
+                        }
+
+                        this.store(deferredOnly, session);
+                    }
+
+                    throw e;
+                }
+            }
+
+            this.store(result, session);
             return result;
         }
     }
 
+    private void store(T result, Optional<MetadataSession<T>> session) {
+        metadataStorage.update(result);
+        if (session.isPresent()) {
+            session.get().written();
+        }
+    }
+
+    private T read(T item) throws MetadataNotFoundException {
+        final Optional<T> mutable = metadataStorage.get(item.getRowKey(), item.getColumnKey());
+        if (!mutable.isPresent()) {
+            throw new MetadataNotFoundException(item.getService(), item.getId());
+        }
+
+        return mutable.get();
+    }
+
     public Set<String> listServices() {
         return metadataStorage.listAllRows();
     }
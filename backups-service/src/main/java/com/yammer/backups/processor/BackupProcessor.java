@@ -22,17 +22,32 @@ package com.yammer.backups.processor;
 
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
-import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingInputStream;
 import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.google.common.io.CountingOutputStream;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.yammer.backups.api.Chunk;
@@ -43,10 +58,14 @@ import com.yammer.backups.codec.CodecFactory;
 import com.yammer.backups.error.InvalidMD5Exception;
 import com.yammer.backups.error.MetadataNotFoundException;
 import com.yammer.backups.error.NoContentException;
+import com.yammer.backups.lock.DistributedLock;
 import com.yammer.backups.lock.DistributedLockManager;
 import com.yammer.backups.storage.metadata.MetadataStorage;
+import com.yammer.backups.util.TeeOutputStream;
 import com.yammer.io.codec.StreamCodec;
 import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.replicated.ReplicationListener;
 import io.dropwizard.util.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,20 +74,44 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, BackupMetadata.State> {
+public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, BackupMetadata.State> implements ReplicationListener {
 
     private static final int CHUNK_FILENAME_PART_RESOLUTION = 3;
     private static final String CHUNK_FILENAME_TEMPLATE = "%s-%s-part-%s";
+    private static final String CONTENT_ADDRESS_PREFIX = "sha256-";
+    private static final String CONTENT_ADDRESS_TEMPLATE = CONTENT_ADDRESS_PREFIX + "%s-%s";
+    private static final int MAX_REPLICATING_CHUNKS = 100_000;
     private static final Logger LOG = LoggerFactory.getLogger(BackupProcessor.class);
 
     private static String formatChunkFilename(String id, String filename, int chunk) {
         return String.format(CHUNK_FILENAME_TEMPLATE, id, filename, Strings.padStart(String.valueOf(chunk), CHUNK_FILENAME_PART_RESOLUTION, '0'));
     }
 
+    // The codec is part of the address as the same plaintext stored with another codec is different content
+    private static String formatContentAddress(String hash, CompressionCodec compressionCodec) {
+        return String.format(CONTENT_ADDRESS_TEMPLATE, hash, compressionCodec.name().toLowerCase());
+    }
+
+    public static String getContentAddressPrefix() {
+        return CONTENT_ADDRESS_PREFIX;
+    }
+
+    public static boolean isContentAddressed(String path) {
+        return path.startsWith(CONTENT_ADDRESS_PREFIX);
+    }
+
     private final Counter ACTIVE_STORES;
     private final Histogram STORE_SIZES;
     private final Timer STORE_TIMES;
@@ -81,6 +124,10 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
     private final Histogram DOWNLOAD_SIZES;
     private final Timer DOWNLOAD_TIMES;
 
+    private final Meter DEDUPLICATED_CHUNKS;
+    private final Meter DEDUPLICATED_BYTES;
+
+    private final DistributedLockManager lockManager;
     private final FileStorage localStorage;
     private final FileStorage offsiteStorage;
     private final CodecFactory codecFactory;
@@ -88,13 +135,42 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
     private final Size chunkSize;
     private final Set<String> compressedFileExtensions;
     private final List<BackupProcessorListener> listeners;
+    private final boolean deduplicateChunks;
+    private final Optional<IngestPipeline> ingestPipeline;
+    private final Optional<Size> followBufferSize;
+
+    // Content addresses reused or written by stores still running here, by backup. Until the store finishes its
+    // references may not be written, so they count as referenced locally, and claiming and collecting exclude each other.
+    private final SetMultimap<String, String> claimedAddresses = HashMultimap.create();
+
+    // Content addressed chunks found offsite by stores still running here, by backup. They're only relied on once the
+    // store has written its references to them and checked them again, rather than once for each chunk.
+    private final ListMultimap<String, Chunk> unconfirmedChunks = ArrayListMultimap.create();
+
+    // Offsite uploads following chunks that are still being written locally, keyed like replicatingChunks
+    private final ConcurrentMap<String, ChunkFollower> followers = Maps.newConcurrentMap();
+
+    // Chunks recently copied offsite, so replicas finishing after the write quorum can still be credited to their backup
+    private final Cache<String, BackupMetadata> replicatingChunks = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .maximumSize(MAX_REPLICATING_CHUNKS)
+            .build();
 
     public BackupProcessor(DistributedLockManager lockManager, MetadataStorage<BackupMetadata> metadataStorage, FileStorage localStorage, FileStorage offsiteStorage,
                            CodecFactory codecFactory, ExecutorService offsiteUploadWorkers, Size chunkSize,
                            FileStorage logStorage, String nodeName, Set<String> compressedFileExtensions, MetricRegistry metricRegistry,
                            List<BackupProcessorListener> listeners) {
-        super (lockManager, metadataStorage, logStorage, nodeName);
+        this (lockManager, metadataStorage, localStorage, offsiteStorage, codecFactory, offsiteUploadWorkers, chunkSize,
+                logStorage, nodeName, compressedFileExtensions, metricRegistry, listeners, new BackupProcessorOptions());
+    }
+
+    public BackupProcessor(DistributedLockManager lockManager, MetadataStorage<BackupMetadata> metadataStorage, FileStorage localStorage, FileStorage offsiteStorage,
+                           CodecFactory codecFactory, ExecutorService offsiteUploadWorkers, Size chunkSize,
+                           FileStorage logStorage, String nodeName, Set<String> compressedFileExtensions, MetricRegistry metricRegistry,
+                           List<BackupProcessorListener> listeners, BackupProcessorOptions options) {
+        super (lockManager, metadataStorage, logStorage, nodeName, options.isCoalesceMetadataUpdates());
 
+        this.lockManager = lockManager;
         this.localStorage = localStorage;
         this.offsiteStorage = offsiteStorage;
         this.codecFactory = codecFactory;
@@ -102,6 +178,9 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         this.chunkSize = chunkSize;
         this.compressedFileExtensions = compressedFileExtensions;
         this.listeners = listeners;
+        this.deduplicateChunks = options.isDeduplicateChunks();
+        this.ingestPipeline = options.getIngestPipeline();
+        this.followBufferSize = options.getFollowBufferSize();
 
         ACTIVE_STORES = metricRegistry.counter("active-stores");
         STORE_SIZES = metricRegistry.histogram("store-sizes");
@@ -114,6 +193,22 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         ACTIVE_DOWNLOADS = metricRegistry.counter("active-downloads");
         DOWNLOAD_SIZES = metricRegistry.histogram("download-sizes");
         DOWNLOAD_TIMES = metricRegistry.timer("download-times");
+
+        DEDUPLICATED_CHUNKS = metricRegistry.meter("deduplicated-chunks");
+        DEDUPLICATED_BYTES = metricRegistry.meter("deduplicated-bytes");
+    }
+
+    @Override
+    public void stop() {
+        // Followers would otherwise hold upload threads waiting for chunks that will never be sealed
+        for (final String key : followers.keySet()) {
+            final ChunkFollower follower = followers.remove(key);
+            if (follower != null) {
+                follower.abort(new IOException("Stopped while following " + key));
+            }
+        }
+
+        super.stop();
     }
 
     public long getActiveStoresCount() {
@@ -129,7 +224,11 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
     }
 
     public BackupMetadata create(String service, String remoteAddress) {
-        final BackupMetadata backupMetadata = super.create(new BackupMetadata(service, remoteAddress, getNodeName()));
+        return this.create(service, remoteAddress, EnumSet.of(Location.LOCAL));
+    }
+
+    public BackupMetadata create(String service, String remoteAddress, EnumSet<Location> storeLocations) {
+        final BackupMetadata backupMetadata = super.create(new BackupMetadata(service, remoteAddress, getNodeName(), storeLocations));
         fireBackupCreated(backupMetadata);
         return backupMetadata;
     }
@@ -147,7 +246,7 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
     }
 
     private void incrementPendingUploads(BackupMetadata backup, final String path) throws MetadataNotFoundException {
-        this.update(backup, new Function<BackupMetadata, BackupMetadata>() {
+        this.defer(backup, new Function<BackupMetadata, BackupMetadata>() {
             @Override
             public BackupMetadata apply(BackupMetadata input) {
                 final int pendingUploads = input.incrementAndGetPendingUploads();
@@ -174,7 +273,7 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
     }
 
     private void decrementPendingUploads(BackupMetadata backup, final String path) throws MetadataNotFoundException {
-        this.update(backup, new Function<BackupMetadata, BackupMetadata>() {
+        this.defer(backup, new Function<BackupMetadata, BackupMetadata>() {
             @Override
             public BackupMetadata apply(BackupMetadata input) {
                 final int pendingUploads = input.decrementAndGetPendingUploads();
@@ -207,6 +306,9 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
     public void store(BackupMetadata backup, Optional<String> contentMD5, InputStream in, String filename) throws IOException {
         final Timer.Context context = STORE_TIMES.time();
 
+        // Chunk and upload bookkeeping is written along with the state changes, rather than once for each chunk
+        this.openSession(backup);
+
         try {
             ACTIVE_STORES.inc();
             incrementPendingStores(backup, filename);
@@ -219,7 +321,9 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
 
             try (final HashingInputStream md5in = new HashingInputStream(Hashing.md5(), in)) {
                 // Store all chunks
-                final long size = this.storeChunks(backup, md5in, filename, compressionCodec);
+                final long size = ingestPipeline.isPresent()
+                        ? this.storeChunksPipelined(backup, md5in, filename, compressionCodec)
+                        : this.storeChunks(backup, md5in, filename, compressionCodec);
                 if (size == 0) {
                     throw new NoContentException(String.format("No content received for %s (service: %s, id: %s)", filename, backup.getService(), backup.getId()));
                 }
@@ -232,10 +336,14 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
                 }
             }
 
+            this.confirmOffsite(backup);
+
             decrementPendingStores(backup, filename);
             fireBackupUploaded(backup, filename);
         }
         catch (final Exception e) {
+            this.abortFollowers(backup, filename, e);
+
             this.update(backup, new Function<BackupMetadata, BackupMetadata>() {
                 @Override
                 public BackupMetadata apply(BackupMetadata input) {
@@ -250,6 +358,14 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         finally {
             ACTIVE_STORES.dec();
             context.stop();
+
+            try {
+                this.closeSession(backup);
+            }
+            finally {
+                this.releaseAddresses(backup);
+                this.forgetUnconfirmed(backup);
+            }
         }
     }
 
@@ -265,10 +381,7 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
                 LOG.debug("Attempted to store {} byte chunk ({} {} stream was finished)", resultSize, backup, filename);
 
                 // If we wrote a 0 byte chunk, delete it
-                if (localStorage.exists(backup.getService(), path)) {
-                    localStorage.delete(backup.getService(), path);
-                }
-
+                this.deleteEmptyChunk(backup, path);
                 break;
             }
 
@@ -278,88 +391,440 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         return size;
     }
 
+    // The request thread only receives data, while earlier chunks of the same file are still being encoded and written
+    private long storeChunksPipelined(BackupMetadata backup, InputStream in, String filename, CompressionCodec compressionCodec) throws IOException {
+        final IngestPipeline pipeline = ingestPipeline.get();
+        final Deque<IngestPipeline.PipelinedChunk> pending = new ArrayDeque<>();
+        long size = 0;
+
+        try {
+            for (int i = 0; true; i++) {
+                // Chunks are recorded in order, and waiting on the oldest bounds the memory each upload can hold
+                if (pending.size() >= pipeline.getMaxChunksInFlight()) {
+                    size += this.recordPipelinedChunk(backup, pending.remove(), filename, compressionCodec);
+                }
+
+                final String path = formatChunkFilename(backup.getId(), filename, i);
+                final StreamCodec codec = codecFactory.get(compressionCodec, backup.getModelVersion() < 1);
+
+                LOG.debug("Storing {} chunk {} locally (pipelined)", backup, path);
+                final IngestPipeline.PipelinedChunk chunk = pipeline.start(path, codec, this.openChunkOutput(backup, path), this.isDeduplicating(backup));
+                pending.add(chunk);
+
+                // Only close the input once everything arrived, closing it early would store a truncated chunk
+                final OutputStream out = chunk.input();
+                final long received = ByteStreams.copy(ByteStreams.limit(in, chunkSize.toBytes()), out);
+                out.close();
+
+                if (received < chunkSize.toBytes()) {
+                    break;
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                size += this.recordPipelinedChunk(backup, pending.remove(), filename, compressionCodec);
+            }
+
+            return size;
+        }
+        catch (IOException | RuntimeException e) {
+            for (final IngestPipeline.PipelinedChunk chunk : pending) {
+                chunk.abort(e);
+            }
+
+            for (final IngestPipeline.PipelinedChunk chunk : pending) {
+                chunk.awaitQuietly();
+            }
+
+            throw e;
+        }
+    }
+
+    private long recordPipelinedChunk(BackupMetadata backup, IngestPipeline.PipelinedChunk chunk, String filename, CompressionCodec compressionCodec) throws IOException {
+        final IngestPipeline.EncodedChunk encoded = chunk.await();
+        final String path = chunk.getPath();
+
+        if (encoded.getOriginalSize() <= 0) {
+            LOG.debug("Attempted to store {} byte chunk ({} {} stream was finished)", encoded.getOriginalSize(), backup, filename);
+
+            // The stream ended exactly on a chunk boundary, delete the empty chunk
+            this.deleteEmptyChunk(backup, path);
+            return 0;
+        }
+
+        final Optional<String> contentHash = encoded.getContentHash().isPresent()
+                ? Optional.of(encoded.getContentHash().get().toString())
+                : Optional.<String>absent();
+
+        this.recordChunk(backup, path, filename, compressionCodec, encoded.getOriginalSize(), encoded.getSize(), encoded.getMD5().toString(), contentHash);
+        return encoded.getOriginalSize();
+    }
+
+    // Offsite storage can't move a blob once written, so chunks sent directly offsite keep their chunk path
+    private boolean isDeduplicating(BackupMetadata backup) {
+        return deduplicateChunks && !backup.isDirectOffsite();
+    }
+
+    // Direct offsite backups tee encoded chunks straight into the offsite upload, optionally keeping a local copy
+    private OutputStream openChunkOutput(BackupMetadata backup, String path) throws IOException {
+        if (!backup.isDirectOffsite()) {
+            final OutputStream local = localStorage.upload(backup.getService(), path);
+            return this.isFollowing(backup) ? new TeeOutputStream(local, this.startFollower(backup, path).sink()) : local;
+        }
+
+        replicatingChunks.put(getReplicatingKey(backup.getService(), path), backup);
+        if (!backup.getStoreLocations().contains(Location.LOCAL)) {
+            return offsiteStorage.upload(backup.getService(), path);
+        }
+
+        final OutputStream local = localStorage.upload(backup.getService(), path);
+        try {
+            return new TeeOutputStream(local, offsiteStorage.upload(backup.getService(), path));
+        }
+        catch (IOException | RuntimeException e) {
+            Closeables.close(local, true);
+            throw e;
+        }
+    }
+
+    // Following copies chunks offsite under their chunk path, which a deduplicated chunk is moved away from
+    private boolean isFollowing(BackupMetadata backup) {
+        return followBufferSize.isPresent() && !backup.isDirectOffsite() && !this.isDeduplicating(backup);
+    }
+
+    private ChunkFollower startFollower(BackupMetadata backup, String path) {
+        final ChunkFollower follower = new ChunkFollower(Ints.checkedCast(followBufferSize.get().toBytes()));
+        followers.put(getReplicatingKey(backup.getService(), path), follower);
+
+        LOG.debug("Following {} chunk {} offsite", backup, path);
+        follower.start(offsiteUploadWorkers, offsiteStorage, backup.getService(), path);
+        return follower;
+    }
+
+    // A failed store never seals its chunks, so their uploads are abandoned without committing anything
+    private void abortFollowers(BackupMetadata backup, String filename, Throwable cause) {
+        final String prefix = getReplicatingKey(backup.getService(), String.format(CHUNK_FILENAME_TEMPLATE, backup.getId(), filename, ""));
+        for (final String key : followers.keySet()) {
+            if (key.startsWith(prefix)) {
+                final ChunkFollower follower = followers.remove(key);
+                if (follower != null) {
+                    follower.abort(cause);
+                }
+            }
+        }
+    }
+
+    private void deleteEmptyChunk(BackupMetadata backup, String path) throws IOException {
+        final ChunkFollower follower = followers.remove(getReplicatingKey(backup.getService(), path));
+        if (follower != null) {
+            follower.abort(new IOException("Chunk " + path + " is empty"));
+        }
+
+        for (final Location location : backup.getStoreLocations()) {
+            final FileStorage storage = (location == Location.LOCAL) ? localStorage : offsiteStorage;
+            if (storage.exists(backup.getService(), path)) {
+                storage.delete(backup.getService(), path);
+            }
+        }
+    }
+
     private long storeChunk(BackupMetadata backup, InputStream in, final String path, final String filename, final CompressionCodec compressionCodec) throws IOException {
-        final CountingOutputStream countingOut = new CountingOutputStream(localStorage.upload(backup.getService(), path));
+        final OutputStream chunkOut = this.openChunkOutput(backup, path);
+        final CountingOutputStream countingOut = new CountingOutputStream(chunkOut);
+        final boolean contentAddressed = this.isDeduplicating(backup);
 
         final StreamCodec codec = codecFactory.get(compressionCodec, backup.getModelVersion() < 1);
 
-        try (final OutputStream out = codec.output(countingOut)) {
-            final HashingInputStream md5in = new HashingInputStream(Hashing.md5(), in);
+        final HashingInputStream md5in = new HashingInputStream(Hashing.md5(), in);
+
+        // Content addresses are taken over the plaintext, so the same data shares a chunk whichever backup it arrives in
+        final HashingInputStream sha256in = new HashingInputStream(Hashing.sha256(), md5in);
+        final long originalSize;
 
+        OutputStream out = null;
+        try {
+            out = codec.output(countingOut);
             LOG.debug("Storing {} chunk {} locally", backup, path);
 
-            final long originalSize = ByteStreams.copy(md5in, out);
-            if (originalSize > 0) {
-                final long size = countingOut.getCount();
-                final String hash = md5in.hash().toString();
+            originalSize = ByteStreams.copy(contentAddressed ? sha256in : md5in, out);
+            out.close();
+        }
+        catch (IOException | RuntimeException e) {
+            // Closing would publish a truncated chunk, so it is aborted before the codec is released. For chunks going
+            // straight offsite that abandons the upload without committing the blob, along with any local copy.
+            FileStorages.abort(chunkOut);
+            replicatingChunks.invalidate(getReplicatingKey(backup.getService(), path));
+            Closeables.close(out, true);
+            throw e;
+        }
 
-                this.update(backup, new Function<BackupMetadata, BackupMetadata>() {
-                    @Override
-                    public BackupMetadata apply(BackupMetadata input) {
-                        input.addChunk(filename, path, originalSize, size, hash, getNodeName(), compressionCodec);
-                        return input;
-                    }
-                });
+        // Only record the chunk once the stream is closed, which is when local storage makes it durable
+        if (originalSize > 0) {
+            final Optional<String> contentHash = contentAddressed ? Optional.of(sha256in.hash().toString()) : Optional.<String>absent();
+            this.recordChunk(backup, path, filename, compressionCodec, originalSize, countingOut.getCount(), md5in.hash().toString(), contentHash);
+        }
+
+        return originalSize;
+    }
+
+    private void recordChunk(BackupMetadata backup, String path, final String filename, final CompressionCodec compressionCodec,
+                             final long originalSize, long size, String hash, Optional<String> contentHash) throws IOException {
+        final String storedPath = contentHash.isPresent() ? formatContentAddress(contentHash.get(), compressionCodec) : path;
+        final Chunk chunk = new Chunk(storedPath, originalSize, size, hash, getNodeName(), compressionCodec);
+        final boolean stored = !contentHash.isPresent() || this.storeContentAddressed(backup, path, chunk);
+
+        this.defer(backup, new Function<BackupMetadata, BackupMetadata>() {
+            @Override
+            public BackupMetadata apply(BackupMetadata input) {
+                input.addChunk(filename, storedPath, originalSize, chunk.getSize(), chunk.getHash(), getNodeName(), compressionCodec);
+                return input;
+            }
+        });
+
+        LOG.debug("Stored {} chunk {} (originalSize: {}, size: {}) in {}", backup, storedPath, originalSize, chunk.getSize(), backup.getStoreLocations());
+        if (stored) {
+            for (final Location location : backup.getStoreLocations()) {
+                fireChunkStored(backup, location, chunk);
+            }
+        }
+
+        // Upload this chunk offsite in another thread, unless it went there directly or is already on its way
+        final ChunkFollower follower = followers.remove(getReplicatingKey(backup.getService(), path));
+        if (follower != null) {
+            this.sealFollower(backup, chunk, follower);
+        }
+        else if (!backup.isDirectOffsite()) {
+            this.uploadChunk(backup, chunk);
+        }
+    }
+
+    // Moves a freshly written chunk to its content address, or drops it if that content is already stored
+    private boolean storeContentAddressed(BackupMetadata backup, String path, Chunk chunk) throws IOException {
+        final String namespace = backup.getService();
+        final boolean exists;
+        synchronized (claimedAddresses) {
+            claimedAddresses.put(getReplicatingKey(namespace, backup.getId()), chunk.getPath());
+            exists = localStorage.exists(namespace, chunk.getPath());
+        }
+
+        try {
+            if (!exists) {
+                FileStorages.move(localStorage, namespace, path, chunk.getPath());
+                return true;
+            }
+        }
+        catch (FileAlreadyExistsException e) {
+            // Another store of the same content got there first
+        }
+
+        LOG.debug("Chunk {} already stored as {}, deduplicating", path, chunk.getPath());
+        localStorage.delete(namespace, path);
+
+        DEDUPLICATED_CHUNKS.mark();
+        DEDUPLICATED_BYTES.mark(chunk.getSize());
+        return false;
+    }
+
+    private void releaseAddresses(BackupMetadata backup) {
+        synchronized (claimedAddresses) {
+            claimedAddresses.removeAll(getReplicatingKey(backup.getService(), backup.getId()));
+        }
+    }
+
+    // Collectors on every node share offsite storage, so an address found there is only relied on once this backup's
+    // references are written, and it's still there under the lock the collectors delete with. Any collected meanwhile
+    // are uploaded again from the local copy, which the store's claim keeps.
+    private void confirmOffsite(BackupMetadata backup) throws IOException {
+        final List<Chunk> chunks;
+        synchronized (unconfirmedChunks) {
+            chunks = unconfirmedChunks.removeAll(getReplicatingKey(backup.getService(), backup.getId()));
+        }
 
-                LOG.debug("Stored {} chunk {} (originalSize: {}, size: {}) locally", backup, path, originalSize, size);
+        if (chunks.isEmpty()) {
+            return;
+        }
 
-                // Upload this chunk offsite in another thread
-                this.uploadChunk(backup, path);
+        this.flush(backup);
+
+        final List<Chunk> collected = Lists.newArrayList();
+        try (final DistributedLock lock = lockManager.lock(getContentLockId(backup.getService()))) {
+            lockManager.acquire(lock);
+            for (final Chunk chunk : chunks) {
+                if (!offsiteStorage.exists(backup.getService(), chunk.getPath())) {
+                    collected.add(chunk);
+                }
             }
+        }
+
+        for (final Chunk chunk : collected) {
+            LOG.debug("{} chunk {} was collected offsite before it was referenced, uploading it again", backup, chunk.getPath());
+            this.startUpload(backup, chunk);
+        }
+    }
 
-            return originalSize;
+    private void forgetUnconfirmed(BackupMetadata backup) {
+        synchronized (unconfirmedChunks) {
+            unconfirmedChunks.removeAll(getReplicatingKey(backup.getService(), backup.getId()));
         }
     }
 
-    private void uploadChunk(final BackupMetadata backup, final String path) throws IOException {
+    private static String getContentLockId(String service) {
+        return service + "-content";
+    }
+
+    // Deletes those of the paths that still aren't referenced, while no store can claim them
+    public Set<String> deleteUnreferenced(FileStorage storage, String service, Location location, Set<String> paths) throws IOException {
+        if (Location.LOCAL.equals(location)) {
+            synchronized (claimedAddresses) {
+                return storage.deleteAll(service, ImmutableSet.copyOf(Sets.difference(paths, this.getReferencedPaths(service, location))));
+            }
+        }
+
+        try (final DistributedLock lock = lockManager.lock(getContentLockId(service))) {
+            lockManager.acquire(lock);
+            return storage.deleteAll(service, ImmutableSet.copyOf(Sets.difference(paths, this.getReferencedPaths(service, location))));
+        }
+    }
+
+    private void uploadChunk(final BackupMetadata backup, final Chunk chunk) throws IOException {
+        final String path = chunk.getPath();
         if (offsiteStorage.exists(backup.getService(), path)) {
             LOG.debug("{} chunk {} already exists offsite, skipping upload", backup, path);
+            if (isContentAddressed(path)) {
+                synchronized (unconfirmedChunks) {
+                    unconfirmedChunks.put(getReplicatingKey(backup.getService(), backup.getId()), chunk);
+                }
+            }
+
             return;
         }
 
-        incrementPendingUploads(backup, path);
+        this.startUpload(backup, chunk);
+    }
+
+    private void startUpload(BackupMetadata backup, Chunk chunk) throws IOException {
+        final String path = chunk.getPath();
+        this.openUploadSession(backup, path);
+
+        final Timer.Context context = UPLOAD_TIMES.time();
+        ACTIVE_UPLOADS.inc();
+
+        LOG.debug("Uploading {} chunk {} offsite", backup, path);
+        replicatingChunks.put(getReplicatingKey(backup.getService(), path), backup);
+
+        // Storages with native async support pipeline the upload themselves, others run on the offsite pool
+        final ListenableFuture<Long> upload = FileStorages.uploadAsync(offsiteStorage, backup.getService(), path,
+                FileStorages.asByteSource(localStorage, backup.getService(), path), offsiteUploadWorkers);
+
+        this.trackUpload(backup, chunk, upload, context);
+    }
 
-        offsiteUploadWorkers.submit(new Runnable() {
+    // The follower has been copying the chunk since its first block, now that it's durable locally the blob can be committed
+    private void sealFollower(BackupMetadata backup, Chunk chunk, ChunkFollower follower) throws IOException {
+        final String path = chunk.getPath();
+        this.openUploadSession(backup, path);
+
+        final Timer.Context context = UPLOAD_TIMES.time();
+        ACTIVE_UPLOADS.inc();
+
+        LOG.debug("Sealing {} chunk {} for offsite upload", backup, path);
+        replicatingChunks.put(getReplicatingKey(backup.getService(), path), backup);
+
+        follower.seal(FileStorages.asByteSource(localStorage, backup.getService(), path));
+        this.trackUpload(backup, chunk, follower.getUpload(), context);
+    }
+
+    private void trackUpload(final BackupMetadata backup, final Chunk chunk, ListenableFuture<Long> upload, final Timer.Context context) {
+        final String path = chunk.getPath();
+        Futures.addCallback(upload, new FutureCallback<Long>() {
             @Override
-            public void run() {
-                final Timer.Context context = UPLOAD_TIMES.time();
+            public void onSuccess(Long size) {
+                try {
+                    UPLOAD_SIZES.update(size);
+
+                    LOG.debug("Uploaded {} chunk {} offsite", backup, path);
+                    fireChunkStored(backup, Location.OFFSITE, chunk);
+                }
+                finally {
+                    finishUpload(backup, path, context);
+                }
+            }
 
+            @Override
+            public void onFailure(final Throwable t) {
                 try {
-                    try (final InputStream in = localStorage.download(backup.getService(), path);
-                         final OutputStream out = offsiteStorage.upload(backup.getService(), path)) {
-                        ACTIVE_UPLOADS.inc();
-
-                        LOG.debug("Uploading {} chunk {} offsite", backup, path);
-
-                        final long size = ByteStreams.copy(in, out);
-                        UPLOAD_SIZES.update(size);
-
-                        LOG.debug("Uploaded {} chunk {} offsite", backup, path);
-                    } catch (final Exception e) {
-                        update(backup, new Function<BackupMetadata, BackupMetadata>() {
-                            @Override
-                            public BackupMetadata apply(BackupMetadata input) {
-                                LOG.error("Failed copying chunk offsite", e);
-                                input.setFailed("Failed copying chunk offsite: " + e.getMessage());
-                                return input;
-                            }
-                        });
-
-                        throw Throwables.propagate(e);
-                    } finally {
-                        decrementPendingUploads(backup, path);
-                        ACTIVE_UPLOADS.dec();
-                    }
+                    update(backup, new Function<BackupMetadata, BackupMetadata>() {
+                        @Override
+                        public BackupMetadata apply(BackupMetadata input) {
+                            LOG.error("Failed copying chunk offsite", t);
+                            input.setFailed("Failed copying chunk offsite: " + t.getMessage());
+                            return input;
+                        }
+                    });
                 }
                 catch (MetadataNotFoundException e) {
                     LOG.warn("Failed to find metadata for: " + backup, e);
-                    throw Throwables.propagate(e);
                 }
                 finally {
-                    context.stop();
+                    finishUpload(backup, path, context);
                 }
             }
-        });
+        }, offsiteUploadWorkers);
+    }
+
+    private static String getReplicatingKey(String service, String path) {
+        return service + "/" + path;
+    }
+
+    @Override
+    public void replicaStored(final String replica, String namespace, String path) {
+        final BackupMetadata backup = replicatingChunks.getIfPresent(getReplicatingKey(namespace, path));
+        if (backup == null) {
+            return;
+        }
+
+        try {
+            this.defer(backup, new Function<BackupMetadata, BackupMetadata>() {
+                @Override
+                public BackupMetadata apply(BackupMetadata input) {
+                    input.incrementAndGetReplicatedChunks(replica);
+                    return input;
+                }
+            });
+        }
+        catch (MetadataNotFoundException e) {
+            LOG.warn("Failed to find metadata for: " + backup, e);
+        }
+    }
+
+    // Each upload holds the backup's session, so its replica and upload bookkeeping is written along with the rest
+    // rather than once for each replica of each chunk
+    private void openUploadSession(BackupMetadata backup, String path) throws MetadataNotFoundException {
+        this.openSession(backup);
+        incrementPendingUploads(backup, path);
+    }
+
+    private void finishUpload(BackupMetadata backup, String path, Timer.Context context) {
+        try {
+            decrementPendingUploads(backup, path);
+        }
+        catch (MetadataNotFoundException e) {
+            LOG.warn("Failed to find metadata for: " + backup, e);
+        }
+        finally {
+            ACTIVE_UPLOADS.dec();
+            context.stop();
+            this.closeUploadSession(backup);
+        }
+    }
+
+    private void closeUploadSession(BackupMetadata backup) {
+        try {
+            this.closeSession(backup);
+        }
+        catch (MetadataNotFoundException e) {
+            LOG.warn("Failed to find metadata for: " + backup, e);
+        }
     }
 
     public void finish(final BackupMetadata backup, final String log, final boolean success) throws MetadataNotFoundException {
@@ -369,7 +834,10 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         this.update(backup, new Function<BackupMetadata, BackupMetadata>() {
             @Override
             public BackupMetadata apply(BackupMetadata input) {
-                input.addLocation(Location.LOCAL);
+                if (input.getStoreLocations().contains(Location.LOCAL)) {
+                    input.addLocation(Location.LOCAL);
+                }
+
                 appendLog(input, log);
 
                 if (success) {
@@ -465,15 +933,42 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         // it's possible the backup failed, in which case it isn't marked as existing even though part
         // of it does.
         final String namespace = backup.getService();
+        final Set<String> paths = Sets.newHashSet();
+        final List<Chunk> sharedChunks = Lists.newArrayList();
         for (Chunk chunk : backup.getChunks()) {
-            final String path = chunk.getPath();
+            // Content addressed chunks may be shared, so dropping this backup's reference is all we do here.
+            // The chunk collector removes them once nothing refers to them.
+            if (isContentAddressed(chunk.getPath())) {
+                sharedChunks.add(chunk);
+            }
+            else {
+                paths.add(chunk.getPath());
+            }
+        }
+
+        final Set<String> deleted = storage.deleteAll(namespace, paths);
+        LOG.debug("Deleted {} backup chunks: {}", location, deleted);
 
-            if (storage.exists(namespace, path)) {
-                storage.delete(namespace, path);
-                LOG.debug("Deleted {} backup chunk: {}", location, chunk);
+        final List<Chunk> deletedChunks = Lists.newArrayList();
+        for (Chunk chunk : backup.getChunks()) {
+            if (deleted.contains(chunk.getPath())) {
+                deletedChunks.add(chunk);
             }
         }
 
+        if (!sharedChunks.isEmpty()) {
+            final Set<String> referenced = this.getReferencedPaths(namespace, location);
+            for (Chunk chunk : sharedChunks) {
+                if (!referenced.contains(chunk.getPath())) {
+                    deletedChunks.add(chunk);
+                }
+            }
+        }
+
+        if (!deletedChunks.isEmpty()) {
+            fireChunksDeleted(backup, location, deletedChunks);
+        }
+
         // If the backup doesn't exist anywhere, delete the metadata
         if (!backup.existsAtLocation()) {
             // Doesn't exist in any locations we remove the entire thing
@@ -483,18 +978,49 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
         }
     }
 
+    // Chunk paths at a location that backups there, or still being written, refer to. Local storage is per node
+    // so only this node's backups count there, offsite storage is shared by all of them.
+    public Set<String> getReferencedPaths(String service, Location location) {
+        final Set<String> paths = Sets.newHashSet();
+        for (BackupMetadata backup : this.listMetadata(service)) {
+            if (Location.LOCAL.equals(location) && !backup.isAtNode(getNodeName())) {
+                continue;
+            }
+
+            if (backup.existsAtLocation(location) || backup.isRunning()) {
+                for (Chunk chunk : backup.getChunks()) {
+                    paths.add(chunk.getPath());
+                }
+            }
+        }
+
+        if (Location.LOCAL.equals(location)) {
+            synchronized (claimedAddresses) {
+                for (final Map.Entry<String, String> claim : claimedAddresses.entries()) {
+                    if (claim.getKey().startsWith(getReplicatingKey(service, ""))) {
+                        paths.add(claim.getValue());
+                    }
+                }
+            }
+        }
+
+        return paths;
+    }
+
     private InputStream openStreamFromStorage(String namespace, String path) throws IOException {
         // First check locally for the file
         if (localStorage.exists(namespace, path)) {
             return localStorage.download(namespace, path);
         }
 
-        // If we don't have it locally, check offsite
-        if (offsiteStorage.exists(namespace, path)) {
+        // If we don't have it locally, read it offsite. Not asking exists() first, a replicated copy short of the write
+        // quorum isn't reported as stored but is still readable.
+        try {
             return offsiteStorage.download(namespace, path);
         }
-
-        throw new FileNotFoundException(String.format("%s/%s not found either locally or offsite", namespace, path));
+        catch (FileNotFoundException e) {
+            throw new FileNotFoundException(String.format("%s/%s not found either locally or offsite", namespace, path));
+        }
     }
 
     private void fireBackupCreated(BackupMetadata backup) {
@@ -520,4 +1046,16 @@ public class BackupProcessor extends AbstractMetadataProcessor<BackupMetadata, B
             listener.backupDeleted(backup);
         }
     }
+
+    private void fireChunkStored(BackupMetadata backup, Location location, Chunk chunk) {
+        for (BackupProcessorListener listener : listeners) {
+            listener.chunkStored(backup, location, chunk);
+        }
+    }
+
+    private void fireChunksDeleted(BackupMetadata backup, Location location, Collection<Chunk> chunks) {
+        for (BackupProcessorListener listener : listeners) {
+            listener.chunksDeleted(backup, location, chunks);
+        }
+    }
 }
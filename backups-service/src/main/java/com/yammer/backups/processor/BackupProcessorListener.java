@@ -20,12 +20,20 @@ package com.yammer.backups.processor;
  * #L%
  */
 
+import com.yammer.backups.api.Chunk;
+import com.yammer.backups.api.Location;
 import com.yammer.backups.api.metadata.BackupMetadata;
 
+import java.util.Collection;
+
 public interface BackupProcessorListener {
 
     void backupCreated(BackupMetadata backup);
     void backupUploaded(BackupMetadata backup, String filename);
     void backupFinished(BackupMetadata backup, boolean success);
     void backupDeleted(BackupMetadata backup);
+
+    // Fired once a chunk is durable at a location, and once chunks have been removed from one
+    void chunkStored(BackupMetadata backup, Location location, Chunk chunk);
+    void chunksDeleted(BackupMetadata backup, Location location, Collection<Chunk> chunks);
 }
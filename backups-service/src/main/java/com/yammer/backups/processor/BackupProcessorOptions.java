@@ -0,0 +1,69 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+import io.dropwizard.util.Size;
+
+// The optional parts of how a BackupProcessor ingests and records backups, all of them off unless set
+public class BackupProcessorOptions {
+
+    private boolean deduplicateChunks = false;
+    private Optional<IngestPipeline> ingestPipeline = Optional.absent();
+    private Optional<Size> followBufferSize = Optional.absent();
+    private boolean coalesceMetadataUpdates = false;
+
+    public BackupProcessorOptions withDeduplicatedChunks(boolean deduplicateChunks) {
+        this.deduplicateChunks = deduplicateChunks;
+        return this;
+    }
+
+    public BackupProcessorOptions withIngestPipeline(Optional<IngestPipeline> ingestPipeline) {
+        this.ingestPipeline = ingestPipeline;
+        return this;
+    }
+
+    public BackupProcessorOptions withFollowBufferSize(Optional<Size> followBufferSize) {
+        this.followBufferSize = followBufferSize;
+        return this;
+    }
+
+    public BackupProcessorOptions withCoalescedMetadataUpdates(boolean coalesceMetadataUpdates) {
+        this.coalesceMetadataUpdates = coalesceMetadataUpdates;
+        return this;
+    }
+
+    public boolean isDeduplicateChunks() {
+        return deduplicateChunks;
+    }
+
+    public Optional<IngestPipeline> getIngestPipeline() {
+        return ingestPipeline;
+    }
+
+    public Optional<Size> getFollowBufferSize() {
+        return followBufferSize;
+    }
+
+    public boolean isCoalesceMetadataUpdates() {
+        return coalesceMetadataUpdates;
+    }
+}
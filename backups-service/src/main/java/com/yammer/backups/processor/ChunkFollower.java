@@ -0,0 +1,277 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Uploads a chunk offsite while it's still being written locally. The writer copies each encoded block into a
+// bounded ring that the upload drains, and the blob is only committed once the local chunk is sealed. Writes never
+// wait on the upload: if the ring fills the follower detaches, and catches up from the sealed local copy by
+// skipping what it already sent, so blocks already staged offsite are kept.
+// The upload only takes a worker while there's something for it to do, so slow writers don't tie up the pool.
+class ChunkFollower {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final OutputStream sink = new RingOutputStream();
+    private final SettableFuture<Long> upload = SettableFuture.create();
+
+    private byte[] ring;
+    private long written = 0;
+    private long read = 0;
+    private boolean detached = false;
+    private ByteSource sealed = null;
+    private Throwable failure = null;
+
+    private Executor executor;
+    private FileStorage storage;
+    private String namespace;
+    private String path;
+
+    // At most one drain is scheduled at a time, and only it uses the block and the blob's stream
+    private boolean scheduled = false;
+    private byte[] block;
+    private OutputStream out;
+    private long uploaded = 0;
+
+    ChunkFollower(int bufferSize) {
+        Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+        ring = new byte[bufferSize];
+    }
+
+    OutputStream sink() {
+        return sink;
+    }
+
+    synchronized ListenableFuture<Long> start(Executor executor, FileStorage storage, String namespace, String path) {
+        this.executor = executor;
+        this.storage = storage;
+        this.namespace = namespace;
+        this.path = path;
+
+        this.schedule();
+        return upload;
+    }
+
+    ListenableFuture<Long> getUpload() {
+        return upload;
+    }
+
+    synchronized boolean isDetached() {
+        return detached;
+    }
+
+    // The chunk is durable locally, the upload may commit once it has everything
+    synchronized void seal(ByteSource local) {
+        sealed = local;
+        this.schedule();
+    }
+
+    // Fails the upload without committing anything
+    synchronized void abort(Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+
+        ring = null;
+        this.schedule();
+    }
+
+    private synchronized void offer(byte[] b, int off, int len) {
+        if (detached || failure != null) {
+            return;
+        }
+
+        if (len > ring.length - (written - read)) {
+            detached = true;
+            ring = null;
+            return;
+        }
+
+        final int position = (int) (written % ring.length);
+        final int first = Math.min(len, ring.length - position);
+        System.arraycopy(b, off, ring, position, first);
+        System.arraycopy(b, off + first, ring, 0, len - first);
+
+        written += len;
+        this.schedule();
+    }
+
+    // Called holding the lock whenever there may be something for the upload to do
+    private void schedule() {
+        if (scheduled || executor == null || upload.isDone()) {
+            return;
+        }
+
+        final boolean work = failure != null || sealed != null || (!detached && written > read);
+        if (!work) {
+            return;
+        }
+
+        scheduled = true;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Nothing is draining, so the blob can be abandoned here
+            this.fail(failure == null ? e : failure);
+        }
+    }
+
+    private int take(byte[] block) {
+        final int position = (int) (read % ring.length);
+        final int length = (int) Math.min(Math.min(block.length, written - read), ring.length - position);
+        System.arraycopy(ring, position, block, 0, length);
+
+        read += length;
+        return length;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            Throwables.propagateIfInstanceOf(failure, IOException.class);
+            throw new IOException("Chunk upload aborted", failure);
+        }
+    }
+
+    private void drain() {
+        boolean idle = false;
+        try {
+            idle = this.drainAvailable();
+        }
+        catch (Throwable e) {
+            this.fail(e);
+        }
+        finally {
+            // Unless it's waiting on more of the chunk or committed it, the blob is abandoned rather than left open
+            if (!idle && !upload.isDone()) {
+                this.fail(new IOException("Chunk upload stopped"));
+            }
+        }
+    }
+
+    // Uploads whatever has been written so far, committing once the chunk is sealed. Returns whether the upload is
+    // still waiting on more.
+    private boolean drainAvailable() throws IOException {
+        if (block == null) {
+            block = new byte[BLOCK_SIZE];
+        }
+
+        while (true) {
+            final int length;
+            final ByteSource local;
+            final boolean catchUp;
+            synchronized (this) {
+                this.checkFailure();
+                if (!detached && written > read) {
+                    length = this.take(block);
+                    local = null;
+                    catchUp = false;
+                }
+                else if (sealed != null) {
+                    length = 0;
+                    local = sealed;
+                    catchUp = detached;
+                }
+                else {
+                    scheduled = false;
+                    return true;
+                }
+            }
+
+            // The blob is only created once there's something to put in it
+            if (out == null) {
+                out = storage.upload(namespace, path);
+            }
+
+            if (local == null) {
+                out.write(block, 0, length);
+                uploaded += length;
+                continue;
+            }
+
+            if (catchUp) {
+                try (final InputStream in = local.openStream()) {
+                    ByteStreams.skipFully(in, uploaded);
+                    uploaded += ByteStreams.copy(in, out);
+                }
+            }
+
+            // Only now is the blob committed, an aborted upload leaves nothing behind
+            out.close();
+            upload.set(uploaded);
+            return false;
+        }
+    }
+
+    private synchronized void fail(Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+
+        ring = null;
+        FileStorages.abort(out);
+        upload.setException(failure);
+    }
+
+    private class RingOutputStream extends OutputStream implements Abortable {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            offer(b, off, len);
+        }
+
+        // Nothing more will be written, the upload commits once the chunk is sealed
+        @Override
+        public void close() throws IOException {
+        }
+
+        // The chunk it was following won't be sealed, so the upload fails rather than waiting for it
+        @Override
+        public void abort() {
+            ChunkFollower.this.abort(new IOException("Chunk upload aborted"));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.backups.util.BlockPipe;
+import com.yammer.io.codec.StreamCodec;
+import com.yammer.storage.file.FileStorages;
+import io.dropwizard.util.Size;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+// Splits storing a chunk into stages connected by bounded pipes: the caller receives the raw bytes, one worker
+// compresses, encrypts and hashes them, and another writes the result out. Workers block on the pipes, so every
+// chunk started needs both of its workers running at once. The executor must have two threads for each of the
+// maxConcurrentChunks across all uploads, and starting a chunk beyond that waits for one to finish.
+public class IngestPipeline {
+
+    private final ListeningExecutorService workers;
+    private final int blockSize;
+    private final int blocksPerStage;
+    private final int maxChunksInFlight;
+    private final Semaphore chunkSlots;
+
+    public IngestPipeline(ExecutorService workers, Size blockSize, int blocksPerStage, int maxChunksInFlight, int maxConcurrentChunks) {
+        Preconditions.checkArgument(maxChunksInFlight > 0, "maxChunksInFlight must be positive");
+        Preconditions.checkArgument(maxConcurrentChunks > 0, "maxConcurrentChunks must be positive");
+
+        this.workers = MoreExecutors.listeningDecorator(workers);
+        this.blockSize = (int) blockSize.toBytes();
+        this.blocksPerStage = blocksPerStage;
+        this.maxChunksInFlight = maxChunksInFlight;
+        this.chunkSlots = new Semaphore(maxConcurrentChunks);
+    }
+
+    // Two workers per chunk
+    public static int getWorkerThreads(int maxConcurrentChunks) {
+        return maxConcurrentChunks * 2;
+    }
+
+    public int getMaxChunksInFlight() {
+        return maxChunksInFlight;
+    }
+
+    // Takes ownership of the target, which is aborted unless the whole chunk is written
+    public PipelinedChunk start(String path, final StreamCodec codec, final OutputStream target, final boolean hashContent) throws IOException {
+        try {
+            chunkSlots.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            FileStorages.abort(target);
+            throw new InterruptedIOException("Interrupted waiting to start chunk " + path);
+        }
+
+        final BlockPipe raw = new BlockPipe(blockSize, blocksPerStage);
+        final BlockPipe encoded = new BlockPipe(blockSize, blocksPerStage);
+        final PipelinedChunk chunk = new PipelinedChunk(path, raw, encoded);
+
+        final ListenableFuture<EncodedChunk> encoder = workers.submit(new Callable<EncodedChunk>() {
+            @Override
+            public EncodedChunk call() throws Exception {
+                try {
+                    final HashingInputStream md5in = new HashingInputStream(Hashing.md5(), raw.source());
+                    final HashingInputStream sha256in = new HashingInputStream(Hashing.sha256(), md5in);
+
+                    // Don't close the output on failure, that would hand the writer a truncated but valid chunk
+                    final OutputStream out = codec.output(encoded.sink());
+                    final long originalSize = ByteStreams.copy(hashContent ? sha256in : md5in, out);
+                    out.close();
+
+                    final Optional<HashCode> contentHash = hashContent ? Optional.of(sha256in.hash()) : Optional.<HashCode>absent();
+                    return new EncodedChunk(originalSize, md5in.hash(), contentHash);
+                }
+                catch (Exception e) {
+                    chunk.abort(e);
+                    throw e;
+                }
+            }
+        });
+
+        final ListenableFuture<Long> writer = workers.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                final CountingOutputStream out = new CountingOutputStream(target);
+
+                try {
+                    ByteStreams.copy(encoded.source(), out);
+                }
+                catch (Exception e) {
+                    chunk.abort(e);
+                    FileStorages.abort(target);
+                    throw e;
+                }
+
+                out.close();
+                return out.getCount();
+            }
+        });
+
+        Futures.successfulAsList(ImmutableList.of(encoder, writer)).addListener(new Runnable() {
+            @Override
+            public void run() {
+                chunkSlots.release();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        chunk.setFutures(encoder, writer);
+        return chunk;
+    }
+
+    public static class EncodedChunk {
+
+        private final long originalSize;
+        private final HashCode md5;
+        private final Optional<HashCode> contentHash;
+        private long size;
+
+        private EncodedChunk(long originalSize, HashCode md5, Optional<HashCode> contentHash) {
+            this.originalSize = originalSize;
+            this.md5 = md5;
+            this.contentHash = contentHash;
+        }
+
+        public long getOriginalSize() {
+            return originalSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public HashCode getMD5() {
+            return md5;
+        }
+
+        public Optional<HashCode> getContentHash() {
+            return contentHash;
+        }
+    }
+
+    public static class PipelinedChunk {
+
+        private final String path;
+        private final BlockPipe raw;
+        private final BlockPipe encoded;
+
+        private ListenableFuture<EncodedChunk> encoder;
+        private ListenableFuture<Long> writer;
+
+        private PipelinedChunk(String path, BlockPipe raw, BlockPipe encoded) {
+            this.path = path;
+            this.raw = raw;
+            this.encoded = encoded;
+        }
+
+        private void setFutures(ListenableFuture<EncodedChunk> encoder, ListenableFuture<Long> writer) {
+            this.encoder = encoder;
+            this.writer = writer;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        // Raw chunk data goes in here, closing it marks the end of the chunk
+        public OutputStream input() {
+            return raw.sink();
+        }
+
+        public void abort(Throwable cause) {
+            raw.abort(cause);
+            encoded.abort(cause);
+        }
+
+        // Waits for the chunk to be encoded and fully written
+        public EncodedChunk await() throws IOException {
+            final EncodedChunk result = Futures.get(encoder, IOException.class);
+            result.size = Futures.get(writer, IOException.class);
+            return result;
+        }
+
+        // Waits for both workers to finish, whether or not they succeeded
+        public void awaitQuietly() {
+            for (final ListenableFuture<?> future : Arrays.asList(encoder, writer)) {
+                try {
+                    Futures.get(future, IOException.class);
+                }
+                catch (IOException e) {
+                    // Already failed, the caller only wants the workers finished
+                }
+            }
+        }
+    }
+}
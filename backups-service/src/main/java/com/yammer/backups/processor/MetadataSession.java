@@ -0,0 +1,90 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+// Mutations to one item's metadata deferred while operations on it are in flight, so they can be written together
+// rather than each taking the lock and rewriting the metadata. Callers synchronize on the session.
+class MetadataSession<T> {
+
+    private final T item;
+    private final List<Function<T, T>> pending = Lists.newArrayList();
+
+    private int operations = 0;
+    private boolean closed = false;
+
+    MetadataSession(T item) {
+        this.item = item;
+    }
+
+    T getItem() {
+        return item;
+    }
+
+    // False once the last operation has closed the session, a new one has to be started instead
+    boolean open() {
+        if (closed) {
+            return false;
+        }
+
+        operations++;
+        return true;
+    }
+
+    // True when this was the last operation in flight, and so the session should be flushed
+    boolean close() {
+        closed = --operations == 0;
+        return closed;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void defer(Function<T, T> function) {
+        pending.add(function);
+    }
+
+    // Carried over from an earlier session whose last write failed, they go ahead of anything deferred since
+    void requeue(List<Function<T, T>> functions) {
+        pending.addAll(0, functions);
+    }
+
+    // Kept until the write carrying them succeeds, so a failed write leaves them for the next one
+    List<Function<T, T>> getPending() {
+        return ImmutableList.copyOf(pending);
+    }
+
+    void written() {
+        pending.clear();
+    }
+
+    List<Function<T, T>> drain() {
+        final List<Function<T, T>> drained = this.getPending();
+        pending.clear();
+        return drained;
+    }
+}
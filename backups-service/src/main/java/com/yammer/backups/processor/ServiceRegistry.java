@@ -21,6 +21,8 @@ package com.yammer.backups.processor;
  */
 
 import com.google.common.base.Optional;
+import com.yammer.backups.api.Chunk;
+import com.yammer.backups.api.Location;
 import com.yammer.backups.api.metadata.BackupMetadata;
 import com.yammer.backups.service.metadata.ServiceMetadata;
 import com.yammer.backups.storage.metadata.MetadataStorage;
@@ -28,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
+import java.util.EnumSet;
 
 public class ServiceRegistry implements BackupProcessorListener {
 
@@ -72,6 +75,16 @@ public class ServiceRegistry implements BackupProcessorListener {
 
     }
 
+    @Override
+    public void chunkStored(BackupMetadata backup, Location location, Chunk chunk) {
+
+    }
+
+    @Override
+    public void chunksDeleted(BackupMetadata backup, Location location, Collection<Chunk> chunks) {
+
+    }
+
     public void disableHealthcheck(String serviceName) {
         Optional<ServiceMetadata> metadata = metadataStorage.get(serviceName, ServiceMetadata.COLUMN_KEY);
         if (metadata.isPresent()) {
@@ -89,6 +102,12 @@ public class ServiceRegistry implements BackupProcessorListener {
         return metadataStorage.get(serviceName, ServiceMetadata.COLUMN_KEY);
     }
 
+    // Services register on their first backup, which is always staged locally
+    public EnumSet<Location> getStoreLocations(String service) {
+        final Optional<ServiceMetadata> serviceMetadata = getServiceMetadata(service);
+        return serviceMetadata.isPresent() ? serviceMetadata.get().getStoreLocations() : EnumSet.of(Location.LOCAL);
+    }
+
     public Collection<ServiceMetadata> listAll() {
         return metadataStorage.listAll();
     }
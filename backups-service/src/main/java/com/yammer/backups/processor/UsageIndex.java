@@ -0,0 +1,229 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.yammer.backups.api.Chunk;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.api.metadata.BackupMetadata;
+import com.yammer.backups.api.status.UsageStatus;
+import com.yammer.backups.processor.scheduled.AbstractScheduledProcessor;
+import com.yammer.backups.service.metadata.UsageMetadata;
+import com.yammer.backups.storage.metadata.MetadataStorage;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Keeps a running total of the bytes and objects this node stores per service and location, so usage
+// can be reported without walking storage. Totals are updated from processor events and the changed
+// ones are written back to metadata storage periodically, and on shutdown.
+public class UsageIndex extends AbstractScheduledProcessor implements BackupProcessorListener {
+
+    private static final Duration FREQUENCY = Duration.minutes(1);
+    private static final Duration INITIAL_DELAY = Duration.minutes(1);
+    private static final Logger LOG = LoggerFactory.getLogger(UsageIndex.class);
+
+    private final MetadataStorage<UsageMetadata> usageStorage;
+    private final MetadataStorage<BackupMetadata> backupStorage;
+    private final String nodeName;
+    private final MetricRegistry metricRegistry;
+
+    private final Map<Location, ConcurrentMap<String, UsageMetadata>> usage = new EnumMap<>(Location.class);
+    private final Set<UsageMetadata> dirty = Sets.newConcurrentHashSet();
+
+    public UsageIndex(MetadataStorage<UsageMetadata> usageStorage, MetadataStorage<BackupMetadata> backupStorage, String nodeName,
+                      ScheduledExecutorService executor, MetricRegistry metricRegistry) {
+        super(executor, FREQUENCY, INITIAL_DELAY, "usage-index", metricRegistry);
+
+        this.usageStorage = usageStorage;
+        this.backupStorage = backupStorage;
+        this.nodeName = nodeName;
+        this.metricRegistry = metricRegistry;
+
+        for (Location location : Location.values()) {
+            usage.put(location, Maps.<String, UsageMetadata>newConcurrentMap());
+        }
+    }
+
+    @Override
+    public void start() {
+        this.load();
+        super.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        this.execute();
+    }
+
+    private void load() {
+        boolean found = false;
+        for (UsageMetadata metadata : usageStorage.listAll()) {
+            if (nodeName.equals(metadata.getNodeName())) {
+                this.get(metadata.getLocation(), metadata.getService()).add(metadata.getBytes(), metadata.getObjects());
+                found = true;
+            }
+        }
+
+        // The first time round there is nothing persisted yet, so build the totals from the backup metadata
+        if (!found) {
+            LOG.info("No usage recorded for {}, rebuilding from backup metadata", nodeName);
+
+            for (BackupMetadata backup : backupStorage.listAll()) {
+                if (!BackupMetadata.IN_NODE_PREDICATE(nodeName).apply(backup)) {
+                    continue;
+                }
+
+                for (Location location : Location.values()) {
+                    if (backup.existsAtLocation(location)) {
+                        this.add(backup, location, backup.getChunks(), 1);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void execute() {
+        for (UsageMetadata metadata : dirty) {
+            dirty.remove(metadata);
+
+            try {
+                usageStorage.put(metadata.copy());
+            }
+            catch (RuntimeException e) {
+                LOG.warn("Failed to persist usage for " + metadata.getService(), e);
+                dirty.add(metadata);
+            }
+        }
+    }
+
+    public Map<String, UsageStatus> getUsage(Location location) {
+        final ImmutableMap.Builder<String, UsageStatus> builder = ImmutableMap.builder();
+        for (UsageMetadata metadata : usage.get(location).values()) {
+            builder.put(metadata.getService(), toStatus(metadata));
+        }
+
+        return builder.build();
+    }
+
+    public Optional<UsageStatus> getUsage(Location location, String service) {
+        final UsageMetadata metadata = usage.get(location).get(service);
+        return metadata == null ? Optional.<UsageStatus>absent() : Optional.of(toStatus(metadata));
+    }
+
+    private static UsageStatus toStatus(UsageMetadata metadata) {
+        final UsageMetadata copy = metadata.copy();
+        return new UsageStatus(Size.bytes(copy.getBytes()), copy.getObjects());
+    }
+
+    private UsageMetadata get(Location location, String service) {
+        final ConcurrentMap<String, UsageMetadata> services = usage.get(location);
+
+        final UsageMetadata existing = services.get(service);
+        if (existing != null) {
+            return existing;
+        }
+
+        final UsageMetadata created = new UsageMetadata(service, nodeName, location);
+        final UsageMetadata raced = services.putIfAbsent(service, created);
+        if (raced != null) {
+            return raced;
+        }
+
+        this.registerGauges(created);
+        return created;
+    }
+
+    private void registerGauges(final UsageMetadata metadata) {
+        final String prefix = String.format("usage-%s-%s", metadata.getLocation().name().toLowerCase(), metadata.getService());
+
+        metricRegistry.register(String.format("%s-bytes", prefix), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return metadata.getBytes();
+            }
+        });
+
+        metricRegistry.register(String.format("%s-objects", prefix), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return metadata.getObjects();
+            }
+        });
+    }
+
+    private void add(BackupMetadata backup, Location location, Collection<Chunk> chunks, int sign) {
+        long bytes = 0;
+        for (Chunk chunk : chunks) {
+            bytes += chunk.getSize();
+        }
+
+        final UsageMetadata metadata = this.get(location, backup.getService());
+        metadata.add(sign * bytes, sign * chunks.size());
+        dirty.add(metadata);
+    }
+
+    @Override
+    public void chunkStored(BackupMetadata backup, Location location, Chunk chunk) {
+        this.add(backup, location, Collections.singleton(chunk), 1);
+    }
+
+    @Override
+    public void chunksDeleted(BackupMetadata backup, Location location, Collection<Chunk> chunks) {
+        this.add(backup, location, chunks, -1);
+    }
+
+    @Override
+    public void backupCreated(BackupMetadata backup) {
+
+    }
+
+    @Override
+    public void backupUploaded(BackupMetadata backup, String filename) {
+
+    }
+
+    @Override
+    public void backupFinished(BackupMetadata backup, boolean success) {
+
+    }
+
+    @Override
+    public void backupDeleted(BackupMetadata backup) {
+
+    }
+}
@@ -0,0 +1,100 @@
+package com.yammer.backups.processor.scheduled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.storage.file.FileStorage;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Removes content addressed chunks that no backup refers to any more. A chunk is only removed once it has been
+// unreferenced on two runs in a row, a backup storing the same content in between takes the reference back.
+public class ChunkCollectionProcessor extends AbstractScheduledProcessor {
+
+    private static final Duration FREQUENCY = Duration.hours(1);
+    private static final Duration INITIAL_DELAY = Duration.minutes(15);
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkCollectionProcessor.class);
+
+    private final FileStorage fileStorage;
+    private final Location location;
+    private final BackupProcessor backupProcessor;
+    private final Meter collectedChunks;
+
+    // Unreferenced chunks found on the previous run, by service
+    private final Map<String, Set<String>> candidates = Maps.newHashMap();
+
+    public ChunkCollectionProcessor(
+            FileStorage fileStorage,
+            Location location,
+            BackupProcessor backupProcessor,
+            ScheduledExecutorService executor,
+            MetricRegistry metricRegistry) {
+        super(executor, FREQUENCY, INITIAL_DELAY, String.format("chunk-collection-%s", location.name().toLowerCase()), metricRegistry);
+
+        this.fileStorage = fileStorage;
+        this.location = location;
+        this.backupProcessor = backupProcessor;
+
+        collectedChunks = metricRegistry.meter(String.format("collected-chunks-%s", location.name().toLowerCase()));
+    }
+
+    private void collect(String service) throws IOException {
+        final Set<String> stored = fileStorage.list(service, BackupProcessor.getContentAddressPrefix());
+        final Set<String> unreferenced = ImmutableSet.copyOf(Sets.difference(stored, backupProcessor.getReferencedPaths(service, location)));
+
+        final Set<String> previous = candidates.containsKey(service) ? candidates.get(service) : ImmutableSet.<String>of();
+        final Set<String> collectable = Sets.intersection(unreferenced, previous);
+
+        if (!collectable.isEmpty()) {
+            // References are checked again as they're deleted, a store may have just reused one of them
+            final Set<String> deleted = backupProcessor.deleteUnreferenced(fileStorage, service, location, collectable);
+            collectedChunks.mark(deleted.size());
+
+            LOG.debug("Collected {} unreferenced chunks from {} for {}: {}", deleted.size(), fileStorage, service, deleted);
+        }
+
+        candidates.put(service, ImmutableSet.copyOf(Sets.difference(unreferenced, collectable)));
+    }
+
+    @Override
+    public void execute() {
+        for (String service : backupProcessor.listServices()) {
+            try {
+                this.collect(service);
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to collect unreferenced chunks from " + fileStorage + " for " + service, e);
+            }
+        }
+    }
+}
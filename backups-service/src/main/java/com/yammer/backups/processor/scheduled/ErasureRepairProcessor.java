@@ -0,0 +1,108 @@
+package com.yammer.backups.processor.scheduled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.yammer.backups.api.Chunk;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.api.metadata.BackupMetadata;
+import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.backups.util.MetadataStatePredicate;
+import com.yammer.storage.file.erasure.ErasureCodedFileStorage;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Rebuilds shards lost with a disk, or found corrupt when read, from the shards that are left
+public class ErasureRepairProcessor extends AbstractScheduledProcessor {
+
+    private static final Duration FREQUENCY = Duration.minutes(15);
+    private static final Duration INITIAL_DELAY = Duration.minutes(5);
+    private static final Logger LOG = LoggerFactory.getLogger(ErasureRepairProcessor.class);
+
+    private final ErasureCodedFileStorage fileStorage;
+    private final BackupProcessor backupProcessor;
+    private final String nodeName;
+
+    public ErasureRepairProcessor(
+            ErasureCodedFileStorage fileStorage,
+            BackupProcessor backupProcessor,
+            ScheduledExecutorService executor,
+            String nodeName,
+            MetricRegistry metricRegistry) {
+        super(executor, FREQUENCY, INITIAL_DELAY, "erasure-repair-processor", metricRegistry);
+
+        this.fileStorage = fileStorage;
+        this.backupProcessor = backupProcessor;
+        this.nodeName = nodeName;
+    }
+
+    private void repair(String service, String path) {
+        try {
+            if (fileStorage.repair(service, path)) {
+                LOG.info("Repaired chunk {} of {}", path, service);
+            }
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to repair chunk " + path + " of " + service, e);
+        }
+    }
+
+    // Finds chunks with a shard missing, which is what a replaced disk looks like
+    private void repairChunks(String service) {
+        // Only finished backups, anything still running may have chunks being written
+        final List<Predicate<BackupMetadata>> predicates = ImmutableList.of(
+            BackupMetadata.IN_NODE_PREDICATE(nodeName),
+            BackupMetadata.IN_LOCATION_PREDICATE(Location.LOCAL),
+            new MetadataStatePredicate<BackupMetadata, BackupMetadata.State>(BackupMetadata.State.FINISHED)
+        );
+
+        final Set<BackupMetadata> backups = Sets.filter(backupProcessor.listMetadata(service), Predicates.and(predicates));
+        for (BackupMetadata backup : backups) {
+            for (Chunk chunk : backup.getChunks()) {
+                if (fileStorage.isDegraded(service, chunk.getPath())) {
+                    this.repair(service, chunk.getPath());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void execute() {
+        for (Map.Entry<String, String> file : fileStorage.getReportedDegraded()) {
+            this.repair(file.getKey(), file.getValue());
+        }
+
+        for (String service : backupProcessor.listServices()) {
+            this.repairChunks(service);
+        }
+    }
+}
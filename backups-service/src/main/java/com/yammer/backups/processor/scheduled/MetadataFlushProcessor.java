@@ -0,0 +1,44 @@
+package com.yammer.backups.processor.scheduled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.yammer.backups.processor.AbstractMetadataProcessor;
+import io.dropwizard.util.Duration;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+// Bounds how stale coalesced metadata gets while long running operations are still in flight
+public class MetadataFlushProcessor extends AbstractScheduledProcessor {
+
+    private final AbstractMetadataProcessor<?, ?> processor;
+
+    public MetadataFlushProcessor(ScheduledExecutorService executor, AbstractMetadataProcessor<?, ?> processor, Duration frequency, MetricRegistry metricRegistry) {
+        super(executor, frequency, frequency, "metadata-flush", metricRegistry);
+
+        this.processor = processor;
+    }
+
+    @Override
+    protected void execute() {
+        processor.flushSessions();
+    }
+}
@@ -0,0 +1,116 @@
+package com.yammer.backups.processor.scheduled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.yammer.backups.api.Chunk;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.api.metadata.BackupMetadata;
+import com.yammer.backups.config.TieringConfiguration;
+import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.backups.util.MetadataStatePredicate;
+import com.yammer.storage.file.tiered.TieredFileStorage;
+import io.dropwizard.util.Duration;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class TierMigrationProcessor extends AbstractScheduledProcessor {
+
+    private static final Duration FREQUENCY = Duration.hours(1);
+    private static final Duration INITIAL_DELAY = Duration.minutes(10);
+    private static final Logger LOG = LoggerFactory.getLogger(TierMigrationProcessor.class);
+
+    private final TieredFileStorage fileStorage;
+    private final BackupProcessor backupProcessor;
+    private final TieringConfiguration configuration;
+    private final String nodeName;
+
+    public TierMigrationProcessor(
+            TieredFileStorage fileStorage,
+            BackupProcessor backupProcessor,
+            ScheduledExecutorService executor,
+            TieringConfiguration configuration,
+            String nodeName,
+            MetricRegistry metricRegistry) {
+        super(executor, FREQUENCY, INITIAL_DELAY, "tier-migration-processor", metricRegistry);
+
+        this.fileStorage = fileStorage;
+        this.backupProcessor = backupProcessor;
+        this.configuration = configuration;
+        this.nodeName = nodeName;
+    }
+
+    private boolean isHot(String service, Chunk chunk, DateTime demoteBefore) {
+        return chunk.getStoredDate().isAfter(demoteBefore)
+                || fileStorage.getAccessCount(service, chunk.getPath()) >= configuration.getMinAccesses();
+    }
+
+    private void demoteChunks(String service, DateTime demoteBefore) {
+        // Only finished backups, anything still running may have chunks being written or uploaded
+        final List<Predicate<BackupMetadata>> predicates = ImmutableList.of(
+            BackupMetadata.IN_NODE_PREDICATE(nodeName),
+            BackupMetadata.IN_LOCATION_PREDICATE(Location.LOCAL),
+            new MetadataStatePredicate<BackupMetadata, BackupMetadata.State>(BackupMetadata.State.FINISHED)
+        );
+
+        final Set<BackupMetadata> backups = Sets.filter(backupProcessor.listMetadata(service), Predicates.and(predicates));
+        for (BackupMetadata backup : backups) {
+            for (Chunk chunk : backup.getChunks()) {
+                if (this.isHot(service, chunk, demoteBefore)) {
+                    continue;
+                }
+
+                try {
+                    if (fileStorage.demote(service, chunk.getPath())) {
+                        LOG.trace("Demoted chunk {} of {} to {}", chunk.getPath(), backup, fileStorage.getColdStorage());
+                    }
+                }
+                catch (IOException e) {
+                    LOG.warn("Failed to demote chunk " + chunk.getPath() + " of " + backup, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void execute() {
+        // Anything read since a restart would otherwise look cold and be demoted with the rest
+        if (!fileStorage.isAccessWindowComplete()) {
+            LOG.debug("Not demoting chunks until a whole access window has been counted");
+            return;
+        }
+
+        final DateTime demoteBefore = DateTime.now().minus(configuration.getDemoteAfter().toMilliseconds());
+        for (String service : backupProcessor.listServices()) {
+            this.demoteChunks(service, demoteBefore);
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.yammer.backups.auth.TokenCredentials;
 import com.yammer.backups.error.IncorrectNodeException;
 import com.yammer.backups.error.MetadataNotFoundException;
 import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.backups.processor.ServiceRegistry;
 import com.yammer.backups.provider.Metadata;
 import com.yammer.backups.storage.metadata.MetadataStorage;
 import io.dropwizard.auth.Auth;
@@ -59,14 +60,17 @@ public class BackupResource {
 
     private final BackupProcessor backupProcessor;
     private final MetadataStorage<ClientPermission> clientPermissionStorage;
+    private final ServiceRegistry serviceRegistry;
     private final String nodeName;
 
     public BackupResource(
             BackupProcessor backupProcessor,
             MetadataStorage<ClientPermission> clientPermissionStorage,
+            ServiceRegistry serviceRegistry,
             String nodeName) {
         this.backupProcessor = backupProcessor;
         this.clientPermissionStorage = clientPermissionStorage;
+        this.serviceRegistry = serviceRegistry;
         this.nodeName = nodeName;
     }
 
@@ -110,7 +114,8 @@ public class BackupResource {
             clientPermissionStorage.put(new ClientPermission(token,service));
         }
 
-        final BackupMetadata backup = backupProcessor.create(service, req.getRemoteAddr());
+        // Per-service settings decide where chunks go while receiving, fixed for the lifetime of the backup
+        final BackupMetadata backup = backupProcessor.create(service, req.getRemoteAddr(), serviceRegistry.getStoreLocations(service));
         return backup.getId();
     }
 
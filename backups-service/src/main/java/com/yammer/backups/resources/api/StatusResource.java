@@ -20,16 +20,23 @@ package com.yammer.backups.resources.api;
  * #L%
  */
 
+import com.google.common.base.Optional;
+import com.yammer.backups.api.Location;
 import com.yammer.backups.api.status.ActiveStatus;
 import com.yammer.backups.api.status.StorageStatus;
+import com.yammer.backups.api.status.UsageStatus;
 import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.backups.processor.UsageIndex;
 import com.yammer.storage.file.FileStorage;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
 
 @Path("/api/status")
 public class StatusResource {
@@ -37,11 +44,13 @@ public class StatusResource {
     private final BackupProcessor backupProcessor;
     private final FileStorage localStorage;
     private final FileStorage offsiteStorage;
+    private final UsageIndex usageIndex;
 
-    public StatusResource(final BackupProcessor backupProcessor, FileStorage localStorage, FileStorage offsiteStorage) {
+    public StatusResource(final BackupProcessor backupProcessor, FileStorage localStorage, FileStorage offsiteStorage, UsageIndex usageIndex) {
         this.backupProcessor = backupProcessor;
         this.localStorage = localStorage;
         this.offsiteStorage = offsiteStorage;
+        this.usageIndex = usageIndex;
     }
 
     @GET
@@ -64,4 +73,31 @@ public class StatusResource {
                 offsiteStorage.getTotalSpace(), offsiteStorage.getUsedSpace(), offsiteStorage.getFreeSpace()
         );
     }
+
+    @GET
+    @Path("/usage")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<Location, Map<String, UsageStatus>> getUsage() {
+        final Map<Location, Map<String, UsageStatus>> usage = new EnumMap<>(Location.class);
+        for (Location location : Location.values()) {
+            usage.put(location, usageIndex.getUsage(location));
+        }
+
+        return usage;
+    }
+
+    @GET
+    @Path("/usage/{service}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<Location, UsageStatus> getUsage(@PathParam("service") String service) {
+        final Map<Location, UsageStatus> usage = new EnumMap<>(Location.class);
+        for (Location location : Location.values()) {
+            final Optional<UsageStatus> status = usageIndex.getUsage(location, service);
+            if (status.isPresent()) {
+                usage.put(location, status.get());
+            }
+        }
+
+        return usage;
+    }
 }
@@ -20,10 +20,14 @@ package com.yammer.backups.service.metadata;
  * #L%
  */
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.yammer.backups.api.Location;
 import com.yammer.backups.api.Storable;
 
+import java.util.EnumSet;
+
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ServiceMetadata implements Storable {
 
@@ -33,9 +37,22 @@ public class ServiceMetadata implements Storable {
 
     private boolean disableHealthcheck;
 
-    public ServiceMetadata(@JsonProperty("id") String id, @JsonProperty("disableHealthcheck") boolean disableHealthcheck) {
+    // Send chunks straight offsite while receiving them, instead of queueing uploads from local storage
+    private boolean directOffsite;
+
+    // Don't keep a local copy of directly offsite backups
+    private boolean skipLocalCopy;
+
+    public ServiceMetadata(String id, boolean disableHealthcheck) {
+        this (id, disableHealthcheck, false, false);
+    }
+
+    public ServiceMetadata(@JsonProperty("id") String id, @JsonProperty("disableHealthcheck") boolean disableHealthcheck,
+                           @JsonProperty("directOffsite") boolean directOffsite, @JsonProperty("skipLocalCopy") boolean skipLocalCopy) {
         this.id = id;
         this.disableHealthcheck = disableHealthcheck;
+        this.directOffsite = directOffsite;
+        this.skipLocalCopy = skipLocalCopy;
     }
 
     @Override
@@ -59,4 +76,29 @@ public class ServiceMetadata implements Storable {
     public void setDisableHealthcheck(boolean disableHealthcheck) {
         this.disableHealthcheck = disableHealthcheck;
     }
+
+    public boolean isDirectOffsite() {
+        return directOffsite;
+    }
+
+    public void setDirectOffsite(boolean directOffsite) {
+        this.directOffsite = directOffsite;
+    }
+
+    public boolean isSkipLocalCopy() {
+        return skipLocalCopy;
+    }
+
+    public void setSkipLocalCopy(boolean skipLocalCopy) {
+        this.skipLocalCopy = skipLocalCopy;
+    }
+
+    @JsonIgnore
+    public EnumSet<Location> getStoreLocations() {
+        if (!directOffsite) {
+            return EnumSet.of(Location.LOCAL);
+        }
+
+        return skipLocalCopy ? EnumSet.of(Location.OFFSITE) : EnumSet.of(Location.LOCAL, Location.OFFSITE);
+    }
 }
@@ -0,0 +1,97 @@
+package com.yammer.backups.service.metadata;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.api.Storable;
+
+// Bytes and objects a node holds for a service at one location, one row per service with a column per node and location
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class UsageMetadata implements Storable {
+
+    private final String service;
+    private final String nodeName;
+    private final Location location;
+
+    private long bytes;
+    private long objects;
+
+    @JsonCreator
+    public UsageMetadata(
+            @JsonProperty("service") String service,
+            @JsonProperty("nodeName") String nodeName,
+            @JsonProperty("location") Location location,
+            @JsonProperty("bytes") long bytes,
+            @JsonProperty("objects") long objects) {
+        this.service = service;
+        this.nodeName = nodeName;
+        this.location = location;
+        this.bytes = bytes;
+        this.objects = objects;
+    }
+
+    public UsageMetadata(String service, String nodeName, Location location) {
+        this (service, nodeName, location, 0, 0);
+    }
+
+    @Override
+    public String getRowKey() {
+        return service;
+    }
+
+    @Override
+    public String getColumnKey() {
+        return String.format("%s-%s", nodeName, location.name().toLowerCase());
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getObjects() {
+        return objects;
+    }
+
+    public synchronized void add(long bytes, long objects) {
+        this.bytes += bytes;
+        this.objects += objects;
+    }
+
+    // Consistent copy to persist while updates carry on
+    public synchronized UsageMetadata copy() {
+        return new UsageMetadata(service, nodeName, location, bytes, objects);
+    }
+}
@@ -0,0 +1,95 @@
+package com.yammer.backups.tasks;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMultimap;
+import com.yammer.storage.file.throttled.ThrottledFileStorage;
+import io.dropwizard.servlets.tasks.Task;
+import io.dropwizard.util.Size;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+
+// Changes offsite bandwidth limits at runtime, eg. POST /tasks/offsite-bandwidth?upload=20MB&download=unlimited
+// Adding namespace=<service> applies the limits to just that service. Limits reset to the configured ones on restart.
+public class BandwidthLimitTask extends Task {
+
+    private static final String UNLIMITED = "unlimited";
+
+    private final ThrottledFileStorage storage;
+
+    public BandwidthLimitTask(ThrottledFileStorage storage) {
+        super("offsite-bandwidth");
+        this.storage = storage;
+    }
+
+    private static Optional<Optional<Size>> getRate(ImmutableMultimap<String, String> parameters, String name) {
+        final Collection<String> values = parameters.get(name);
+        if (values.isEmpty()) {
+            return Optional.absent();
+        }
+
+        final String value = values.iterator().next();
+        if (UNLIMITED.equalsIgnoreCase(value)) {
+            return Optional.of(Optional.<Size>absent());
+        }
+
+        return Optional.of(Optional.of(Size.parse(value)));
+    }
+
+    private static String format(Optional<Size> rate) {
+        return rate.isPresent() ? rate.get() + "/s" : UNLIMITED;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) {
+        final Optional<Optional<Size>> uploadRate = getRate(parameters, "upload");
+        final Optional<Optional<Size>> downloadRate = getRate(parameters, "download");
+        final Collection<String> namespaces = parameters.get("namespace");
+
+        if (namespaces.isEmpty()) {
+            if (uploadRate.isPresent()) {
+                storage.setUploadRate(uploadRate.get());
+            }
+
+            if (downloadRate.isPresent()) {
+                storage.setDownloadRate(downloadRate.get());
+            }
+
+            output.printf("upload: %s, download: %s%n", format(storage.getUploadRate()), format(storage.getDownloadRate()));
+            return;
+        }
+
+        for (String namespace : namespaces) {
+            if (uploadRate.isPresent()) {
+                storage.setNamespaceUploadRate(namespace, uploadRate.get());
+            }
+
+            if (downloadRate.isPresent()) {
+                storage.setNamespaceDownloadRate(namespace, downloadRate.get());
+            }
+
+            output.printf("%s upload: %s, download: %s%n", namespace,
+                    format(storage.getNamespaceUploadRate(namespace)), format(storage.getNamespaceDownloadRate(namespace)));
+        }
+    }
+}
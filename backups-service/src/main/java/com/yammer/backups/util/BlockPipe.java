@@ -0,0 +1,202 @@
+package com.yammer.backups.util;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// A bounded in-memory pipe handing fixed size blocks from one thread to another. Unlike PipedInputStream it doesn't
+// care which threads are on either end, and either side can abort it to unblock and fail the other.
+public class BlockPipe {
+
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final BlockingQueue<ByteBuffer> blocks;
+    private final int blockSize;
+    private final OutputStream sink;
+    private final InputStream source;
+
+    private volatile Throwable failure;
+
+    public BlockPipe(int blockSize, int maxBlocks) {
+        Preconditions.checkArgument(blockSize > 0, "blockSize must be positive");
+        Preconditions.checkArgument(maxBlocks > 0, "maxBlocks must be positive");
+
+        this.blockSize = blockSize;
+
+        blocks = new ArrayBlockingQueue<>(maxBlocks);
+        sink = new BlockOutputStream();
+        source = new BlockInputStream();
+    }
+
+    public OutputStream sink() {
+        return sink;
+    }
+
+    public InputStream source() {
+        return source;
+    }
+
+    public void abort(Throwable cause) {
+        failure = cause;
+        blocks.clear();
+    }
+
+    private void checkAborted() throws IOException {
+        if (failure != null) {
+            throw new IOException("Pipe aborted", failure);
+        }
+    }
+
+    private void put(ByteBuffer block) throws IOException {
+        try {
+            checkAborted();
+            while (!blocks.offer(block, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                checkAborted();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing to pipe");
+        }
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            ByteBuffer block;
+            while ((block = blocks.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) == null) {
+                checkAborted();
+            }
+
+            // Aborting clears the queue, but a block may have slipped in just after
+            checkAborted();
+            return block;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading from pipe");
+        }
+    }
+
+    private class BlockOutputStream extends OutputStream {
+
+        private byte[] buffer = new byte[blockSize];
+        private int count = 0;
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+
+            while (len > 0) {
+                final int copied = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, copied);
+
+                count += copied;
+                off += copied;
+                len -= copied;
+
+                if (count == buffer.length) {
+                    this.flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                put(ByteBuffer.wrap(buffer, 0, count));
+
+                // The reader owns the old buffer now
+                buffer = new byte[blockSize];
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                this.flush();
+                put(EOF);
+                closed = true;
+            }
+        }
+    }
+
+    private class BlockInputStream extends InputStream {
+
+        private ByteBuffer current = null;
+
+        private boolean next() throws IOException {
+            if (current == EOF) {
+                return false;
+            }
+
+            if (current == null || !current.hasRemaining()) {
+                current = take();
+            }
+
+            return current != EOF;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return next() ? current.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!next()) {
+                return -1;
+            }
+
+            final int read = Math.min(len, current.remaining());
+            current.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            final ByteBuffer block = current;
+            return block == null || block == EOF ? 0 : block.remaining();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.yammer.backups.util;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.FileStorages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Writes the same bytes to every target. Targets are closed in order, so the last one is only made durable once
+// all the others are. Aborting gives up on every target, so a failed write publishes none of them.
+public class TeeOutputStream extends OutputStream implements Abortable {
+
+    private final ImmutableList<OutputStream> targets;
+
+    public TeeOutputStream(OutputStream... targets) {
+        this.targets = ImmutableList.copyOf(targets);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        for (OutputStream target : targets) {
+            target.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (OutputStream target : targets) {
+            target.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (OutputStream target : targets) {
+            target.flush();
+        }
+    }
+
+    // If a target fails to close the ones after it are aborted rather than closed, so nothing is made durable
+    // unless everything before it was
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < targets.size(); i++) {
+            try {
+                targets.get(i).close();
+            }
+            catch (IOException | RuntimeException e) {
+                for (OutputStream target : targets.subList(i + 1, targets.size())) {
+                    FileStorages.abort(target);
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void abort() {
+        for (OutputStream target : targets) {
+            FileStorages.abort(target);
+        }
+    }
+}
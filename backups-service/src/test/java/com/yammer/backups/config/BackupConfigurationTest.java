@@ -22,12 +22,14 @@ package com.yammer.backups.config;
 
 import com.yammer.backups.ConfigurationTestUtil;
 import io.dropwizard.configuration.ConfigurationException;
+import io.dropwizard.util.Size;
 import org.junit.Test;
 
 import javax.validation.Validation;
 import javax.validation.Validator;
 import java.io.IOException;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -41,4 +43,13 @@ public class BackupConfigurationTest {
         final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
         assertTrue(validator.validate(config).isEmpty());
     }
+
+    @Test
+    public void testUploadBlocksLargerThanAzureAllowsAreInvalid() throws IOException, ConfigurationException {
+        final BackupConfiguration config = ConfigurationTestUtil.loadConfiguration();
+        config.getOffsiteConfiguration().getStorageConfiguration().setUploadBlockSize(Size.megabytes(5));
+
+        final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+        assertFalse(validator.validate(config).isEmpty());
+    }
 }
@@ -20,6 +20,7 @@ package com.yammer.backups.healthchecks.file;
  * #L%
  */
 
+import com.google.common.collect.ImmutableSet;
 import com.yammer.backups.api.CompressionCodec;
 import com.yammer.backups.api.Location;
 import com.yammer.backups.api.metadata.BackupMetadata;
@@ -29,12 +30,17 @@ import com.yammer.backups.storage.metadata.memory.InMemoryMetadataStorage;
 import com.yammer.storage.file.FileStorage;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -68,6 +74,16 @@ public class MissingBackupsHealthCheckTest {
         healthcheck = new MissingBackupsHealthCheck(metadataStorage, fileStorage, Location.LOCAL, "localhost", serviceRegistry);
     }
 
+    private void mockFilesExist(final boolean exist) throws IOException {
+        when(fileStorage.existsAll(anyString(), anyCollectionOf(String.class))).thenAnswer(new Answer<Set<String>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Set<String> answer(InvocationOnMock invocation) {
+                return exist ? ImmutableSet.copyOf((Collection<String>) invocation.getArguments()[1]) : ImmutableSet.<String>of();
+            }
+        });
+    }
+
     @Test
     public void testNoBackups() throws Exception {
         assertTrue(healthcheck.check().isHealthy());
@@ -75,7 +91,7 @@ public class MissingBackupsHealthCheckTest {
 
     @Test
     public void testMissingPendingBackups() throws IOException {
-        when(fileStorage.exists(anyString(), anyString())).thenReturn(false);
+        this.mockFilesExist(false);
 
         metadataStorage.put(createBackup("feedie", BackupMetadata.State.WAITING));
         metadataStorage.put(createBackup("feedie", BackupMetadata.State.RECEIVING));
@@ -89,7 +105,7 @@ public class MissingBackupsHealthCheckTest {
 
     @Test
     public void testMissingFinishedBackupsTriggersHealthcheck() throws IOException {
-        when(fileStorage.exists(anyString(), anyString())).thenReturn(false);
+        this.mockFilesExist(false);
 
         metadataStorage.put(createBackup("feedie", BackupMetadata.State.FINISHED));
 
@@ -100,7 +116,7 @@ public class MissingBackupsHealthCheckTest {
 
     @Test
     public void testExistingFinishedBackups() throws IOException {
-        when(fileStorage.exists(anyString(), anyString())).thenReturn(true);
+        this.mockFilesExist(true);
 
         metadataStorage.put(createBackup("feedie", BackupMetadata.State.FINISHED));
 
@@ -111,7 +127,7 @@ public class MissingBackupsHealthCheckTest {
 
     @Test
     public void testServiceHealthcheckDisabled() throws IOException {
-        when(fileStorage.exists(anyString(), anyString())).thenReturn(false);
+        this.mockFilesExist(false);
 
         metadataStorage.put(createBackup("feedie", BackupMetadata.State.FINISHED));
 
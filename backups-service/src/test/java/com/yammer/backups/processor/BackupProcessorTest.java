@@ -21,11 +21,15 @@ package com.yammer.backups.processor;
  */
 
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.yammer.backups.MockDistributedLockManager;
@@ -52,6 +56,8 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.*;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
@@ -79,6 +85,9 @@ public abstract class BackupProcessorTest<K extends MetadataStorage<BackupMetada
     private V offsiteStorage;
     private BackupProcessor processor;
     private BackupProcessorListener listener;
+    private FileStorage logStorage;
+    private CodecFactory codecFactory;
+    private DistributedLockManager distributedLockManager;
 
     protected abstract K getMetadataStorage() throws Exception;
     protected abstract void clearMetadataStorage(K storage);
@@ -91,20 +100,137 @@ public abstract class BackupProcessorTest<K extends MetadataStorage<BackupMetada
         metadataStorage = spy(getMetadataStorage());
         localStorage = spy(new LocalFileStorage(new LocalFileStorageConfiguration(localTestFolder.getRoot())));
         offsiteStorage = spy(getOffsiteStorage());
-        final FileStorage logStorage = spy(new LocalFileStorage(new LocalFileStorageConfiguration(localLogFolder.getRoot())));
-        final ExecutorService workerExecutor = MoreExecutors.sameThreadExecutor();
+        logStorage = spy(new LocalFileStorage(new LocalFileStorageConfiguration(localLogFolder.getRoot())));
         listener = mock(BackupProcessorListener.class);
 
-        final DistributedLockManager distributedLockManager = new MockDistributedLockManager(Duration.seconds(10));
+        distributedLockManager = new MockDistributedLockManager(Duration.seconds(10));
 
-        final CodecFactory codecFactory = mock(CodecFactory.class);
+        codecFactory = mock(CodecFactory.class);
         when(codecFactory.get(any(CompressionCodec.class), anyBoolean())).thenReturn(new NullStreamCodec());
 
-        processor = new BackupProcessor(distributedLockManager, metadataStorage, localStorage, offsiteStorage, codecFactory,
-            workerExecutor, BackupConfiguration.DEFAULT_CHUNK_SIZE, logStorage, "localhost", ImmutableSet.of(".gz"), new MetricRegistry(), ImmutableList.of(listener));
+        processor = createProcessor(false);
         processor.start();
     }
 
+    private BackupProcessor createProcessor(ExecutorService uploadWorkers, Size chunkSize, BackupProcessorOptions options) {
+        return new BackupProcessor(distributedLockManager, metadataStorage, localStorage, offsiteStorage, codecFactory,
+            uploadWorkers, chunkSize, logStorage, "localhost", ImmutableSet.of(".gz"), new MetricRegistry(), ImmutableList.of(listener), options);
+    }
+
+    private BackupProcessor createProcessor(boolean deduplicateChunks) {
+        return createProcessor(MoreExecutors.sameThreadExecutor(), BackupConfiguration.DEFAULT_CHUNK_SIZE,
+            new BackupProcessorOptions().withDeduplicatedChunks(deduplicateChunks));
+    }
+
+    // Fewer chunks at once than an upload keeps in flight, so uploads also wait for one to finish
+    private static ExecutorService createIngestWorkers() {
+        return Executors.newFixedThreadPool(IngestPipeline.getWorkerThreads(1));
+    }
+
+    private BackupProcessor createPipelinedProcessor(ExecutorService ingestWorkers) {
+        final IngestPipeline pipeline = new IngestPipeline(ingestWorkers, Size.bytes(100), 2, 2, 1);
+        return createProcessor(MoreExecutors.sameThreadExecutor(), Size.kilobytes(1),
+            new BackupProcessorOptions().withIngestPipeline(Optional.of(pipeline)));
+    }
+
+    private BackupProcessor createFollowingProcessor(ExecutorService uploadWorkers, Size followBufferSize) {
+        return createProcessor(uploadWorkers, Size.kilobytes(1),
+            new BackupProcessorOptions().withFollowBufferSize(Optional.of(followBufferSize)));
+    }
+
+    private BackupProcessor createCoalescingProcessor() {
+        return createProcessor(MoreExecutors.sameThreadExecutor(), Size.kilobytes(1),
+            new BackupProcessorOptions().withCoalescedMetadataUpdates(true));
+    }
+
+    private BackupMetadata createReceiving(BackupProcessor processor) {
+        final BackupMetadata backup = processor.create(namespace, "127.0.0.1");
+        backup.setState(BackupMetadata.State.RECEIVING, "test");
+        metadataStorage.update(backup);
+        return backup;
+    }
+
+    private static Function<BackupMetadata, BackupMetadata> addChunk(final String path) {
+        return new Function<BackupMetadata, BackupMetadata>() {
+            @Override
+            public BackupMetadata apply(BackupMetadata input) {
+                input.addChunk("testfile", path, 100, 80, "hash", "localhost", CompressionCodec.NONE);
+                return input;
+            }
+        };
+    }
+
+    private BackupMetadata storeFollowed(Size followBufferSize, byte[] bytes) throws Exception {
+        final ExecutorService uploadWorkers = Executors.newCachedThreadPool();
+        final BackupProcessor following = createFollowingProcessor(uploadWorkers, followBufferSize);
+
+        try {
+            BackupMetadata backup = following.create(namespace, "127.0.0.1");
+
+            try (final InputStream in = new ByteArrayInputStream(bytes)) {
+                following.store(backup, Optional.<String>absent(), in, "testfile");
+            }
+
+            backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+            following.finish(backup, "log...", true);
+
+            // Uploads are committed by the upload workers once each chunk is sealed
+            for (int i = 0; i < 100 && !backup.existsAtLocation(Location.OFFSITE); i++) {
+                Thread.sleep(50);
+                backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+            }
+
+            assertEquals(BackupMetadata.State.FINISHED, backup.getState());
+            assertEquals(0, backup.getPendingUploads());
+
+            // Chunks aren't encoded here, so the offsite copies together are exactly what was stored
+            final ByteArrayOutputStream offsite = new ByteArrayOutputStream();
+            for (final Chunk chunk : backup.getChunks("testfile")) {
+                verify(offsiteStorage, times(1)).upload(eq(namespace), eq(chunk.getPath()));
+                verify(listener, times(1)).chunkStored(any(BackupMetadata.class), eq(Location.OFFSITE), eq(chunk));
+
+                try (final InputStream in = offsiteStorage.download(namespace, chunk.getPath())) {
+                    ByteStreams.copy(in, offsite);
+                }
+            }
+
+            assertArrayEquals(bytes, offsite.toByteArray());
+
+            return backup;
+        }
+        finally {
+            following.stop();
+            uploadWorkers.shutdown();
+        }
+    }
+
+    private byte[] storeAndDownloadPipelined(byte[] bytes) throws IOException {
+        final ExecutorService ingestWorkers = createIngestWorkers();
+        final BackupProcessor pipelined = createPipelinedProcessor(ingestWorkers);
+
+        try {
+            BackupMetadata backup = pipelined.create(namespace, "127.0.0.1");
+
+            try (final InputStream in = new ByteArrayInputStream(bytes)) {
+                pipelined.store(backup, Optional.of(Hashing.md5().hashBytes(bytes).toString()), in, "testfile");
+            }
+
+            backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+            assertEquals((bytes.length + 1023) / 1024, backup.getChunks("testfile").size());
+
+            pipelined.finish(backup, "log...", true);
+            backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+
+            try (final ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+                pipelined.download(backup, "testfile", out);
+                return out.toByteArray();
+            }
+        }
+        finally {
+            ingestWorkers.shutdown();
+        }
+    }
+
     @After
     public void tearDown() throws IOException {
         try {
@@ -286,6 +412,29 @@ public abstract class BackupProcessorTest<K extends MetadataStorage<BackupMetada
         assertEquals(BackupMetadata.State.FAILED, backupResult.getState());
     }
 
+    @Test
+    public void testFailedStoreDiscardsPartialChunk() throws IOException {
+        final BackupMetadata backup = processor.create(namespace, "127.0.0.1");
+
+        // Fails partway through the first chunk
+        final InputStream in = new SequenceInputStream(new ByteArrayInputStream(new byte[500]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("test");
+            }
+        });
+
+        try {
+            processor.store(backup, Optional.<String>absent(), in, "testfile");
+            fail("Expected the store to fail");
+        }
+        catch (IOException e) {
+            assertEquals("test", e.getMessage());
+        }
+
+        assertTrue(localStorage.list(namespace, "").isEmpty());
+    }
+
     @Test
     public void testListBackups() throws IOException {
         final BackupMetadata feedie = processor.create("feedie", "127.0.0.1");
@@ -416,6 +565,8 @@ public abstract class BackupProcessorTest<K extends MetadataStorage<BackupMetada
         assertFalse(backup.getChunks().isEmpty());
         for (Chunk chunk : backup.getChunks()) {
             verify(offsiteStorage, times(1)).upload(eq(backup.getService()), eq(chunk.getPath()));
+            verify(listener, times(1)).chunkStored(any(BackupMetadata.class), eq(Location.LOCAL), eq(chunk));
+            verify(listener, times(1)).chunkStored(any(BackupMetadata.class), eq(Location.OFFSITE), eq(chunk));
         }
     }
 
@@ -555,5 +706,428 @@ public abstract class BackupProcessorTest<K extends MetadataStorage<BackupMetada
         verify(listener, times(1)).backupDeleted(eq(backup));
     }
 
+    private BackupMetadata storeDirectOffsite(EnumSet<Location> storeLocations) throws IOException {
+        BackupMetadata backup = processor.create(namespace, "127.0.0.1", storeLocations);
+
+        try (final InputStream in = new ByteArrayInputStream(BYTES)) {
+            processor.store(backup, Optional.<String>absent(), in, "testfile");
+        }
+
+        backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+        processor.finish(backup, "log...", true);
+
+        // Nothing is left to upload, so the backup is finished and offsite straight away
+        backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+        assertEquals(BackupMetadata.State.FINISHED, backup.getState());
+        assertTrue(backup.existsAtLocation(Location.OFFSITE));
+        assertEquals(0, backup.getPendingUploads());
+
+        final Chunk chunk = Iterables.getOnlyElement(backup.getChunks());
+        assertTrue(offsiteStorage.exists(namespace, chunk.getPath()));
+        verify(offsiteStorage, times(1)).upload(eq(namespace), eq(chunk.getPath()));
+        verify(localStorage, never()).download(eq(namespace), eq(chunk.getPath()));
+        verify(listener, times(1)).chunkStored(any(BackupMetadata.class), eq(Location.OFFSITE), eq(chunk));
+
+        try (final ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            processor.download(backup, "testfile", out);
+            assertArrayEquals(BYTES, out.toByteArray());
+        }
+
+        return backup;
+    }
+
+    @Test
+    public void testDirectOffsiteStoreSkipsLocalCopy() throws IOException {
+        final BackupMetadata backup = this.storeDirectOffsite(EnumSet.of(Location.OFFSITE));
+        final Chunk chunk = Iterables.getOnlyElement(backup.getChunks());
+
+        assertFalse(backup.existsAtLocation(Location.LOCAL));
+        assertFalse(localStorage.exists(namespace, chunk.getPath()));
+        verify(listener, never()).chunkStored(any(BackupMetadata.class), eq(Location.LOCAL), any(Chunk.class));
+    }
+
+    @Test
+    public void testDirectOffsiteStoreKeepsLocalCopy() throws IOException {
+        final BackupMetadata backup = this.storeDirectOffsite(EnumSet.of(Location.LOCAL, Location.OFFSITE));
+        final Chunk chunk = Iterables.getOnlyElement(backup.getChunks());
+
+        assertTrue(backup.existsAtLocation(Location.LOCAL));
+        assertTrue(localStorage.exists(namespace, chunk.getPath()));
+        verify(listener, times(1)).chunkStored(any(BackupMetadata.class), eq(Location.LOCAL), eq(chunk));
+    }
+
+    private void storeDirectOffsiteFailingMidChunk(EnumSet<Location> storeLocations) throws IOException {
+        final BackupMetadata backup = processor.create(namespace, "127.0.0.1", storeLocations);
+
+        // Fails partway through the first chunk, after some of it has been written to every target
+        final InputStream in = new SequenceInputStream(new ByteArrayInputStream(new byte[500]), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("test");
+            }
+        });
+
+        try {
+            processor.store(backup, Optional.<String>absent(), in, "testfile");
+            fail("Expected the store to fail");
+        }
+        catch (IOException e) {
+            assertEquals("test", e.getMessage());
+        }
+
+        assertTrue(localStorage.list(namespace, "").isEmpty());
+        assertTrue(offsiteStorage.list(namespace, "").isEmpty());
+    }
+
+    @Test
+    public void testFailedDirectOffsiteStoreCommitsNothing() throws IOException {
+        this.storeDirectOffsiteFailingMidChunk(EnumSet.of(Location.OFFSITE));
+    }
+
+    @Test
+    public void testFailedDirectOffsiteStoreKeepsNoLocalCopy() throws IOException {
+        this.storeDirectOffsiteFailingMidChunk(EnumSet.of(Location.LOCAL, Location.OFFSITE));
+    }
+
+    @Test
+    public void testPipelinedStoreKeepsChunksInOrder() throws IOException {
+        final byte[] bytes = new byte[(int) Size.kilobytes(10).toBytes() + 500];
+        RANDOM.nextBytes(bytes);
+
+        assertArrayEquals(bytes, this.storeAndDownloadPipelined(bytes));
+    }
+
+    @Test
+    public void testPipelinedStoreEndingOnChunkBoundary() throws IOException {
+        final byte[] bytes = new byte[(int) Size.kilobytes(4).toBytes()];
+        RANDOM.nextBytes(bytes);
+
+        assertArrayEquals(bytes, this.storeAndDownloadPipelined(bytes));
+    }
+
+    @Test
+    public void testExceptioningPipelinedStoreMarksBackupFailed() throws IOException {
+        final ExecutorService ingestWorkers = createIngestWorkers();
+        final BackupProcessor pipelined = createPipelinedProcessor(ingestWorkers);
+
+        try {
+            final BackupMetadata backup = pipelined.create(namespace, "127.0.0.1");
+            doThrow(new IOException("test")).when(localStorage).upload(eq(backup.getService()), endsWith("part-002"));
+
+            final byte[] bytes = new byte[(int) Size.kilobytes(5).toBytes()];
+            RANDOM.nextBytes(bytes);
+
+            try (final InputStream in = new ByteArrayInputStream(bytes)) {
+                pipelined.store(backup, Optional.<String>absent(), in, "testfile");
+                fail("Expected the store to fail");
+            }
+            catch (IOException e) {
+                assertEquals("test", e.getMessage());
+            }
+
+            final BackupMetadata backupResult = metadataStorage.get(backup.getService(), backup.getId()).get();
+            assertEquals(BackupMetadata.State.FAILED, backupResult.getState());
+        }
+        finally {
+            ingestWorkers.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedPipelinedStoreDiscardsPartialChunk() throws IOException {
+        final ExecutorService ingestWorkers = createIngestWorkers();
+        final BackupProcessor pipelined = createPipelinedProcessor(ingestWorkers);
+
+        try {
+            final BackupMetadata backup = pipelined.create(namespace, "127.0.0.1");
+
+            // Fails partway through the first chunk, while the writer already has some of it
+            final InputStream in = new SequenceInputStream(new ByteArrayInputStream(new byte[500]), new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("test");
+                }
+            });
+
+            try {
+                pipelined.store(backup, Optional.<String>absent(), in, "testfile");
+                fail("Expected the store to fail");
+            }
+            catch (IOException e) {
+                assertEquals("test", e.getMessage());
+            }
+
+            assertTrue(localStorage.list(namespace, "").isEmpty());
+        }
+        finally {
+            ingestWorkers.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDeduplicatedChunksAreStoredOnce() throws IOException {
+        when(codecFactory.getDefaultCompressionCodec()).thenReturn(CompressionCodec.SNAPPY);
+
+        final BackupProcessor deduplicating = createProcessor(true);
+        deduplicating.start();
+
+        try {
+            final List<BackupMetadata> backups = Lists.newArrayList();
+            for (int i = 0; i < 2; i++) {
+                BackupMetadata backup = deduplicating.create(namespace, "127.0.0.1");
+
+                try (final InputStream in = new ByteArrayInputStream(BYTES)) {
+                    deduplicating.store(backup, Optional.<String>absent(), in, "testfile");
+                }
+
+                backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+                deduplicating.finish(backup, "log...", true);
+                backups.add(metadataStorage.get(backup.getService(), backup.getId()).get());
+            }
+
+            final Chunk chunk = Iterables.getOnlyElement(backups.get(0).getChunks());
+            assertTrue(BackupProcessor.isContentAddressed(chunk.getPath()));
+            assertEquals(chunk.getPath(), Iterables.getOnlyElement(backups.get(1).getChunks()).getPath());
+
+            // Moved into place by the first backup rather than copied, and dropped by the second
+            verify(localStorage, never()).upload(eq(namespace), eq(chunk.getPath()));
+            assertEquals(ImmutableSet.of(chunk.getPath()), localStorage.list(namespace, ""));
+            verify(offsiteStorage, times(1)).upload(eq(namespace), eq(chunk.getPath()));
+            verify(listener, times(1)).chunkStored(any(BackupMetadata.class), eq(Location.LOCAL), eq(chunk));
+
+            // Deleting a backup only drops its reference, the chunk itself is left for the collector
+            deduplicating.deleteFromFileStorage(localStorage, Location.LOCAL, backups.get(0));
+            assertTrue(localStorage.exists(namespace, chunk.getPath()));
+            verify(listener, never()).chunksDeleted(any(BackupMetadata.class), any(Location.class), anyCollection());
+
+            deduplicating.deleteFromFileStorage(localStorage, Location.LOCAL, backups.get(1));
+            assertTrue(localStorage.exists(namespace, chunk.getPath()));
+            assertFalse(deduplicating.getReferencedPaths(namespace, Location.LOCAL).contains(chunk.getPath()));
+            verify(listener, times(1)).chunksDeleted(any(BackupMetadata.class), eq(Location.LOCAL), eq(ImmutableList.of(chunk)));
+        }
+        finally {
+            deduplicating.stop();
+        }
+    }
+
+    @Test
+    public void testCollectionKeepsChunksReferencedSinceListing() throws IOException {
+        when(codecFactory.getDefaultCompressionCodec()).thenReturn(CompressionCodec.SNAPPY);
+
+        final BackupProcessor deduplicating = createProcessor(true);
+        deduplicating.start();
+
+        try {
+            BackupMetadata backup = deduplicating.create(namespace, "127.0.0.1");
+            try (final InputStream in = new ByteArrayInputStream(BYTES)) {
+                deduplicating.store(backup, Optional.<String>absent(), in, "testfile");
+            }
+
+            backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+            final String path = Iterables.getOnlyElement(backup.getChunks()).getPath();
+
+            // The collector listed the chunk as unreferenced before this backup reused it
+            final Set<String> deleted = deduplicating.deleteUnreferenced(localStorage, namespace, Location.LOCAL, ImmutableSet.of(path));
+            assertTrue(deleted.isEmpty());
+            assertTrue(localStorage.exists(namespace, path));
+        }
+        finally {
+            deduplicating.stop();
+        }
+    }
+
+    @Test
+    public void testChunksCollectedOffsiteBeforeReferencedAreUploadedAgain() throws IOException {
+        when(codecFactory.getDefaultCompressionCodec()).thenReturn(CompressionCodec.SNAPPY);
+
+        final BackupProcessor deduplicating = createProcessor(true);
+        deduplicating.start();
+
+        try {
+            // Offsite had the content when the chunk was stored, but it was collected before the store finished
+            doReturn(true).doCallRealMethod().when(offsiteStorage).exists(eq(namespace), startsWith(BackupProcessor.getContentAddressPrefix()));
+
+            BackupMetadata backup = deduplicating.create(namespace, "127.0.0.1");
+            try (final InputStream in = new ByteArrayInputStream(BYTES)) {
+                deduplicating.store(backup, Optional.<String>absent(), in, "testfile");
+            }
+
+            backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+            final String path = Iterables.getOnlyElement(backup.getChunks()).getPath();
+
+            verify(offsiteStorage, times(1)).upload(eq(namespace), eq(path));
+            assertTrue(offsiteStorage.exists(namespace, path));
+            assertEquals(0, backup.getPendingUploads());
+        }
+        finally {
+            deduplicating.stop();
+        }
+    }
+
+    @Test
+    public void testFollowedChunksUploadWhileWriting() throws Exception {
+        final byte[] bytes = new byte[(int) Size.kilobytes(5).toBytes() + 300];
+        RANDOM.nextBytes(bytes);
+
+        final BackupMetadata backup = this.storeFollowed(Size.kilobytes(64), bytes);
+        assertEquals(6, backup.getChunks("testfile").size());
+
+        // Everything fit in the buffer, so nothing was read back from local disk
+        for (final Chunk chunk : backup.getChunks()) {
+            verify(localStorage, never()).download(eq(namespace), eq(chunk.getPath()));
+        }
+    }
+
+    @Test
+    public void testDetachedFollowerCatchesUpFromLocalCopy() throws Exception {
+        final byte[] bytes = new byte[(int) Size.kilobytes(3).toBytes()];
+        RANDOM.nextBytes(bytes);
+
+        // Far smaller than a single write, so every follower falls behind and finishes from the local copy
+        final BackupMetadata backup = this.storeFollowed(Size.bytes(100), bytes);
+        assertEquals(3, backup.getChunks("testfile").size());
+    }
+
+    @Test
+    public void testFailedStoreAbandonsFollowedUpload() throws Exception {
+        final ExecutorService uploadWorkers = Executors.newCachedThreadPool();
+        final BackupProcessor following = createFollowingProcessor(uploadWorkers, Size.kilobytes(64));
+
+        try {
+            final BackupMetadata backup = following.create(namespace, "127.0.0.1");
+
+            final byte[] bytes = new byte[(int) Size.kilobytes(1).toBytes() + 500];
+            RANDOM.nextBytes(bytes);
+
+            // Fails halfway through the second chunk, once it has already started following
+            final InputStream in = new SequenceInputStream(new ByteArrayInputStream(bytes), new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("test");
+                }
+            });
+
+            try {
+                following.store(backup, Optional.<String>absent(), in, "testfile");
+                fail("Expected the store to fail");
+            }
+            catch (IOException e) {
+                assertEquals("test", e.getMessage());
+            }
+
+            final BackupMetadata backupResult = metadataStorage.get(backup.getService(), backup.getId()).get();
+            assertEquals(BackupMetadata.State.FAILED, backupResult.getState());
+
+            // The follower may or may not have started staging the chunk, but it never commits it
+            final String path = Iterables.getOnlyElement(backupResult.getChunks()).getPath();
+            Thread.sleep(200);
+            assertFalse(offsiteStorage.exists(namespace, path.substring(0, path.length() - 1) + "1"));
+        }
+        finally {
+            following.stop();
+            uploadWorkers.shutdown();
+        }
+    }
+
+    @Test
+    public void testCoalescedStoreWritesMetadataPerStateChange() throws IOException {
+        final BackupProcessor coalescing = createCoalescingProcessor();
+
+        final byte[] bytes = new byte[(int) Size.kilobytes(5).toBytes() + 300];
+        RANDOM.nextBytes(bytes);
 
+        BackupMetadata backup = coalescing.create(namespace, "127.0.0.1");
+        try (final InputStream in = new ByteArrayInputStream(bytes)) {
+            coalescing.store(backup, Optional.<String>absent(), in, "testfile");
+        }
+
+        // Started and finished receiving, with every chunk and upload going along with the latter
+        verify(metadataStorage, times(2)).update(any(BackupMetadata.class));
+
+        backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+        assertEquals(BackupMetadata.State.WAITING, backup.getState());
+        assertEquals(6, backup.getChunks("testfile").size());
+        assertEquals(0, backup.getPendingUploads());
+
+        coalescing.finish(backup, "log...", true);
+        backup = metadataStorage.get(backup.getService(), backup.getId()).get();
+        assertEquals(BackupMetadata.State.FINISHED, backup.getState());
+
+        try (final ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            coalescing.download(backup, "testfile", out);
+            assertArrayEquals(bytes, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testFlushingSessionWritesDeferredUpdates() throws IOException {
+        final BackupProcessor coalescing = createCoalescingProcessor();
+        final BackupMetadata backup = this.createReceiving(coalescing);
+
+        coalescing.openSession(backup);
+        coalescing.defer(backup, addChunk("test-id-1"));
+        coalescing.defer(backup, addChunk("test-id-2"));
+        assertTrue(metadataStorage.get(backup.getService(), backup.getId()).get().getChunks().isEmpty());
+
+        // Both deferred updates go in a single write, on top of the one that started receiving
+        coalescing.flushSessions();
+        assertEquals(2, metadataStorage.get(backup.getService(), backup.getId()).get().getChunks().size());
+        verify(metadataStorage, times(2)).update(any(BackupMetadata.class));
+
+        // Nothing left to write once the session closes
+        coalescing.closeSession(backup);
+        verify(metadataStorage, times(2)).update(any(BackupMetadata.class));
+
+        // Without a session updates are written straight away
+        coalescing.defer(backup, addChunk("test-id-3"));
+        assertEquals(3, metadataStorage.get(backup.getService(), backup.getId()).get().getChunks().size());
+    }
+
+    @Test
+    public void testFailedUpdateKeepsDeferredUpdates() throws IOException {
+        final BackupProcessor coalescing = createCoalescingProcessor();
+        final BackupMetadata backup = this.createReceiving(coalescing);
+
+        coalescing.openSession(backup);
+        coalescing.defer(backup, addChunk("test-id-1"));
+
+        try {
+            coalescing.update(backup, new Function<BackupMetadata, BackupMetadata>() {
+                @Override
+                public BackupMetadata apply(BackupMetadata input) {
+                    input.transitionState(BackupMetadata.State.FINISHED, BackupMetadata.State.FAILED, "test");
+                    return input;
+                }
+            });
+            fail("Expected the update to fail");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+
+        final Chunk chunk = Iterables.getOnlyElement(metadataStorage.get(backup.getService(), backup.getId()).get().getChunks());
+        assertEquals("test-id-1", chunk.getPath());
+
+        coalescing.closeSession(backup);
+    }
+
+    @Test
+    public void testFailedFlushKeepsDeferredUpdates() throws IOException {
+        final BackupProcessor coalescing = createCoalescingProcessor();
+        final BackupMetadata backup = this.createReceiving(coalescing);
+
+        coalescing.openSession(backup);
+        coalescing.defer(backup, addChunk("test-id-1"));
+
+        // The failed write is only logged, and the update goes with the next one instead of being lost or repeated
+        doThrow(new RuntimeException("test")).doCallRealMethod().when(metadataStorage).update(any(BackupMetadata.class));
+        coalescing.flushSessions();
+        coalescing.flushSessions();
+
+        final Chunk chunk = Iterables.getOnlyElement(metadataStorage.get(backup.getService(), backup.getId()).get().getChunks());
+        assertEquals("test-id-1", chunk.getPath());
+
+        coalescing.closeSession(backup);
+    }
 }
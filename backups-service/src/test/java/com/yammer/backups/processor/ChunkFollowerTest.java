@@ -0,0 +1,112 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChunkFollowerTest {
+
+    private static final String NAMESPACE = "test";
+    private static final String PATH = "backup-file-part-000";
+    private static final Random RANDOM = new Random();
+
+    private ExecutorService uploadWorkers;
+    private FileStorage storage;
+
+    @Before
+    public void setUp() {
+        uploadWorkers = Executors.newSingleThreadExecutor();
+        storage = new InMemoryFileStorage();
+    }
+
+    @After
+    public void tearDown() {
+        uploadWorkers.shutdownNow();
+    }
+
+    @Test
+    public void testUploadDoesNotHoldWorkerWhileChunkIsOpen() throws Exception {
+        final byte[] bytes = new byte[10000];
+        RANDOM.nextBytes(bytes);
+
+        final ChunkFollower follower = new ChunkFollower(bytes.length);
+        final ListenableFuture<Long> upload = follower.start(uploadWorkers, storage, NAMESPACE, PATH);
+        follower.sink().write(bytes, 0, 4000);
+
+        // The only worker has to be free for other uploads while the rest of the chunk is still being written
+        final Boolean ran = uploadWorkers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return true;
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(ran);
+
+        follower.sink().write(bytes, 4000, bytes.length - 4000);
+        follower.sink().close();
+        assertFalse(storage.exists(NAMESPACE, PATH));
+
+        follower.seal(ByteSource.wrap(bytes));
+        assertEquals(bytes.length, upload.get(5, TimeUnit.SECONDS).longValue());
+        assertFalse(follower.isDetached());
+
+        try (final InputStream in = storage.download(NAMESPACE, PATH)) {
+            assertTrue(Arrays.equals(bytes, ByteStreams.toByteArray(in)));
+        }
+    }
+
+    @Test
+    public void testAbortedUploadLeavesNoBlob() throws Exception {
+        final ChunkFollower follower = new ChunkFollower(1000);
+        final ListenableFuture<Long> upload = follower.start(uploadWorkers, storage, NAMESPACE, PATH);
+        follower.sink().write(new byte[500], 0, 500);
+
+        follower.abort(new IllegalStateException("test"));
+
+        try {
+            upload.get(5, TimeUnit.SECONDS);
+            fail("Expected the upload to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertFalse(storage.exists(NAMESPACE, PATH));
+    }
+}
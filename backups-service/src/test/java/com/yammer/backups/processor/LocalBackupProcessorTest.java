@@ -21,7 +21,7 @@ package com.yammer.backups.processor;
  */
 
 import com.yammer.backups.api.metadata.BackupMetadata;
-import com.yammer.backups.storage.metadata.memory.InMemoryMetadataStorage;
+import com.yammer.backups.storage.metadata.azure.AzureTablelikeMetadataStorage;
 import com.yammer.storage.file.local.LocalFileStorage;
 import com.yammer.storage.file.local.LocalFileStorageConfiguration;
 import org.junit.Rule;
@@ -29,18 +29,19 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
 
-public class LocalBackupProcessorTest extends BackupProcessorTest<InMemoryMetadataStorage<BackupMetadata>, LocalFileStorage> {
+public class LocalBackupProcessorTest extends BackupProcessorTest<AzureTablelikeMetadataStorage<BackupMetadata>, LocalFileStorage> {
 
     @Rule
     public final TemporaryFolder offsiteTestFolder = new TemporaryFolder();
 
     @Override
-    protected InMemoryMetadataStorage<BackupMetadata> getMetadataStorage() {
-        return new InMemoryMetadataStorage<>();
+    protected AzureTablelikeMetadataStorage<BackupMetadata> getMetadataStorage() {
+        // Hands out copies as the real storage does, so nothing can rely on changes made to an item it returned
+        return new AzureTablelikeMetadataStorage<>(BackupMetadata.class);
     }
 
     @Override
-    protected void clearMetadataStorage(InMemoryMetadataStorage<BackupMetadata> storage) {
+    protected void clearMetadataStorage(AzureTablelikeMetadataStorage<BackupMetadata> storage) {
         storage.clear();
     }
 
@@ -0,0 +1,139 @@
+package com.yammer.backups.processor;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.yammer.backups.api.Chunk;
+import com.yammer.backups.api.CompressionCodec;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.api.metadata.BackupMetadata;
+import com.yammer.backups.api.status.UsageStatus;
+import com.yammer.backups.service.metadata.UsageMetadata;
+import com.yammer.backups.storage.metadata.MetadataStorage;
+import com.yammer.backups.storage.metadata.azure.AzureTablelikeMetadataStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+public class UsageIndexTest {
+
+    private static final String SERVICE_NAME = "test";
+    private static final String SOURCE_ADDRESS = "127.0.0.1";
+    private static final String LOCAL_NODE = "localhost";
+
+    private MetadataStorage<UsageMetadata> usageStorage;
+    private MetadataStorage<BackupMetadata> backupStorage;
+    private ScheduledExecutorService executor;
+    private MetricRegistry metricRegistry;
+    private UsageIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        usageStorage = new AzureTablelikeMetadataStorage<>(UsageMetadata.class);
+        backupStorage = new AzureTablelikeMetadataStorage<>(BackupMetadata.class);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        metricRegistry = new MetricRegistry();
+        index = new UsageIndex(usageStorage, backupStorage, LOCAL_NODE, executor, metricRegistry);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static Chunk chunk(String path, long size) {
+        return new Chunk(path, size * 2, size, "hash", LOCAL_NODE, CompressionCodec.SNAPPY);
+    }
+
+    @Test
+    public void testTracksStoredAndDeletedChunks() {
+        index.start();
+
+        final BackupMetadata backup = new BackupMetadata(SERVICE_NAME, SOURCE_ADDRESS, LOCAL_NODE);
+        index.chunkStored(backup, Location.LOCAL, chunk("a", 100));
+        index.chunkStored(backup, Location.LOCAL, chunk("b", 50));
+        index.chunkStored(backup, Location.OFFSITE, chunk("a", 100));
+
+        UsageStatus local = index.getUsage(Location.LOCAL, SERVICE_NAME).get();
+        assertEquals(150, local.getUsedCapacity().toBytes());
+        assertEquals(2, local.getObjects());
+        assertEquals(100, index.getUsage(Location.OFFSITE).get(SERVICE_NAME).getUsedCapacity().toBytes());
+
+        index.chunksDeleted(backup, Location.LOCAL, ImmutableList.of(chunk("a", 100)));
+
+        local = index.getUsage(Location.LOCAL, SERVICE_NAME).get();
+        assertEquals(50, local.getUsedCapacity().toBytes());
+        assertEquals(1, local.getObjects());
+        assertFalse(index.getUsage(Location.LOCAL, "other").isPresent());
+
+        final Gauge<?> gauge = metricRegistry.getGauges().get("usage-local-test-bytes");
+        assertEquals(50L, gauge.getValue());
+    }
+
+    @Test
+    public void testPersistsAndReloads() {
+        index.start();
+        index.chunkStored(new BackupMetadata(SERVICE_NAME, SOURCE_ADDRESS, LOCAL_NODE), Location.OFFSITE, chunk("a", 100));
+        index.stop();
+
+        final UsageMetadata persisted = Iterables.getOnlyElement(usageStorage.listAll());
+        assertEquals(LOCAL_NODE, persisted.getNodeName());
+        assertEquals(100, persisted.getBytes());
+
+        final UsageIndex reloaded = new UsageIndex(usageStorage, backupStorage, LOCAL_NODE, executor, new MetricRegistry());
+        reloaded.start();
+        assertEquals(1, reloaded.getUsage(Location.OFFSITE, SERVICE_NAME).get().getObjects());
+        reloaded.stop();
+    }
+
+    @Test
+    public void testRebuildsFromBackupMetadata() {
+        final BackupMetadata backup = new BackupMetadata(SERVICE_NAME, SOURCE_ADDRESS, LOCAL_NODE);
+        backup.setState(BackupMetadata.State.RECEIVING, "test");
+        backup.addChunk("file", "a", 200, 100, "hash", LOCAL_NODE, CompressionCodec.SNAPPY);
+        backup.addChunk("file", "b", 200, 100, "hash", LOCAL_NODE, CompressionCodec.SNAPPY);
+        backup.addLocation(Location.LOCAL);
+        backupStorage.put(backup);
+
+        final BackupMetadata elsewhere = new BackupMetadata(SERVICE_NAME, SOURCE_ADDRESS, "othernode");
+        elsewhere.setState(BackupMetadata.State.RECEIVING, "test");
+        elsewhere.addChunk("file", "c", 200, 100, "hash", "othernode", CompressionCodec.SNAPPY);
+        elsewhere.addLocation(Location.LOCAL);
+        backupStorage.put(elsewhere);
+
+        index.start();
+
+        assertEquals(200, index.getUsage(Location.LOCAL, SERVICE_NAME).get().getUsedCapacity().toBytes());
+        assertFalse(index.getUsage(Location.OFFSITE, SERVICE_NAME).isPresent());
+
+        // Rebuilt totals are persisted so the next start doesn't need to rebuild them
+        index.stop();
+        assertEquals(1, usageStorage.listAll().size());
+    }
+}
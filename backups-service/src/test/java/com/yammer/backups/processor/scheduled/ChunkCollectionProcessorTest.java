@@ -0,0 +1,108 @@
+package com.yammer.backups.processor.scheduled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class ChunkCollectionProcessorTest {
+
+    private static final String SERVICE = "test";
+
+    private FileStorage fileStorage;
+    private BackupProcessor backupProcessor;
+    private Set<String> referenced;
+    private ChunkCollectionProcessor processor;
+
+    private void store(String path) throws IOException {
+        try (final OutputStream out = fileStorage.upload(SERVICE, path)) {
+            out.write(path.getBytes());
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        fileStorage = new InMemoryFileStorage();
+        referenced = Sets.newHashSet();
+
+        backupProcessor = mock(BackupProcessor.class);
+        when(backupProcessor.listServices()).thenReturn(ImmutableSet.of(SERVICE));
+        when(backupProcessor.getReferencedPaths(SERVICE, Location.LOCAL)).thenReturn(referenced);
+        when(backupProcessor.deleteUnreferenced(eq(fileStorage), eq(SERVICE), eq(Location.LOCAL), anySetOf(String.class))).thenAnswer(new Answer<Set<String>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Set<String> answer(InvocationOnMock invocation) throws IOException {
+                final Set<String> paths = (Set<String>) invocation.getArguments()[3];
+                return fileStorage.deleteAll(SERVICE, ImmutableSet.copyOf(Sets.difference(paths, referenced)));
+            }
+        });
+
+        processor = new ChunkCollectionProcessor(fileStorage, Location.LOCAL, backupProcessor, null, new MetricRegistry());
+
+        store("sha256-a-snappy");
+        store("sha256-b-snappy");
+        store("backup-file-part-000");
+    }
+
+    @Test
+    public void testCollectsChunksUnreferencedTwice() throws IOException {
+        referenced.add("sha256-a-snappy");
+
+        processor.execute();
+        assertEquals(ImmutableSet.of("sha256-a-snappy", "sha256-b-snappy", "backup-file-part-000"), fileStorage.list(SERVICE, ""));
+
+        processor.execute();
+        assertEquals(ImmutableSet.of("sha256-a-snappy", "backup-file-part-000"), fileStorage.list(SERVICE, ""));
+    }
+
+    @Test
+    public void testReferencedAgainIsKept() throws IOException {
+        referenced.add("sha256-a-snappy");
+        processor.execute();
+
+        // A new backup stored the same content in between runs
+        referenced.add("sha256-b-snappy");
+        processor.execute();
+
+        referenced.remove("sha256-b-snappy");
+        processor.execute();
+        assertEquals(ImmutableSet.of("sha256-a-snappy", "sha256-b-snappy", "backup-file-part-000"), fileStorage.list(SERVICE, ""));
+
+        processor.execute();
+        assertEquals(ImmutableSet.of("sha256-a-snappy", "backup-file-part-000"), fileStorage.list(SERVICE, ""));
+    }
+}
@@ -0,0 +1,114 @@
+package com.yammer.backups.processor.scheduled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableSet;
+import com.yammer.backups.api.CompressionCodec;
+import com.yammer.backups.api.Location;
+import com.yammer.backups.api.metadata.BackupMetadata;
+import com.yammer.backups.config.TieringConfiguration;
+import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import com.yammer.storage.file.tiered.TieredFileStorage;
+import io.dropwizard.util.Duration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class TierMigrationProcessorTest {
+
+    private static final String SERVICE = "test";
+    private static final String NODE = "node";
+    private static final String PATH = "backup-file-part-000";
+    private static final Duration ACCESS_WINDOW = Duration.hours(1);
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    private InMemoryFileStorage hot;
+    private InMemoryFileStorage cold;
+    private TieredFileStorage fileStorage;
+    private TierMigrationProcessor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        hot = new InMemoryFileStorage();
+        cold = new InMemoryFileStorage();
+        fileStorage = new TieredFileStorage("test", hot, cold, ACCESS_WINDOW, new MetricRegistry(), new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        });
+        fileStorage.start();
+
+        try (final OutputStream out = fileStorage.upload(SERVICE, PATH)) {
+            out.write(PATH.getBytes());
+        }
+
+        final BackupMetadata backup = new BackupMetadata(SERVICE, "127.0.0.1", NODE);
+        backup.setState(BackupMetadata.State.RECEIVING, "test");
+        backup.addChunk("file", PATH, PATH.length(), PATH.length(), "hash", NODE, CompressionCodec.NONE);
+        backup.setState(BackupMetadata.State.FINISHED, "test");
+        backup.addLocation(Location.LOCAL);
+
+        final BackupProcessor backupProcessor = mock(BackupProcessor.class);
+        when(backupProcessor.listServices()).thenReturn(ImmutableSet.of(SERVICE));
+        when(backupProcessor.listMetadata(SERVICE)).thenReturn(ImmutableSet.of(backup));
+
+        // Every chunk is old enough to demote, unless it has been read recently
+        final TieringConfiguration configuration = mock(TieringConfiguration.class);
+        when(configuration.getDemoteAfter()).thenReturn(Duration.seconds(0));
+        when(configuration.getAccessWindow()).thenReturn(ACCESS_WINDOW);
+        when(configuration.getMinAccesses()).thenReturn(1);
+
+        processor = new TierMigrationProcessor(fileStorage, backupProcessor, null, configuration, NODE, new MetricRegistry());
+    }
+
+    @Test
+    public void testNothingIsDemotedUntilAWholeWindowIsCounted() throws IOException {
+        processor.execute();
+        assertTrue(hot.exists(SERVICE, PATH));
+
+        nanos.addAndGet(TimeUnit.HOURS.toNanos(1));
+        processor.execute();
+        assertFalse(hot.exists(SERVICE, PATH));
+        assertTrue(cold.exists(SERVICE, PATH));
+    }
+
+    @Test
+    public void testRecentlyReadChunksStayHot() throws IOException {
+        nanos.addAndGet(TimeUnit.HOURS.toNanos(1));
+        fileStorage.download(SERVICE, PATH).close();
+
+        processor.execute();
+        assertTrue(hot.exists(SERVICE, PATH));
+    }
+}
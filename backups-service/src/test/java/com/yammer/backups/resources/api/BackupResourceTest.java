@@ -30,6 +30,7 @@ import com.sun.jersey.api.client.GenericType;
 import com.yammer.backups.AbstractBackupServiceResourceTest;
 import com.yammer.backups.api.ClientPermission;
 import com.yammer.backups.api.CompressionCodec;
+import com.yammer.backups.api.Location;
 import com.yammer.backups.api.Node;
 import com.yammer.backups.api.metadata.BackupMetadata;
 import com.yammer.backups.auth.TemporaryTokenGenerator;
@@ -41,6 +42,7 @@ import com.yammer.backups.error.InvalidMD5Exception;
 import com.yammer.backups.error.MetadataNotFoundException;
 import com.yammer.backups.error.NoContentException;
 import com.yammer.backups.processor.BackupProcessor;
+import com.yammer.backups.processor.ServiceRegistry;
 import com.yammer.backups.provider.BackupMetadataProvider;
 import com.yammer.backups.storage.metadata.MetadataStorage;
 import io.dropwizard.testing.junit.ResourceTestRule;
@@ -55,6 +57,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.UUID;
 
 import static org.junit.Assert.*;
@@ -78,6 +81,7 @@ public class BackupResourceTest extends AbstractBackupServiceResourceTest {
     private BackupProcessor processor;
     private MetadataStorage<ClientPermission> clientPermissionStorage;
     private MetadataStorage<BackupMetadata> backupStorage;
+    private ServiceRegistry serviceRegistry;
 
     @Override
     @SuppressWarnings("unchecked")
@@ -85,6 +89,8 @@ public class BackupResourceTest extends AbstractBackupServiceResourceTest {
         processor = mock(BackupProcessor.class);
         clientPermissionStorage = mock(MetadataStorage.class);
         backupStorage = mock(MetadataStorage.class);
+        serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getStoreLocations(anyString())).thenReturn(EnumSet.of(Location.LOCAL));
         final MetadataStorage<Node> nodeStorage = mock(MetadataStorage.class);
 
         when(clientPermissionStorage.get(anyString(), anyString()))
@@ -104,7 +110,7 @@ public class BackupResourceTest extends AbstractBackupServiceResourceTest {
         final TemporaryTokenGenerator tokenGenerator = mock(TemporaryTokenGenerator.class);
         return super.setUpResources(builder)
                 .addProvider(new TokenAuthProvider<>(new TokenAuthenticator(clientPermissionStorage, tokenGenerator)))
-                .addResource(new BackupResource(processor, clientPermissionStorage, LOCAL_NODE))
+                .addResource(new BackupResource(processor, clientPermissionStorage, serviceRegistry, LOCAL_NODE))
                 .addProvider(new BackupMetadataProvider(backupStorage))
                 .addProvider(new IncorrectNodeExceptionMapper(nodeStorage));
     }
@@ -139,7 +145,7 @@ public class BackupResourceTest extends AbstractBackupServiceResourceTest {
 
     @Test
     public void testCreateBackup() {
-        when(processor.create(anyString(), anyString())).thenAnswer(new Answer<BackupMetadata>() {
+        when(processor.create(anyString(), anyString(), any(EnumSet.class))).thenAnswer(new Answer<BackupMetadata>() {
             @Override
             public BackupMetadata answer(InvocationOnMock invocation) throws Throwable {
                 final String serviceName = (String) invocation.getArguments()[0];
@@ -157,7 +163,33 @@ public class BackupResourceTest extends AbstractBackupServiceResourceTest {
 
             final String backupId = response.getEntity(String.class);
             assertNotNull(backupId);
-            verify(processor, times(1)).create(eq(SERVICE_NAME), eq(SOURCE_ADDRESS));
+            verify(processor, times(1)).create(eq(SERVICE_NAME), eq(SOURCE_ADDRESS), eq(EnumSet.of(Location.LOCAL)));
+        }
+        finally {
+            response.close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCreateDirectOffsiteBackup() {
+        when(serviceRegistry.getStoreLocations(eq(SERVICE_NAME))).thenReturn(EnumSet.of(Location.OFFSITE));
+        when(processor.create(anyString(), anyString(), any(EnumSet.class))).thenAnswer(new Answer<BackupMetadata>() {
+            @Override
+            public BackupMetadata answer(InvocationOnMock invocation) throws Throwable {
+                final String serviceName = (String) invocation.getArguments()[0];
+                final String remoteAddr = (String) invocation.getArguments()[1];
+                return new BackupMetadata(serviceName, remoteAddr, LOCAL_NODE, (EnumSet<Location>) invocation.getArguments()[2]);
+            }
+        });
+
+        final ClientResponse response = resources.client()
+            .resource(API_SERVICE_PATH)
+            .header(HttpHeaders.AUTHORIZATION, TOKEN_AUTH_HEADER)
+            .post(ClientResponse.class);
+        try {
+            assertEquals(ClientResponse.Status.OK, response.getStatusInfo());
+            verify(processor, times(1)).create(eq(SERVICE_NAME), eq(SOURCE_ADDRESS), eq(EnumSet.of(Location.OFFSITE)));
         }
         finally {
             response.close();
@@ -664,7 +696,7 @@ public class BackupResourceTest extends AbstractBackupServiceResourceTest {
 
     @Test
     public void testUnauthorizedCreateBackup() {
-        when(processor.create(anyString(), anyString())).thenAnswer(new Answer<BackupMetadata>() {
+        when(processor.create(anyString(), anyString(), any(EnumSet.class))).thenAnswer(new Answer<BackupMetadata>() {
             @Override
             public BackupMetadata answer(InvocationOnMock invocation) throws Throwable {
                 final String serviceName = (String) invocation.getArguments()[0];
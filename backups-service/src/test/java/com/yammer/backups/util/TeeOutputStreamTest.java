@@ -0,0 +1,69 @@
+package com.yammer.backups.util;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.yammer.storage.file.Abortable;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class TeeOutputStreamTest {
+
+    private static OutputStream abortable() {
+        return mock(OutputStream.class, withSettings().extraInterfaces(Abortable.class));
+    }
+
+    @Test
+    public void testClosesTargetsInOrder() throws IOException {
+        final OutputStream first = abortable();
+        final OutputStream second = abortable();
+
+        new TeeOutputStream(first, second).close();
+
+        verify(first).close();
+        verify(second).close();
+        verify((Abortable) second, never()).abort();
+    }
+
+    @Test
+    public void testFailedCloseAbortsLaterTargets() throws IOException {
+        final OutputStream first = abortable();
+        final OutputStream second = abortable();
+        doThrow(new IOException("test")).when(first).close();
+
+        try {
+            new TeeOutputStream(first, second).close();
+            fail("Expected the close to fail");
+        }
+        catch (IOException e) {
+            assertEquals("test", e.getMessage());
+        }
+
+        // The later target is never made durable
+        verify(second, never()).close();
+        verify((Abortable) second).abort();
+    }
+}
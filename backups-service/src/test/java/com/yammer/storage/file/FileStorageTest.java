@@ -20,21 +20,48 @@ package com.yammer.storage.file;
  * #L%
  */
 
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.dropwizard.util.Size;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
 public abstract class FileStorageTest<T extends FileStorage> {
 
+    private static final Logger LOG = LoggerFactory.getLogger(FileStorageTest.class);
+
+    // Kept small so every implementation can afford it, pass eg. -Dfilestorage.throughput.size=1GB to benchmark
+    private static final Size THROUGHPUT_SIZE = Size.parse(System.getProperty("filestorage.throughput.size", "8MB"));
+    private static final int THROUGHPUT_FILES = 8;
+    private static final int THROUGHPUT_THREADS = 4;
+
     private static final byte[] BYTES = "Now this is the story all about how, My life got flipped, turned upside down, And I'd like to take a minute just sit right there, I'll tell you how I became the prince of a town called Bel-air.".getBytes();
 
     protected T storage;
@@ -127,8 +154,134 @@ public abstract class FileStorageTest<T extends FileStorage> {
         this.createFile(namespace, path, BYTES);
     }
 
+    @Test
+    public void testExistsAll() throws IOException {
+        final String other = path + "-other";
+        this.createFile(namespace, path, BYTES);
+
+        assertEquals(ImmutableSet.of(path), storage.existsAll(namespace, ImmutableSet.of(path, other)));
+        assertEquals(ImmutableSet.of(), storage.existsAll(namespace, ImmutableSet.<String>of()));
+    }
+
+    @Test
+    public void testDeleteAll() throws IOException {
+        final String other = path + "-other";
+        final String missing = path + "-missing";
+        this.createFile(namespace, path, BYTES);
+        this.createFile(namespace, other, BYTES);
+
+        assertEquals(ImmutableSet.of(path, other), storage.deleteAll(namespace, ImmutableSet.of(path, other, missing)));
+        assertFalse(storage.exists(namespace, path));
+        assertFalse(storage.exists(namespace, other));
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        final ListeningExecutorService fallback = MoreExecutors.sameThreadExecutor();
+
+        assertFalse(FileStorages.existsAsync(storage, namespace, path, fallback).get());
+        assertEquals(BYTES.length, (long) FileStorages.uploadAsync(storage, namespace, path, ByteSource.wrap(BYTES), fallback).get());
+        assertTrue(FileStorages.existsAsync(storage, namespace, path, fallback).get());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long size = FileStorages.downloadAsync(storage, namespace, path, new ByteSink() {
+            @Override
+            public OutputStream openStream() {
+                return out;
+            }
+        }, fallback).get();
+
+        assertEquals(BYTES.length, size);
+        assertTrue(Arrays.equals(BYTES, out.toByteArray()));
+
+        assertTrue(FileStorages.deleteAsync(storage, namespace, path, fallback).get());
+        assertFalse(FileStorages.existsAsync(storage, namespace, path, fallback).get());
+    }
+
+    @Test
+    public void testList() throws IOException {
+        this.createFile(namespace, path + "-1", BYTES);
+        this.createFile(namespace, path + "-2", BYTES);
+        this.createFile(namespace, "unrelated", BYTES);
+
+        assertEquals(ImmutableSet.of(path + "-1", path + "-2"), storage.list(namespace, path));
+        assertEquals(ImmutableSet.of(), storage.list(namespace, "missing"));
+    }
+
+    @Test
+    public void testChannelTransfers() throws IOException {
+        final long uploaded = FileStorages.transferFrom(Channels.newChannel(new ByteArrayInputStream(BYTES)), storage, namespace, path);
+        assertEquals(BYTES.length, uploaded);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long downloaded = FileStorages.transferTo(storage, namespace, path, Channels.newChannel(out));
+        assertEquals(BYTES.length, downloaded);
+        assertTrue(Arrays.equals(BYTES, out.toByteArray()));
+    }
+
     @Test
     public void testPing() throws IOException {
         assertTrue(storage.ping());
     }
+
+    // Runs the same concurrent upload and download load against every implementation, so numbers are comparable
+    @Test
+    public void testThroughput() throws Exception {
+        final byte[] block = new byte[64 * 1024];
+        new Random(0).nextBytes(block);
+
+        final long blocksPerFile = Math.max(1, THROUGHPUT_SIZE.toBytes() / THROUGHPUT_FILES / block.length);
+        final long fileSize = blocksPerFile * block.length;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THROUGHPUT_THREADS);
+        try {
+            final List<Callable<Long>> uploads = Lists.newArrayList();
+            final List<Callable<Long>> downloads = Lists.newArrayList();
+            for (int i = 0; i < THROUGHPUT_FILES; i++) {
+                final String file = path + "-" + i;
+                uploads.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        try (final OutputStream out = storage.upload(namespace, file)) {
+                            for (int j = 0; j < blocksPerFile; j++) {
+                                out.write(block);
+                            }
+                        }
+
+                        return fileSize;
+                    }
+                });
+
+                downloads.add(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        try (final InputStream in = storage.download(namespace, file)) {
+                            return ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                        }
+                    }
+                });
+            }
+
+            this.runThroughput("upload", executor, uploads, fileSize * THROUGHPUT_FILES);
+            this.runThroughput("download", executor, downloads, fileSize * THROUGHPUT_FILES);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    private void runThroughput(String operation, ExecutorService executor, List<Callable<Long>> tasks, long expectedBytes) throws Exception {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+
+        long bytes = 0;
+        for (final Future<Long> future : executor.invokeAll(tasks)) {
+            bytes += future.get();
+        }
+
+        final long elapsed = Math.max(1, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        assertEquals(expectedBytes, bytes);
+
+        LOG.info("{} {}: {} bytes in {}ms, {} MB/s", storage.getClass().getSimpleName(), operation, bytes, elapsed,
+                String.format("%.1f", bytes * 1000.0 / elapsed / (1024 * 1024)));
+    }
 }
@@ -0,0 +1,559 @@
+package com.yammer.storage.file.azure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HttpHeaders;
+import com.google.common.primitives.Bytes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stands in for the Azure blob service, speaking just the part of the REST API that AzureFileStorage uses
+// (containers, block uploads, ranged reads, block lists, listings and conditional commits), so it can be
+// tested and benchmarked without an Azure account. Requests aren't authenticated.
+public class BlobServiceEmulator {
+
+    // The development storage account, its key is public
+    public static final String ACCOUNT_NAME = "devstoreaccount1";
+    public static final String ACCOUNT_KEY = "Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final int MAX_COMMITTED_BLOCKS = 50_000;
+
+    private final Server server = new Server(0);
+    private final ConcurrentMap<String, Container> containers = Maps.newConcurrentMap();
+    private final AtomicLong etags = new AtomicLong();
+
+    private volatile int maxCommittedBlocks = MAX_COMMITTED_BLOCKS;
+
+    public BlobServiceEmulator() {
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                BlobServiceEmulator.this.handle(target, request, response);
+            }
+        });
+    }
+
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void start() throws Exception {
+        server.start();
+    }
+
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    // Lowered by tests that need to reach the limit on committed blocks
+    public void setMaxCommittedBlocks(int maxCommittedBlocks) {
+        this.maxCommittedBlocks = maxCommittedBlocks;
+    }
+
+    public String getEndpoint() {
+        return String.format("http://127.0.0.1:%d/%s", ((ServerConnector) server.getConnectors()[0]).getLocalPort(), ACCOUNT_NAME);
+    }
+
+    public AzureFileStorageConfiguration getConfiguration() {
+        final AzureFileStorageConfiguration configuration = new AzureFileStorageConfiguration(ACCOUNT_NAME, ACCOUNT_KEY);
+        configuration.setBlobEndpoint(this.getEndpoint());
+        configuration.setTableEndpoint(this.getEndpoint());
+        return configuration;
+    }
+
+    private static String formatDate(Date date) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(date);
+    }
+
+    private static void sendError(HttpServletResponse response, int status, String code) throws IOException {
+        response.setStatus(status);
+        response.setHeader("x-ms-error-code", code);
+        sendXml(response, "<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+    }
+
+    private static void sendXml(HttpServletResponse response, String xml) throws IOException {
+        final byte[] body = ("<?xml version=\"1.0\" encoding=\"utf-8\"?>" + xml).getBytes(Charsets.UTF_8);
+        response.setContentType("application/xml");
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private void handle(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader("x-ms-request-id", Long.toString(etags.incrementAndGet()));
+        response.setHeader("x-ms-version", "2012-02-12");
+        response.setHeader(HttpHeaders.DATE, formatDate(new Date()));
+
+        // Paths look like /account/container/blob, and the blob name may contain slashes
+        final String[] parts = target.split("/", 4);
+        final String containerName = parts.length > 2 ? parts[2] : "";
+        final String blobName = parts.length > 3 ? parts[3] : "";
+
+        try {
+            if (containerName.isEmpty()) {
+                this.handleService(request, response);
+            }
+            else if (blobName.isEmpty()) {
+                this.handleContainer(containerName, request, response);
+            }
+            else {
+                final Container container = containers.get(containerName);
+                if (container == null) {
+                    sendError(response, HttpServletResponse.SC_NOT_FOUND, "ContainerNotFound");
+                    return;
+                }
+
+                this.handleBlob(container, blobName, request, response);
+            }
+        }
+        catch (RuntimeException e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "InvalidInput");
+        }
+    }
+
+    private void handleService(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if ("GET".equals(request.getMethod()) && "properties".equals(request.getParameter("comp"))) {
+            sendXml(response, "<StorageServiceProperties>" +
+                    "<Logging><Version>1.0</Version><Delete>false</Delete><Read>false</Read><Write>false</Write>" +
+                    "<RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></Logging>" +
+                    "<Metrics><Version>1.0</Version><Enabled>false</Enabled>" +
+                    "<RetentionPolicy><Enabled>false</Enabled></RetentionPolicy></Metrics>" +
+                    "</StorageServiceProperties>");
+            return;
+        }
+
+        sendError(response, HttpServletResponse.SC_NOT_FOUND, "ResourceNotFound");
+    }
+
+    private void handleContainer(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!"container".equals(request.getParameter("restype"))) {
+            // Anything else, table requests included, is for something we don't emulate
+            sendError(response, HttpServletResponse.SC_NOT_FOUND, "ResourceNotFound");
+            return;
+        }
+
+        switch (request.getMethod()) {
+            case "PUT":
+                if (containers.putIfAbsent(name, new Container(this.nextEtag())) != null) {
+                    sendError(response, HttpServletResponse.SC_CONFLICT, "ContainerAlreadyExists");
+                    return;
+                }
+
+                this.sendCreated(response, containers.get(name).etag, new Date());
+                return;
+
+            case "DELETE":
+                if (containers.remove(name) == null) {
+                    sendError(response, HttpServletResponse.SC_NOT_FOUND, "ContainerNotFound");
+                    return;
+                }
+
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                return;
+
+            case "GET":
+            case "HEAD":
+                final Container container = containers.get(name);
+                if (container == null) {
+                    sendError(response, HttpServletResponse.SC_NOT_FOUND, "ContainerNotFound");
+                    return;
+                }
+
+                if ("list".equals(request.getParameter("comp"))) {
+                    this.listBlobs(name, container, request, response);
+                    return;
+                }
+
+                response.setHeader(HttpHeaders.ETAG, container.etag);
+                response.setHeader(HttpHeaders.LAST_MODIFIED, formatDate(new Date()));
+                response.setStatus(HttpServletResponse.SC_OK);
+                return;
+
+            default:
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "UnsupportedHttpVerb");
+        }
+    }
+
+    private void listBlobs(String containerName, Container container, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final String prefix = request.getParameter("prefix") == null ? "" : request.getParameter("prefix");
+        final String marker = request.getParameter("marker");
+        final int maxResults = request.getParameter("maxresults") == null ? 5000 : Integer.parseInt(request.getParameter("maxresults"));
+
+        final NavigableMap<String, Blob> candidates = marker == null ? container.blobs : container.blobs.tailMap(marker, true);
+        final StringBuilder xml = new StringBuilder();
+        xml.append("<EnumerationResults ContainerName=\"").append(this.getEndpoint()).append('/').append(containerName).append("\">");
+        xml.append("<Prefix>").append(escape(prefix)).append("</Prefix><MaxResults>").append(maxResults).append("</MaxResults><Blobs>");
+
+        String nextMarker = "";
+        int count = 0;
+        for (Map.Entry<String, Blob> entry : candidates.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+
+            if (count == maxResults) {
+                nextMarker = entry.getKey();
+                break;
+            }
+
+            final Blob blob = entry.getValue();
+            xml.append("<Blob><Name>").append(escape(entry.getKey())).append("</Name>")
+                    .append("<Url>").append(this.getEndpoint()).append('/').append(containerName).append('/').append(escape(entry.getKey())).append("</Url>")
+                    .append("<Properties>")
+                    .append("<Last-Modified>").append(formatDate(blob.lastModified)).append("</Last-Modified>")
+                    .append("<Etag>").append(blob.etag).append("</Etag>")
+                    .append("<Content-Length>").append(blob.content.length).append("</Content-Length>")
+                    .append("<Content-Type>application/octet-stream</Content-Type>")
+                    .append("<BlobType>BlockBlob</BlobType>")
+                    .append("<LeaseStatus>unlocked</LeaseStatus>")
+                    .append("</Properties></Blob>");
+            count++;
+        }
+
+        xml.append("</Blobs><NextMarker>").append(escape(nextMarker)).append("</NextMarker></EnumerationResults>");
+        sendXml(response, xml.toString());
+    }
+
+    private void handleBlob(Container container, String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final Blob blob = container.blobs.get(name);
+        final String comp = request.getParameter("comp");
+
+        switch (request.getMethod()) {
+            case "PUT":
+                if ("block".equals(comp)) {
+                    final byte[] data = ByteStreams.toByteArray(request.getInputStream());
+                    container.getUncommittedBlocks(name).put(request.getParameter("blockid"), data);
+                    response.setStatus(HttpServletResponse.SC_CREATED);
+                    return;
+                }
+
+                if ("blocklist".equals(comp)) {
+                    // Checking the conditions and committing mustn't interleave with another write to the blob
+                    synchronized (container.getLock(name)) {
+                        final Blob existing = container.blobs.get(name);
+                        if (!this.checkConditions(existing, request, response)) {
+                            return;
+                        }
+
+                        this.commitBlockList(container, name, existing, request, response);
+                    }
+                    return;
+                }
+
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "UnsupportedQueryParameter");
+                return;
+
+            case "DELETE":
+                synchronized (container.getLock(name)) {
+                    if (container.blobs.remove(name) == null) {
+                        sendError(response, HttpServletResponse.SC_NOT_FOUND, "BlobNotFound");
+                        return;
+                    }
+
+                    container.uncommittedBlocks.remove(name);
+                }
+
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                return;
+
+            case "HEAD":
+                if (blob == null) {
+                    response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+
+                if (!this.checkConditions(blob, request, response)) {
+                    return;
+                }
+
+                this.setBlobHeaders(response, blob);
+                response.setHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(blob.content.length));
+                response.setStatus(HttpServletResponse.SC_OK);
+                return;
+
+            case "GET":
+                if (blob == null) {
+                    sendError(response, HttpServletResponse.SC_NOT_FOUND, "BlobNotFound");
+                    return;
+                }
+
+                if (!this.checkConditions(blob, request, response)) {
+                    return;
+                }
+
+                if ("blocklist".equals(comp)) {
+                    this.sendBlockList(blob, response);
+                    return;
+                }
+
+                this.sendContent(blob, request, response);
+                return;
+
+            default:
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "UnsupportedHttpVerb");
+        }
+    }
+
+    private boolean checkConditions(Blob blob, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+
+        final boolean met = (ifMatch == null || (blob != null && (ifMatch.equals("*") || ifMatch.equals(blob.etag))))
+                && (ifNoneMatch == null || blob == null || !(ifNoneMatch.equals("*") || ifNoneMatch.equals(blob.etag)));
+
+        if (!met) {
+            if ("HEAD".equals(request.getMethod())) {
+                response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+            }
+            else {
+                sendError(response, HttpServletResponse.SC_PRECONDITION_FAILED, "ConditionNotMet");
+            }
+        }
+
+        return met;
+    }
+
+    private void commitBlockList(Container container, String name, Blob existing, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(request.getInputStream());
+        }
+        catch (Exception e) {
+            sendError(response, HttpServletResponse.SC_BAD_REQUEST, "InvalidXmlDocument");
+            return;
+        }
+
+        final Map<String, byte[]> uncommitted = container.getUncommittedBlocks(name);
+        final Map<String, byte[]> committed = Maps.newHashMap();
+        if (existing != null) {
+            for (Block block : existing.blocks) {
+                committed.put(block.id, block.data);
+            }
+        }
+
+        final List<Block> blocks = Lists.newArrayList();
+        final NodeList entries = document.getDocumentElement().getChildNodes();
+        for (int i = 0; i < entries.getLength(); i++) {
+            final Node entry = entries.item(i);
+            if (!(entry instanceof Element)) {
+                continue;
+            }
+
+            final String id = entry.getTextContent();
+            final String mode = entry.getNodeName();
+
+            byte[] data = null;
+            if (!mode.equals("Committed")) {
+                data = uncommitted.get(id);
+            }
+
+            if (data == null && !mode.equals("Uncommitted")) {
+                data = committed.get(id);
+            }
+
+            if (data == null) {
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "InvalidBlockList");
+                return;
+            }
+
+            blocks.add(new Block(id, data));
+        }
+
+        if (blocks.size() > maxCommittedBlocks) {
+            sendError(response, HttpServletResponse.SC_CONFLICT, "BlockCountExceedsLimit");
+            return;
+        }
+
+        final Blob blob = new Blob(blocks, this.nextEtag());
+        container.blobs.put(name, blob);
+        container.uncommittedBlocks.remove(name);
+
+        this.sendCreated(response, blob.etag, blob.lastModified);
+    }
+
+    private void sendBlockList(Blob blob, HttpServletResponse response) throws IOException {
+        final StringBuilder xml = new StringBuilder("<BlockList><CommittedBlocks>");
+        for (Block block : blob.blocks) {
+            xml.append("<Block><Name>").append(block.id).append("</Name><Size>").append(block.data.length).append("</Size></Block>");
+        }
+
+        xml.append("</CommittedBlocks><UncommittedBlocks></UncommittedBlocks></BlockList>");
+
+        response.setHeader(HttpHeaders.ETAG, blob.etag);
+        response.setHeader(HttpHeaders.LAST_MODIFIED, formatDate(blob.lastModified));
+        response.setHeader("x-ms-blob-content-length", Integer.toString(blob.content.length));
+        sendXml(response, xml.toString());
+    }
+
+    private void sendContent(Blob blob, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        this.setBlobHeaders(response, blob);
+
+        String range = request.getHeader("x-ms-range");
+        if (range == null) {
+            range = request.getHeader(HttpHeaders.RANGE);
+        }
+
+        int start = 0;
+        int end = blob.content.length - 1;
+        if (range != null) {
+            final Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches()) {
+                sendError(response, HttpServletResponse.SC_BAD_REQUEST, "InvalidRange");
+                return;
+            }
+
+            start = Integer.parseInt(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                end = Math.min(end, Integer.parseInt(matcher.group(2)));
+            }
+
+            if (start >= blob.content.length) {
+                sendError(response, 416, "InvalidRange");
+                return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, blob.content.length));
+        }
+        else {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+
+        final int length = end - start + 1;
+        response.setContentLength(length);
+        response.getOutputStream().write(blob.content, start, length);
+    }
+
+    private void setBlobHeaders(HttpServletResponse response, Blob blob) {
+        response.setHeader(HttpHeaders.ETAG, blob.etag);
+        response.setHeader(HttpHeaders.LAST_MODIFIED, formatDate(blob.lastModified));
+        response.setHeader("x-ms-blob-type", "BlockBlob");
+        response.setHeader("x-ms-lease-status", "unlocked");
+        response.setContentType("application/octet-stream");
+    }
+
+    private void sendCreated(HttpServletResponse response, String etag, Date lastModified) {
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setHeader(HttpHeaders.LAST_MODIFIED, formatDate(lastModified));
+        response.setStatus(HttpServletResponse.SC_CREATED);
+    }
+
+    private String nextEtag() {
+        return String.format("\"0x%016X\"", etags.incrementAndGet());
+    }
+
+    // Blobs are immutable once committed, so only writes to the same blob need to be serialized
+    private static class Container {
+        private final String etag;
+        private final NavigableMap<String, Blob> blobs = new ConcurrentSkipListMap<>();
+        private final ConcurrentMap<String, Map<String, byte[]>> uncommittedBlocks = Maps.newConcurrentMap();
+        private final LoadingCache<String, Object> locks = CacheBuilder.newBuilder().weakValues().build(new CacheLoader<String, Object>() {
+            @Override
+            public Object load(String name) {
+                return new Object();
+            }
+        });
+
+        private Container(String etag) {
+            this.etag = etag;
+        }
+
+        private Object getLock(String name) {
+            return locks.getUnchecked(name);
+        }
+
+        private Map<String, byte[]> getUncommittedBlocks(String name) {
+            final Map<String, byte[]> blocks = uncommittedBlocks.get(name);
+            if (blocks != null) {
+                return blocks;
+            }
+
+            final Map<String, byte[]> created = Maps.newConcurrentMap();
+            final Map<String, byte[]> existing = uncommittedBlocks.putIfAbsent(name, created);
+            return existing == null ? created : existing;
+        }
+    }
+
+    private static class Blob {
+        private final List<Block> blocks;
+        private final byte[] content;
+        private final String etag;
+        private final Date lastModified = new Date();
+
+        private Blob(List<Block> blocks, String etag) {
+            this.blocks = ImmutableList.copyOf(blocks);
+            this.etag = etag;
+
+            final List<byte[]> parts = Lists.newArrayList();
+            for (Block block : blocks) {
+                parts.add(block.data);
+            }
+
+            content = Bytes.concat(parts.toArray(new byte[parts.size()][]));
+        }
+    }
+
+    private static class Block {
+        private final String id;
+        private final byte[] data;
+
+        private Block(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+}
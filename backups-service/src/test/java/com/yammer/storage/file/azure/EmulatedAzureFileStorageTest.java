@@ -0,0 +1,167 @@
+package com.yammer.storage.file.azure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.yammer.storage.file.FileStorageTest;
+import io.dropwizard.util.Size;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Runs AzureFileStorage against the emulated blob service, with small blocks and ranges so streams span several
+public class EmulatedAzureFileStorageTest extends FileStorageTest<AzureFileStorage> {
+
+    private static final BlobServiceEmulator EMULATOR = new BlobServiceEmulator();
+
+    @BeforeClass
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public static void startEmulator() throws Exception {
+        EMULATOR.start();
+    }
+
+    @AfterClass
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public static void stopEmulator() throws Exception {
+        EMULATOR.stop();
+    }
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+
+    @Override
+    protected AzureFileStorage getFileStorage() throws URISyntaxException, InvalidKeyException {
+        final AzureFileStorageConfiguration configuration = EMULATOR.getConfiguration();
+        configuration.setUploadBlockSize(Size.kilobytes(64));
+        configuration.setDownloadRangeSize(Size.kilobytes(64));
+
+        return new AzureFileStorage(configuration, "test", metricRegistry);
+    }
+
+    @Test
+    public void testAppendConsolidatesBeforeBlockLimit() throws Exception {
+        EMULATOR.setMaxCommittedBlocks(8);
+        storage.setMaxCommittedBlocks(8);
+
+        try {
+            final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            for (int i = 0; i < 20; i++) {
+                final byte[] line = String.format("line %d%n", i).getBytes(Charsets.UTF_8);
+                expected.write(line);
+
+                try (final OutputStream out = storage.append(namespace, path)) {
+                    out.write(line);
+                }
+            }
+
+            try (final InputStream in = storage.download(namespace, path)) {
+                assertArrayEquals(expected.toByteArray(), ByteStreams.toByteArray(in));
+            }
+        }
+        finally {
+            EMULATOR.setMaxCommittedBlocks(50_000);
+        }
+    }
+
+    @Test
+    public void testDownloadFromOffsetOfSameVersion() throws Exception {
+        final byte[] content = new byte[(int) Size.kilobytes(200).toBytes()];
+        new Random().nextBytes(content);
+
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(content);
+        }
+
+        final Optional<String> version = storage.getVersion(namespace, path);
+        assertTrue(version.isPresent());
+
+        final int offset = (int) Size.kilobytes(100).toBytes() + 7;
+        try (final InputStream in = storage.download(namespace, path, offset, version)) {
+            assertArrayEquals(Arrays.copyOfRange(content, offset, content.length), ByteStreams.toByteArray(in));
+        }
+    }
+
+    // Callers tell a missing file apart from a failing storage, neither retrying it nor blaming the replica
+    @Test(expected = FileNotFoundException.class)
+    public void testDownloadOfMissingFileIsNotFound() throws Exception {
+        storage.download(namespace, path).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testDownloadOfChangedVersionFails() throws Exception {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(1);
+        }
+
+        final Optional<String> version = storage.getVersion(namespace, path);
+
+        storage.delete(namespace, path);
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(2);
+        }
+
+        storage.download(namespace, path, 0, version).close();
+    }
+
+    @Test
+    public void testRangesInFlightDrainAfterSkipAndClose() throws Exception {
+        final byte[] content = new byte[(int) Size.megabytes(1).toBytes()];
+        new Random().nextBytes(content);
+
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(content);
+        }
+
+        final InputStream in = storage.download(namespace, path);
+        assertEquals(content[0] & 0xff, in.read());
+
+        // Drops the ranges read ahead, some of which never start
+        assertEquals(content.length / 2, in.skip(content.length / 2));
+        assertEquals(content[content.length / 2 + 1] & 0xff, in.read());
+
+        in.close();
+        assertEquals(0, in.available());
+
+        final Counter inFlight = metricRegistry.counter("azure-download-ranges-in-flight");
+        for (int i = 0; i < 100 && inFlight.getCount() != 0; i++) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, inFlight.getCount());
+    }
+}
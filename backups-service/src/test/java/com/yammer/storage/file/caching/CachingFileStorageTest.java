@@ -0,0 +1,276 @@
+package com.yammer.storage.file.caching;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import io.dropwizard.util.Size;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CachingFileStorageTest extends FileStorageTest<CachingFileStorage> {
+
+    private static final int FILE_SIZE = 1024;
+
+    private FileStorage delegate;
+    private FileStorage cache;
+    private MetricRegistry registry;
+
+    @Override
+    protected CachingFileStorage getFileStorage() {
+        return this.createStorage(Size.megabytes(32), EvictionPolicy.LRU);
+    }
+
+    private CachingFileStorage createStorage(Size maxSize, EvictionPolicy policy) {
+        delegate = spy(new InMemoryFileStorage(Size.megabytes(128)));
+        cache = new InMemoryFileStorage(Size.megabytes(128));
+        registry = new MetricRegistry();
+
+        return new CachingFileStorage("test", delegate, cache, maxSize, policy, MoreExecutors.sameThreadExecutor(), registry);
+    }
+
+    private void write(String path) throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(new byte[FILE_SIZE]);
+        }
+    }
+
+    private byte[] read(String path) throws IOException {
+        try (final InputStream in = storage.download(namespace, path)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testRepeatedReadsHitCache() throws IOException {
+        this.write(path);
+
+        assertTrue(Arrays.equals(new byte[FILE_SIZE], this.read(path)));
+        assertTrue(Arrays.equals(new byte[FILE_SIZE], this.read(path)));
+
+        verify(delegate, times(1)).download(namespace, path);
+        assertEquals(1, registry.meter("test-hits").getCount());
+        assertEquals(1, registry.meter("test-misses").getCount());
+        assertEquals(FILE_SIZE, storage.getCachedBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyReadIsEvicted() throws Exception {
+        storage.stop();
+        storage = this.createStorage(Size.bytes(FILE_SIZE * 3), EvictionPolicy.LRU);
+        storage.start();
+
+        for (String name : Arrays.asList("a", "b", "c", "d")) {
+            this.write(name);
+        }
+
+        for (String name : Arrays.asList("a", "b", "c", "a", "d")) {
+            this.read(name);
+        }
+
+        assertTrue(storage.isCached(namespace, "a"));
+        assertFalse(storage.isCached(namespace, "b"));
+        assertTrue(storage.isCached(namespace, "c"));
+        assertTrue(storage.isCached(namespace, "d"));
+        assertEquals(1, registry.meter("test-evictions").getCount());
+        assertEquals(FILE_SIZE * 3, storage.getCachedBytes());
+    }
+
+    @Test
+    public void testLeastOftenReadIsEvicted() throws Exception {
+        storage.stop();
+        storage = this.createStorage(Size.bytes(FILE_SIZE * 3), EvictionPolicy.LFU);
+        storage.start();
+
+        for (String name : Arrays.asList("a", "b", "c", "d")) {
+            this.write(name);
+        }
+
+        for (String name : Arrays.asList("a", "a", "a", "c", "c", "b", "d")) {
+            this.read(name);
+        }
+
+        assertTrue(storage.isCached(namespace, "a"));
+        assertFalse(storage.isCached(namespace, "b"));
+        assertTrue(storage.isCached(namespace, "c"));
+        assertTrue(storage.isCached(namespace, "d"));
+    }
+
+    @Test
+    public void testFilesLargerThanBudgetAreNotCached() throws Exception {
+        storage.stop();
+        storage = this.createStorage(Size.bytes(FILE_SIZE / 2), EvictionPolicy.LRU);
+        storage.start();
+
+        this.write(path);
+
+        assertEquals(FILE_SIZE, this.read(path).length);
+        assertFalse(storage.isCached(namespace, path));
+        assertEquals(0, storage.getCachedBytes());
+
+        // Given up on part way through the first read, without downloading again
+        verify(delegate, times(1)).download(namespace, path);
+        assertTrue(cache.list("cache", "").isEmpty());
+    }
+
+    @Test
+    public void testFilesLargerThanBudgetEvictNothing() throws Exception {
+        storage.stop();
+        storage = this.createStorage(Size.bytes(FILE_SIZE * 2), EvictionPolicy.LRU);
+        storage.start();
+
+        this.write(path);
+        this.read(path);
+
+        try (final OutputStream out = storage.upload(namespace, "big")) {
+            out.write(new byte[FILE_SIZE * 3]);
+        }
+
+        assertEquals(FILE_SIZE * 3, this.read("big").length);
+        assertFalse(storage.isCached(namespace, "big"));
+        assertTrue(storage.isCached(namespace, path));
+        assertEquals(0, registry.meter("test-evictions").getCount());
+        assertEquals(FILE_SIZE, storage.getCachedBytes());
+    }
+
+    @Test
+    public void testAsyncDownloadsFillCache() throws Exception {
+        assertEquals(FileStorages.isAsync(delegate), storage.isAsync());
+        this.write(path);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(FILE_SIZE, (long) storage.downloadAsync(namespace, path, new ByteSink() {
+            @Override
+            public OutputStream openStream() {
+                return out;
+            }
+        }).get());
+
+        assertEquals(FILE_SIZE, out.size());
+        assertTrue(storage.isCached(namespace, path));
+    }
+
+    @Test
+    public void testFirstReaderIsStreamedWhileFilling() throws IOException {
+        this.write(path);
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            assertEquals(0, in.read());
+            assertFalse(storage.isCached(namespace, path));
+            ByteStreams.toByteArray(in);
+        }
+
+        assertTrue(storage.isCached(namespace, path));
+        assertEquals(FILE_SIZE, storage.getCachedBytes());
+    }
+
+    @Test
+    public void testReaderStoppingEarlyCachesNothing() throws IOException {
+        this.write(path);
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            ByteStreams.readFully(in, new byte[FILE_SIZE / 2]);
+        }
+
+        assertFalse(storage.isCached(namespace, path));
+        assertEquals(0, storage.getCachedBytes());
+        assertTrue(cache.list("cache", "").isEmpty());
+
+        assertEquals(FILE_SIZE, this.read(path).length);
+        assertTrue(storage.isCached(namespace, path));
+    }
+
+    @Test
+    public void testDeleteInvalidatesCache() throws IOException {
+        this.write(path);
+        this.read(path);
+        assertTrue(storage.isCached(namespace, path));
+
+        storage.delete(namespace, path);
+        assertFalse(storage.isCached(namespace, path));
+        assertEquals(0, storage.getCachedBytes());
+    }
+
+    @Test
+    public void testConcurrentReadsShareFetch() throws Exception {
+        final int readers = 4;
+        this.write(path);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<InputStream>() {
+            @Override
+            public InputStream answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return (InputStream) invocation.callRealMethod();
+            }
+        }).when(delegate).download(namespace, path);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            final List<Future<byte[]>> reads = Lists.newArrayList();
+            for (int i = 0;i < readers;i++) {
+                reads.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return CachingFileStorageTest.this.read(path);
+                    }
+                }));
+            }
+
+            while (registry.meter("test-shared-fetches").getCount() < readers - 1) {
+                Thread.sleep(10);
+            }
+
+            release.countDown();
+            for (Future<byte[]> read : reads) {
+                assertEquals(FILE_SIZE, read.get().length);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        verify(delegate, times(1)).download(namespace, path);
+    }
+}
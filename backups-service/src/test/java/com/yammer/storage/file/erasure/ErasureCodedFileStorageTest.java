@@ -0,0 +1,174 @@
+package com.yammer.storage.file.erasure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import io.dropwizard.util.Size;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ErasureCodedFileStorageTest extends FileStorageTest<ErasureCodedFileStorage> {
+
+    private static final int DATA_SHARDS = 4;
+    private static final int PARITY_SHARDS = 2;
+    private static final Size UNIT_SIZE = Size.kilobytes(1);
+
+    private List<FileStorage> shards;
+
+    @Override
+    protected ErasureCodedFileStorage getFileStorage() {
+        shards = Lists.newArrayList();
+        for (int i = 0;i < DATA_SHARDS + PARITY_SHARDS;i++) {
+            shards.add(new InMemoryFileStorage(Size.megabytes(64)));
+        }
+
+        return this.createStorage(shards);
+    }
+
+    private ErasureCodedFileStorage createStorage(List<FileStorage> shards) {
+        return new ErasureCodedFileStorage("test", shards, DATA_SHARDS, PARITY_SHARDS, UNIT_SIZE, new MetricRegistry());
+    }
+
+    // Several stripes with a partial one at the end
+    private byte[] write(FileStorage target) throws IOException {
+        final byte[] content = new byte[(int) UNIT_SIZE.toBytes() * DATA_SHARDS * 3 + 1000];
+        new Random(42).nextBytes(content);
+
+        try (final OutputStream out = target.upload(namespace, path)) {
+            out.write(content);
+        }
+
+        return content;
+    }
+
+    private byte[] read(FileStorage source) throws IOException {
+        try (final InputStream in = source.download(namespace, path)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Override
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAppend() throws IOException {
+        storage.append(namespace, path);
+    }
+
+    @Test
+    public void testShardsAreSpreadOverStorages() throws IOException {
+        this.write(storage);
+
+        for (FileStorage shard : shards) {
+            assertTrue(shard.exists(namespace, path));
+        }
+    }
+
+    @Test
+    public void testReadsSurviveLostShards() throws IOException {
+        final byte[] content = this.write(storage);
+
+        shards.get(0).delete(namespace, path);
+        shards.get(DATA_SHARDS).delete(namespace, path);
+
+        assertTrue(Arrays.equals(content, this.read(storage)));
+        assertTrue(storage.isDegraded(namespace, path));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testReadFailsWithTooManyLostShards() throws IOException {
+        this.write(storage);
+
+        for (int i = 0;i <= PARITY_SHARDS;i++) {
+            shards.get(i).delete(namespace, path);
+        }
+
+        this.read(storage);
+    }
+
+    @Test
+    public void testCorruptShardIsReconstructedAndRepaired() throws IOException {
+        final byte[] content = this.write(storage);
+
+        final FileStorage corrupted = shards.get(1);
+        final byte[] original = this.read(corrupted);
+        final byte[] damaged = original.clone();
+        damaged[damaged.length / 2] ^= 1;
+
+        corrupted.delete(namespace, path);
+        try (final OutputStream out = corrupted.upload(namespace, path)) {
+            out.write(damaged);
+        }
+
+        assertTrue(Arrays.equals(content, this.read(storage)));
+        assertTrue(storage.isDegraded(namespace, path));
+
+        assertTrue(storage.repair(namespace, path));
+        assertFalse(storage.isDegraded(namespace, path));
+        assertTrue(Arrays.equals(original, this.read(corrupted)));
+    }
+
+    @Test
+    public void testRepairRebuildsMissingShards() throws IOException {
+        this.write(storage);
+
+        final byte[] data = this.read(shards.get(2));
+        final byte[] parity = this.read(shards.get(DATA_SHARDS + 1));
+        shards.get(2).delete(namespace, path);
+        shards.get(DATA_SHARDS + 1).delete(namespace, path);
+
+        assertTrue(storage.repair(namespace, path));
+        assertTrue(Arrays.equals(data, this.read(shards.get(2))));
+        assertTrue(Arrays.equals(parity, this.read(shards.get(DATA_SHARDS + 1))));
+        assertFalse(storage.repair(namespace, path));
+    }
+
+    @Test
+    public void testWritesSurviveFailedShard() throws IOException {
+        final FileStorage failing = mock(FileStorage.class);
+        when(failing.upload(anyString(), anyString())).thenThrow(new IOException("disk gone"));
+
+        final List<FileStorage> degradedShards = Lists.newArrayList(shards);
+        degradedShards.set(3, failing);
+
+        final ErasureCodedFileStorage degradedStorage = this.createStorage(ImmutableList.copyOf(degradedShards));
+        final byte[] content = this.write(degradedStorage);
+
+        assertTrue(Arrays.equals(content, this.read(storage)));
+        assertEquals(1, degradedStorage.getReportedDegraded().size());
+    }
+}
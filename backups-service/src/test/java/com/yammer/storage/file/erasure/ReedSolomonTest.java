@@ -0,0 +1,96 @@
+package com.yammer.storage.file.erasure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReedSolomonTest {
+
+    private static final int DATA_SHARDS = 4;
+    private static final int PARITY_SHARDS = 2;
+    private static final int LENGTH = 1024;
+
+    private final ReedSolomon codec = new ReedSolomon(DATA_SHARDS, PARITY_SHARDS);
+
+    private byte[][] encode() {
+        final Random random = new Random(42);
+        final byte[][] shards = new byte[DATA_SHARDS + PARITY_SHARDS][LENGTH];
+        for (int i = 0;i < DATA_SHARDS;i++) {
+            random.nextBytes(shards[i]);
+        }
+
+        codec.encodeParity(shards, LENGTH);
+        return shards;
+    }
+
+    @Test
+    public void testAnyShardsCanBeLost() {
+        final byte[][] original = this.encode();
+
+        for (int first = 0;first < original.length;first++) {
+            for (int second = first + 1;second < original.length;second++) {
+                final byte[][] shards = new byte[original.length][];
+                final boolean[] present = new boolean[original.length];
+                for (int i = 0;i < original.length;i++) {
+                    if (i != first && i != second) {
+                        shards[i] = original[i].clone();
+                        present[i] = true;
+                    }
+                }
+
+                codec.reconstruct(shards, present, LENGTH);
+                for (int i = 0;i < original.length;i++) {
+                    assertTrue(String.format("Shard %d with %d and %d lost", i, first, second), Arrays.equals(original[i], shards[i]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReconstructDataLeavesParity() {
+        final byte[][] original = this.encode();
+        final byte[][] shards = new byte[original.length][];
+        final boolean[] present = new boolean[original.length];
+        for (int i = 1;i < original.length - 1;i++) {
+            shards[i] = original[i].clone();
+            present[i] = true;
+        }
+
+        codec.reconstructData(shards, present, LENGTH);
+
+        assertTrue(Arrays.equals(original[0], shards[0]));
+        assertNull(shards[original.length - 1]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyLostShards() {
+        final byte[][] shards = this.encode();
+        final boolean[] present = new boolean[shards.length];
+        Arrays.fill(present, 0, DATA_SHARDS - 1, true);
+
+        codec.reconstruct(shards, present, LENGTH);
+    }
+}
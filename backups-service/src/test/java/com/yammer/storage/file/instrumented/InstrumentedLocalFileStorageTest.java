@@ -26,17 +26,74 @@ import com.yammer.storage.file.FileStorageTest;
 import com.yammer.storage.file.local.LocalFileStorage;
 import com.yammer.storage.file.local.LocalFileStorageConfiguration;
 import org.junit.Rule;
+import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
 
 public class InstrumentedLocalFileStorageTest extends FileStorageTest<FileStorage> {
 
     @Rule
     public final TemporaryFolder testFolder = new TemporaryFolder();
 
+    private final MetricRegistry registry = new MetricRegistry();
+
     @Override
     protected FileStorage getFileStorage() throws IOException {
-        return new InstrumentedFileStorage("test", new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.getRoot())), new MetricRegistry());
+        return new InstrumentedFileStorage("test", new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.getRoot())), registry);
+    }
+
+    @Test
+    public void testOperationMetrics() throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(new byte[100]);
+        }
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            assertEquals(100, in.read(new byte[200]));
+        }
+
+        try {
+            storage.download(namespace, "missing");
+            fail();
+        }
+        catch (FileNotFoundException e) {
+            // expected
+        }
+
+        assertEquals(1, registry.timer("test-upload").getCount());
+        assertEquals(2, registry.timer("test-download").getCount());
+        assertEquals(100, registry.meter("test-uploaded-bytes").getCount());
+        assertEquals(100, registry.meter("test-downloaded-bytes").getCount());
+        assertEquals(1, registry.counter("test-errors-FileNotFoundException").getCount());
+    }
+
+    @Test
+    public void testStreamsAreTimedUntilClosed() throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(new byte[100]);
+            assertEquals(0, registry.timer("test-upload").getCount());
+        }
+
+        assertEquals(1, registry.timer("test-upload").getCount());
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            assertEquals(100, in.read(new byte[200]));
+            assertEquals(0, registry.timer("test-download").getCount());
+        }
+
+        assertEquals(1, registry.timer("test-download").getCount());
+    }
+
+    @Test
+    public void testCapacityGaugesAreCached() {
+        final Object freeSpace = registry.getGauges().get("test-free-space").getValue();
+        assertNotNull(freeSpace);
+        assertEquals(freeSpace, registry.getGauges().get("test-free-space").getValue());
     }
 }
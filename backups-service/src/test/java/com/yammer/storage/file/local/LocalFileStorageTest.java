@@ -20,15 +20,34 @@ package com.yammer.storage.file.local;
  * #L%
  */
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
+import com.google.common.io.ByteStreams;
 import com.yammer.storage.file.FileStorage;
 import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.FileStorages;
+import io.dropwizard.util.Duration;
+import org.apache.commons.io.FileUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.collect.Lists.newArrayList;
 
 import static org.junit.Assert.*;
 
@@ -42,6 +61,222 @@ public class LocalFileStorageTest extends FileStorageTest<LocalFileStorage> {
         return new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.getRoot()));
     }
 
+    @Test
+    public void testCopyBetweenLocalStorages() throws IOException {
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        Arrays.fill(content, (byte) 42);
+
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(content);
+        }
+
+        final FileStorage target = new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder()));
+        assertEquals(content.length, FileStorages.copy(storage, target, namespace, path));
+
+        try (final InputStream in = target.download(namespace, path)) {
+            assertTrue(Arrays.equals(content, ByteStreams.toByteArray(in)));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testTransferStopsWhereTruncatedFileEnds() throws IOException {
+        final byte[] content = new byte[1024 * 1024];
+        final File file = testFolder.newFile();
+        Files.write(content, file);
+
+        try (final RandomAccessFile source = new RandomAccessFile(file, "rw")) {
+            // Truncated part way through, so the transfer never reaches the size it started with
+            final WritableByteChannel target = new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    source.setLength(100);
+                    final int written = src.remaining();
+                    src.position(src.limit());
+                    return written;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+
+            assertTrue(FileStorages.transfer(source.getChannel(), target) < content.length);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCopyMissingFileLeavesNothingBehind() throws IOException {
+        final FileStorage target = new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder()));
+        try {
+            FileStorages.copy(storage, target, namespace, path);
+        }
+        finally {
+            assertFalse(target.exists(namespace, path));
+        }
+    }
+
+    @Test
+    public void testUploadOnlyVisibleOnceClosed() throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(42);
+
+            assertFalse(storage.exists(namespace, path));
+            assertTrue(storage.list(namespace, "").isEmpty());
+        }
+
+        assertTrue(storage.exists(namespace, path));
+    }
+
+    @Test
+    public void testUploadNeverReplacesFileWrittenMeanwhile() throws IOException {
+        final OutputStream first = storage.upload(namespace, path);
+        first.write(1);
+
+        try (final OutputStream second = storage.upload(namespace, path)) {
+            second.write(2);
+        }
+
+        try {
+            first.close();
+            fail("Expected the upload to fail");
+        }
+        catch (FileAlreadyExistsException e) {
+            // Expected
+        }
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            assertArrayEquals(new byte[] { 2 }, ByteStreams.toByteArray(in));
+        }
+
+        assertEquals(1, new File(testFolder.getRoot(), namespace).list().length);
+    }
+
+    @Test
+    public void testAbortedUploadLeavesNothingBehind() throws IOException {
+        final OutputStream out = storage.upload(namespace, path);
+        out.write(42);
+
+        FileStorages.abort(out);
+        out.close();
+
+        assertFalse(storage.exists(namespace, path));
+        assertEquals(0, new File(testFolder.getRoot(), namespace).list().length);
+    }
+
+    @Test
+    public void testStartDeletesIncompleteUploads() throws Exception {
+        final OutputStream abandoned = storage.upload(namespace, path);
+        abandoned.write(42);
+
+        final File bucket = new File(testFolder.getRoot(), namespace);
+        assertEquals(1, bucket.list().length);
+
+        storage.start();
+        assertEquals(0, bucket.list().length);
+    }
+
+    @Test
+    public void testFileDurability() throws Exception {
+        final LocalFileStorageConfiguration configuration = new LocalFileStorageConfiguration(testFolder.newFolder());
+        configuration.setDurability(DurabilityPolicy.FILE);
+
+        this.testConcurrentUploads(new LocalFileStorage(configuration));
+    }
+
+    @Test
+    public void testGroupDurability() throws Exception {
+        final LocalFileStorageConfiguration configuration = new LocalFileStorageConfiguration(testFolder.newFolder());
+        configuration.setDurability(DurabilityPolicy.GROUP);
+        configuration.setGroupCommitInterval(Duration.milliseconds(5));
+
+        this.testConcurrentUploads(new LocalFileStorage(configuration));
+    }
+
+    private void testConcurrentUploads(final LocalFileStorage durableStorage) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Void>> uploads = newArrayList();
+            for (int i = 0; i < 32; i++) {
+                final String file = path + i;
+                uploads.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (final OutputStream out = durableStorage.upload(namespace, file)) {
+                            out.write(file.getBytes());
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (final Future<Void> upload : uploads) {
+                upload.get();
+            }
+
+            for (int i = 0; i < 32; i++) {
+                try (final InputStream in = durableStorage.download(namespace, path + i)) {
+                    assertTrue(Arrays.equals((path + i).getBytes(), ByteStreams.toByteArray(in)));
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+            durableStorage.stop();
+        }
+    }
+
+    @Test
+    public void testShardedLayout() throws IOException {
+        final LocalFileStorageConfiguration configuration = new LocalFileStorageConfiguration(testFolder.newFolder());
+        configuration.setShardDepth(2);
+
+        final LocalFileStorage shardedStorage = new LocalFileStorage(configuration);
+        try (final OutputStream out = shardedStorage.upload(namespace, path)) {
+            out.write(42);
+        }
+
+        final File bucket = new File(configuration.getRoot(), namespace);
+        assertFalse(new File(bucket, path).exists());
+        assertEquals(1, FileUtils.listFiles(bucket, null, true).size());
+
+        assertTrue(shardedStorage.exists(namespace, path));
+        assertEquals(ImmutableSet.of(path), shardedStorage.list(namespace, ""));
+        assertTrue(shardedStorage.delete(namespace, path));
+        assertFalse(shardedStorage.exists(namespace, path));
+    }
+
+    @Test
+    public void testReadsAndMigratesFlatLayout() throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(42);
+        }
+
+        final LocalFileStorageConfiguration configuration = new LocalFileStorageConfiguration(testFolder.getRoot());
+        configuration.setShardDepth(1);
+
+        final LocalFileStorage shardedStorage = new LocalFileStorage(configuration);
+        assertTrue(shardedStorage.exists(namespace, path));
+        assertEquals(ImmutableSet.of(path), shardedStorage.list(namespace, ""));
+
+        assertEquals(1, shardedStorage.migrate());
+        assertEquals(0, shardedStorage.migrate());
+        assertFalse(new File(new File(testFolder.getRoot(), namespace), path).exists());
+
+        try (final InputStream in = shardedStorage.download(namespace, path)) {
+            assertEquals(42, in.read());
+        }
+
+        // Going back to a flat layout is a migration as well
+        assertEquals(1, storage.migrate());
+        assertTrue(new File(new File(testFolder.getRoot(), namespace), path).exists());
+    }
+
     @Test
     public void testWorksWithExistingDirectory() throws IOException {
         final File root = Files.createTempDir();
@@ -0,0 +1,51 @@
+package com.yammer.storage.file.memory;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.yammer.storage.file.FileStorageTest;
+import io.dropwizard.util.Size;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class InMemoryFileStorageTest extends FileStorageTest<InMemoryFileStorage> {
+
+    @Override
+    protected InMemoryFileStorage getFileStorage() {
+        return new InMemoryFileStorage(Size.megabytes(64));
+    }
+
+    @Test
+    public void testUsedSpaceIsTracked() throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(new byte[1024]);
+        }
+
+        assertEquals(1024, storage.getUsedSpace().toBytes());
+        assertEquals(Size.megabytes(64).toBytes() - 1024, storage.getFreeSpace().toBytes());
+
+        storage.delete(namespace, path);
+        assertEquals(0, storage.getUsedSpace().toBytes());
+    }
+}
@@ -0,0 +1,189 @@
+package com.yammer.storage.file.replicated;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import io.dropwizard.util.Size;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ReplicatedFileStorageTest extends FileStorageTest<ReplicatedFileStorage> {
+
+    private InMemoryFileStorage first;
+    private InMemoryFileStorage second;
+    private InMemoryFileStorage third;
+
+    @Override
+    protected ReplicatedFileStorage getFileStorage() {
+        first = new InMemoryFileStorage(Size.megabytes(16));
+        second = new InMemoryFileStorage(Size.megabytes(16));
+        third = new InMemoryFileStorage(Size.megabytes(16));
+
+        return this.createStorage(first, second, third);
+    }
+
+    private ReplicatedFileStorage createStorage(FileStorage a, FileStorage b, FileStorage c) {
+        return new ReplicatedFileStorage("test", ImmutableMap.of("a", a, "b", b, "c", c), 2,
+                MoreExecutors.sameThreadExecutor(), new MetricRegistry());
+    }
+
+    private static FileStorage failingStorage() throws IOException {
+        final FileStorage storage = mock(FileStorage.class);
+        when(storage.exists(anyString(), anyString())).thenReturn(false);
+        when(storage.upload(anyString(), anyString())).thenThrow(new IOException("unavailable"));
+        when(storage.download(anyString(), anyString())).thenThrow(new IOException("unavailable"));
+        return storage;
+    }
+
+    private void write(FileStorage target, String path) throws IOException {
+        try (final OutputStream out = target.upload(namespace, path)) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+    }
+
+    @Test
+    public void testFilesAreWrittenToEveryReplica() throws IOException {
+        this.write(storage, path);
+
+        assertTrue(first.exists(namespace, path));
+        assertTrue(second.exists(namespace, path));
+        assertTrue(third.exists(namespace, path));
+    }
+
+    @Test
+    public void testWriteSucceedsWithQuorum() throws Exception {
+        final ReplicatedFileStorage replicated = this.createStorage(first, second, failingStorage());
+
+        this.write(replicated, path);
+        assertEquals(3L, (long) replicated.uploadAsync(namespace, path + "-async", ByteSource.wrap(new byte[3])).get());
+
+        assertTrue(first.exists(namespace, path + "-async"));
+        assertTrue(second.exists(namespace, path + "-async"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteFailsWithoutQuorum() throws IOException {
+        this.write(this.createStorage(first, failingStorage(), failingStorage()), path);
+    }
+
+    @Test
+    public void testAsyncWriteFailsWithoutQuorum() throws Exception {
+        final ReplicatedFileStorage replicated = this.createStorage(first, failingStorage(), failingStorage());
+
+        try {
+            replicated.uploadAsync(namespace, path, ByteSource.wrap(new byte[3])).get();
+            fail("Expected the upload to fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testReadsFallBackToReplicaHoldingFile() throws IOException {
+        this.write(third, path);
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            assertEquals(1, in.read());
+        }
+    }
+
+    @Test
+    public void testReadsSkipFailingReplica() throws IOException {
+        this.write(second, path);
+
+        try (final InputStream in = this.createStorage(failingStorage(), second, third).download(namespace, path)) {
+            assertEquals(1, in.read());
+        }
+    }
+
+    @Test
+    public void testUploadCompletesMissingReplicas() throws IOException {
+        this.write(first, path);
+        this.write(storage, path);
+
+        assertTrue(second.exists(namespace, path));
+        assertTrue(third.exists(namespace, path));
+    }
+
+    @Test
+    public void testExistsOnlyOnceQuorumHoldsFile() throws IOException {
+        this.write(first, path);
+        assertFalse(storage.exists(namespace, path));
+        assertTrue(storage.existsAll(namespace, ImmutableSet.of(path)).isEmpty());
+
+        this.write(second, path);
+        assertTrue(storage.exists(namespace, path));
+        assertEquals(ImmutableSet.of(path), storage.existsAll(namespace, ImmutableSet.of(path)));
+    }
+
+    @Test
+    public void testPreexistingCopiesSatisfyQuorum() throws Exception {
+        this.write(first, path);
+        this.write(second, path);
+
+        this.createStorage(first, second, failingStorage()).uploadAsync(namespace, path, ByteSource.wrap(new byte[3])).get();
+    }
+
+    @Test
+    public void testAbortedWriteLeavesNoReplica() throws IOException {
+        final OutputStream out = storage.upload(namespace, path);
+        out.write(new byte[] { 1, 2, 3 });
+        FileStorages.abort(out);
+
+        assertFalse(first.exists(namespace, path));
+        assertFalse(second.exists(namespace, path));
+        assertFalse(third.exists(namespace, path));
+    }
+
+    @Test
+    public void testListenerToldOfEachReplica() throws Exception {
+        final List<String> replicas = Lists.newArrayList();
+        storage.addListener(new ReplicationListener() {
+            @Override
+            public void replicaStored(String replica, String namespace, String path) {
+                replicas.add(replica);
+            }
+        });
+
+        storage.uploadAsync(namespace, path, ByteSource.wrap(new byte[3])).get();
+        assertEquals(Lists.newArrayList("a", "b", "c"), replicas);
+    }
+}
@@ -0,0 +1,189 @@
+package com.yammer.storage.file.resilient;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.ByteStreams;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.ForwardingFileStorage;
+import com.yammer.storage.file.ResumableFileStorage;
+import com.yammer.storage.file.local.LocalFileStorage;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import io.dropwizard.util.Duration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ResilientFileStorageTest extends FileStorageTest<ResilientFileStorage> {
+
+    @Rule
+    public final TemporaryFolder testFolder = new TemporaryFolder();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final FlakyFileStorage flakyStorage = new FlakyFileStorage();
+
+    @Override
+    protected ResilientFileStorage getFileStorage() throws IOException {
+        flakyStorage.delegate = new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.getRoot()));
+
+        final ResilientFileStorageConfiguration configuration = new ResilientFileStorageConfiguration();
+        configuration.setInitialBackoff(Duration.milliseconds(10));
+        configuration.setInitialHedgeDelay(Duration.milliseconds(100));
+
+        return new ResilientFileStorage("test", flakyStorage, configuration, registry);
+    }
+
+    private byte[] createFile(int size) throws IOException {
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) i;
+        }
+
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(content);
+        }
+
+        return content;
+    }
+
+    private byte[] readFile() throws IOException {
+        try (final InputStream in = storage.download(namespace, path)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testDownloadsResumeAfterFailures() throws IOException {
+        final byte[] content = this.createFile(100 * 1024);
+        flakyStorage.failingReads.set(3);
+
+        assertTrue(Arrays.equals(content, this.readFile()));
+        assertEquals(3, registry.meter("test-retries").getCount());
+    }
+
+    // Connections that make progress are resumed for as long as they do, ones that don't are given up on
+    @Test(expected = IOException.class)
+    public void testDownloadsGiveUpEventually() throws IOException {
+        this.createFile(100 * 1024);
+        flakyStorage.failingReads.set(100);
+        flakyStorage.bytesBeforeFailure = 0;
+
+        this.readFile();
+    }
+
+    @Test
+    public void testSlowRequestsAreHedged() throws IOException {
+        final byte[] content = this.createFile(1024);
+        flakyStorage.slowOpens.set(1);
+
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        assertTrue(Arrays.equals(content, this.readFile()));
+        assertTrue(stopwatch.elapsed(TimeUnit.MILLISECONDS) < 2000);
+        assertEquals(1, registry.meter("test-hedged-requests").getCount());
+    }
+
+    @Test
+    public void testDownloadsResumeAtOffsetOfSameVersion() throws IOException {
+        final byte[] content = new byte[20];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+
+        final ResumableFileStorage resumable = mock(ResumableFileStorage.class);
+        when(resumable.getVersion(namespace, path)).thenReturn(Optional.of("v1"));
+        when(resumable.download(namespace, path, 0, Optional.of("v1"))).thenReturn(new SequenceInputStream(
+                new ByteArrayInputStream(content, 0, 10), new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("test");
+                    }
+                }));
+        when(resumable.download(namespace, path, 10, Optional.of("v1"))).thenReturn(new ByteArrayInputStream(content, 10, 10));
+
+        final ResilientFileStorageConfiguration configuration = new ResilientFileStorageConfiguration();
+        configuration.setInitialBackoff(Duration.milliseconds(10));
+
+        try (final InputStream in = new ResilientFileStorage("resumable", resumable, configuration, registry).download(namespace, path)) {
+            assertTrue(Arrays.equals(content, ByteStreams.toByteArray(in)));
+        }
+
+        verify(resumable, never()).download(namespace, path);
+    }
+
+    // Opens can be made to stall, and streams to fail part way through
+    private static class FlakyFileStorage extends ForwardingFileStorage {
+
+        private final AtomicInteger slowOpens = new AtomicInteger();
+        private final AtomicInteger failingReads = new AtomicInteger();
+
+        private FileStorage delegate;
+        private int bytesBeforeFailure = 10 * 1024;
+
+        @Override
+        protected FileStorage delegate() {
+            return delegate;
+        }
+
+        @Override
+        public InputStream download(String namespace, String path) throws IOException {
+            if (slowOpens.getAndDecrement() > 0) {
+                try {
+                    Thread.sleep(5000);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            final boolean fail = failingReads.getAndDecrement() > 0;
+            return new FilterInputStream(delegate.download(namespace, path)) {
+                private int remaining = bytesBeforeFailure;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (fail && remaining <= 0) {
+                        throw new IOException("Connection reset");
+                    }
+
+                    final int read = in.read(b, off, Math.min(len, Math.max(remaining, 1)));
+                    remaining -= Math.max(read, 0);
+                    return read;
+                }
+            };
+        }
+    }
+}
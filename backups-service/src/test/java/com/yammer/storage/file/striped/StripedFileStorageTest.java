@@ -0,0 +1,108 @@
+package com.yammer.storage.file.striped;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.local.LocalFileStorage;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StripedFileStorageTest extends FileStorageTest<StripedFileStorage> {
+
+    @Rule
+    public final TemporaryFolder testFolder = new TemporaryFolder();
+
+    private List<FileStorage> stripes;
+
+    @Override
+    protected StripedFileStorage getFileStorage() throws IOException {
+        stripes = ImmutableList.<FileStorage>of(
+                new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder())),
+                new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder())),
+                new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder()))
+        );
+
+        return new StripedFileStorage(stripes);
+    }
+
+    private int countStripesWith(String path) throws IOException {
+        int count = 0;
+        for (FileStorage stripe : stripes) {
+            if (stripe.exists(namespace, path)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    @Test
+    public void testConcurrentUploadsUseDifferentStripes() throws IOException {
+        final String first = path + "-1";
+        final String second = path + "-2";
+        final String third = path + "-3";
+
+        try (final OutputStream out1 = storage.upload(namespace, first);
+             final OutputStream out2 = storage.upload(namespace, second);
+             final OutputStream out3 = storage.upload(namespace, third)) {
+            out1.write(1);
+            out2.write(2);
+            out3.write(3);
+        }
+
+        for (FileStorage stripe : stripes) {
+            assertEquals(1, stripe.list(namespace, path).size());
+        }
+    }
+
+    @Test
+    public void testFilesAreStoredOnce() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            try (final OutputStream out = storage.upload(namespace, path + i)) {
+                out.write(i);
+            }
+
+            assertEquals(1, this.countStripesWith(path + i));
+        }
+
+        assertEquals(10, storage.list(namespace, path).size());
+    }
+
+    @Test
+    public void testCapacityIsAggregated() throws IOException {
+        long total = 0;
+        for (FileStorage stripe : stripes) {
+            total += stripe.getTotalSpace().toBytes();
+        }
+
+        assertEquals(total, storage.getTotalSpace().toBytes());
+    }
+}
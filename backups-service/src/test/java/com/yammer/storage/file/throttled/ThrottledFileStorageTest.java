@@ -0,0 +1,168 @@
+package com.yammer.storage.file.throttled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Optional;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.local.LocalFileStorage;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import com.yammer.storage.file.memory.InMemoryFileStorage;
+import com.yammer.storage.file.replicated.ReplicatedFileStorage;
+import io.dropwizard.util.Size;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ThrottledFileStorageTest extends FileStorageTest<ThrottledFileStorage> {
+
+    private static final byte[] BLOCK = new byte[256 * 1024];
+
+    @Rule
+    public final TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Override
+    protected ThrottledFileStorage getFileStorage() throws IOException {
+        final ThrottledFileStorageConfiguration configuration = new ThrottledFileStorageConfiguration();
+        configuration.setUploadRate(Size.megabytes(100));
+        configuration.setDownloadRate(Size.megabytes(100));
+
+        return new ThrottledFileStorage(new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.getRoot())), configuration);
+    }
+
+    private long uploadBlocks(int count) throws IOException {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            for (int i = 0; i < count; i++) {
+                out.write(BLOCK);
+            }
+        }
+
+        return stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    }
+
+    private long downloadBlocks() throws IOException {
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        try (final InputStream in = storage.download(namespace, path)) {
+            final byte[] buffer = new byte[BLOCK.length];
+            while (ByteStreams.read(in, buffer, 0, buffer.length) > 0) {
+                // just reading
+            }
+        }
+
+        return stopwatch.elapsed(TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testUploadsAreThrottled() throws IOException {
+        storage.setUploadRate(Optional.of(Size.megabytes(1)));
+        assertTrue(this.uploadBlocks(4) >= 500);
+    }
+
+    @Test
+    public void testNamespacesAreThrottled() throws IOException {
+        storage.setNamespaceUploadRate(namespace, Optional.of(Size.megabytes(1)));
+        assertTrue(this.uploadBlocks(4) >= 500);
+        assertEquals(Optional.of(Size.megabytes(1)), storage.getNamespaceUploadRate(namespace));
+        assertEquals(Optional.<Size>absent(), storage.getNamespaceUploadRate(namespace + "-other"));
+    }
+
+    // Fresh limiters, so the test isn't affected by capacity saved up while the shared one was idle
+    private ThrottledFileStorage newStorage(Size uploadRate, Size downloadRate) {
+        final ThrottledFileStorageConfiguration configuration = new ThrottledFileStorageConfiguration();
+        configuration.setUploadRate(uploadRate);
+        configuration.setDownloadRate(downloadRate);
+
+        return new ThrottledFileStorage(storage.delegate(), configuration);
+    }
+
+    @Test
+    public void testDownloadsBorrowUploadCapacity() throws IOException {
+        this.uploadBlocks(8);
+
+        storage = this.newStorage(Size.megabytes(100), Size.megabytes(1));
+        assertTrue(this.downloadBlocks() < 500);
+
+        storage = this.newStorage(Size.megabytes(1), Size.megabytes(1));
+        assertTrue(this.downloadBlocks() >= 500);
+    }
+
+    // Local storage has no async support, so the caller's executor has to run the upload rather than the calling thread
+    @Test
+    public void testAsyncOverBlockingDelegateUsesCallersExecutor() throws Exception {
+        final ListeningExecutorService executor = spy(MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor()));
+        try {
+            assertFalse(FileStorages.isAsync(storage));
+            assertEquals(BLOCK.length, (long) FileStorages.uploadAsync(storage, namespace, path, ByteSource.wrap(BLOCK), executor).get());
+            verify(executor).submit(any(Callable.class));
+            assertTrue(storage.exists(namespace, path));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    // Each replica reads the source separately, but the chunk is only paid for once, as a sync upload fanning out is
+    // Each replica reads the source, but every byte is only paid for once per copy rather than once per read
+    @Test
+    public void testAsyncCopiesAreThrottledOncePerCopy() throws Exception {
+        final ReplicatedFileStorage replicated = new ReplicatedFileStorage("test", ImmutableMap.of(
+                "a", new InMemoryFileStorage(Size.megabytes(4)),
+                "b", new InMemoryFileStorage(Size.megabytes(4)),
+                "c", new InMemoryFileStorage(Size.megabytes(4))), 3, MoreExecutors.sameThreadExecutor(), new MetricRegistry());
+
+        final ThrottledFileStorageConfiguration configuration = new ThrottledFileStorageConfiguration();
+        configuration.setUploadRate(Size.megabytes(1));
+        storage = new ThrottledFileStorage(replicated, configuration, 3);
+
+        final byte[] bytes = new byte[BLOCK.length * 2];
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        assertEquals(bytes.length, (long) FileStorages.uploadAsync(storage, namespace, path, ByteSource.wrap(bytes), null).get());
+
+        final long elapsed = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        assertTrue(elapsed >= 1000);
+        assertTrue(elapsed < 3000);
+    }
+
+    @Test
+    public void testLimitsCanBeRemoved() throws IOException {
+        storage.setUploadRate(Optional.<Size>absent());
+        assertEquals(Optional.<Size>absent(), storage.getUploadRate());
+        assertTrue(this.uploadBlocks(4) < 500);
+    }
+}
@@ -0,0 +1,109 @@
+package com.yammer.storage.file.tiered;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSet;
+import com.yammer.storage.file.FileStorageTest;
+import com.yammer.storage.file.local.LocalFileStorage;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import io.dropwizard.util.Duration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+
+import static org.junit.Assert.*;
+
+public class TieredFileStorageTest extends FileStorageTest<TieredFileStorage> {
+
+    @Rule
+    public final TemporaryFolder testFolder = new TemporaryFolder();
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    @Override
+    protected TieredFileStorage getFileStorage() throws IOException {
+        return new TieredFileStorage("test",
+                new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder())),
+                new LocalFileStorage(new LocalFileStorageConfiguration(testFolder.newFolder())),
+                Duration.hours(1), registry);
+    }
+
+    private void createFile(String path) throws IOException {
+        try (final OutputStream out = storage.upload(namespace, path)) {
+            out.write(42);
+        }
+    }
+
+    @Test
+    public void testDemotedFilesAreStillReadable() throws IOException {
+        this.createFile(path);
+        assertTrue(storage.getHotStorage().exists(namespace, path));
+
+        assertTrue(storage.demote(namespace, path));
+        assertFalse(storage.getHotStorage().exists(namespace, path));
+        assertTrue(storage.getColdStorage().exists(namespace, path));
+
+        assertTrue(storage.exists(namespace, path));
+        assertEquals(ImmutableSet.of(path), storage.list(namespace, ""));
+        try (final InputStream in = storage.download(namespace, path)) {
+            assertEquals(42, in.read());
+        }
+
+        assertFalse(storage.demote(namespace, path));
+        assertEquals(1, registry.meter("test-demoted-files").getCount());
+        assertEquals(1, registry.meter("test-demoted-bytes").getCount());
+    }
+
+    @Test(expected = FileAlreadyExistsException.class)
+    public void testCannotUploadOverDemotedFile() throws IOException {
+        this.createFile(path);
+        storage.demote(namespace, path);
+        this.createFile(path);
+    }
+
+    @Test
+    public void testDeleteRemovesFromBothTiers() throws IOException {
+        this.createFile(path);
+        storage.demote(namespace, path);
+        this.createFile(path + "-hot");
+
+        assertEquals(ImmutableSet.of(path, path + "-hot"), storage.deleteAll(namespace, ImmutableSet.of(path, path + "-hot")));
+        assertTrue(storage.list(namespace, "").isEmpty());
+    }
+
+    @Test
+    public void testAccessesAreCounted() throws IOException {
+        this.createFile(path);
+        assertEquals(0, storage.getAccessCount(namespace, path));
+
+        for (int i = 0; i < 3; i++) {
+            storage.download(namespace, path).close();
+        }
+
+        assertEquals(3, storage.getAccessCount(namespace, path));
+    }
+}
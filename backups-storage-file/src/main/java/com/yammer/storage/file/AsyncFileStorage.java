@@ -0,0 +1,37 @@
+package com.yammer.storage.file;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListenableFuture;
+
+// Storages that can run operations without holding the calling thread until they finish
+public interface AsyncFileStorage extends FileStorage {
+    // Decorators are only natively async when what they wrap is, otherwise callers run the blocking calls themselves
+    boolean isAsync();
+
+    // Completes with the bytes read from the source, once they are all stored
+    ListenableFuture<Long> uploadAsync(String namespace, String path, ByteSource source);
+    ListenableFuture<Long> downloadAsync(String namespace, String path, ByteSink sink);
+    ListenableFuture<Boolean> existsAsync(String namespace, String path);
+    ListenableFuture<Boolean> deleteAsync(String namespace, String path);
+}
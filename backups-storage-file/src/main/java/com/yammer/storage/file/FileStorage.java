@@ -27,6 +27,8 @@ import io.dropwizard.util.Size;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Set;
 
 public interface FileStorage extends Managed {
     OutputStream upload(String namespace, String path) throws IOException;
@@ -34,6 +36,12 @@ public interface FileStorage extends Managed {
     OutputStream append(String namespace, String path) throws IOException;
     boolean exists(String namespace, String path) throws IOException;
     boolean delete(String namespace, String path) throws IOException;
+
+    // Bulk variants return the subset of paths that exist, or were deleted
+    Set<String> existsAll(String namespace, Collection<String> paths) throws IOException;
+    Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException;
+    Set<String> list(String namespace, String prefix) throws IOException;
+
     boolean ping() throws IOException;
     Size getTotalSpace() throws IOException;
     Size getUsedSpace() throws IOException;
@@ -0,0 +1,262 @@
+package com.yammer.storage.file;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.concurrent.Callable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+public final class FileStorages {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileStorages.class);
+
+    private FileStorages() {}
+
+    // Gives up on an upload without publishing it. Streams that can't be aborted are closed, which is all they offer.
+    // Like Closeables.close(out, true) this is meant for failure paths, so its own failures are only logged.
+    public static void abort(OutputStream out) {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            if (out instanceof Abortable) {
+                ((Abortable) out).abort();
+            }
+            else {
+                out.close();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to abort upload", e);
+        }
+    }
+
+    public static long transferTo(FileStorage storage, String namespace, String path, WritableByteChannel target) throws IOException {
+        if (storage instanceof ChannelFileStorage) {
+            return ((ChannelFileStorage) storage).transferTo(namespace, path, target);
+        }
+
+        try (final InputStream in = storage.download(namespace, path)) {
+            return ByteStreams.copy(Channels.newChannel(in), target);
+        }
+    }
+
+    public static long transferFrom(ReadableByteChannel source, FileStorage storage, String namespace, String path) throws IOException {
+        if (storage instanceof ChannelFileStorage) {
+            return ((ChannelFileStorage) storage).transferFrom(source, namespace, path);
+        }
+
+        final OutputStream out = storage.upload(namespace, path);
+        try {
+            final long length = source instanceof FileChannel
+                    ? transfer((FileChannel) source, Channels.newChannel(out))
+                    : ByteStreams.copy(source, Channels.newChannel(out));
+            out.close();
+            return length;
+        }
+        catch (IOException | RuntimeException e) {
+            abort(out);
+            throw e;
+        }
+    }
+
+    // The source is opened before anything is written to the target, so a missing source leaves nothing behind
+    public static long copy(FileStorage source, FileStorage target, String namespace, String path) throws IOException {
+        try (final InputStream in = source.download(namespace, path)) {
+            final ReadableByteChannel channel = in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : Channels.newChannel(in);
+            return transferFrom(channel, target, namespace, path);
+        }
+    }
+
+    // Storages that can't move a file have it copied to the target and then deleted
+    public static void move(FileStorage storage, String namespace, String source, String target) throws IOException {
+        if (storage instanceof MovableFileStorage) {
+            ((MovableFileStorage) storage).move(namespace, source, target);
+            return;
+        }
+
+        if (storage.exists(namespace, target)) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        upload(storage, namespace, target, asByteSource(storage, namespace, source));
+        storage.delete(namespace, source);
+    }
+
+    public static ByteSource asByteSource(final FileStorage storage, final String namespace, final String path) {
+        return new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return storage.download(namespace, path);
+            }
+        };
+    }
+
+    public static long upload(FileStorage storage, String namespace, String path, ByteSource source) throws IOException {
+        final OutputStream out = storage.upload(namespace, path);
+        try {
+            final long length = source.copyTo(out);
+            out.close();
+            return length;
+        }
+        catch (IOException | RuntimeException e) {
+            abort(out);
+            throw e;
+        }
+    }
+
+    public static Optional<String> getVersion(FileStorage storage, String namespace, String path) throws IOException {
+        if (storage instanceof ResumableFileStorage) {
+            return ((ResumableFileStorage) storage).getVersion(namespace, path);
+        }
+
+        return Optional.absent();
+    }
+
+    // Storages that can't open part way through have everything before the offset read and thrown away
+    public static InputStream download(FileStorage storage, String namespace, String path, long offset, Optional<String> version) throws IOException {
+        if (storage instanceof ResumableFileStorage) {
+            return ((ResumableFileStorage) storage).download(namespace, path, offset, version);
+        }
+
+        final InputStream in = storage.download(namespace, path);
+        try {
+            ByteStreams.skipFully(in, offset);
+            return in;
+        }
+        catch (IOException | RuntimeException e) {
+            Closeables.close(in, true);
+            throw e;
+        }
+    }
+
+    public static long download(FileStorage storage, String namespace, String path, ByteSink sink) throws IOException {
+        try (final InputStream in = storage.download(namespace, path)) {
+            return sink.writeFrom(in);
+        }
+    }
+
+    public static boolean isAsync(FileStorage storage) {
+        return storage instanceof AsyncFileStorage && ((AsyncFileStorage) storage).isAsync();
+    }
+
+    // For decorators forwarding async calls, which are only made once the delegate is known to be async
+    public static AsyncFileStorage asAsync(FileStorage storage) {
+        checkArgument(isAsync(storage), "%s has no native async support", storage);
+        return (AsyncFileStorage) storage;
+    }
+
+    // The async variants use the storage's own implementation where it has one, otherwise the blocking call runs on the executor
+
+    public static ListenableFuture<Long> uploadAsync(final FileStorage storage, final String namespace, final String path, final ByteSource source, ListeningExecutorService executor) {
+        if (isAsync(storage)) {
+            return ((AsyncFileStorage) storage).uploadAsync(namespace, path, source);
+        }
+
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return upload(storage, namespace, path, source);
+            }
+        });
+    }
+
+    public static ListenableFuture<Long> downloadAsync(final FileStorage storage, final String namespace, final String path, final ByteSink sink, ListeningExecutorService executor) {
+        if (isAsync(storage)) {
+            return ((AsyncFileStorage) storage).downloadAsync(namespace, path, sink);
+        }
+
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return download(storage, namespace, path, sink);
+            }
+        });
+    }
+
+    public static ListenableFuture<Boolean> existsAsync(final FileStorage storage, final String namespace, final String path, ListeningExecutorService executor) {
+        if (isAsync(storage)) {
+            return ((AsyncFileStorage) storage).existsAsync(namespace, path);
+        }
+
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return storage.exists(namespace, path);
+            }
+        });
+    }
+
+    public static ListenableFuture<Boolean> deleteAsync(final FileStorage storage, final String namespace, final String path, ListeningExecutorService executor) {
+        if (isAsync(storage)) {
+            return ((AsyncFileStorage) storage).deleteAsync(namespace, path);
+        }
+
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return storage.delete(namespace, path);
+            }
+        });
+    }
+
+    // Copies the rest of the file, letting the kernel move the bytes where the target allows it
+    public static long transfer(FileChannel source, WritableByteChannel target) throws IOException {
+        final long start = source.position();
+        final long size = source.size();
+
+        long position = start;
+        while (position < size) {
+            final long transferred = source.transferTo(position, size - position, target);
+            if (transferred <= 0) {
+                // No progress, the file may have been truncated or the target won't take a transfer. Copying the rest
+                // through a buffer stops at the real end of the file, rather than retrying forever.
+                source.position(position);
+                return position - start + ByteStreams.copy(source, target);
+            }
+
+            position += transferred;
+        }
+
+        source.position(position);
+        return position - start;
+    }
+}
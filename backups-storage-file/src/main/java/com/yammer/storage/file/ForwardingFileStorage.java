@@ -0,0 +1,158 @@
+package com.yammer.storage.file;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.dropwizard.util.Size;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Set;
+
+// Base for decorators that only need to change a few operations, everything else goes to the delegate
+public abstract class ForwardingFileStorage implements ChannelFileStorage, AsyncFileStorage {
+
+    protected abstract FileStorage delegate();
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void start() throws Exception {
+        this.delegate().start();
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        this.delegate().stop();
+    }
+
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        return this.delegate().upload(namespace, path);
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        return this.delegate().download(namespace, path);
+    }
+
+    @Override
+    public OutputStream append(String namespace, String path) throws IOException {
+        return this.delegate().append(namespace, path);
+    }
+
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        return FileStorages.transferTo(this.delegate(), namespace, path, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, String namespace, String path) throws IOException {
+        return FileStorages.transferFrom(source, this.delegate(), namespace, path);
+    }
+
+    // Over a blocking delegate the caller's executor runs our blocking calls instead
+    @Override
+    public boolean isAsync() {
+        return FileStorages.isAsync(this.delegate());
+    }
+
+    @Override
+    public ListenableFuture<Long> uploadAsync(String namespace, String path, ByteSource source) {
+        return FileStorages.asAsync(this.delegate()).uploadAsync(namespace, path, source);
+    }
+
+    @Override
+    public ListenableFuture<Long> downloadAsync(String namespace, String path, ByteSink sink) {
+        return FileStorages.asAsync(this.delegate()).downloadAsync(namespace, path, sink);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> existsAsync(String namespace, String path) {
+        return FileStorages.asAsync(this.delegate()).existsAsync(namespace, path);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> deleteAsync(String namespace, String path) {
+        return FileStorages.asAsync(this.delegate()).deleteAsync(namespace, path);
+    }
+
+    @Override
+    public boolean exists(String namespace, String path) throws IOException {
+        return this.delegate().exists(namespace, path);
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) throws IOException {
+        return this.delegate().delete(namespace, path);
+    }
+
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) throws IOException {
+        return this.delegate().existsAll(namespace, paths);
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        return this.delegate().deleteAll(namespace, paths);
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        return this.delegate().list(namespace, prefix);
+    }
+
+    @Override
+    public boolean ping() throws IOException {
+        return this.delegate().ping();
+    }
+
+    @Override
+    public Size getTotalSpace() throws IOException {
+        return this.delegate().getTotalSpace();
+    }
+
+    @Override
+    public Size getUsedSpace() throws IOException {
+        return this.delegate().getUsedSpace();
+    }
+
+    @Override
+    public Size getFreeSpace() throws IOException {
+        return this.delegate().getFreeSpace();
+    }
+
+    @Override
+    public boolean delete(String namespace) throws IOException {
+        return this.delegate().delete(namespace);
+    }
+
+    @Override
+    public String toString() {
+        return this.delegate().toString();
+    }
+}
@@ -0,0 +1,36 @@
+package com.yammer.storage.file;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Storage that can open a file part way through, and make sure it is still the version that was read before
+public interface ResumableFileStorage extends FileStorage {
+
+    // Identifies the current contents of the file (an etag on Azure), if the storage can tell
+    Optional<String> getVersion(String namespace, String path) throws IOException;
+
+    // Fails if the file no longer has the given version, rather than mixing the contents of two versions
+    InputStream download(String namespace, String path, long offset, Optional<String> version) throws IOException;
+}
@@ -0,0 +1,194 @@
+package com.yammer.storage.file.azure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+import com.microsoft.windowsazure.services.blob.client.BlockEntry;
+import com.microsoft.windowsazure.services.blob.client.BlockSearchMode;
+import com.microsoft.windowsazure.services.blob.client.CloudBlockBlob;
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+// Uploads a stream as blocks without any thread waiting on the upload as a whole. The next block is only read
+// once a slot is free, each staged block schedules the next step, and the last one commits the block list.
+public class AsyncBlockUpload {
+
+    private final CloudBlockBlob blob;
+    private final InputStream in;
+    private final ListeningExecutorService executor;
+    private final int blockSize;
+    private final int maxBlocksInFlight;
+    private final Counter inFlightCounter;
+    private final Meter uploadedBytes;
+    private final AccessCondition commitCondition;
+
+    private final String writerId = UUID.randomUUID().toString().replace("-", "");
+    private final List<BlockEntry> blocks = newArrayList();
+    private final SettableFuture<Long> result = SettableFuture.create();
+
+    // Guarded by this
+    private int inFlight = 0;
+    private long size = 0;
+    private boolean reading = false;
+    private boolean finished = false;
+    private boolean committing = false;
+
+    public AsyncBlockUpload(CloudBlockBlob blob, InputStream in, ListeningExecutorService executor, int blockSize, int maxBlocksInFlight,
+                            Counter inFlightCounter, Meter uploadedBytes, AccessCondition commitCondition) {
+        this.blob = blob;
+        this.in = in;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.inFlightCounter = inFlightCounter;
+        this.uploadedBytes = uploadedBytes;
+        this.commitCondition = commitCondition;
+    }
+
+    public ListenableFuture<Long> start() {
+        this.schedule();
+        return result;
+    }
+
+    private synchronized void schedule() {
+        if (result.isDone()) {
+            return;
+        }
+
+        if (!finished) {
+            if (!reading && inFlight < maxBlocksInFlight) {
+                reading = true;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        readBlock();
+                    }
+                });
+            }
+        }
+        else if (inFlight == 0 && !committing) {
+            committing = true;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            });
+        }
+    }
+
+    private void readBlock() {
+        final byte[] data = new byte[blockSize];
+        final int length;
+        try {
+            length = ByteStreams.read(in, data, 0, blockSize);
+        }
+        catch (IOException | RuntimeException e) {
+            this.fail(e);
+            return;
+        }
+
+        final String blockId;
+        synchronized (this) {
+            reading = false;
+            finished = length < blockSize;
+
+            if (length == 0) {
+                blockId = null;
+            }
+            else {
+                blockId = ParallelBlockOutputStream.getBlockId(blocks.size(), writerId);
+                blocks.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+                size += length;
+                inFlight++;
+            }
+        }
+
+        if (blockId != null) {
+            this.stage(blockId, data, length);
+        }
+
+        this.schedule();
+    }
+
+    private void stage(final String blockId, final byte[] data, final int length) {
+        inFlightCounter.inc();
+        final ListenableFuture<Void> staged = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws StorageException, IOException {
+                blob.uploadBlock(blockId, new ByteArrayInputStream(data, 0, length), length);
+                uploadedBytes.mark(length);
+                return null;
+            }
+        });
+
+        Futures.addCallback(staged, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+                inFlightCounter.dec();
+                synchronized (AsyncBlockUpload.this) {
+                    inFlight--;
+                }
+
+                schedule();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                inFlightCounter.dec();
+                fail(t);
+            }
+        });
+    }
+
+    private void commit() {
+        try {
+            blob.commitBlockList(blocks, commitCondition, null, null);
+            Closeables.closeQuietly(in);
+            result.set(size);
+        }
+        catch (StorageException | RuntimeException e) {
+            this.fail(e);
+        }
+    }
+
+    private void fail(Throwable t) {
+        Closeables.closeQuietly(in);
+        result.setException(t instanceof IOException ? t : new IOException("Failed to upload " + blob.getUri(), t));
+    }
+}
@@ -36,6 +36,13 @@ public class AzureAccountConfiguration {
     @JsonProperty
     private final String key;
 
+    // Optional, to talk to something other than the public Azure endpoints, eg. an emulator
+    @JsonProperty
+    private String blobEndpoint;
+
+    @JsonProperty
+    private String tableEndpoint;
+
     @JsonCreator
     public AzureAccountConfiguration(
             @JsonProperty("name") String name,
@@ -52,7 +59,32 @@ public class AzureAccountConfiguration {
         return key;
     }
 
+    public String getBlobEndpoint() {
+        return blobEndpoint;
+    }
+
+    public void setBlobEndpoint(String blobEndpoint) {
+        this.blobEndpoint = blobEndpoint;
+    }
+
+    public String getTableEndpoint() {
+        return tableEndpoint;
+    }
+
+    public void setTableEndpoint(String tableEndpoint) {
+        this.tableEndpoint = tableEndpoint;
+    }
+
     public String getConnectionString() {
-        return String.format(CONNECTION_STRING, "https", name, key);
+        final StringBuilder connectionString = new StringBuilder(String.format(CONNECTION_STRING, "https", name, key));
+        if (blobEndpoint != null) {
+            connectionString.append(";BlobEndpoint=").append(blobEndpoint);
+        }
+
+        if (tableEndpoint != null) {
+            connectionString.append(";TableEndpoint=").append(tableEndpoint);
+        }
+
+        return connectionString.toString();
     }
 }
@@ -20,37 +20,74 @@ package com.yammer.storage.file.azure;
  * #L%
  */
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.windowsazure.services.blob.client.BlobListingDetails;
+import com.microsoft.windowsazure.services.blob.client.BlockEntry;
+import com.microsoft.windowsazure.services.blob.client.BlockListingFilter;
+import com.microsoft.windowsazure.services.blob.client.CloudBlob;
 import com.microsoft.windowsazure.services.blob.client.CloudBlobClient;
 import com.microsoft.windowsazure.services.blob.client.CloudBlobContainer;
 import com.microsoft.windowsazure.services.blob.client.CloudBlockBlob;
+import com.microsoft.windowsazure.services.blob.client.ListBlobItem;
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
 import com.microsoft.windowsazure.services.core.storage.CloudStorageAccount;
+import com.microsoft.windowsazure.services.core.storage.ResultContinuation;
+import com.microsoft.windowsazure.services.core.storage.ResultSegment;
 import com.microsoft.windowsazure.services.core.storage.StorageException;
 import com.microsoft.windowsazure.services.table.client.CloudTableClient;
 import com.microsoft.windowsazure.services.table.client.TableOperation;
-import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.AsyncFileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.ResumableFileStorage;
 import io.dropwizard.util.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-public class AzureFileStorage implements FileStorage {
+public class AzureFileStorage implements AsyncFileStorage, ResumableFileStorage {
 
     private static final Logger LOG = LoggerFactory.getLogger(AzureFileStorage.class);
 
@@ -62,6 +99,13 @@ public class AzureFileStorage implements FileStorage {
 
     private static final Size AZURE_STORAGE_SIZE = Size.terabytes(200);
 
+    private static final long MAX_EXISTS_CACHE_SIZE = 100_000;
+    private static final int MAX_LIST_RESULTS = 5000;
+    private static final int BULK_CONCURRENCY = 16;
+
+    // Azure refuses to commit more blocks than this to a single blob
+    private static final int MAX_COMMITTED_BLOCKS = 50_000;
+
     private static String getAzureMetricsPartitionKey(int dayOffset) {
         final DateFormat dateFormat = new SimpleDateFormat(AZURE_DATE_FORMAT);
 
@@ -77,7 +121,31 @@ public class AzureFileStorage implements FileStorage {
     private final Cache<String, AzureCapacityEntity> capacityCache;
     private final String prefix;
 
+    // Containers we have already created or seen, so we don't create them on every request
+    private final Cache<String, CloudBlobContainer> containers;
+    private final Cache<String, Boolean> existsCache;
+
+    private final ListeningExecutorService uploadWorkers;
+    private final int uploadBlockSize;
+    private final int uploadConcurrency;
+    private final Counter uploadBlocksInFlight;
+    private final Meter uploadedBytes;
+
+    private final ListeningExecutorService downloadWorkers;
+    private final int downloadRangeSize;
+    private final int downloadConcurrency;
+    private final Counter downloadRangesInFlight;
+    private final Meter downloadedBytes;
+
+    private final ListeningExecutorService bulkWorkers;
+
+    private int maxCommittedBlocks = MAX_COMMITTED_BLOCKS;
+
     public AzureFileStorage(AzureFileStorageConfiguration config, String prefix) throws URISyntaxException, InvalidKeyException {
+        this(config, prefix, new MetricRegistry());
+    }
+
+    public AzureFileStorage(AzureFileStorageConfiguration config, String prefix, MetricRegistry metricRegistry) throws URISyntaxException, InvalidKeyException {
         account = CloudStorageAccount.parse(config.getConnectionString());
 
         blobClient = account.createCloudBlobClient();
@@ -89,6 +157,41 @@ public class AzureFileStorage implements FileStorage {
                 .build();
 
         this.prefix = prefix;
+
+        containers = CacheBuilder
+                .newBuilder()
+                .build();
+
+        existsCache = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(config.getExistsCacheDuration().getQuantity(), config.getExistsCacheDuration().getUnit())
+                .maximumSize(MAX_EXISTS_CACHE_SIZE)
+                .build();
+
+        uploadBlockSize = (int) config.getUploadBlockSize().toBytes();
+        uploadConcurrency = config.getUploadConcurrency();
+        uploadWorkers = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("azure-block-uploader-%d")
+                .setDaemon(true)
+                .build()));
+
+        uploadBlocksInFlight = metricRegistry.counter("azure-upload-blocks-in-flight");
+        uploadedBytes = metricRegistry.meter("azure-uploaded-bytes");
+
+        downloadRangeSize = (int) config.getDownloadRangeSize().toBytes();
+        downloadConcurrency = config.getDownloadConcurrency();
+        downloadWorkers = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("azure-range-downloader-%d")
+                .setDaemon(true)
+                .build()));
+
+        bulkWorkers = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(BULK_CONCURRENCY, new ThreadFactoryBuilder()
+                .setNameFormat("azure-bulk-worker-%d")
+                .setDaemon(true)
+                .build()));
+
+        downloadRangesInFlight = metricRegistry.counter("azure-download-ranges-in-flight");
+        downloadedBytes = metricRegistry.meter("azure-downloaded-bytes");
     }
 
     @Override
@@ -103,7 +206,9 @@ public class AzureFileStorage implements FileStorage {
 
     @Override
     public void stop() {
-
+        uploadWorkers.shutdown();
+        downloadWorkers.shutdown();
+        bulkWorkers.shutdown();
     }
 
     protected String getSanitizedBucketName(String namespace) {
@@ -126,14 +231,19 @@ public class AzureFileStorage implements FileStorage {
     }
 
     public CloudBlobContainer getBucket(String namespace) throws IOException {
+        final String containerName = this.getSanitizedBucketName(namespace);
         try {
-            final String containerName = this.getSanitizedBucketName(namespace);
-            final CloudBlobContainer bucket = blobClient.getContainerReference(containerName);
-            bucket.createIfNotExist();
+            return containers.get(containerName, new Callable<CloudBlobContainer>() {
+                @Override
+                public CloudBlobContainer call() throws URISyntaxException, StorageException {
+                    final CloudBlobContainer bucket = blobClient.getContainerReference(containerName);
+                    bucket.createIfNotExist();
 
-            return bucket;
-        } catch (URISyntaxException | StorageException e) {
-            throw new IOException(e);
+                    return bucket;
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
         }
     }
 
@@ -146,27 +256,76 @@ public class AzureFileStorage implements FileStorage {
         }
     }
 
+    private String getExistsCacheKey(String namespace, String path) {
+        return String.format("%s/%s", this.getSanitizedBucketName(namespace), path);
+    }
+
+    private static boolean isNotFound(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof StorageException && ((StorageException) cause).getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // A 404 may mean the container was deleted underneath us, so forget we ever saw it. It's reported as a missing
+    // file, which callers don't retry and replicas don't count as a failure.
+    private IOException handleException(String namespace, Exception e) {
+        if (isNotFound(e)) {
+            containers.invalidate(this.getSanitizedBucketName(namespace));
+
+            if (!(e instanceof FileNotFoundException)) {
+                final FileNotFoundException notFound = new FileNotFoundException(e.getMessage());
+                notFound.initCause(e);
+                return notFound;
+            }
+        }
+
+        return e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+
     @Override
     public OutputStream upload(String namespace, String path) throws IOException {
+        if (this.exists(namespace, path)) {
+            throw new IOException("File already exists");
+        }
+
+        final CloudBlockBlob blob = this.getBlob(namespace, path);
+        return this.openBlockStream(namespace, path, blob, ImmutableList.<BlockEntry>of(), AccessCondition.generateIfNoneMatchCondition("*"));
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
         final CloudBlockBlob blob = this.getBlob(namespace, path);
         try {
-            if (blob.exists()) {
-                throw new IOException("File already exists");
-            }
+            return new ParallelRangeInputStream(blob, downloadWorkers, downloadRangeSize, downloadConcurrency, downloadRangesInFlight, downloadedBytes);
+        } catch (StorageException e) {
+            throw this.handleException(namespace, e);
+        }
+    }
 
-            return blob.openOutputStream();
+    @Override
+    public Optional<String> getVersion(String namespace, String path) throws IOException {
+        final CloudBlockBlob blob = this.getBlob(namespace, path);
+        try {
+            blob.downloadAttributes();
+            return Optional.of(blob.getProperties().getEtag());
         } catch (StorageException e) {
-            throw new IOException(e);
+            throw this.handleException(namespace, e);
         }
     }
 
+    // Starts the ranges at the offset, instead of fetching everything before it only to throw it away
     @Override
-    public InputStream download(String namespace, String path) throws IOException {
+    public InputStream download(String namespace, String path, long offset, Optional<String> version) throws IOException {
         final CloudBlockBlob blob = this.getBlob(namespace, path);
         try {
-            return blob.openInputStream();
+            return new ParallelRangeInputStream(blob, downloadWorkers, downloadRangeSize, downloadConcurrency, downloadRangesInFlight, downloadedBytes,
+                    offset, version);
         } catch (StorageException e) {
-            throw new IOException(e);
+            throw this.handleException(namespace, e);
         }
     }
 
@@ -174,31 +333,189 @@ public class AzureFileStorage implements FileStorage {
     public OutputStream append(String namespace, String path) throws IOException {
         final CloudBlockBlob blob = this.getBlob(namespace, path);
         try {
-            final OutputStream out = blob.openOutputStream();
-
-            if (blob.exists()) {
-                // rewrite the entire existing contents. Please don't do this on big files!
-                try (final InputStream in = blob.openInputStream()) {
-                    ByteStreams.copy(in, out);
+            try {
+                blob.downloadAttributes();
+            }
+            catch (StorageException e) {
+                if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw e;
                 }
+
+                return this.openBlockStream(namespace, path, blob, ImmutableList.<BlockEntry>of(), AccessCondition.generateIfNoneMatchCondition("*"));
+            }
+
+            // Only commit if nobody else has written to the blob in the meantime
+            final AccessCondition unchanged = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+            final List<BlockEntry> committedBlocks = blob.downloadBlockList(BlockListingFilter.COMMITTED, unchanged, null, null);
+
+            // Every append adds at least one block, so long lived blobs are consolidated well before reaching the limit
+            final boolean blockAppendable = !committedBlocks.isEmpty() || blob.getProperties().getLength() == 0;
+            final boolean blocksToSpare = committedBlocks.size() < maxCommittedBlocks / 2;
+            if (blockAppendable && blocksToSpare && ParallelBlockOutputStream.canAppendTo(committedBlocks)) {
+                return this.openBlockStream(namespace, path, blob, committedBlocks, unchanged);
+            }
+
+            // Blobs not written as our own blocks, or with too many of them, get rewritten as full sized blocks and appended to
+            final OutputStream out = this.openBlockStream(namespace, path, blob, ImmutableList.<BlockEntry>of(), unchanged);
+            try (final InputStream in = this.download(namespace, path)) {
+                ByteStreams.copy(in, out);
+            }
+            catch (IOException | RuntimeException e) {
+                FileStorages.abort(out);
+                throw e;
             }
 
             return out;
         } catch (StorageException e) {
-            throw new IOException(e);
+            throw this.handleException(namespace, e);
+        }
+    }
+
+    private OutputStream openBlockStream(String namespace, String path, CloudBlockBlob blob, List<BlockEntry> committedBlocks, AccessCondition commitCondition) {
+        final String cacheKey = this.getExistsCacheKey(namespace, path);
+        existsCache.invalidate(cacheKey);
+
+        return new BlockOutputStream(new ParallelBlockOutputStream(blob, uploadWorkers, uploadBlockSize, uploadConcurrency, uploadBlocksInFlight, uploadedBytes,
+                committedBlocks, commitCondition), namespace, cacheKey);
+    }
+
+    private class BlockOutputStream extends FilterOutputStream implements Abortable {
+        private final ParallelBlockOutputStream blocks;
+        private final String namespace;
+        private final String cacheKey;
+
+        private BlockOutputStream(ParallelBlockOutputStream blocks, String namespace, String cacheKey) {
+            super(blocks);
+            this.blocks = blocks;
+            this.namespace = namespace;
+            this.cacheKey = cacheKey;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                throw AzureFileStorage.this.handleException(namespace, e);
+            }
+            finally {
+                existsCache.invalidate(cacheKey);
+            }
+        }
+
+        @Override
+        public void abort() {
+            blocks.abort();
         }
     }
 
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    // Only the existence check holds a bulk worker, blocks are then read and staged as slots free up
+    @Override
+    public ListenableFuture<Long> uploadAsync(final String namespace, final String path, final ByteSource source) {
+        final String cacheKey = this.getExistsCacheKey(namespace, path);
+        final ListenableFuture<ListenableFuture<Long>> started = bulkWorkers.submit(new Callable<ListenableFuture<Long>>() {
+            @Override
+            public ListenableFuture<Long> call() throws IOException {
+                if (AzureFileStorage.this.exists(namespace, path)) {
+                    throw new IOException("File already exists");
+                }
+
+                existsCache.invalidate(cacheKey);
+                return new AsyncBlockUpload(AzureFileStorage.this.getBlob(namespace, path), source.openStream(), uploadWorkers,
+                        uploadBlockSize, uploadConcurrency, uploadBlocksInFlight, uploadedBytes, AccessCondition.generateIfNoneMatchCondition("*")).start();
+            }
+        });
+
+        final ListenableFuture<Long> uploaded = Futures.dereference(started);
+        Futures.addCallback(uploaded, new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long size) {
+                existsCache.invalidate(cacheKey);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                existsCache.invalidate(cacheKey);
+                if (t instanceof Exception) {
+                    AzureFileStorage.this.handleException(namespace, (Exception) t);
+                }
+            }
+        });
+
+        return uploaded;
+    }
+
+    // Ranges are already fetched concurrently by the range workers, this only holds a thread to hand them to the sink in order
+    @Override
+    public ListenableFuture<Long> downloadAsync(final String namespace, final String path, final ByteSink sink) {
+        return downloadWorkers.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return FileStorages.download(AzureFileStorage.this, namespace, path, sink);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> existsAsync(final String namespace, final String path) {
+        final Boolean cached = existsCache.getIfPresent(this.getExistsCacheKey(namespace, path));
+        if (cached != null) {
+            return Futures.immediateFuture(cached);
+        }
+
+        return bulkWorkers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return AzureFileStorage.this.exists(namespace, path);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> deleteAsync(final String namespace, final String path) {
+        return bulkWorkers.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return AzureFileStorage.this.delete(namespace, path);
+            }
+        });
+    }
+
     @Override
     public boolean exists(String namespace, String path) throws IOException {
+        final String cacheKey = this.getExistsCacheKey(namespace, path);
+        final Boolean cached = existsCache.getIfPresent(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
         final CloudBlockBlob blob = this.getBlob(namespace, path);
         try {
-            return blob.exists();
+            final boolean exists = blob.exists();
+            existsCache.put(cacheKey, exists);
+
+            return exists;
         } catch (StorageException e) {
-            throw new IOException(e);
+            throw this.handleException(namespace, e);
         }
     }
 
+    @VisibleForTesting
+    void setMaxCommittedBlocks(int maxCommittedBlocks) {
+        this.maxCommittedBlocks = maxCommittedBlocks;
+    }
+
     @VisibleForTesting
     @Override
     public boolean delete(String namespace) throws IOException {
@@ -207,6 +524,9 @@ public class AzureFileStorage implements FileStorage {
             return bucket.deleteIfExists();
         } catch (StorageException e) {
             throw new IOException(e);
+        } finally {
+            containers.invalidate(this.getSanitizedBucketName(namespace));
+            existsCache.invalidateAll();
         }
     }
 
@@ -216,8 +536,109 @@ public class AzureFileStorage implements FileStorage {
         try {
             return blob.deleteIfExists();
         } catch (StorageException e) {
+            throw this.handleException(namespace, e);
+        } finally {
+            existsCache.invalidate(this.getExistsCacheKey(namespace, path));
+        }
+    }
+
+    private interface PathOperation {
+        boolean apply(String path) throws IOException;
+    }
+
+    // Runs the operation for every path on the bulk workers, returning the paths it succeeded for
+    private Set<String> applyConcurrently(Collection<String> paths, final PathOperation operation) throws IOException {
+        final Map<String, Future<Boolean>> results = Maps.newLinkedHashMap();
+        for (final String path : paths) {
+            results.put(path, bulkWorkers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws IOException {
+                    return operation.apply(path);
+                }
+            }));
+        }
+
+        final ImmutableSet.Builder<String> matching = ImmutableSet.builder();
+        try {
+            for (final Map.Entry<String, Future<Boolean>> result : results.entrySet()) {
+                if (result.getValue().get()) {
+                    matching.add(result.getKey());
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new IOException(e);
         }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        finally {
+            for (final Future<Boolean> result : results.values()) {
+                result.cancel(true);
+            }
+        }
+
+        return matching.build();
+    }
+
+    @Override
+    public Set<String> existsAll(final String namespace, Collection<String> paths) throws IOException {
+        String prefix = null;
+        for (final String path : paths) {
+            prefix = prefix == null ? path : Strings.commonPrefix(prefix, path);
+        }
+
+        // Without a shared prefix a listing could cover the whole container, so ask about each path instead
+        if (Strings.isNullOrEmpty(prefix)) {
+            return this.applyConcurrently(paths, new PathOperation() {
+                @Override
+                public boolean apply(String path) throws IOException {
+                    return AzureFileStorage.this.exists(namespace, path);
+                }
+            });
+        }
+
+        final Set<String> existing = Sets.intersection(ImmutableSet.copyOf(paths), this.list(namespace, prefix)).immutableCopy();
+        for (final String path : paths) {
+            existsCache.put(this.getExistsCacheKey(namespace, path), existing.contains(path));
+        }
+
+        return existing;
+    }
+
+    @Override
+    public Set<String> deleteAll(final String namespace, Collection<String> paths) throws IOException {
+        return this.applyConcurrently(paths, new PathOperation() {
+            @Override
+            public boolean apply(String path) throws IOException {
+                return AzureFileStorage.this.delete(namespace, path);
+            }
+        });
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        final CloudBlobContainer bucket = this.getBucket(namespace);
+        final ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        try {
+            ResultContinuation continuation = null;
+            ResultSegment<ListBlobItem> segment;
+            do {
+                segment = bucket.listBlobsSegmented(prefix, true, EnumSet.noneOf(BlobListingDetails.class), MAX_LIST_RESULTS, continuation, null, null);
+                for (final ListBlobItem item : segment.getResults()) {
+                    if (item instanceof CloudBlob) {
+                        paths.add(((CloudBlob) item).getName());
+                    }
+                }
+
+                continuation = segment.getContinuationToken();
+            } while (segment.getHasMoreResults());
+        } catch (StorageException | URISyntaxException e) {
+            throw this.handleException(namespace, e);
+        }
+
+        return paths.build();
     }
 
     @Override
@@ -21,9 +21,15 @@ package com.yammer.storage.file.azure;
  */
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Size;
+import io.dropwizard.util.SizeUnit;
+import io.dropwizard.validation.MaxSize;
+import io.dropwizard.validation.MinSize;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 public class AzureFileStorageConfiguration extends AzureAccountConfiguration {
@@ -32,6 +38,32 @@ public class AzureFileStorageConfiguration extends AzureAccountConfiguration {
     @NotNull
     private Size minCapacity = Size.gigabytes(100);
 
+    // Azure caps a single block at 4MB
+    @NotNull
+    @MinSize(1)
+    @MaxSize(value = 4, unit = SizeUnit.MEGABYTES)
+    private Size uploadBlockSize = Size.megabytes(4);
+
+    @Min(1)
+    @Max(64)
+    private int uploadConcurrency = 4;
+
+    // Each range is read into a single array
+    @NotNull
+    @MinSize(1)
+    @MaxSize(value = 1, unit = SizeUnit.GIGABYTES)
+    private Size downloadRangeSize = Size.megabytes(4);
+
+    @Min(1)
+    @Max(64)
+    private int downloadConcurrency = 4;
+
+    // How long exists() results are cached for, disabled by default. The cache is per node, so a file another node
+    // writes can be reported missing for this long and uploaded again.
+    @Valid
+    @NotNull
+    private Duration existsCacheDuration = Duration.seconds(0);
+
     public AzureFileStorageConfiguration(
             @JsonProperty("name") String name,
             @JsonProperty("key") String key) {
@@ -45,4 +77,44 @@ public class AzureFileStorageConfiguration extends AzureAccountConfiguration {
     public void setMinCapacity(Size minCapacity) {
         this.minCapacity = minCapacity;
     }
+
+    public Size getUploadBlockSize() {
+        return uploadBlockSize;
+    }
+
+    public void setUploadBlockSize(Size uploadBlockSize) {
+        this.uploadBlockSize = uploadBlockSize;
+    }
+
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
+    }
+
+    public Size getDownloadRangeSize() {
+        return downloadRangeSize;
+    }
+
+    public void setDownloadRangeSize(Size downloadRangeSize) {
+        this.downloadRangeSize = downloadRangeSize;
+    }
+
+    public int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = downloadConcurrency;
+    }
+
+    public Duration getExistsCacheDuration() {
+        return existsCacheDuration;
+    }
+
+    public void setExistsCacheDuration(Duration existsCacheDuration) {
+        this.existsCacheDuration = existsCacheDuration;
+    }
 }
@@ -0,0 +1,265 @@
+package com.yammer.storage.file.azure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.microsoft.windowsazure.services.blob.client.BlockEntry;
+import com.microsoft.windowsazure.services.blob.client.BlockSearchMode;
+import com.microsoft.windowsazure.services.blob.client.CloudBlockBlob;
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+import com.yammer.storage.file.Abortable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newLinkedList;
+
+// Stages fixed size blocks concurrently and commits the block list on close
+public class ParallelBlockOutputStream extends OutputStream implements Abortable {
+
+    // Azure requires every block id in a blob to have the same length
+    private static final String BLOCK_ID_FORMAT = "%010d-%s";
+    private static final Pattern BLOCK_ID_PATTERN = Pattern.compile("[0-9]{10}-[0-9a-f]{32}");
+
+    static String getBlockId(int index, String writerId) {
+        return BaseEncoding.base64().encode(String.format(BLOCK_ID_FORMAT, index, writerId).getBytes(Charsets.UTF_8));
+    }
+
+    // Whether new blocks can be appended to a blob with the given committed blocks
+    public static boolean canAppendTo(List<BlockEntry> committedBlocks) {
+        for (final BlockEntry block : committedBlocks) {
+            final String blockId;
+            try {
+                blockId = new String(BaseEncoding.base64().decode(block.getId()), Charsets.UTF_8);
+            }
+            catch (IllegalArgumentException e) {
+                return false;
+            }
+
+            if (!BLOCK_ID_PATTERN.matcher(blockId).matches()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private final CloudBlockBlob blob;
+    private final ExecutorService executor;
+    private final int blockSize;
+    private final Semaphore blocksInFlight;
+    private final Counter inFlightCounter;
+    private final Meter uploadedBytes;
+    private final AccessCondition commitCondition;
+
+    // Random per stream, so concurrent writers never overwrite each other's staged blocks
+    private final String writerId = UUID.randomUUID().toString().replace("-", "");
+
+    private final List<BlockEntry> blocks;
+    private final List<Future<Void>> pending = newLinkedList();
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    private byte[] buffer;
+    private int position = 0;
+    private boolean closed = false;
+
+    public ParallelBlockOutputStream(CloudBlockBlob blob, ExecutorService executor, int blockSize, int maxBlocksInFlight, Counter inFlightCounter, Meter uploadedBytes) {
+        this(blob, executor, blockSize, maxBlocksInFlight, inFlightCounter, uploadedBytes, Collections.<BlockEntry>emptyList(), AccessCondition.generateEmptyCondition());
+    }
+
+    // Appends to the committed blocks, failing the commit unless commitCondition still holds
+    public ParallelBlockOutputStream(CloudBlockBlob blob, ExecutorService executor, int blockSize, int maxBlocksInFlight, Counter inFlightCounter, Meter uploadedBytes,
+                                     List<BlockEntry> committedBlocks, AccessCondition commitCondition) {
+        this.blob = blob;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.blocksInFlight = new Semaphore(maxBlocksInFlight);
+        this.inFlightCounter = inFlightCounter;
+        this.uploadedBytes = uploadedBytes;
+        this.commitCondition = commitCondition;
+
+        blocks = newArrayList();
+        for (final BlockEntry block : committedBlocks) {
+            blocks.add(new BlockEntry(block.getId(), BlockSearchMode.COMMITTED));
+        }
+
+        buffer = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            final int count = Math.min(len, blockSize - position);
+            System.arraycopy(b, off, buffer, position, count);
+
+            position += count;
+            off += count;
+            len -= count;
+
+            if (position == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        checkPending(false);
+
+        try {
+            blocksInFlight.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to stage block");
+        }
+
+        final String blockId = getBlockId(blocks.size(), writerId);
+        final byte[] data = buffer;
+        final int length = position;
+
+        blocks.add(new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED));
+
+        // Counted from inside the task, so blocks cancelled before they started don't leave the gauge behind
+        pending.add(executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws StorageException, IOException {
+                inFlightCounter.inc();
+                try {
+                    blob.uploadBlock(blockId, new ByteArrayInputStream(data, 0, length), length);
+                    uploadedBytes.mark(length);
+                    return null;
+                }
+                finally {
+                    freeBuffers.offer(data);
+                    inFlightCounter.dec();
+                    blocksInFlight.release();
+                }
+            }
+        }));
+
+        final byte[] free = freeBuffers.poll();
+        buffer = free == null ? new byte[blockSize] : free;
+        position = 0;
+    }
+
+    // Surfaces the first failed block, optionally waiting for all staged blocks to finish. Blocks that staged are
+    // dropped, so each check only looks at those still in flight.
+    private void checkPending(boolean wait) throws IOException {
+        final Iterator<Future<Void>> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            final Future<Void> future = iterator.next();
+            if (!wait && !future.isDone()) {
+                continue;
+            }
+
+            try {
+                future.get();
+                iterator.remove();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for staged blocks");
+            }
+            catch (ExecutionException e) {
+                closed = true;
+                cancelPending();
+                throw new IOException("Failed to stage block for " + blob.getUri(), e.getCause());
+            }
+        }
+    }
+
+    private void cancelPending() {
+        for (final Future<Void> future : pending) {
+            future.cancel(true);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        if (position > 0) {
+            submitBlock();
+        }
+
+        closed = true;
+        checkPending(true);
+
+        try {
+            blob.commitBlockList(blocks, commitCondition, null, null);
+        }
+        catch (StorageException e) {
+            throw new IOException(e);
+        }
+        finally {
+            buffer = null;
+            freeBuffers.clear();
+        }
+    }
+
+    // Nothing is committed, Azure garbage collects the staged blocks by itself
+    @Override
+    public void abort() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        cancelPending();
+
+        buffer = null;
+        freeBuffers.clear();
+    }
+}
@@ -0,0 +1,226 @@
+package com.yammer.storage.file.azure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.google.common.base.Optional;
+import com.microsoft.windowsazure.services.blob.client.CloudBlockBlob;
+import com.microsoft.windowsazure.services.core.storage.AccessCondition;
+import com.microsoft.windowsazure.services.core.storage.OperationContext;
+import com.microsoft.windowsazure.services.core.storage.StorageException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Fetches byte ranges of a blob concurrently and hands them back in order, keeping at most maxRangesInFlight ranges buffered
+public class ParallelRangeInputStream extends InputStream {
+
+    private final CloudBlockBlob blob;
+    private final ExecutorService executor;
+    private final int rangeSize;
+    private final int maxRangesInFlight;
+    private final Counter inFlightCounter;
+    private final Meter downloadedBytes;
+
+    private final long length;
+    private final AccessCondition accessCondition;
+    private final Deque<Future<byte[]>> ranges = new ArrayDeque<>();
+
+    // Offset of the next range to be requested, and of the next byte to be read
+    private long nextRangeOffset;
+    private long position;
+
+    private byte[] buffer = new byte[0];
+    private int bufferPosition = 0;
+    private boolean closed = false;
+
+    public ParallelRangeInputStream(CloudBlockBlob blob, ExecutorService executor, int rangeSize, int maxRangesInFlight, Counter inFlightCounter, Meter downloadedBytes) throws StorageException {
+        this(blob, executor, rangeSize, maxRangesInFlight, inFlightCounter, downloadedBytes, 0, Optional.<String>absent());
+    }
+
+    // Starts reading at the offset, and only if the blob still has the given etag
+    public ParallelRangeInputStream(CloudBlockBlob blob, ExecutorService executor, int rangeSize, int maxRangesInFlight, Counter inFlightCounter, Meter downloadedBytes,
+                                    long offset, Optional<String> etag) throws StorageException {
+        this.blob = blob;
+        this.executor = executor;
+        this.rangeSize = rangeSize;
+        this.maxRangesInFlight = maxRangesInFlight;
+        this.inFlightCounter = inFlightCounter;
+        this.downloadedBytes = downloadedBytes;
+
+        if (etag.isPresent()) {
+            blob.downloadAttributes(AccessCondition.generateIfMatchCondition(etag.get()), null, null);
+        }
+        else {
+            blob.downloadAttributes();
+        }
+
+        // Fail the download rather than mixing ranges if the blob changes underneath us
+        length = blob.getProperties().getLength();
+        accessCondition = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+
+        nextRangeOffset = Math.min(offset, length);
+        position = nextRangeOffset;
+
+        fillReadAhead();
+    }
+
+    private void fillReadAhead() {
+        while (ranges.size() < maxRangesInFlight && nextRangeOffset < length) {
+            final long offset = nextRangeOffset;
+            final int count = (int) Math.min(rangeSize, length - offset);
+
+            ranges.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws StorageException {
+                    // Counted once running, ranges cancelled before they start never reach the finally below
+                    inFlightCounter.inc();
+                    try {
+                        final byte[] data = new byte[count];
+                        // downloadRange, unlike the other blob calls, does not default a missing operation context
+                        blob.downloadRange(offset, count, data, 0, accessCondition, null, new OperationContext());
+                        downloadedBytes.mark(count);
+                        return data;
+                    }
+                    finally {
+                        inFlightCounter.dec();
+                    }
+                }
+            }));
+
+            nextRangeOffset += count;
+        }
+    }
+
+    // Returns false once the blob has been fully consumed
+    private boolean ensureBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+
+        while (bufferPosition == buffer.length) {
+            final Future<byte[]> next = ranges.poll();
+            if (next == null) {
+                return false;
+            }
+
+            try {
+                buffer = next.get();
+                bufferPosition = 0;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for blob range");
+            }
+            catch (ExecutionException e) {
+                cancelRanges();
+                throw new IOException("Failed to download range of " + blob.getUri(), e.getCause());
+            }
+
+            fillReadAhead();
+        }
+
+        return true;
+    }
+
+    private void cancelRanges() {
+        for (final Future<byte[]> range : ranges) {
+            range.cancel(true);
+        }
+
+        ranges.clear();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureBuffer()) {
+            return -1;
+        }
+
+        position++;
+        return buffer[bufferPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureBuffer()) {
+            return -1;
+        }
+
+        final int count = Math.min(len, buffer.length - bufferPosition);
+        System.arraycopy(buffer, bufferPosition, b, off, count);
+        bufferPosition += count;
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || closed) {
+            return 0;
+        }
+
+        final long target = Math.min(length, position + n);
+        final long skipped = target - position;
+
+        if (skipped <= buffer.length - bufferPosition) {
+            bufferPosition += skipped;
+        }
+        else {
+            // Drop everything read ahead and restart the ranges from the new position
+            cancelRanges();
+            buffer = new byte[0];
+            bufferPosition = 0;
+            nextRangeOffset = target;
+            fillReadAhead();
+        }
+
+        position = target;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return closed ? 0 : buffer.length - bufferPosition;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            cancelRanges();
+            buffer = null;
+        }
+    }
+}
@@ -0,0 +1,507 @@
+package com.yammer.storage.file.caching;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.ForwardingFileStorage;
+import io.dropwizard.util.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps copies of recently downloaded files on local disk within a byte budget. Files are assumed not to change
+// once written, which holds for chunks. Concurrent reads of a file that isn't cached share a single fetch.
+public class CachingFileStorage extends ForwardingFileStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingFileStorage.class);
+
+    // Everything is cached under one namespace, so leftovers can be cleared without knowing the originals
+    private static final String CACHE_NAMESPACE = "cache";
+
+    private static class Entry {
+        private final String path;
+        private final long size;
+        private final AtomicLong reads = new AtomicLong();
+        private volatile long lastRead;
+
+        private Entry(String path, long size, long now) {
+            this.path = path;
+            this.size = size;
+            this.lastRead = now;
+        }
+
+        private void recordRead(long now) {
+            reads.incrementAndGet();
+            lastRead = now;
+        }
+    }
+
+    private final FileStorage delegate;
+    private final FileStorage cache;
+    private final long maxBytes;
+    private final EvictionPolicy policy;
+    private final ListeningExecutorService downloadExecutor;
+
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, ListenableFuture<Boolean>> fetches = Maps.newConcurrentMap();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    // Logical clock for recency, cheaper and more precise than the wall clock
+    private final AtomicLong clock = new AtomicLong();
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter sharedFetches;
+    private final Meter evictions;
+    private final Meter evictedBytes;
+
+    public CachingFileStorage(String name, FileStorage delegate, FileStorage cache, Size maxSize, EvictionPolicy policy,
+                              ExecutorService downloadExecutor, MetricRegistry registry) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.maxBytes = maxSize.toBytes();
+        this.policy = policy;
+        this.downloadExecutor = MoreExecutors.listeningDecorator(downloadExecutor);
+
+        hits = registry.meter(String.format("%s-hits", name));
+        misses = registry.meter(String.format("%s-misses", name));
+        sharedFetches = registry.meter(String.format("%s-shared-fetches", name));
+        evictions = registry.meter(String.format("%s-evictions", name));
+        evictedBytes = registry.meter(String.format("%s-evicted-bytes", name));
+
+        registry.register(String.format("%s-cached-bytes", name), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cachedBytes.get();
+            }
+        });
+
+        registry.register(String.format("%s-cached-files", name), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return entries.size();
+            }
+        });
+    }
+
+    @Override
+    protected FileStorage delegate() {
+        return delegate;
+    }
+
+    // Length prefixed so that no two namespace and path pairs map to the same name
+    private static String getCachePath(String namespace, String path) {
+        return namespace.length() + "-" + namespace + "-" + path;
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void start() throws Exception {
+        super.start();
+        cache.start();
+
+        cache.deleteAll(CACHE_NAMESPACE, cache.list(CACHE_NAMESPACE, ""));
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        cache.stop();
+        super.stop();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    public boolean isCached(String namespace, String path) {
+        return entries.containsKey(getCachePath(namespace, path));
+    }
+
+    private boolean evictsBefore(Entry a, Entry b) {
+        if (policy == EvictionPolicy.LFU && a.reads.get() != b.reads.get()) {
+            return a.reads.get() < b.reads.get();
+        }
+
+        return a.lastRead < b.lastRead;
+    }
+
+    private void remove(Entry entry) {
+        cachedBytes.addAndGet(-entry.size);
+
+        try {
+            cache.delete(CACHE_NAMESPACE, entry.path);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to remove {} from the cache", entry.path, e);
+        }
+    }
+
+    // A linear scan, there are only as many entries as chunks fit in the budget
+    private void evict() {
+        Entry victim = null;
+        for (final Entry entry : entries.values()) {
+            if (victim == null || this.evictsBefore(entry, victim)) {
+                victim = entry;
+            }
+        }
+
+        if (victim != null && entries.remove(victim.path, victim)) {
+            evictions.mark();
+            evictedBytes.mark(victim.size);
+            this.remove(victim);
+        }
+    }
+
+    // Makes room for bytes about to be cached, false if they can't fit even once everything cached is evicted.
+    // Fills reserve as they go, so concurrent fills never take the cache over its budget between them.
+    private synchronized boolean reserve(long bytes) {
+        while (cachedBytes.get() + bytes > maxBytes && !entries.isEmpty()) {
+            this.evict();
+        }
+
+        if (cachedBytes.get() + bytes > maxBytes) {
+            return false;
+        }
+
+        cachedBytes.addAndGet(bytes);
+        return true;
+    }
+
+    private void invalidate(String namespace, String path) {
+        final Entry entry = entries.remove(getCachePath(namespace, path));
+        if (entry != null) {
+            this.remove(entry);
+        }
+    }
+
+    private static boolean getResult(ListenableFuture<Boolean> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private InputStream openCached(String namespace, String path) throws IOException {
+        try {
+            return cache.download(CACHE_NAMESPACE, getCachePath(namespace, path));
+        }
+        catch (FileNotFoundException e) {
+            LOG.debug("{}/{} was evicted before it could be read", namespace, path);
+            return delegate.download(namespace, path);
+        }
+    }
+
+    // The first reader of a file that isn't cached fills the cache as it reads, others wait for the fill and read the copy
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        final String cachePath = getCachePath(namespace, path);
+
+        final Entry entry = entries.get(cachePath);
+        if (entry != null) {
+            entry.recordRead(clock.incrementAndGet());
+            hits.mark();
+            return this.openCached(namespace, path);
+        }
+
+        final SettableFuture<Boolean> fetch = SettableFuture.create();
+        final ListenableFuture<Boolean> existing = fetches.putIfAbsent(cachePath, fetch);
+        if (existing != null) {
+            sharedFetches.mark();
+            return getResult(existing) ? this.openCached(namespace, path) : delegate.download(namespace, path);
+        }
+
+        // Another fetch may have finished between the lookup and claiming this one
+        if (entries.containsKey(cachePath)) {
+            hits.mark();
+            fetches.remove(cachePath, fetch);
+            fetch.set(true);
+            return this.openCached(namespace, path);
+        }
+
+        misses.mark();
+
+        final InputStream in;
+        try {
+            in = delegate.download(namespace, path);
+        }
+        catch (IOException | RuntimeException e) {
+            fetches.remove(cachePath, fetch);
+            fetch.set(false);
+            throw e;
+        }
+
+        // The read goes ahead uncached if the cache can't be written
+        try {
+            // Left behind by a fetch that failed part way through
+            cache.delete(CACHE_NAMESPACE, cachePath);
+
+            return new FillingInputStream(in, cache.upload(CACHE_NAMESPACE, cachePath), cachePath, fetch);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed caching {}", cachePath, e);
+            fetches.remove(cachePath, fetch);
+            fetch.set(false);
+            return in;
+        }
+    }
+
+    // Cached copies are transferred straight from the cache, anything else is read through the fill
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        final Entry entry = entries.get(getCachePath(namespace, path));
+        if (entry != null) {
+            entry.recordRead(clock.incrementAndGet());
+            hits.mark();
+
+            try {
+                return FileStorages.transferTo(cache, CACHE_NAMESPACE, getCachePath(namespace, path), target);
+            }
+            catch (FileNotFoundException e) {
+                LOG.debug("{}/{} was evicted before it could be read", namespace, path);
+            }
+        }
+
+        try (final InputStream in = this.download(namespace, path)) {
+            return ByteStreams.copy(Channels.newChannel(in), target);
+        }
+    }
+
+    // Copies what the first reader reads into the cache, reserving space as it goes. A file that turns out too big
+    // for the budget, or a reader that stops before the end, abandons the copy but the read itself carries on.
+    private class FillingInputStream extends FilterInputStream {
+        private final String cachePath;
+        private final SettableFuture<Boolean> fetch;
+
+        private OutputStream out;
+        private long reserved = 0;
+
+        private FillingInputStream(InputStream in, OutputStream out, String cachePath, SettableFuture<Boolean> fetch) {
+            super(in);
+            this.out = out;
+            this.cachePath = cachePath;
+            this.fetch = fetch;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (out == null) {
+                return read;
+            }
+
+            if (read < 0) {
+                this.complete();
+            }
+            else if (read > 0) {
+                this.copy(b, off, read);
+            }
+
+            return read;
+        }
+
+        // A file over the whole budget is given up on before anything is evicted for it
+        private void copy(byte[] b, int off, int len) {
+            if (reserved + len > maxBytes || !reserve(len)) {
+                LOG.debug("{} is too big to cache", cachePath);
+                this.abandon();
+                return;
+            }
+
+            reserved += len;
+            try {
+                out.write(b, off, len);
+            }
+            catch (IOException e) {
+                LOG.warn("Failed caching {}", cachePath, e);
+                this.abandon();
+            }
+        }
+
+        private void complete() {
+            try {
+                out.close();
+                out = null;
+
+                entries.put(cachePath, new Entry(cachePath, reserved, clock.incrementAndGet()));
+                this.finish(true);
+            }
+            catch (IOException e) {
+                LOG.warn("Failed caching {}", cachePath, e);
+                this.abandon();
+            }
+        }
+
+        private void abandon() {
+            FileStorages.abort(out);
+            out = null;
+
+            cachedBytes.addAndGet(-reserved);
+            reserved = 0;
+
+            this.finish(false);
+        }
+
+        private void finish(boolean cached) {
+            fetches.remove(cachePath, fetch);
+            fetch.set(cached);
+        }
+
+        // Skipped bytes never reach the copy, so it can't be completed
+        @Override
+        public long skip(long n) throws IOException {
+            if (out != null && n > 0) {
+                this.abandon();
+            }
+
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                this.abandon();
+            }
+
+            in.close();
+        }
+    }
+
+    // Reads fill the cache with blocking calls, so async downloads run on our own executor. Everything else is
+    // as async as the delegate.
+    @Override
+    public ListenableFuture<Long> downloadAsync(final String namespace, final String path, final ByteSink sink) {
+        return downloadExecutor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return FileStorages.download(CachingFileStorage.this, namespace, path, sink);
+            }
+        });
+    }
+
+    // Writes replace the remote copy, so any cached copy is stale from here on
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        this.invalidate(namespace, path);
+        return super.upload(namespace, path);
+    }
+
+    @Override
+    public OutputStream append(String namespace, String path) throws IOException {
+        this.invalidate(namespace, path);
+        return super.append(namespace, path);
+    }
+
+    @Override
+    public ListenableFuture<Long> uploadAsync(String namespace, String path, ByteSource source) {
+        this.invalidate(namespace, path);
+        return super.uploadAsync(namespace, path, source);
+    }
+
+    @Override
+    public ListenableFuture<Boolean> deleteAsync(final String namespace, final String path) {
+        return Futures.transform(super.deleteAsync(namespace, path), new Function<Boolean, Boolean>() {
+            @Override
+            public Boolean apply(Boolean deleted) {
+                CachingFileStorage.this.invalidate(namespace, path);
+                return deleted;
+            }
+        });
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) throws IOException {
+        this.invalidate(namespace, path);
+        return super.delete(namespace, path);
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        for (final String path : paths) {
+            this.invalidate(namespace, path);
+        }
+
+        return super.deleteAll(namespace, paths);
+    }
+
+    @Override
+    public boolean delete(String namespace) throws IOException {
+        for (final Entry entry : entries.values()) {
+            if (entry.path.startsWith(getCachePath(namespace, "")) && entries.remove(entry.path, entry)) {
+                this.remove(entry);
+            }
+        }
+
+        return super.delete(namespace);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
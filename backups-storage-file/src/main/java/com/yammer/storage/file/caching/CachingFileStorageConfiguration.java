@@ -0,0 +1,59 @@
+package com.yammer.storage.file.caching;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.yammer.storage.file.local.LocalFileStorageConfiguration;
+import io.dropwizard.util.Size;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+
+@SuppressWarnings("FieldCanBeLocal")
+public class CachingFileStorageConfiguration {
+
+    // Where cached files are kept, anything left there by a previous run is removed on startup
+    @Valid
+    @NotNull
+    @JsonProperty("storage")
+    private LocalFileStorageConfiguration storageConfiguration;
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Size maxSize = Size.gigabytes(10);
+
+    @NotNull
+    @JsonProperty
+    private EvictionPolicy eviction = EvictionPolicy.LRU;
+
+    public LocalFileStorageConfiguration getStorageConfiguration() {
+        return storageConfiguration;
+    }
+
+    public Size getMaxSize() {
+        return maxSize;
+    }
+
+    public EvictionPolicy getEviction() {
+        return eviction;
+    }
+}
@@ -0,0 +1,978 @@
+package com.yammer.storage.file.erasure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import io.dropwizard.util.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// Splits every file into data and parity shards kept on separate storages, typically one per disk, so that any
+// parityShards of them can be lost. Files are coded in stripes of one unit per shard, each unit carrying a header
+// of the unit size, the data length of its stripe and a checksum, so corrupt units are treated like missing ones.
+public class ErasureCodedFileStorage implements FileStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ErasureCodedFileStorage.class);
+
+    private static final int HEADER_SIZE = 12;
+
+    private final List<FileStorage> shards;
+    private final ReedSolomon codec;
+    private final int unitSize;
+    private final ListeningExecutorService workers;
+
+    // Files found damaged while reading, waiting for a repair
+    private final Set<Map.Entry<String, String>> degraded = Sets.newConcurrentHashSet();
+
+    private final Meter reconstructedStripes;
+    private final Meter repairedShards;
+    private final Meter failedShardWrites;
+
+    public ErasureCodedFileStorage(String name, List<? extends FileStorage> shards, int dataShards, int parityShards, Size unitSize, MetricRegistry registry) {
+        if (shards.size() != dataShards + parityShards) {
+            throw new IllegalArgumentException(String.format("Expected %d shard storages, got %d", dataShards + parityShards, shards.size()));
+        }
+
+        this.shards = ImmutableList.copyOf(shards);
+        this.codec = new ReedSolomon(dataShards, parityShards);
+        this.unitSize = (int) unitSize.toBytes();
+
+        // Reads and writes of a stripe go to every disk at once, and stripes are read ahead and written behind
+        workers = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("erasure-shard-worker-%d")
+                .setDaemon(true)
+                .build()));
+
+        reconstructedStripes = registry.meter(String.format("%s-reconstructed-stripes", name));
+        repairedShards = registry.meter(String.format("%s-repaired-shards", name));
+        failedShardWrites = registry.meter(String.format("%s-failed-shard-writes", name));
+    }
+
+    private static <T> T getResult(ListenableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static byte[] createHeader(int unitSize, int dataLength, byte[] unit) {
+        final CRC32 crc = new CRC32();
+        crc.update(unit, 0, unit.length);
+
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(unitSize)
+                .putInt(dataLength)
+                .putInt((int) crc.getValue())
+                .array();
+    }
+
+    private static class Unit {
+        private final int dataLength;
+        private final byte[] data;
+
+        private Unit(int dataLength, byte[] data) {
+            this.dataLength = dataLength;
+            this.data = data;
+        }
+    }
+
+    // Returns null at the end of the shard
+    private static Unit readUnit(InputStream in) throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+
+        final byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte) first;
+        ByteStreams.readFully(in, header, 1, HEADER_SIZE - 1);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(header);
+        final int unitSize = buffer.getInt();
+        final int dataLength = buffer.getInt();
+        final int checksum = buffer.getInt();
+
+        final byte[] data = new byte[unitSize];
+        ByteStreams.readFully(in, data);
+
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Checksum mismatch in shard unit");
+        }
+
+        return new Unit(dataLength, data);
+    }
+
+    public int getDataShards() {
+        return codec.getDataShards();
+    }
+
+    public int getParityShards() {
+        return codec.getParityShards();
+    }
+
+    private void reportDegraded(String namespace, String path) {
+        if (degraded.add(Maps.immutableEntry(namespace, path))) {
+            LOG.warn("{}/{} is degraded, waiting for repair", namespace, path);
+        }
+    }
+
+    public Set<Map.Entry<String, String>> getReportedDegraded() {
+        return ImmutableSet.copyOf(degraded);
+    }
+
+    private int countShards(String namespace, String path) {
+        int count = 0;
+        for (final FileStorage shard : shards) {
+            try {
+                if (shard.exists(namespace, path)) {
+                    count++;
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to check {}/{} on {}", namespace, path, shard, e);
+            }
+        }
+
+        return count;
+    }
+
+    // Missing shards are noticed straight away, corrupt ones only once they have been read
+    public boolean isDegraded(String namespace, String path) {
+        if (degraded.contains(Maps.immutableEntry(namespace, path))) {
+            return true;
+        }
+
+        final int count = this.countShards(namespace, path);
+        return count > 0 && count < shards.size();
+    }
+
+    private static class Stripe {
+        private final int dataLength;
+        private final byte[][] units;
+
+        private Stripe(int dataLength, byte[][] units) {
+            this.dataLength = dataLength;
+            this.units = units;
+        }
+
+        private int getUnitSize() {
+            return units[0].length;
+        }
+    }
+
+    // Reads stripes from the fewest shards needed, data shards first, falling back to parity on failure
+    private class StripeReader {
+        private final String namespace;
+        private final String path;
+        private final InputStream[] ins;
+        private final long[] positions;
+        private final boolean[] failed;
+        private volatile int unitSize = -1;
+        private long stripe = 0;
+
+        private StripeReader(String namespace, String path, Collection<Integer> excluded) {
+            this.namespace = namespace;
+            this.path = path;
+
+            ins = new InputStream[shards.size()];
+            positions = new long[shards.size()];
+            failed = new boolean[shards.size()];
+
+            for (final int shard : excluded) {
+                failed[shard] = true;
+            }
+        }
+
+        // Shards are opened lazily and skip forward, as parity is only read once something is missing
+        private Unit read(int shard, long stripe) throws IOException {
+            if (ins[shard] == null) {
+                ins[shard] = shards.get(shard).download(namespace, path);
+            }
+
+            if (positions[shard] < stripe) {
+                ByteStreams.skipFully(ins[shard], (stripe - positions[shard]) * (HEADER_SIZE + unitSize));
+                positions[shard] = stripe;
+            }
+
+            final Unit unit = readUnit(ins[shard]);
+            if (unit != null) {
+                if (unitSize >= 0 && unit.data.length != unitSize) {
+                    throw new IOException("Inconsistent unit size in shard");
+                }
+
+                positions[shard]++;
+            }
+
+            return unit;
+        }
+
+        private void fail(int shard, Exception e) {
+            LOG.warn("Failed reading shard {} of {}/{} from {}", shard, namespace, path, shards.get(shard), e);
+
+            failed[shard] = true;
+            Closeables.closeQuietly(ins[shard]);
+            reportDegraded(namespace, path);
+        }
+
+        // Returns null after the last stripe, all shards are filled in when parity is needed too
+        private Stripe next(boolean parity) throws IOException {
+            final int dataShards = codec.getDataShards();
+            final byte[][] units = new byte[shards.size()][];
+            final boolean[] present = new boolean[shards.size()];
+            final List<Integer> ended = Lists.newArrayList();
+
+            int available = 0;
+            int dataLength = -1;
+            int candidate = 0;
+
+            while (available < dataShards) {
+                final List<Integer> batch = Lists.newArrayList();
+                while (batch.size() < dataShards - available && candidate < shards.size()) {
+                    if (!failed[candidate]) {
+                        batch.add(candidate);
+                    }
+
+                    candidate++;
+                }
+
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                final List<ListenableFuture<Unit>> reads = Lists.newArrayListWithCapacity(batch.size());
+                for (final int shard : batch) {
+                    final long current = stripe;
+                    reads.add(workers.submit(new Callable<Unit>() {
+                        @Override
+                        public Unit call() throws IOException {
+                            return StripeReader.this.read(shard, current);
+                        }
+                    }));
+                }
+
+                for (int i = 0;i < batch.size();i++) {
+                    final int shard = batch.get(i);
+                    try {
+                        final Unit unit = getResult(reads.get(i));
+                        if (unit == null) {
+                            ended.add(shard);
+                        }
+                        else {
+                            units[shard] = unit.data;
+                            present[shard] = true;
+                            dataLength = unit.dataLength;
+                            available++;
+                        }
+                    }
+                    catch (IOException | RuntimeException e) {
+                        this.fail(shard, e);
+                    }
+                }
+
+                if (available == 0 && !ended.isEmpty()) {
+                    return null;
+                }
+            }
+
+            // Shards that ran out while others still had stripes have been truncated
+            for (final int shard : ended) {
+                this.fail(shard, new IOException("Shard is truncated"));
+            }
+
+            if (available < dataShards) {
+                throw new IOException(String.format("Only %d of %d shards of %s/%s are readable, %d needed",
+                        available, shards.size(), namespace, path, dataShards));
+            }
+
+            for (final byte[] unit : units) {
+                if (unit != null) {
+                    unitSize = unit.length;
+                }
+            }
+
+            boolean complete = true;
+            for (int shard = 0;shard < (parity ? shards.size() : dataShards);shard++) {
+                complete &= present[shard];
+            }
+
+            if (!complete) {
+                if (parity) {
+                    codec.reconstruct(units, present, unitSize);
+                }
+                else {
+                    codec.reconstructData(units, present, unitSize);
+                }
+
+                reconstructedStripes.mark();
+            }
+
+            stripe++;
+            return new Stripe(dataLength, units);
+        }
+
+        private void close() {
+            for (final InputStream in : ins) {
+                Closeables.closeQuietly(in);
+            }
+        }
+    }
+
+    // Decodes a stripe ahead of the reader, so disks keep busy while the previous stripe is consumed
+    private class ErasureCodedInputStream extends InputStream {
+        private final StripeReader reader;
+
+        private ListenableFuture<Stripe> next;
+        private Stripe current = null;
+        private int position = 0;
+        private boolean finished = false;
+
+        private ErasureCodedInputStream(String namespace, String path) {
+            reader = new StripeReader(namespace, path, ImmutableList.<Integer>of());
+            next = this.readAhead();
+        }
+
+        private ListenableFuture<Stripe> readAhead() {
+            return workers.submit(new Callable<Stripe>() {
+                @Override
+                public Stripe call() throws IOException {
+                    return reader.next(false);
+                }
+            });
+        }
+
+        private boolean fill() throws IOException {
+            while (!finished && (current == null || position >= current.dataLength)) {
+                current = getResult(next);
+                position = 0;
+
+                if (current == null) {
+                    finished = true;
+                    next = null;
+                }
+                else {
+                    next = this.readAhead();
+                }
+            }
+
+            return !finished;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!this.fill()) {
+                return -1;
+            }
+
+            final byte b = current.units[position / current.getUnitSize()][position % current.getUnitSize()];
+            position++;
+            return b & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!this.fill()) {
+                return -1;
+            }
+
+            final int size = current.getUnitSize();
+            final int count = Math.min(len, Math.min(current.dataLength - position, size - position % size));
+            System.arraycopy(current.units[position / size], position % size, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (next != null) {
+                try {
+                    getResult(next);
+                }
+                catch (IOException e) {
+                    LOG.trace("Ignoring read ahead failure on close", e);
+                }
+            }
+
+            reader.close();
+        }
+    }
+
+    // Stripes are encoded while the previous one is still being written to the disks
+    private class ErasureCodedOutputStream extends OutputStream implements Abortable {
+        private final String namespace;
+        private final String path;
+        private final OutputStream[] outs;
+        private final boolean[] failed;
+
+        private byte[][] units;
+        private int filled = 0;
+        private List<ListenableFuture<?>> pending = ImmutableList.of();
+        private boolean closed = false;
+
+        private ErasureCodedOutputStream(String namespace, String path, OutputStream[] outs) throws IOException {
+            this.namespace = namespace;
+            this.path = path;
+            this.outs = outs;
+
+            failed = new boolean[outs.length];
+            for (int i = 0;i < outs.length;i++) {
+                failed[i] = outs[i] == null;
+            }
+
+            units = this.allocate();
+            this.checkAvailable();
+        }
+
+        private byte[][] allocate() {
+            final byte[][] allocated = new byte[shards.size()][];
+            for (int i = 0;i < allocated.length;i++) {
+                allocated[i] = new byte[unitSize];
+            }
+
+            return allocated;
+        }
+
+        private void checkAvailable() throws IOException {
+            int available = 0;
+            for (final boolean shardFailed : failed) {
+                if (!shardFailed) {
+                    available++;
+                }
+            }
+
+            if (available < codec.getDataShards()) {
+                throw new IOException(String.format("Only %d of %d shards of %s/%s are writable, %d needed",
+                        available, shards.size(), namespace, path, codec.getDataShards()));
+            }
+        }
+
+        private void fail(int shard, Exception e) {
+            LOG.warn("Failed writing shard {} of {}/{} to {}", shard, namespace, path, shards.get(shard), e);
+
+            failed[shard] = true;
+            failedShardWrites.mark();
+            reportDegraded(namespace, path);
+            abandon(shard, outs[shard], namespace, path);
+        }
+
+        private void await() throws IOException {
+            for (int shard = 0;shard < pending.size();shard++) {
+                try {
+                    if (pending.get(shard) != null) {
+                        getResult(pending.get(shard));
+                    }
+                }
+                catch (IOException | RuntimeException e) {
+                    this.fail(shard, e);
+                }
+            }
+
+            pending = ImmutableList.of();
+            this.checkAvailable();
+        }
+
+        private void flushStripe() throws IOException {
+            final byte[][] stripe = units;
+            final int dataLength = filled;
+            codec.encodeParity(stripe, unitSize);
+
+            this.await();
+
+            final List<ListenableFuture<?>> writes = Lists.newArrayListWithCapacity(shards.size());
+            for (int shard = 0;shard < shards.size();shard++) {
+                if (failed[shard]) {
+                    writes.add(null);
+                    continue;
+                }
+
+                final OutputStream out = outs[shard];
+                final byte[] unit = stripe[shard];
+                writes.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        out.write(createHeader(unit.length, dataLength, unit));
+                        out.write(unit);
+                        return null;
+                    }
+                }));
+            }
+
+            pending = writes;
+            units = this.allocate();
+            filled = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final int stripeSize = unitSize * codec.getDataShards();
+            while (len > 0) {
+                final int count = Math.min(len, unitSize - filled % unitSize);
+                System.arraycopy(b, off, units[filled / unitSize], filled % unitSize, count);
+
+                filled += count;
+                off += count;
+                len -= count;
+
+                if (filled == stripeSize) {
+                    this.flushStripe();
+                }
+            }
+        }
+
+        // Closing syncs each shard to its disk, so that happens in parallel too
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                if (filled > 0) {
+                    this.flushStripe();
+                }
+
+                this.await();
+
+                final List<ListenableFuture<?>> closes = Lists.newArrayListWithCapacity(shards.size());
+                for (int shard = 0;shard < shards.size();shard++) {
+                    if (failed[shard]) {
+                        closes.add(null);
+                        continue;
+                    }
+
+                    final OutputStream out = outs[shard];
+                    closes.add(workers.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            out.close();
+                            return null;
+                        }
+                    }));
+                }
+
+                pending = closes;
+                this.await();
+            }
+            catch (IOException e) {
+                for (int shard = 0;shard < shards.size();shard++) {
+                    abandon(shard, outs[shard], namespace, path);
+                }
+
+                throw e;
+            }
+        }
+
+        // Writes still in flight are waited for, so none of them lands after its shard has been removed
+        @Override
+        public void abort() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            for (final ListenableFuture<?> write : pending) {
+                if (write != null) {
+                    try {
+                        getResult(write);
+                    }
+                    catch (IOException | RuntimeException ignored) {
+                        // The shard is abandoned either way
+                    }
+                }
+            }
+
+            for (int shard = 0;shard < shards.size();shard++) {
+                abandon(shard, outs[shard], namespace, path);
+            }
+        }
+    }
+
+    // Whatever a failed shard managed to write mustn't be mistaken for a complete copy
+    private void abandon(int shard, OutputStream out, String namespace, String path) {
+        try {
+            FileStorages.abort(out);
+            shards.get(shard).delete(namespace, path);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to remove partial shard {} of {}/{}", shard, namespace, path);
+        }
+    }
+
+    private OutputStream[] open(String namespace, String path, Collection<Integer> targets) {
+        final OutputStream[] outs = new OutputStream[shards.size()];
+        for (final int shard : targets) {
+            try {
+                outs[shard] = shards.get(shard).upload(namespace, path);
+            }
+            catch (IOException e) {
+                failedShardWrites.mark();
+                LOG.warn("Failed opening shard {} of {}/{} on {}", shard, namespace, path, shards.get(shard), e);
+            }
+        }
+
+        return outs;
+    }
+
+    private List<Integer> allShards() {
+        final List<Integer> all = Lists.newArrayListWithCapacity(shards.size());
+        for (int shard = 0;shard < shards.size();shard++) {
+            all.add(shard);
+        }
+
+        return all;
+    }
+
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        if (this.exists(namespace, path)) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        // Left behind by a write that didn't finish, too few to be read
+        for (final FileStorage shard : shards) {
+            shard.delete(namespace, path);
+        }
+
+        final OutputStream[] outs = this.open(namespace, path, this.allShards());
+        try {
+            final ErasureCodedOutputStream out = new ErasureCodedOutputStream(namespace, path, outs);
+            for (final OutputStream shardOut : outs) {
+                if (shardOut == null) {
+                    this.reportDegraded(namespace, path);
+                }
+            }
+
+            return out;
+        }
+        catch (IOException e) {
+            for (int shard = 0;shard < outs.length;shard++) {
+                this.abandon(shard, outs[shard], namespace, path);
+            }
+
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        if (!this.exists(namespace, path)) {
+            throw new FileNotFoundException(String.format("%s/%s not found on enough shards", namespace, path));
+        }
+
+        return new ErasureCodedInputStream(namespace, path);
+    }
+
+    // Coded files can't be extended in place, and rewriting one can't replace every shard at once, so a crash part
+    // way through could lose it. Only chunks are kept here, and they're never appended to.
+    @Override
+    public OutputStream append(String namespace, String path) {
+        throw new UnsupportedOperationException("Erasure coded files can't be appended to");
+    }
+
+    // Scans every shard in full, returning those that are missing, corrupt or short
+    private Set<Integer> verify(final String namespace, final String path) throws IOException {
+        final List<ListenableFuture<Long>> scans = Lists.newArrayListWithCapacity(shards.size());
+        for (final FileStorage shard : shards) {
+            scans.add(workers.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    try (final InputStream in = shard.download(namespace, path)) {
+                        long stripes = 0;
+                        while (readUnit(in) != null) {
+                            stripes++;
+                        }
+
+                        return stripes;
+                    }
+                    catch (IOException e) {
+                        LOG.debug("Shard of {}/{} on {} is damaged", namespace, path, shard, e);
+                        return -1L;
+                    }
+                }
+            }));
+        }
+
+        final List<Long> stripes = getResult(Futures.allAsList(scans));
+        final long expected = stripes.isEmpty() ? 0 : Collections.max(stripes);
+
+        final Set<Integer> damaged = Sets.newTreeSet();
+        for (int shard = 0;shard < stripes.size();shard++) {
+            if (stripes.get(shard) != expected) {
+                damaged.add(shard);
+            }
+        }
+
+        return damaged;
+    }
+
+    // Rebuilds any missing or corrupt shards from the intact ones, returns false if there was nothing to do
+    public boolean repair(String namespace, String path) throws IOException {
+        final Set<Integer> damaged = this.verify(namespace, path);
+        if (damaged.isEmpty()) {
+            degraded.remove(Maps.immutableEntry(namespace, path));
+            return false;
+        }
+
+        if (shards.size() - damaged.size() < codec.getDataShards()) {
+            throw new IOException(String.format("%s/%s can't be repaired, only %d of %d shards are intact",
+                    namespace, path, shards.size() - damaged.size(), shards.size()));
+        }
+
+        for (final int shard : damaged) {
+            shards.get(shard).delete(namespace, path);
+        }
+
+        final OutputStream[] outs = this.open(namespace, path, damaged);
+        final StripeReader reader = new StripeReader(namespace, path, damaged);
+
+        try {
+            Stripe stripe;
+            while ((stripe = reader.next(true)) != null) {
+                for (final int shard : damaged) {
+                    if (outs[shard] != null) {
+                        final byte[] unit = stripe.units[shard];
+                        outs[shard].write(createHeader(unit.length, stripe.dataLength, unit));
+                        outs[shard].write(unit);
+                    }
+                }
+            }
+
+            int repaired = 0;
+            for (final int shard : damaged) {
+                if (outs[shard] != null) {
+                    outs[shard].close();
+                    repaired++;
+                }
+            }
+
+            repairedShards.mark(repaired);
+            if (repaired == damaged.size()) {
+                degraded.remove(Maps.immutableEntry(namespace, path));
+            }
+
+            LOG.info("Repaired {} of {} damaged shards of {}/{}", repaired, damaged.size(), namespace, path);
+            return true;
+        }
+        catch (IOException e) {
+            for (final int shard : damaged) {
+                this.abandon(shard, outs[shard], namespace, path);
+            }
+
+            throw e;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        for (final FileStorage shard : shards) {
+            shard.start();
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        for (final FileStorage shard : shards) {
+            shard.stop();
+        }
+
+        workers.shutdown();
+    }
+
+    // Readable as long as enough shards are left
+    @Override
+    public boolean exists(String namespace, String path) throws IOException {
+        return this.countShards(namespace, path) >= codec.getDataShards();
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) throws IOException {
+        boolean deleted = false;
+        for (final FileStorage shard : shards) {
+            deleted |= shard.delete(namespace, path);
+        }
+
+        degraded.remove(Maps.immutableEntry(namespace, path));
+        return deleted;
+    }
+
+    private Set<String> filterReadable(Multiset<String> counts) {
+        final ImmutableSet.Builder<String> readable = ImmutableSet.builder();
+        for (final Multiset.Entry<String> entry : counts.entrySet()) {
+            if (entry.getCount() >= codec.getDataShards()) {
+                readable.add(entry.getElement());
+            }
+        }
+
+        return readable.build();
+    }
+
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) throws IOException {
+        final Multiset<String> counts = HashMultiset.create();
+        for (final FileStorage shard : shards) {
+            counts.addAll(shard.existsAll(namespace, paths));
+        }
+
+        return this.filterReadable(counts);
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        final ImmutableSet.Builder<String> deleted = ImmutableSet.builder();
+        for (final FileStorage shard : shards) {
+            deleted.addAll(shard.deleteAll(namespace, paths));
+        }
+
+        for (final String path : paths) {
+            degraded.remove(Maps.immutableEntry(namespace, path));
+        }
+
+        return deleted.build();
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        final Multiset<String> counts = HashMultiset.create();
+        for (final FileStorage shard : shards) {
+            counts.addAll(shard.list(namespace, prefix));
+        }
+
+        return this.filterReadable(counts);
+    }
+
+    // Reads and writes carry on with a disk gone, but it should still be noticed
+    @Override
+    public boolean ping() throws IOException {
+        for (final FileStorage shard : shards) {
+            if (!shard.ping()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Each disk holds a 1/dataShards share of every file, so the smallest disk bounds capacity
+    @Override
+    public Size getTotalSpace() throws IOException {
+        long total = Long.MAX_VALUE;
+        for (final FileStorage shard : shards) {
+            total = Math.min(total, shard.getTotalSpace().toBytes());
+        }
+
+        return Size.bytes(total * codec.getDataShards());
+    }
+
+    @Override
+    public Size getUsedSpace() throws IOException {
+        long used = 0;
+        for (final FileStorage shard : shards) {
+            used += shard.getUsedSpace().toBytes();
+        }
+
+        return Size.bytes(used * codec.getDataShards() / shards.size());
+    }
+
+    @Override
+    public Size getFreeSpace() throws IOException {
+        long free = Long.MAX_VALUE;
+        for (final FileStorage shard : shards) {
+            free = Math.min(free, shard.getFreeSpace().toBytes());
+        }
+
+        return Size.bytes(free * codec.getDataShards());
+    }
+
+    @Override
+    public boolean delete(String namespace) throws IOException {
+        boolean deleted = false;
+        for (final FileStorage shard : shards) {
+            deleted |= shard.delete(namespace);
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public String toString() {
+        return "ErasureCodedFileStorage{" +
+                "shards=" + shards +
+                ", dataShards=" + codec.getDataShards() +
+                ", parityShards=" + codec.getParityShards() +
+                '}';
+    }
+}
@@ -0,0 +1,263 @@
+package com.yammer.storage.file.erasure;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+// Systematic Reed-Solomon code over GF(2^8). The first dataShards rows of the encoding matrix are the identity,
+// so data shards are stored as is, and any dataShards of the shards are enough to recover the rest.
+public final class ReedSolomon {
+
+    private static final int FIELD_SIZE = 256;
+    private static final int GENERATOR = 0x11d;
+
+    private static final int[] EXP = new int[FIELD_SIZE * 2];
+    private static final int[] LOG = new int[FIELD_SIZE];
+
+    // Products of every pair of field elements, so the inner loops are a single lookup per byte
+    private static final byte[][] MULTIPLY = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0;i < FIELD_SIZE - 1;i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= GENERATOR;
+            }
+        }
+
+        for (int i = FIELD_SIZE - 1;i < EXP.length;i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+
+        for (int a = 0;a < FIELD_SIZE;a++) {
+            for (int b = 0;b < FIELD_SIZE;b++) {
+                MULTIPLY[a][b] = (byte) multiply(a, b);
+            }
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int divide(int a, int b) {
+        if (b == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+
+        return a == 0 ? 0 : EXP[LOG[a] + (FIELD_SIZE - 1) - LOG[b]];
+    }
+
+    private static int power(int a, int n) {
+        if (n == 0) {
+            return 1;
+        }
+
+        return a == 0 ? 0 : EXP[(LOG[a] * n) % (FIELD_SIZE - 1)];
+    }
+
+    private static int[][] multiply(int[][] a, int[][] b) {
+        final int[][] result = new int[a.length][b[0].length];
+        for (int r = 0;r < a.length;r++) {
+            for (int c = 0;c < b[0].length;c++) {
+                int value = 0;
+                for (int i = 0;i < b.length;i++) {
+                    value ^= multiply(a[r][i], b[i][c]);
+                }
+
+                result[r][c] = value;
+            }
+        }
+
+        return result;
+    }
+
+    // Gauss-Jordan elimination, any rows of a Vandermonde matrix over distinct points form an invertible matrix
+    private static int[][] invert(int[][] matrix) {
+        final int size = matrix.length;
+        final int[][] work = new int[size][size * 2];
+        for (int r = 0;r < size;r++) {
+            System.arraycopy(matrix[r], 0, work[r], 0, size);
+            work[r][size + r] = 1;
+        }
+
+        for (int c = 0;c < size;c++) {
+            int pivot = c;
+            while (pivot < size && work[pivot][c] == 0) {
+                pivot++;
+            }
+
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+
+            final int[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+
+            final int scale = divide(1, work[c][c]);
+            for (int i = 0;i < size * 2;i++) {
+                work[c][i] = multiply(work[c][i], scale);
+            }
+
+            for (int r = 0;r < size;r++) {
+                if (r != c && work[r][c] != 0) {
+                    final int factor = work[r][c];
+                    for (int i = 0;i < size * 2;i++) {
+                        work[r][i] ^= multiply(factor, work[c][i]);
+                    }
+                }
+            }
+        }
+
+        final int[][] inverse = new int[size][size];
+        for (int r = 0;r < size;r++) {
+            System.arraycopy(work[r], size, inverse[r], 0, size);
+        }
+
+        return inverse;
+    }
+
+    // Sets output to the sum of the inputs scaled by the coefficients
+    private static void combine(int[] coefficients, byte[][] inputs, byte[] output, int length) {
+        final byte[] first = MULTIPLY[coefficients[0]];
+        final byte[] input = inputs[0];
+        for (int i = 0;i < length;i++) {
+            output[i] = first[input[i] & 0xff];
+        }
+
+        for (int j = 1;j < coefficients.length;j++) {
+            final byte[] row = MULTIPLY[coefficients[j]];
+            final byte[] in = inputs[j];
+            for (int i = 0;i < length;i++) {
+                output[i] ^= row[in[i] & 0xff];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final int[][] encoding;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException(String.format("Unsupported shard counts %d+%d", dataShards, parityShards));
+        }
+
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        final int[][] vandermonde = new int[dataShards + parityShards][dataShards];
+        for (int r = 0;r < vandermonde.length;r++) {
+            for (int c = 0;c < dataShards;c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+
+        final int[][] top = new int[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+
+        encoding = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public int getTotalShards() {
+        return dataShards + parityShards;
+    }
+
+    // Fills in the parity shards from the first length bytes of the data shards
+    public void encodeParity(byte[][] shards, int length) {
+        final byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+
+        for (int p = 0;p < parityShards;p++) {
+            combine(encoding[dataShards + p], data, shards[dataShards + p], length);
+        }
+    }
+
+    // Rebuilds every shard not marked present, which need not be allocated, from any dataShards that are
+    public void reconstruct(byte[][] shards, boolean[] present, int length) {
+        this.reconstruct(shards, present, length, true);
+    }
+
+    // As above but leaves missing parity shards alone, for reads that only need the data
+    public void reconstructData(byte[][] shards, boolean[] present, int length) {
+        this.reconstruct(shards, present, length, false);
+    }
+
+    private void reconstruct(byte[][] shards, boolean[] present, int length, boolean parity) {
+        final int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0;i < shards.length && found < dataShards;i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+
+        if (found < dataShards) {
+            throw new IllegalArgumentException(String.format("Need %d shards to reconstruct, only have %d", dataShards, found));
+        }
+
+        final int[][] available = new int[dataShards][];
+        final byte[][] inputs = new byte[dataShards][];
+        for (int i = 0;i < dataShards;i++) {
+            available[i] = encoding[rows[i]];
+            inputs[i] = shards[rows[i]];
+        }
+
+        final int[][] decoding = invert(available);
+        for (int d = 0;d < dataShards;d++) {
+            if (!present[d]) {
+                if (shards[d] == null) {
+                    shards[d] = new byte[length];
+                }
+
+                combine(decoding[d], inputs, shards[d], length);
+            }
+        }
+
+        if (!parity) {
+            return;
+        }
+
+        final byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+
+        for (int p = dataShards;p < shards.length;p++) {
+            if (!present[p]) {
+                if (shards[p] == null) {
+                    shards[p] = new byte[length];
+                }
+
+                combine(encoding[p], data, shards[p], length);
+            }
+        }
+    }
+}
@@ -20,69 +20,375 @@ package com.yammer.storage.file.instrumented;
  * #L%
  */
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.AsyncFileStorage;
+import com.yammer.storage.file.ChannelFileStorage;
 import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.MovableFileStorage;
+import com.yammer.storage.file.instrumented.metrics.CapacityMonitor;
 import com.yammer.storage.file.instrumented.metrics.FreeSpaceGauge;
 import com.yammer.storage.file.instrumented.metrics.TotalSpaceGauge;
 import com.yammer.storage.file.instrumented.metrics.UsedSpaceGauge;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Size;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
-public class InstrumentedFileStorage implements FileStorage {
+public class InstrumentedFileStorage implements ChannelFileStorage, AsyncFileStorage, MovableFileStorage {
 
+    private static final Duration DEFAULT_CAPACITY_REFRESH_INTERVAL = Duration.minutes(1);
+
+    private final String name;
     private final FileStorage delegate;
+    private final MetricRegistry registry;
+
+    private final Timer uploads;
+    private final Timer downloads;
+    private final Timer appends;
+    private final Timer transfersTo;
+    private final Timer transfersFrom;
+    private final Timer existsChecks;
+    private final Timer deletes;
+    private final Timer moves;
+    private final Timer bulkExistsChecks;
+    private final Timer bulkDeletes;
+    private final Timer listings;
+    private final Timer pings;
+
+    private final Timer asyncUploads;
+    private final Timer asyncDownloads;
+    private final Timer asyncExistsChecks;
+    private final Timer asyncDeletes;
+
+    private final Meter uploadedBytes;
+    private final Meter downloadedBytes;
+
+    private final CapacityMonitor capacityMonitor;
+    private final Duration capacityRefreshInterval;
+    private final ScheduledExecutorService capacityRefresher;
 
     public InstrumentedFileStorage(String name, FileStorage delegate, MetricRegistry registry) {
+        this(name, delegate, registry, DEFAULT_CAPACITY_REFRESH_INTERVAL);
+    }
+
+    public InstrumentedFileStorage(String name, FileStorage delegate, MetricRegistry registry, Duration capacityRefreshInterval) {
+        this.name = name;
         this.delegate = delegate;
+        this.registry = registry;
+        this.capacityRefreshInterval = capacityRefreshInterval;
+
+        uploads = registry.timer(String.format("%s-upload", name));
+        downloads = registry.timer(String.format("%s-download", name));
+        appends = registry.timer(String.format("%s-append", name));
+        transfersTo = registry.timer(String.format("%s-transfer-to", name));
+        transfersFrom = registry.timer(String.format("%s-transfer-from", name));
+        existsChecks = registry.timer(String.format("%s-exists", name));
+        deletes = registry.timer(String.format("%s-delete", name));
+        moves = registry.timer(String.format("%s-move", name));
+        bulkExistsChecks = registry.timer(String.format("%s-exists-all", name));
+        bulkDeletes = registry.timer(String.format("%s-delete-all", name));
+        listings = registry.timer(String.format("%s-list", name));
+        pings = registry.timer(String.format("%s-ping", name));
+
+        // Async operations are timed until they complete, not just until a stream is handed back
+        asyncUploads = registry.timer(String.format("%s-upload-async", name));
+        asyncDownloads = registry.timer(String.format("%s-download-async", name));
+        asyncExistsChecks = registry.timer(String.format("%s-exists-async", name));
+        asyncDeletes = registry.timer(String.format("%s-delete-async", name));
 
-        registry.register(String.format("%s-used-space", name), new UsedSpaceGauge(delegate));
-        registry.register(String.format("%s-total-space", name), new TotalSpaceGauge(delegate));
-        registry.register(String.format("%s-free-space", name), new FreeSpaceGauge(delegate));
+        uploadedBytes = registry.meter(String.format("%s-uploaded-bytes", name));
+        downloadedBytes = registry.meter(String.format("%s-downloaded-bytes", name));
+
+        // Capacity can be expensive to fetch (a table query for Azure), so scrapes only see the last refreshed values
+        capacityMonitor = new CapacityMonitor(delegate);
+        capacityRefresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(String.format("%s-capacity-refresher-%%d", name))
+                .setDaemon(true)
+                .build());
+
+        registry.register(String.format("%s-used-space", name), new UsedSpaceGauge(capacityMonitor));
+        registry.register(String.format("%s-total-space", name), new TotalSpaceGauge(capacityMonitor));
+        registry.register(String.format("%s-free-space", name), new FreeSpaceGauge(capacityMonitor));
+    }
+
+    // Errors are counted per exception type, eg. azure-files-errors-FileNotFoundException
+    private void markError(Exception e) {
+        registry.counter(String.format("%s-errors-%s", name, e.getClass().getSimpleName())).inc();
     }
 
     @Override
     @SuppressWarnings("SignatureDeclareThrowsException")
     public void start() throws Exception {
         delegate.start();
+
+        capacityMonitor.run();
+        capacityRefresher.scheduleWithFixedDelay(capacityMonitor,
+                capacityRefreshInterval.getQuantity(), capacityRefreshInterval.getQuantity(), capacityRefreshInterval.getUnit());
     }
 
     @Override
     @SuppressWarnings("SignatureDeclareThrowsException")
     public void stop() throws Exception {
+        capacityRefresher.shutdownNow();
         delegate.stop();
     }
 
     @Override
     public OutputStream upload(String namespace, String path) throws IOException {
-        return delegate.upload(namespace, path);
+        final Timer.Context context = uploads.time();
+        try {
+            return new MeteredOutputStream(delegate.upload(namespace, path), uploadedBytes, Optional.of(context));
+        }
+        catch (IOException | RuntimeException e) {
+            context.stop();
+            this.markError(e);
+            throw e;
+        }
     }
 
     @Override
     public InputStream download(String namespace, String path) throws IOException {
-        return delegate.download(namespace, path);
+        final Timer.Context context = downloads.time();
+        try {
+            return new MeteredInputStream(delegate.download(namespace, path), downloadedBytes, Optional.of(context));
+        }
+        catch (IOException | RuntimeException e) {
+            context.stop();
+            this.markError(e);
+            throw e;
+        }
     }
 
     @Override
     public OutputStream append(String namespace, String path) throws IOException {
-        return delegate.append(namespace, path);
+        final Timer.Context context = appends.time();
+        try {
+            return new MeteredOutputStream(delegate.append(namespace, path), uploadedBytes, Optional.of(context));
+        }
+        catch (IOException | RuntimeException e) {
+            context.stop();
+            this.markError(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        final Timer.Context context = transfersTo.time();
+        try {
+            final long transferred = FileStorages.transferTo(delegate, namespace, path, target);
+            downloadedBytes.mark(transferred);
+            return transferred;
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, String namespace, String path) throws IOException {
+        final Timer.Context context = transfersFrom.time();
+        try {
+            final long transferred = FileStorages.transferFrom(source, delegate, namespace, path);
+            uploadedBytes.mark(transferred);
+            return transferred;
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
+    }
+
+    private <T> ListenableFuture<T> timed(final Timer.Context context, ListenableFuture<T> future) {
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                context.stop();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                context.stop();
+                if (t instanceof Exception) {
+                    markError((Exception) t);
+                }
+            }
+        });
+
+        return future;
+    }
+
+    // Over a blocking delegate the caller's executor runs our blocking calls, which are timed as usual
+    @Override
+    public boolean isAsync() {
+        return FileStorages.isAsync(delegate);
+    }
+
+    @Override
+    public ListenableFuture<Long> uploadAsync(String namespace, String path, final ByteSource source) {
+        final Timer.Context context = asyncUploads.time();
+        return timed(context, FileStorages.asAsync(delegate).uploadAsync(namespace, path, new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return new MeteredInputStream(source.openStream(), uploadedBytes, Optional.<Timer.Context>absent());
+            }
+        }));
+    }
+
+    @Override
+    public ListenableFuture<Long> downloadAsync(String namespace, String path, final ByteSink sink) {
+        final Timer.Context context = asyncDownloads.time();
+        return timed(context, FileStorages.asAsync(delegate).downloadAsync(namespace, path, new ByteSink() {
+            @Override
+            public OutputStream openStream() throws IOException {
+                return new MeteredOutputStream(sink.openStream(), downloadedBytes, Optional.<Timer.Context>absent());
+            }
+        }));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> existsAsync(String namespace, String path) {
+        final Timer.Context context = asyncExistsChecks.time();
+        return timed(context, FileStorages.asAsync(delegate).existsAsync(namespace, path));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> deleteAsync(String namespace, String path) {
+        final Timer.Context context = asyncDeletes.time();
+        return timed(context, FileStorages.asAsync(delegate).deleteAsync(namespace, path));
     }
 
     @Override
     public boolean exists(String namespace, String path) throws IOException {
-        return delegate.exists(namespace, path);
+        final Timer.Context context = existsChecks.time();
+        try {
+            return delegate.exists(namespace, path);
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public void move(String namespace, String source, String target) throws IOException {
+        final Timer.Context context = moves.time();
+        try {
+            FileStorages.move(delegate, namespace, source, target);
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
     }
 
     @Override
     public boolean delete(String namespace, String path) throws IOException {
-        return delegate.delete(namespace, path);
+        final Timer.Context context = deletes.time();
+        try {
+            return delegate.delete(namespace, path);
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) throws IOException {
+        final Timer.Context context = bulkExistsChecks.time();
+        try {
+            return delegate.existsAll(namespace, paths);
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        final Timer.Context context = bulkDeletes.time();
+        try {
+            return delegate.deleteAll(namespace, paths);
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        final Timer.Context context = listings.time();
+        try {
+            return delegate.list(namespace, prefix);
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
     }
 
     @Override
     public boolean ping() throws IOException {
-        return delegate.ping();
+        final Timer.Context context = pings.time();
+        try {
+            return delegate.ping();
+        }
+        catch (IOException | RuntimeException e) {
+            this.markError(e);
+            throw e;
+        }
+        finally {
+            context.stop();
+        }
     }
 
     @Override
@@ -109,4 +415,150 @@ public class InstrumentedFileStorage implements FileStorage {
     public String toString() {
         return delegate.toString();
     }
+
+    private class MeteredInputStream extends FilterInputStream {
+
+        private final Meter bytes;
+        private Optional<Timer.Context> context;
+
+        private MeteredInputStream(InputStream in, Meter bytes, Optional<Timer.Context> context) {
+            super(in);
+            this.bytes = bytes;
+            this.context = context;
+        }
+
+        private void stopTimer() {
+            if (context.isPresent()) {
+                context.get().stop();
+                context = Optional.absent();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                final int b = in.read();
+                if (b >= 0) {
+                    bytes.mark();
+                }
+
+                return b;
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                final int read = in.read(b, off, len);
+                if (read > 0) {
+                    bytes.mark(read);
+                }
+
+                return read;
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+        }
+
+        // The download is timed until the stream is closed, not just while it is opened
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+            finally {
+                this.stopTimer();
+            }
+        }
+    }
+
+    private class MeteredOutputStream extends FilterOutputStream implements Abortable {
+
+        private final Meter bytes;
+        private Optional<Timer.Context> context;
+
+        private MeteredOutputStream(OutputStream out, Meter bytes, Optional<Timer.Context> context) {
+            super(out);
+            this.bytes = bytes;
+            this.context = context;
+        }
+
+        private void stopTimer() {
+            if (context.isPresent()) {
+                context.get().stop();
+                context = Optional.absent();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+                bytes.mark();
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+        }
+
+        // FilterOutputStream would otherwise write arrays a byte at a time
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+                bytes.mark(len);
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+        }
+
+        // Uploads commit on close (the atomic rename locally, the block list on Azure), so its failures and time count too
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                markError(e);
+                throw e;
+            }
+            finally {
+                this.stopTimer();
+            }
+        }
+
+        @Override
+        public void abort() {
+            try {
+                FileStorages.abort(out);
+            }
+            finally {
+                this.stopTimer();
+            }
+        }
+    }
 }
@@ -0,0 +1,68 @@
+package com.yammer.storage.file.instrumented.metrics;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.yammer.storage.file.FileStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+// Remembers the last capacity read from a storage, so metric scrapes never call the storage themselves
+public class CapacityMonitor implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CapacityMonitor.class);
+
+    private final FileStorage delegate;
+
+    // Null until the first successful refresh
+    private volatile Long totalSpace;
+    private volatile Long usedSpace;
+    private volatile Long freeSpace;
+
+    public CapacityMonitor(FileStorage delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void run() {
+        try {
+            totalSpace = delegate.getTotalSpace().toBytes();
+            usedSpace = delegate.getUsedSpace().toBytes();
+            freeSpace = delegate.getFreeSpace().toBytes();
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to refresh capacity of {}", delegate, e);
+        }
+    }
+
+    public Long getTotalSpace() {
+        return totalSpace;
+    }
+
+    public Long getUsedSpace() {
+        return usedSpace;
+    }
+
+    public Long getFreeSpace() {
+        return freeSpace;
+    }
+}
@@ -21,25 +21,17 @@ package com.yammer.storage.file.instrumented.metrics;
  */
 
 import com.codahale.metrics.Gauge;
-import com.google.common.base.Throwables;
-import com.yammer.storage.file.FileStorage;
-
-import java.io.IOException;
 
 public class FreeSpaceGauge implements Gauge<Long> {
 
-    private final FileStorage delegate;
+    private final CapacityMonitor monitor;
 
-    public FreeSpaceGauge(FileStorage delegate) {
-        this.delegate = delegate;
+    public FreeSpaceGauge(CapacityMonitor monitor) {
+        this.monitor = monitor;
     }
 
     @Override
     public Long getValue() {
-        try {
-            return delegate.getFreeSpace().toBytes();
-        } catch (IOException e) {
-            throw Throwables.propagate(e);
-        }
+        return monitor.getFreeSpace();
     }
 }
@@ -21,25 +21,17 @@ package com.yammer.storage.file.instrumented.metrics;
  */
 
 import com.codahale.metrics.Gauge;
-import com.google.common.base.Throwables;
-import com.yammer.storage.file.FileStorage;
-
-import java.io.IOException;
 
 public class TotalSpaceGauge implements Gauge<Long> {
 
-    private final FileStorage delegate;
+    private final CapacityMonitor monitor;
 
-    public TotalSpaceGauge(FileStorage delegate) {
-        this.delegate = delegate;
+    public TotalSpaceGauge(CapacityMonitor monitor) {
+        this.monitor = monitor;
     }
 
     @Override
     public Long getValue() {
-        try {
-            return delegate.getTotalSpace().toBytes();
-        } catch (IOException e) {
-            throw Throwables.propagate(e);
-        }
+        return monitor.getTotalSpace();
     }
 }
@@ -21,25 +21,17 @@ package com.yammer.storage.file.instrumented.metrics;
  */
 
 import com.codahale.metrics.Gauge;
-import com.google.common.base.Throwables;
-import com.yammer.storage.file.FileStorage;
-
-import java.io.IOException;
 
 public class UsedSpaceGauge implements Gauge<Long> {
 
-    private final FileStorage delegate;
+    private final CapacityMonitor monitor;
 
-    public UsedSpaceGauge(FileStorage delegate) {
-        this.delegate = delegate;
+    public UsedSpaceGauge(CapacityMonitor monitor) {
+        this.monitor = monitor;
     }
 
     @Override
     public Long getValue() {
-        try {
-            return delegate.getUsedSpace().toBytes();
-        } catch (IOException e) {
-            throw Throwables.propagate(e);
-        }
+        return monitor.getUsedSpace();
     }
 }
@@ -0,0 +1,129 @@
+package com.yammer.storage.file.local;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.yammer.storage.file.Abortable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.UUID;
+
+// Writes to a temporary file that only replaces the target, once durable, when the stream is closed
+public class AtomicFileOutputStream extends OutputStream implements Abortable {
+
+    private static final String TEMP_PREFIX = ".";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public static boolean isTempFile(String name) {
+        return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+    }
+
+    private final File target;
+    private final File temp;
+    private final FileSyncer syncer;
+    private final FileOutputStream out;
+
+    private boolean closed = false;
+
+    public AtomicFileOutputStream(File target, FileSyncer syncer) throws IOException {
+        this.target = target;
+        this.syncer = syncer;
+
+        temp = new File(target.getParentFile(), String.format("%s%s.%s%s", TEMP_PREFIX, target.getName(), UUID.randomUUID(), TEMP_SUFFIX));
+        out = new FileOutputStream(temp);
+    }
+
+    public FileChannel getChannel() {
+        return out.getChannel();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            out.close();
+
+            // The contents have to be durable before they're published, or a crash could expose a partial file
+            syncer.sync(temp.toPath());
+
+            // Linking fails if the target already exists, where a rename would silently replace one that appeared
+            // since we checked
+            Files.createLink(target.toPath(), temp.toPath());
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+
+        Files.deleteIfExists(temp.toPath());
+
+        // Until the directory is synced the file may not survive a crash, so if that fails it isn't left published
+        // for a caller told the write failed
+        try {
+            syncer.sync(target.getParentFile().toPath());
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(target.toPath());
+            throw e;
+        }
+    }
+
+    // Nothing needs syncing, the temporary file is simply thrown away
+    @Override
+    public void abort() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            out.close();
+        }
+        finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.yammer.storage.file.local;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Makes files and directory entries durable according to the durability policy
+public class FileSyncer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileSyncer.class);
+
+    // Syncs in a group are issued together, so the filesystem can commit them in one journal flush
+    private static final int GROUP_COMMIT_THREADS = 16;
+
+    private static void force(Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // Not every platform lets us open a directory to sync it
+            if (!Files.isDirectory(path)) {
+                throw e;
+            }
+
+            LOG.debug("Unable to sync directory " + path, e);
+        }
+    }
+
+    private static class PendingSync {
+        private final Path path;
+        private final SettableFuture<Void> result = SettableFuture.create();
+
+        private PendingSync(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final DurabilityPolicy policy;
+    private final Queue<PendingSync> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService executor;
+    private final ExecutorService syncWorkers;
+
+    // Guarded by this, so nothing is queued once the last group has been committed
+    private boolean stopped = false;
+
+    // Groups are committed one at a time, including the last one committed when stopping
+    private final Object commitLock = new Object();
+
+    public FileSyncer(DurabilityPolicy policy, Duration groupCommitInterval) {
+        this.policy = policy;
+
+        if (policy == DurabilityPolicy.GROUP) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("local-storage-group-commit-%d")
+                    .setDaemon(true)
+                    .build());
+
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    syncPending();
+                }
+            }, groupCommitInterval.getQuantity(), groupCommitInterval.getQuantity(), groupCommitInterval.getUnit());
+
+            syncWorkers = Executors.newFixedThreadPool(GROUP_COMMIT_THREADS, new ThreadFactoryBuilder()
+                    .setNameFormat("local-storage-sync-%d")
+                    .setDaemon(true)
+                    .build());
+        }
+        else {
+            executor = null;
+            syncWorkers = null;
+        }
+    }
+
+    public DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+    // Blocks until the file or directory is durable
+    public void sync(Path path) throws IOException {
+        switch (policy) {
+            case FILE:
+                force(path);
+                break;
+            case GROUP:
+                final PendingSync sync = new PendingSync(path);
+                if (!this.enqueue(sync)) {
+                    force(path);
+                    break;
+                }
+
+                try {
+                    sync.result.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for group commit of " + path);
+                }
+                catch (ExecutionException e) {
+                    throw new IOException("Failed to sync " + path, e.getCause());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private synchronized boolean enqueue(PendingSync sync) {
+        if (stopped) {
+            return false;
+        }
+
+        pending.add(sync);
+        return true;
+    }
+
+    private void syncPending() {
+        synchronized (commitLock) {
+            this.commitGroup();
+        }
+    }
+
+    private void commitGroup() {
+        // Many writers in one directory share a single sync of it
+        final Map<Path, List<PendingSync>> batch = Maps.newLinkedHashMap();
+        for (PendingSync sync = pending.poll(); sync != null; sync = pending.poll()) {
+            List<PendingSync> syncs = batch.get(sync.path);
+            if (syncs == null) {
+                syncs = Lists.newArrayList();
+                batch.put(sync.path, syncs);
+            }
+
+            syncs.add(sync);
+        }
+
+        final List<Future<?>> commits = Lists.newArrayListWithCapacity(batch.size());
+        for (final Map.Entry<Path, List<PendingSync>> entry : batch.entrySet()) {
+            commits.add(syncWorkers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    commit(entry.getKey(), entry.getValue());
+                }
+            }));
+        }
+
+        // The next group only starts once this one is durable
+        for (final Future<?> commit : commits) {
+            try {
+                commit.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                LOG.warn("Failed group commit", e.getCause());
+            }
+        }
+    }
+
+    private static void commit(Path path, List<PendingSync> syncs) {
+        try {
+            force(path);
+            for (final PendingSync sync : syncs) {
+                sync.result.set(null);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            for (final PendingSync sync : syncs) {
+                sync.result.setException(e);
+            }
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+
+            // Don't leave anyone waiting on a commit that will never run, nothing more can be queued after this
+            syncPending();
+            syncWorkers.shutdown();
+        }
+    }
+}
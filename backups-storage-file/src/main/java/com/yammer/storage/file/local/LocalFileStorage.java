@@ -21,23 +21,55 @@ package com.yammer.storage.file.local;
  */
 
 import com.google.common.annotations.VisibleForTesting;
-import com.yammer.storage.file.FileStorage;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.yammer.storage.file.ChannelFileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.MovableFileStorage;
 import io.dropwizard.util.Size;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
 
-public class LocalFileStorage implements FileStorage {
+public class LocalFileStorage implements ChannelFileStorage, MovableFileStorage {
 
     private static final Logger LOG = LoggerFactory.getLogger(LocalFileStorage.class);
 
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    private static final HashFunction SHARD_HASH = Hashing.murmur3_32();
+    private static final Pattern SHARD_NAME = Pattern.compile("[0-9a-f]{2}");
+
     private final File root;
+    private final int shardDepth;
+    private final FileSyncer syncer;
 
     public LocalFileStorage(LocalFileStorageConfiguration configuration) throws IOException {
         root = configuration.getRoot();
+        shardDepth = configuration.getShardDepth();
+        syncer = new FileSyncer(configuration.getDurability(), configuration.getGroupCommitInterval());
 
         if (!root.isDirectory() && !root.mkdirs()) {
             throw new IOException("Unable to find/create root directory: " + root);
@@ -45,13 +77,108 @@ public class LocalFileStorage implements FileStorage {
     }
 
     @Override
-    public void start() {
+    public void start() throws IOException {
+        this.deleteTempFiles();
+
         LOG.info("Created new {} with {} capacity, {} used, {} free", this, getTotalSpace(), getUsedSpace(), getFreeSpace());
     }
 
     @Override
     public void stop() {
+        syncer.stop();
+    }
+
+    // Nothing is writing yet, so any temp files were left behind by uploads that never completed
+    private void deleteTempFiles() throws IOException {
+        final File[] buckets = root.listFiles();
+        if (buckets == null) {
+            return;
+        }
 
+        for (final File bucket : buckets) {
+            for (final Path file : this.listFiles(bucket)) {
+                if (AtomicFileOutputStream.isTempFile(file.getFileName().toString())) {
+                    LOG.info("Deleting incomplete upload {}", file);
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    // Moves every file not already where the configured shard depth expects it, so existing trees can be
+    // converted in place. Expects nothing else to be using the storage while it runs.
+    public int migrate() throws IOException {
+        final File[] buckets = root.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+
+        int moved = 0;
+        for (final File bucket : buckets) {
+            for (final Path file : this.listFiles(bucket)) {
+                final String name = file.getFileName().toString();
+                if (AtomicFileOutputStream.isTempFile(name)) {
+                    continue;
+                }
+
+                final File target = this.getShardedFile(bucket, name);
+                if (target.toPath().equals(file)) {
+                    continue;
+                }
+
+                if (target.exists()) {
+                    LOG.warn("Not moving {} as {} already exists", file, target);
+                    continue;
+                }
+
+                this.createShardDirectories(bucket, target.getParentFile());
+                Files.move(file, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                syncer.sync(file.getParent());
+                syncer.sync(target.getParentFile().toPath());
+                moved++;
+            }
+        }
+
+        LOG.info("Moved {} files in {} to a shard depth of {}", moved, this, shardDepth);
+        return moved;
+    }
+
+    // Every file in a bucket, descending into shard directories whatever depth they were written with
+    private List<Path> listFiles(File bucket) throws IOException {
+        final Path start = bucket.toPath();
+        final List<Path> files = Lists.newArrayList();
+        if (!bucket.isDirectory()) {
+            return files;
+        }
+
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(start) || SHARD_NAME.matcher(dir.getFileName().toString()).matches()) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            // Uploads completing or files being deleted while we walk
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                throw e;
+            }
+        });
+
+        return files;
     }
 
     private File getBucket(String namespace) throws IOException {
@@ -63,19 +190,59 @@ public class LocalFileStorage implements FileStorage {
         return file;
     }
 
+    // Spreads files over shardDepth levels of directories named after a hash of the path, eg. bucket/3f/a2/path
+    private File getShardedFile(File bucket, String path) {
+        final String hash = SHARD_HASH.hashString(path, Charsets.UTF_8).toString();
+
+        File directory = bucket;
+        for (int i = 0; i < shardDepth; i++) {
+            directory = new File(directory, hash.substring(i * 2, i * 2 + 2));
+        }
+
+        return new File(directory, path);
+    }
+
+    private void createShardDirectories(File bucket, File directory) throws IOException {
+        if (directory.isDirectory()) {
+            return;
+        }
+
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Unable to create shard directory: " + directory);
+        }
+
+        // The new directories are only durable once their parents are synced as well
+        for (File created = directory; !created.equals(bucket); created = created.getParentFile()) {
+            syncer.sync(created.getParentFile().toPath());
+        }
+    }
+
+    // Falls back to the flat layout so files written before sharding was enabled can still be found
     private File getLocalFile(String namespace, String path) throws IOException {
         final File bucket = this.getBucket(namespace);
-        return new File(bucket, path);
+        final File file = this.getShardedFile(bucket, path);
+        if (shardDepth == 0 || file.exists()) {
+            return file;
+        }
+
+        final File flatFile = new File(bucket, path);
+        return flatFile.exists() ? flatFile : file;
+    }
+
+    private File getNewFile(String namespace, String path) throws IOException {
+        final File bucket = this.getBucket(namespace);
+        final File file = this.getShardedFile(bucket, path);
+        this.createShardDirectories(bucket, file.getParentFile());
+        return file;
     }
 
     @Override
     public OutputStream upload(String namespace, String path) throws IOException {
-        final File file = this.getLocalFile(namespace, path);
-        if (file.exists()) {
+        if (this.getLocalFile(namespace, path).exists()) {
             throw new FileAlreadyExistsException("File already exists");
         }
 
-        return new FileOutputStream(file);
+        return new AtomicFileOutputStream(this.getNewFile(namespace, path), syncer);
     }
 
     @Override
@@ -87,21 +254,129 @@ public class LocalFileStorage implements FileStorage {
     @Override
     public OutputStream append(String namespace, String path) throws IOException {
         final File file = this.getLocalFile(namespace, path);
+        if (!file.exists()) {
+            return new FileOutputStream(this.getNewFile(namespace, path));
+        }
+
         return new FileOutputStream(file, true);
     }
 
+    // Goes through download() and upload() so subclasses see every access
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        try (final InputStream in = this.download(namespace, path)) {
+            if (in instanceof FileInputStream) {
+                return FileStorages.transfer(((FileInputStream) in).getChannel(), target);
+            }
+
+            return ByteStreams.copy(Channels.newChannel(in), target);
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, String namespace, String path) throws IOException {
+        final OutputStream out = this.upload(namespace, path);
+        try {
+            final long length = this.transferFrom(source, out);
+            out.close();
+            return length;
+        }
+        catch (IOException | RuntimeException e) {
+            FileStorages.abort(out);
+            throw e;
+        }
+    }
+
+    private long transferFrom(ReadableByteChannel source, OutputStream out) throws IOException {
+        if (!(out instanceof AtomicFileOutputStream)) {
+            return ByteStreams.copy(source, Channels.newChannel(out));
+        }
+
+        final FileChannel channel = ((AtomicFileOutputStream) out).getChannel();
+        if (source instanceof FileChannel) {
+            return FileStorages.transfer((FileChannel) source, channel);
+        }
+
+        long position = 0;
+        long transferred;
+        while ((transferred = channel.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+            position += transferred;
+        }
+
+        return position;
+    }
+
     @Override
     public boolean exists(String namespace, String path) throws IOException {
         final File file = this.getLocalFile(namespace, path);
         return file.exists();
     }
 
+    // A rename within the bucket, durable once both directories are synced
+    @Override
+    public void move(String namespace, String source, String target) throws IOException {
+        final File sourceFile = this.getLocalFile(namespace, source);
+        if (!sourceFile.exists()) {
+            throw new FileNotFoundException(sourceFile.getPath());
+        }
+
+        if (this.getLocalFile(namespace, target).exists()) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        final File targetFile = this.getNewFile(namespace, target);
+        Files.move(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        syncer.sync(targetFile.getParentFile().toPath());
+        if (!sourceFile.getParentFile().equals(targetFile.getParentFile())) {
+            syncer.sync(sourceFile.getParentFile().toPath());
+        }
+    }
+
     @Override
     public boolean delete(String namespace, String path) throws IOException {
         final File file = this.getLocalFile(namespace, path);
         return file.delete();
     }
 
+    // Local lookups don't need a round trip each, so simply loop over the paths
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) throws IOException {
+        final ImmutableSet.Builder<String> existing = ImmutableSet.builder();
+        for (final String path : paths) {
+            if (this.exists(namespace, path)) {
+                existing.add(path);
+            }
+        }
+
+        return existing.build();
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        final ImmutableSet.Builder<String> deleted = ImmutableSet.builder();
+        for (final String path : paths) {
+            if (this.delete(namespace, path)) {
+                deleted.add(path);
+            }
+        }
+
+        return deleted.build();
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        final ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        for (final Path file : this.listFiles(this.getBucket(namespace))) {
+            final String name = file.getFileName().toString();
+            if (name.startsWith(prefix) && !AtomicFileOutputStream.isTempFile(name)) {
+                paths.add(name);
+            }
+        }
+
+        return paths.build();
+    }
+
     @VisibleForTesting
     @Override
     public boolean delete(String namespace) throws IOException {
@@ -22,9 +22,12 @@ package com.yammer.storage.file.local;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
 import io.dropwizard.util.Size;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import java.io.File;
 
@@ -37,6 +40,22 @@ public class LocalFileStorageConfiguration {
     @NotNull
     private final File root;
 
+    @NotNull
+    @JsonProperty
+    private DurabilityPolicy durability = DurabilityPolicy.NONE;
+
+    // How often files are synced together under the GROUP durability policy
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration groupCommitInterval = Duration.milliseconds(10);
+
+    // Levels of hash named subdirectories files are spread over within a namespace, 0 keeps them all directly in it
+    @Min(0)
+    @Max(4)
+    @JsonProperty
+    private int shardDepth = 0;
+
     @JsonCreator
     public LocalFileStorageConfiguration(
             @JsonProperty("root") File root) {
@@ -50,4 +69,28 @@ public class LocalFileStorageConfiguration {
     public File getRoot() {
         return root;
     }
+
+    public DurabilityPolicy getDurability() {
+        return durability;
+    }
+
+    public void setDurability(DurabilityPolicy durability) {
+        this.durability = durability;
+    }
+
+    public Duration getGroupCommitInterval() {
+        return groupCommitInterval;
+    }
+
+    public void setGroupCommitInterval(Duration groupCommitInterval) {
+        this.groupCommitInterval = groupCommitInterval;
+    }
+
+    public int getShardDepth() {
+        return shardDepth;
+    }
+
+    public void setShardDepth(int shardDepth) {
+        this.shardDepth = shardDepth;
+    }
 }
@@ -0,0 +1,240 @@
+package com.yammer.storage.file.memory;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Bytes;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.FileStorage;
+import io.dropwizard.util.Size;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps files on the heap, for tests and for benchmarking the rest of the pipeline without any disk or network
+public class InMemoryFileStorage implements FileStorage {
+
+    private static final Size DEFAULT_CAPACITY = Size.gigabytes(1);
+
+    private final Size capacity;
+    private final ConcurrentMap<String, ConcurrentMap<String, byte[]>> buckets = Maps.newConcurrentMap();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    public InMemoryFileStorage() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public InMemoryFileStorage(Size capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void start() {
+        // Nothing to start
+    }
+
+    @Override
+    public void stop() {
+        // Nothing to stop
+    }
+
+    private ConcurrentMap<String, byte[]> getBucket(String namespace) {
+        final ConcurrentMap<String, byte[]> bucket = buckets.get(namespace);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        final ConcurrentMap<String, byte[]> created = Maps.newConcurrentMap();
+        final ConcurrentMap<String, byte[]> existing = buckets.putIfAbsent(namespace, created);
+        return existing == null ? created : existing;
+    }
+
+    // Like local uploads, the file only becomes visible once the stream is closed
+    @Override
+    public OutputStream upload(String namespace, final String path) throws IOException {
+        final ConcurrentMap<String, byte[]> bucket = this.getBucket(namespace);
+        if (bucket.containsKey(path)) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        return new BufferingOutputStream() {
+            @Override
+            protected void publish(byte[] content) throws IOException {
+                if (bucket.putIfAbsent(path, content) != null) {
+                    throw new FileAlreadyExistsException("File already exists");
+                }
+
+                usedBytes.addAndGet(content.length);
+            }
+        };
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        final byte[] content = this.getBucket(namespace).get(path);
+        if (content == null) {
+            throw new FileNotFoundException(namespace + "/" + path + " not found");
+        }
+
+        return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public OutputStream append(String namespace, final String path) throws IOException {
+        final ConcurrentMap<String, byte[]> bucket = this.getBucket(namespace);
+        return new BufferingOutputStream() {
+            @Override
+            protected void publish(byte[] content) {
+                while (true) {
+                    final byte[] existing = bucket.get(path);
+                    if (existing == null ? bucket.putIfAbsent(path, content) == null : bucket.replace(path, existing, Bytes.concat(existing, content))) {
+                        usedBytes.addAndGet(content.length);
+                        return;
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean exists(String namespace, String path) {
+        return this.getBucket(namespace).containsKey(path);
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) {
+        final byte[] removed = this.getBucket(namespace).remove(path);
+        if (removed == null) {
+            return false;
+        }
+
+        usedBytes.addAndGet(-removed.length);
+        return true;
+    }
+
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) {
+        final ImmutableSet.Builder<String> existing = ImmutableSet.builder();
+        for (final String path : paths) {
+            if (this.exists(namespace, path)) {
+                existing.add(path);
+            }
+        }
+
+        return existing.build();
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) {
+        final ImmutableSet.Builder<String> deleted = ImmutableSet.builder();
+        for (final String path : paths) {
+            if (this.delete(namespace, path)) {
+                deleted.add(path);
+            }
+        }
+
+        return deleted.build();
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) {
+        final ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        for (final String path : this.getBucket(namespace).keySet()) {
+            if (path.startsWith(prefix)) {
+                paths.add(path);
+            }
+        }
+
+        return paths.build();
+    }
+
+    @Override
+    public boolean delete(String namespace) {
+        final Map<String, byte[]> bucket = buckets.remove(namespace);
+        if (bucket != null) {
+            for (final byte[] content : bucket.values()) {
+                usedBytes.addAndGet(-content.length);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean ping() {
+        return true;
+    }
+
+    @Override
+    public Size getTotalSpace() {
+        return capacity;
+    }
+
+    @Override
+    public Size getUsedSpace() {
+        return Size.bytes(usedBytes.get());
+    }
+
+    @Override
+    public Size getFreeSpace() {
+        return Size.bytes(capacity.toBytes() - usedBytes.get());
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryFileStorage{" +
+                "capacity=" + capacity +
+                '}';
+    }
+
+    private abstract static class BufferingOutputStream extends ByteArrayOutputStream implements Abortable {
+
+        private boolean closed = false;
+
+        protected abstract void publish(byte[] content) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            this.publish(this.toByteArray());
+        }
+
+        @Override
+        public void abort() {
+            closed = true;
+        }
+    }
+}
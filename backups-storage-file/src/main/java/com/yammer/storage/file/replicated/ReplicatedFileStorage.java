@@ -0,0 +1,674 @@
+package com.yammer.storage.file.replicated;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.primitives.Doubles;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.AsyncFileStorage;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import io.dropwizard.util.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+// Writes every file to several storages at once, typically one per region. A write succeeds once the write quorum
+// of replicas hold the file, the rest carry on in the background. Reads go to the fastest replica that is healthy.
+public class ReplicatedFileStorage implements AsyncFileStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicatedFileStorage.class);
+
+    // How long a replica that failed a read is tried last
+    private static final long UNHEALTHY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Weight of the latest read when updating a replica's latency estimate
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    // Size reported for a replica that already held the file
+    private static final long ALREADY_STORED = -1;
+
+    private static class Replica {
+        private final String name;
+        private final FileStorage storage;
+        private final Timer reads;
+        private final Meter readFailures;
+        private final Meter writeFailures;
+
+        private volatile double latency = 0;
+        private volatile long unhealthyUntil = 0;
+
+        private Replica(String name, FileStorage storage, String prefix, MetricRegistry registry) {
+            this.name = name;
+            this.storage = storage;
+
+            reads = registry.timer(String.format("%s-%s-reads", prefix, name));
+            readFailures = registry.meter(String.format("%s-%s-read-failures", prefix, name));
+            writeFailures = registry.meter(String.format("%s-%s-write-failures", prefix, name));
+        }
+
+        private boolean isHealthy(long now) {
+            return now - unhealthyUntil >= 0;
+        }
+
+        private void recordRead(long nanos) {
+            latency = latency == 0 ? nanos : latency + LATENCY_WEIGHT * (nanos - latency);
+            unhealthyUntil = 0;
+        }
+
+        private void recordReadFailure() {
+            readFailures.mark();
+            unhealthyUntil = System.nanoTime() + UNHEALTHY_NANOS;
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final int writeQuorum;
+    private final ListeningExecutorService executor;
+    private final List<ReplicationListener> listeners = new CopyOnWriteArrayList<>();
+
+    public ReplicatedFileStorage(String name, Map<String, ? extends FileStorage> replicas, int writeQuorum, ListeningExecutorService executor, MetricRegistry registry) {
+        if (writeQuorum < 1 || writeQuorum > replicas.size()) {
+            throw new IllegalArgumentException(String.format("Write quorum must be between 1 and %d", replicas.size()));
+        }
+
+        final ImmutableList.Builder<Replica> builder = ImmutableList.builder();
+        for (final Map.Entry<String, ? extends FileStorage> replica : replicas.entrySet()) {
+            builder.add(new Replica(replica.getKey(), replica.getValue(), name, registry));
+        }
+
+        this.replicas = builder.build();
+        this.writeQuorum = writeQuorum;
+        this.executor = executor;
+    }
+
+    public void addListener(ReplicationListener listener) {
+        listeners.add(listener);
+    }
+
+    public int getWriteQuorum() {
+        return writeQuorum;
+    }
+
+    private void fireReplicaStored(Replica replica, String namespace, String path) {
+        for (final ReplicationListener listener : listeners) {
+            try {
+                listener.replicaStored(replica.name, namespace, path);
+            }
+            catch (RuntimeException e) {
+                LOG.warn("Replication listener failed for " + namespace + "/" + path, e);
+            }
+        }
+    }
+
+    // Healthy replicas first, fastest first, using the latencies as they were when called
+    private List<Replica> getReadOrder() {
+        final long now = System.nanoTime();
+        final List<Replica> healthy = Lists.newArrayListWithCapacity(replicas.size());
+        final List<Replica> unhealthy = Lists.newArrayList();
+        final double[] latencies = new double[replicas.size()];
+
+        for (int i = 0;i < replicas.size();i++) {
+            final Replica replica = replicas.get(i);
+            latencies[i] = replica.latency;
+            (replica.isHealthy(now) ? healthy : unhealthy).add(replica);
+        }
+
+        Collections.sort(healthy, new Comparator<Replica>() {
+            @Override
+            public int compare(Replica a, Replica b) {
+                return Doubles.compare(latencies[replicas.indexOf(a)], latencies[replicas.indexOf(b)]);
+            }
+        });
+
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    private List<Replica> getMissingReplicas(String namespace, String path) throws IOException {
+        final List<ListenableFuture<Boolean>> checks = Lists.newArrayListWithCapacity(replicas.size());
+        for (final Replica replica : replicas) {
+            checks.add(FileStorages.existsAsync(replica.storage, namespace, path, executor));
+        }
+
+        final List<Boolean> exists = Futures.get(Futures.allAsList(checks), IOException.class);
+        final List<Replica> missing = Lists.newArrayList();
+        for (int i = 0;i < replicas.size();i++) {
+            if (!exists.get(i)) {
+                missing.add(replicas.get(i));
+            }
+        }
+
+        return missing;
+    }
+
+    // Whatever a failed replica managed to write mustn't be mistaken for a complete copy. Streams that can't be
+    // aborted commit on close, so a partial upload is deleted again, but an append must never take the file with it.
+    private void abandon(Replica replica, OutputStream out, String namespace, String path, boolean append) {
+        replica.writeFailures.mark();
+        FileStorages.abort(out);
+
+        if (append || out instanceof Abortable) {
+            return;
+        }
+
+        try {
+            replica.storage.delete(namespace, path);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to remove partial copy of {}/{} from {}", namespace, path, replica.name);
+        }
+    }
+
+    // Fans each write out to every replica, dropping replicas that fail as long as the quorum can still be met
+    private class QuorumOutputStream extends OutputStream implements Abortable {
+        private final String namespace;
+        private final String path;
+        private final boolean append;
+        private final List<Replica> stored;
+        private final List<Replica> targets;
+        private final List<OutputStream> outs;
+        private boolean closed = false;
+
+        private QuorumOutputStream(String namespace, String path, boolean append, List<Replica> stored, List<Replica> targets, List<OutputStream> outs) throws IOException {
+            this.namespace = namespace;
+            this.path = path;
+            this.append = append;
+            this.stored = Lists.newArrayList(stored);
+            this.targets = Lists.newArrayList(targets);
+            this.outs = Lists.newArrayList(outs);
+
+            this.checkQuorum();
+        }
+
+        private void checkQuorum() throws IOException {
+            if (stored.size() + targets.size() < writeQuorum) {
+                throw new IOException(String.format("Only %d of %d replicas available for %s/%s, need %d",
+                        stored.size() + targets.size(), replicas.size(), namespace, path, writeQuorum));
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = targets.size() - 1;i >= 0;i--) {
+                try {
+                    outs.get(i).write(b, off, len);
+                }
+                catch (IOException e) {
+                    LOG.warn("Failed writing {}/{} to replica {}", namespace, path, targets.get(i).name, e);
+                    abandon(targets.remove(i), outs.remove(i), namespace, path, append);
+                }
+            }
+
+            this.checkQuorum();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            for (final OutputStream out : outs) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            for (int i = 0;i < targets.size();i++) {
+                try {
+                    outs.get(i).close();
+                    stored.add(targets.get(i));
+                }
+                catch (IOException e) {
+                    LOG.warn("Failed storing {}/{} on replica {}", namespace, path, targets.get(i).name, e);
+                    abandon(targets.get(i), outs.get(i), namespace, path, append);
+                }
+            }
+
+            for (final Replica replica : stored) {
+                fireReplicaStored(replica, namespace, path);
+            }
+
+            if (stored.size() < writeQuorum) {
+                throw new IOException(String.format("Only %d of %d replicas stored %s/%s, need %d",
+                        stored.size(), replicas.size(), namespace, path, writeQuorum));
+            }
+        }
+
+        // The writer gave up, so no replica may commit what it has so far
+        @Override
+        public void abort() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            for (final OutputStream out : outs) {
+                FileStorages.abort(out);
+            }
+        }
+    }
+
+    private OutputStream open(String namespace, String path, List<Replica> stored, List<Replica> targets, boolean append) throws IOException {
+        final List<Replica> opened = Lists.newArrayList();
+        final List<OutputStream> outs = Lists.newArrayList();
+
+        for (final Replica replica : targets) {
+            try {
+                outs.add(append ? replica.storage.append(namespace, path) : replica.storage.upload(namespace, path));
+                opened.add(replica);
+            }
+            catch (IOException e) {
+                replica.writeFailures.mark();
+                LOG.warn("Failed opening {}/{} on replica {}", namespace, path, replica.name, e);
+            }
+        }
+
+        try {
+            return new QuorumOutputStream(namespace, path, append, stored, opened, outs);
+        }
+        catch (IOException e) {
+            for (int i = 0;i < opened.size();i++) {
+                abandon(opened.get(i), outs.get(i), namespace, path, append);
+            }
+
+            throw e;
+        }
+    }
+
+    // Replicas that already hold the file count towards the quorum, so an interrupted write can be completed
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        final List<Replica> missing = this.getMissingReplicas(namespace, path);
+        if (missing.isEmpty()) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        final List<Replica> stored = Lists.newArrayList(replicas);
+        stored.removeAll(missing);
+
+        return this.open(namespace, path, stored, missing, false);
+    }
+
+    @Override
+    public OutputStream append(String namespace, String path) throws IOException {
+        return this.open(namespace, path, ImmutableList.<Replica>of(), replicas, true);
+    }
+
+    private class QuorumUpload {
+        private final String namespace;
+        private final String path;
+        private final SettableFuture<Long> result = SettableFuture.create();
+
+        private int checked = 0;
+        private int missing = 0;
+        private int stored = 0;
+        private int failed = 0;
+        private long size = ALREADY_STORED;
+        private Throwable failure = null;
+
+        private QuorumUpload(String namespace, String path) {
+            this.namespace = namespace;
+            this.path = path;
+        }
+
+        private synchronized void checked(boolean exists) {
+            checked++;
+            if (!exists) {
+                missing++;
+            }
+
+            this.update();
+        }
+
+        private synchronized void stored(long size) {
+            stored++;
+            if (size != ALREADY_STORED) {
+                this.size = size;
+            }
+
+            this.update();
+        }
+
+        private synchronized void failed(Throwable t) {
+            failed++;
+            failure = t;
+
+            this.update();
+        }
+
+        // Copies that were already there count towards the quorum, only a file every replica held is an error
+        private void update() {
+            final boolean quorumPreexisted = checked == replicas.size() && missing > 0 && replicas.size() - missing >= writeQuorum;
+            if (stored >= writeQuorum && (size != ALREADY_STORED || quorumPreexisted)) {
+                result.set(size == ALREADY_STORED ? 0 : size);
+            }
+            else if (replicas.size() - failed < writeQuorum) {
+                result.setException(new IOException(String.format("Only %d of %d replicas stored %s/%s, need %d",
+                        stored, replicas.size(), namespace, path, writeQuorum), failure));
+            }
+            else if (checked == replicas.size() && missing == 0) {
+                result.setException(new FileAlreadyExistsException("File already exists"));
+            }
+        }
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    // Every replica is written concurrently, the future completes as soon as the quorum is met
+    @Override
+    public ListenableFuture<Long> uploadAsync(final String namespace, final String path, final ByteSource source) {
+        final QuorumUpload upload = new QuorumUpload(namespace, path);
+
+        for (final Replica replica : replicas) {
+            final ListenableFuture<Boolean> exists = FileStorages.existsAsync(replica.storage, namespace, path, executor);
+            Futures.addCallback(exists, new FutureCallback<Boolean>() {
+                @Override
+                public void onSuccess(Boolean exists) {
+                    upload.checked(exists);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    upload.checked(false);
+                }
+            });
+
+            final ListenableFuture<Long> stored = Futures.transform(exists,
+                    new AsyncFunction<Boolean, Long>() {
+                        @Override
+                        public ListenableFuture<Long> apply(Boolean exists) {
+                            if (exists) {
+                                return Futures.immediateFuture(ALREADY_STORED);
+                            }
+
+                            return FileStorages.uploadAsync(replica.storage, namespace, path, source, executor);
+                        }
+                    });
+
+            Futures.addCallback(stored, new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long size) {
+                    fireReplicaStored(replica, namespace, path);
+                    upload.stored(size);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    replica.writeFailures.mark();
+                    LOG.warn("Failed storing {}/{} on replica {}", namespace, path, replica.name, t);
+                    upload.failed(t);
+                }
+            });
+        }
+
+        return upload.result;
+    }
+
+    // Replicas may lag behind or have lost a file, so a miss on one moves on to the next
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        IOException failure = null;
+
+        for (final Replica replica : this.getReadOrder()) {
+            final Timer.Context context = replica.reads.time();
+            try {
+                final InputStream in = replica.storage.download(namespace, path);
+                replica.recordRead(context.stop());
+                return in;
+            }
+            catch (FileNotFoundException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Failed reading {}/{} from replica {}", namespace, path, replica.name, e);
+                replica.recordReadFailure();
+                failure = e;
+            }
+        }
+
+        throw failure;
+    }
+
+    @Override
+    public ListenableFuture<Long> downloadAsync(final String namespace, final String path, final ByteSink sink) {
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return FileStorages.download(ReplicatedFileStorage.this, namespace, path, sink);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> existsAsync(final String namespace, final String path) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return ReplicatedFileStorage.this.exists(namespace, path);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Boolean> deleteAsync(final String namespace, final String path) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return ReplicatedFileStorage.this.delete(namespace, path);
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void start() throws Exception {
+        for (final Replica replica : replicas) {
+            replica.storage.start();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        for (final Replica replica : replicas) {
+            replica.storage.stop();
+        }
+    }
+
+    // Only stored once the write quorum holds it, so an under-replicated file is written again and filled back up.
+    // Reads don't need this, they fall through to whichever replica has the file.
+    @Override
+    public boolean exists(String namespace, String path) throws IOException {
+        return replicas.size() - this.getMissingReplicas(namespace, path).size() >= writeQuorum;
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) throws IOException {
+        boolean deleted = false;
+        for (final Replica replica : replicas) {
+            deleted |= replica.storage.delete(namespace, path);
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public Set<String> existsAll(final String namespace, final Collection<String> paths) throws IOException {
+        final List<ListenableFuture<Set<String>>> checks = Lists.newArrayListWithCapacity(replicas.size());
+        for (final Replica replica : replicas) {
+            checks.add(executor.submit(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws IOException {
+                    return replica.storage.existsAll(namespace, paths);
+                }
+            }));
+        }
+
+        final Multiset<String> copies = HashMultiset.create();
+        for (final Set<String> found : Futures.get(Futures.allAsList(checks), IOException.class)) {
+            copies.addAll(found);
+        }
+
+        final ImmutableSet.Builder<String> existing = ImmutableSet.builder();
+        for (final Multiset.Entry<String> entry : copies.entrySet()) {
+            if (entry.getCount() >= writeQuorum) {
+                existing.add(entry.getElement());
+            }
+        }
+
+        return existing.build();
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        final ImmutableSet.Builder<String> deleted = ImmutableSet.builder();
+        for (final Replica replica : replicas) {
+            deleted.addAll(replica.storage.deleteAll(namespace, paths));
+        }
+
+        return deleted.build();
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        final ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        for (final Replica replica : replicas) {
+            paths.addAll(replica.storage.list(namespace, prefix));
+        }
+
+        return paths.build();
+    }
+
+    // Writes keep succeeding as long as the quorum is reachable
+    @Override
+    public boolean ping() throws IOException {
+        int reachable = 0;
+        for (final Replica replica : replicas) {
+            try {
+                if (replica.storage.ping()) {
+                    reachable++;
+                }
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to ping replica {}", replica.name, e);
+            }
+        }
+
+        return reachable >= writeQuorum;
+    }
+
+    // Every replica holds everything, so capacity is bounded by the smallest
+    @Override
+    public Size getTotalSpace() throws IOException {
+        long total = Long.MAX_VALUE;
+        for (final Replica replica : replicas) {
+            total = Math.min(total, replica.storage.getTotalSpace().toBytes());
+        }
+
+        return Size.bytes(total);
+    }
+
+    @Override
+    public Size getUsedSpace() throws IOException {
+        long used = 0;
+        for (final Replica replica : replicas) {
+            used = Math.max(used, replica.storage.getUsedSpace().toBytes());
+        }
+
+        return Size.bytes(used);
+    }
+
+    @Override
+    public Size getFreeSpace() throws IOException {
+        long free = Long.MAX_VALUE;
+        for (final Replica replica : replicas) {
+            free = Math.min(free, replica.storage.getFreeSpace().toBytes());
+        }
+
+        return Size.bytes(free);
+    }
+
+    @Override
+    public boolean delete(String namespace) throws IOException {
+        boolean deleted = false;
+        for (final Replica replica : replicas) {
+            deleted |= replica.storage.delete(namespace);
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public String toString() {
+        final List<String> names = Lists.newArrayListWithCapacity(replicas.size());
+        for (final Replica replica : replicas) {
+            names.add(replica.name + "=" + replica.storage);
+        }
+
+        return "ReplicatedFileStorage{" +
+                "replicas=" + names +
+                ", writeQuorum=" + writeQuorum +
+                '}';
+    }
+}
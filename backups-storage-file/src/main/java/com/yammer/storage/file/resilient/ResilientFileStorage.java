@@ -0,0 +1,347 @@
+package com.yammer.storage.file.resilient;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.ForwardingFileStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps downloads going when single requests fail or stall. A download that fails part way through is
+// resumed from the last byte received, retries back off with jitter, and a duplicate request is raced
+// against any that is slow to return its first byte.
+public class ResilientFileStorage extends ForwardingFileStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResilientFileStorage.class);
+
+    // Recent requests needed before the hedge delay is taken from their percentile
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    private final FileStorage delegate;
+    private final ResilientFileStorageConfiguration configuration;
+    private final ListeningExecutorService requestWorkers;
+
+    private final Timer timeToFirstByte;
+    private final Meter hedgedRequests;
+    private final Meter retries;
+
+    public ResilientFileStorage(String name, FileStorage delegate, ResilientFileStorageConfiguration configuration, MetricRegistry registry) {
+        this.delegate = delegate;
+        this.configuration = configuration;
+
+        requestWorkers = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat(String.format("%s-request-%%d", name))
+                .setDaemon(true)
+                .build()));
+
+        timeToFirstByte = registry.timer(String.format("%s-time-to-first-byte", name));
+        hedgedRequests = registry.meter(String.format("%s-hedged-requests", name));
+        retries = registry.meter(String.format("%s-retries", name));
+    }
+
+    @Override
+    protected FileStorage delegate() {
+        return delegate;
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        requestWorkers.shutdownNow();
+        delegate.stop();
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        // Resumed reads are pinned to the version first read, so a file rewritten meanwhile fails rather than being spliced
+        final Optional<String> version = this.getVersion(namespace, path);
+        return new ResumingInputStream(namespace, path, version, this.open(namespace, path, 0, version));
+    }
+
+    // Reads are resumed and hedged on the request workers, the delegate's own async download knows nothing of that
+    @Override
+    public ListenableFuture<Long> downloadAsync(final String namespace, final String path, final ByteSink sink) {
+        return requestWorkers.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return FileStorages.download(ResilientFileStorage.this, namespace, path, sink);
+            }
+        });
+    }
+
+    // Goes through download() so transfers are resumed and hedged too
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        try (final InputStream in = this.download(namespace, path)) {
+            return ByteStreams.copy(Channels.newChannel(in), target);
+        }
+    }
+
+    private long getHedgeDelay() {
+        if (timeToFirstByte.getCount() < MIN_HEDGE_SAMPLES) {
+            return configuration.getInitialHedgeDelay().toNanoseconds();
+        }
+
+        final long percentile = (long) timeToFirstByte.getSnapshot().getValue(configuration.getHedgePercentile());
+        return Math.max(percentile, configuration.getMinHedgeDelay().toNanoseconds());
+    }
+
+    private void backoff(int attempt) throws InterruptedIOException {
+        final long ceiling = Math.min(
+                configuration.getInitialBackoff().toMilliseconds() << Math.min(attempt - 1, 30),
+                configuration.getMaxBackoff().toMilliseconds());
+
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    private Optional<String> getVersion(final String namespace, final String path) throws IOException {
+        return this.retry(namespace, path, 0, new Callable<Optional<String>>() {
+            @Override
+            public Optional<String> call() throws IOException {
+                return FileStorages.getVersion(delegate, namespace, path);
+            }
+        });
+    }
+
+    private InputStream open(final String namespace, final String path, final long offset, final Optional<String> version) throws IOException {
+        return this.retry(namespace, path, offset, new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws IOException {
+                return openHedged(namespace, path, offset, version);
+            }
+        });
+    }
+
+    private <T> T retry(String namespace, String path, long offset, Callable<T> request) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return request.call();
+            }
+            catch (FileNotFoundException | InterruptedIOException e) {
+                throw e;
+            }
+            catch (IOException e) {
+                if (attempt >= configuration.getMaxAttempts()) {
+                    throw e;
+                }
+
+                LOG.debug("Failed to open {}/{} at {}, retrying", namespace, path, offset, e);
+                retries.mark();
+                this.backoff(attempt);
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+    }
+
+    private InputStream openHedged(final String namespace, final String path, final long offset, final Optional<String> version) throws IOException {
+        final Callable<InputStream> request = new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws IOException {
+                return openAt(namespace, path, offset, version);
+            }
+        };
+
+        final ListenableFuture<InputStream> first = requestWorkers.submit(request);
+        try {
+            try {
+                return first.get(this.getHedgeDelay(), TimeUnit.NANOSECONDS);
+            }
+            catch (TimeoutException e) {
+                LOG.debug("Slow first byte for {}/{}, sending a hedged request", namespace, path);
+                hedgedRequests.mark();
+
+                final ListenableFuture<InputStream> second = requestWorkers.submit(request);
+                return firstSuccessful(first, second).get();
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening " + namespace + "/" + path);
+        }
+    }
+
+    // Opens the file and waits for its first byte, which is put back so the caller still reads it
+    private InputStream openAt(String namespace, String path, long offset, Optional<String> version) throws IOException {
+        final Timer.Context context = timeToFirstByte.time();
+        final InputStream in = FileStorages.download(delegate, namespace, path, offset, version);
+        try {
+            final PushbackInputStream pushback = new PushbackInputStream(in, 1);
+            final int b = pushback.read();
+            if (b >= 0) {
+                pushback.unread(b);
+            }
+
+            context.stop();
+            return pushback;
+        }
+        catch (IOException | RuntimeException e) {
+            Closeables.close(in, true);
+            throw e;
+        }
+    }
+
+    // Completes with whichever request opens first, closing the other should it open later. Only fails if both do.
+    private static ListenableFuture<InputStream> firstSuccessful(ListenableFuture<InputStream> first, ListenableFuture<InputStream> second) {
+        final SettableFuture<InputStream> result = SettableFuture.create();
+        final AtomicInteger failures = new AtomicInteger();
+
+        final FutureCallback<InputStream> callback = new FutureCallback<InputStream>() {
+            @Override
+            public void onSuccess(InputStream in) {
+                if (!result.set(in)) {
+                    try {
+                        Closeables.close(in, true);
+                    }
+                    catch (IOException e) {
+                        // swallowed
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (failures.incrementAndGet() == 2) {
+                    result.setException(t);
+                }
+            }
+        };
+
+        Futures.addCallback(first, callback);
+        Futures.addCallback(second, callback);
+
+        return result;
+    }
+
+    private class ResumingInputStream extends InputStream {
+
+        private final String namespace;
+        private final String path;
+        private final Optional<String> version;
+
+        private InputStream in;
+        private long position = 0;
+
+        private ResumingInputStream(String namespace, String path, Optional<String> version, InputStream in) {
+            this.namespace = namespace;
+            this.path = path;
+            this.version = version;
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    final int read = in.read(b, off, len);
+                    if (read > 0) {
+                        position += read;
+                    }
+
+                    return read;
+                }
+                catch (InterruptedIOException e) {
+                    throw e;
+                }
+                catch (IOException e) {
+                    if (attempt >= configuration.getMaxAttempts()) {
+                        throw e;
+                    }
+
+                    LOG.debug("Failed reading {}/{} at {}, resuming", namespace, path, position, e);
+                    retries.mark();
+                    Closeables.close(in, true);
+
+                    backoff(attempt);
+                    in = open(namespace, path, position, version);
+                }
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.yammer.storage.file.resilient;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Duration;
+
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+@SuppressWarnings("FieldCanBeLocal")
+public class ResilientFileStorageConfiguration {
+
+    // Attempts at opening a download, and at resuming one each time it fails part way through
+    @Min(1)
+    @JsonProperty
+    private int maxAttempts = 5;
+
+    // Retries wait a random time up to initialBackoff, doubling each attempt up to maxBackoff
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration initialBackoff = Duration.milliseconds(100);
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration maxBackoff = Duration.seconds(10);
+
+    // A duplicate request is sent when the first byte takes longer than this percentile of recent requests
+    @DecimalMin("0.5")
+    @DecimalMax("1.0")
+    @JsonProperty
+    private double hedgePercentile = 0.95;
+
+    // Used until there are enough requests to work out the percentile
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration initialHedgeDelay = Duration.seconds(1);
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Duration minHedgeDelay = Duration.milliseconds(50);
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public Duration getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(Duration initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public Duration getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(Duration maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public Duration getInitialHedgeDelay() {
+        return initialHedgeDelay;
+    }
+
+    public void setInitialHedgeDelay(Duration initialHedgeDelay) {
+        this.initialHedgeDelay = initialHedgeDelay;
+    }
+
+    public Duration getMinHedgeDelay() {
+        return minHedgeDelay;
+    }
+
+    public void setMinHedgeDelay(Duration minHedgeDelay) {
+        this.minHedgeDelay = minHedgeDelay;
+    }
+}
@@ -0,0 +1,362 @@
+package com.yammer.storage.file.striped;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.ChannelFileStorage;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.MovableFileStorage;
+import io.dropwizard.util.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads files over several storages, typically one per disk, placing new files where there is most room and least writing
+public class StripedFileStorage implements ChannelFileStorage, MovableFileStorage {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StripedFileStorage.class);
+
+    private static class Stripe {
+        private final FileStorage storage;
+        private final AtomicInteger activeWrites = new AtomicInteger();
+
+        private Stripe(FileStorage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public String toString() {
+            return storage.toString();
+        }
+    }
+
+    private final List<Stripe> stripes;
+
+    public StripedFileStorage(List<? extends FileStorage> storages) {
+        if (storages.isEmpty()) {
+            throw new IllegalArgumentException("At least one stripe is required");
+        }
+
+        final ImmutableList.Builder<Stripe> builder = ImmutableList.builder();
+        for (final FileStorage storage : storages) {
+            builder.add(new Stripe(storage));
+        }
+
+        stripes = builder.build();
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void start() throws Exception {
+        for (final Stripe stripe : stripes) {
+            stripe.storage.start();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        for (final Stripe stripe : stripes) {
+            stripe.storage.stop();
+        }
+    }
+
+    private Optional<Stripe> locate(String namespace, String path) throws IOException {
+        for (final Stripe stripe : stripes) {
+            if (stripe.storage.exists(namespace, path)) {
+                return Optional.of(stripe);
+            }
+        }
+
+        return Optional.absent();
+    }
+
+    private Stripe locateExisting(String namespace, String path) throws IOException {
+        final Optional<Stripe> stripe = this.locate(namespace, path);
+        if (!stripe.isPresent()) {
+            throw new FileNotFoundException(String.format("%s/%s not found on any stripe", namespace, path));
+        }
+
+        return stripe.get();
+    }
+
+    // Weighs free space against the writes already queued on each stripe
+    private Stripe place() throws IOException {
+        Stripe best = null;
+        double bestScore = -1;
+
+        for (final Stripe stripe : stripes) {
+            final double score = (double) stripe.storage.getFreeSpace().toBytes() / (stripe.activeWrites.get() + 1);
+            if (score > bestScore) {
+                best = stripe;
+                bestScore = score;
+            }
+        }
+
+        LOG.trace("Placing new file on {}", best.storage);
+        return best;
+    }
+
+    private OutputStream trackWrites(final Stripe stripe, OutputStream out) {
+        return new TrackedOutputStream(stripe, out);
+    }
+
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        if (this.locate(namespace, path).isPresent()) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        final Stripe stripe = this.place();
+        stripe.activeWrites.incrementAndGet();
+
+        try {
+            return this.trackWrites(stripe, stripe.storage.upload(namespace, path));
+        }
+        catch (IOException | RuntimeException e) {
+            stripe.activeWrites.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        return this.locateExisting(namespace, path).storage.download(namespace, path);
+    }
+
+    @Override
+    public OutputStream append(String namespace, String path) throws IOException {
+        final Optional<Stripe> existing = this.locate(namespace, path);
+        final Stripe stripe = existing.isPresent() ? existing.get() : this.place();
+        stripe.activeWrites.incrementAndGet();
+
+        try {
+            return this.trackWrites(stripe, stripe.storage.append(namespace, path));
+        }
+        catch (IOException | RuntimeException e) {
+            stripe.activeWrites.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        return FileStorages.transferTo(this.locateExisting(namespace, path).storage, namespace, path, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, String namespace, String path) throws IOException {
+        if (this.locate(namespace, path).isPresent()) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        final Stripe stripe = this.place();
+        stripe.activeWrites.incrementAndGet();
+
+        try {
+            return FileStorages.transferFrom(source, stripe.storage, namespace, path);
+        }
+        finally {
+            stripe.activeWrites.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean exists(String namespace, String path) throws IOException {
+        return this.locate(namespace, path).isPresent();
+    }
+
+    // The file stays on the stripe it was placed on
+    @Override
+    public void move(String namespace, String source, String target) throws IOException {
+        if (this.locate(namespace, target).isPresent()) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        FileStorages.move(this.locateExisting(namespace, source).storage, namespace, source, target);
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) throws IOException {
+        boolean deleted = false;
+        for (final Stripe stripe : stripes) {
+            deleted |= stripe.storage.delete(namespace, path);
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) throws IOException {
+        final Set<String> remaining = Sets.newHashSet(paths);
+        final ImmutableSet.Builder<String> existing = ImmutableSet.builder();
+
+        for (final Stripe stripe : stripes) {
+            if (remaining.isEmpty()) {
+                break;
+            }
+
+            final Set<String> found = stripe.storage.existsAll(namespace, remaining);
+            existing.addAll(found);
+            remaining.removeAll(found);
+        }
+
+        return existing.build();
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        final ImmutableSet.Builder<String> deleted = ImmutableSet.builder();
+        for (final Stripe stripe : stripes) {
+            deleted.addAll(stripe.storage.deleteAll(namespace, paths));
+        }
+
+        return deleted.build();
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        final ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+        for (final Stripe stripe : stripes) {
+            paths.addAll(stripe.storage.list(namespace, prefix));
+        }
+
+        return paths.build();
+    }
+
+    @Override
+    public boolean ping() throws IOException {
+        for (final Stripe stripe : stripes) {
+            if (!stripe.storage.ping()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public Size getTotalSpace() throws IOException {
+        long total = 0;
+        for (final Stripe stripe : stripes) {
+            total += stripe.storage.getTotalSpace().toBytes();
+        }
+
+        return Size.bytes(total);
+    }
+
+    @Override
+    public Size getUsedSpace() throws IOException {
+        long used = 0;
+        for (final Stripe stripe : stripes) {
+            used += stripe.storage.getUsedSpace().toBytes();
+        }
+
+        return Size.bytes(used);
+    }
+
+    @Override
+    public Size getFreeSpace() throws IOException {
+        long free = 0;
+        for (final Stripe stripe : stripes) {
+            free += stripe.storage.getFreeSpace().toBytes();
+        }
+
+        return Size.bytes(free);
+    }
+
+    @Override
+    public boolean delete(String namespace) throws IOException {
+        boolean deleted = false;
+        for (final Stripe stripe : stripes) {
+            deleted |= stripe.storage.delete(namespace);
+        }
+
+        return deleted;
+    }
+
+    @Override
+    public String toString() {
+        return "StripedFileStorage{" +
+                "stripes=" + stripes +
+                '}';
+    }
+
+    private static class TrackedOutputStream extends FilterOutputStream implements Abortable {
+
+        private final Stripe stripe;
+        private boolean closed = false;
+
+        private TrackedOutputStream(Stripe stripe, OutputStream out) {
+            super(out);
+            this.stripe = stripe;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                this.untrack();
+            }
+        }
+
+        @Override
+        public void abort() throws IOException {
+            try {
+                FileStorages.abort(out);
+            }
+            finally {
+                this.untrack();
+            }
+        }
+
+        private void untrack() {
+            if (!closed) {
+                closed = true;
+                stripe.activeWrites.decrementAndGet();
+            }
+        }
+    }
+}
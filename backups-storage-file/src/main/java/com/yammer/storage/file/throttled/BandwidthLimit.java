@@ -0,0 +1,55 @@
+package com.yammer.storage.file.throttled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import io.dropwizard.util.Size;
+
+import javax.validation.Valid;
+
+// Bytes per second in each direction, unlimited when not set
+public class BandwidthLimit {
+
+    @Valid
+    @JsonProperty
+    private Size uploadRate;
+
+    @Valid
+    @JsonProperty
+    private Size downloadRate;
+
+    public Optional<Size> getUploadRate() {
+        return Optional.fromNullable(uploadRate);
+    }
+
+    public void setUploadRate(Size uploadRate) {
+        this.uploadRate = uploadRate;
+    }
+
+    public Optional<Size> getDownloadRate() {
+        return Optional.fromNullable(downloadRate);
+    }
+
+    public void setDownloadRate(Size downloadRate) {
+        this.downloadRate = downloadRate;
+    }
+}
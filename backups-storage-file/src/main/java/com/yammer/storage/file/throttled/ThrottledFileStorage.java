@@ -0,0 +1,383 @@
+package com.yammer.storage.file.throttled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteSink;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.RateLimiter;
+import com.yammer.storage.file.Abortable;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.ForwardingFileStorage;
+import com.yammer.storage.file.ResumableFileStorage;
+import io.dropwizard.util.Size;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// Shapes the bandwidth used by uploads and downloads with token buckets, both overall and per namespace. Downloads
+// (restores) may also borrow whatever upload capacity is currently unused. Over a delegate that writes several copies
+// of everything uploaded, each byte is paid for once per copy, so the limits hold for what is actually sent.
+public class ThrottledFileStorage extends ForwardingFileStorage implements ResumableFileStorage {
+
+    private final FileStorage delegate;
+    private final int uploadCopies;
+
+    private final Bucket uploads;
+    private final Bucket downloads;
+    private final ConcurrentMap<String, Bucket> namespaceUploads = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, Bucket> namespaceDownloads = Maps.newConcurrentMap();
+
+    public ThrottledFileStorage(FileStorage delegate, ThrottledFileStorageConfiguration configuration) {
+        this (delegate, configuration, 1);
+    }
+
+    public ThrottledFileStorage(FileStorage delegate, ThrottledFileStorageConfiguration configuration, int uploadCopies) {
+        checkArgument(uploadCopies > 0, "uploadCopies must be positive");
+
+        this.delegate = delegate;
+        this.uploadCopies = uploadCopies;
+
+        uploads = new Bucket(configuration.getUploadRate());
+        downloads = new Bucket(configuration.getDownloadRate());
+
+        for (Map.Entry<String, BandwidthLimit> entry : configuration.getNamespaces().entrySet()) {
+            this.setNamespaceUploadRate(entry.getKey(), entry.getValue().getUploadRate());
+            this.setNamespaceDownloadRate(entry.getKey(), entry.getValue().getDownloadRate());
+        }
+    }
+
+    @Override
+    protected FileStorage delegate() {
+        return delegate;
+    }
+
+    public Optional<Size> getUploadRate() {
+        return uploads.getRate();
+    }
+
+    public void setUploadRate(Optional<Size> rate) {
+        uploads.setRate(rate);
+    }
+
+    public Optional<Size> getDownloadRate() {
+        return downloads.getRate();
+    }
+
+    public void setDownloadRate(Optional<Size> rate) {
+        downloads.setRate(rate);
+    }
+
+    public Optional<Size> getNamespaceUploadRate(String namespace) {
+        return getRate(namespaceUploads, namespace);
+    }
+
+    public void setNamespaceUploadRate(String namespace, Optional<Size> rate) {
+        setRate(namespaceUploads, namespace, rate);
+    }
+
+    public Optional<Size> getNamespaceDownloadRate(String namespace) {
+        return getRate(namespaceDownloads, namespace);
+    }
+
+    public void setNamespaceDownloadRate(String namespace, Optional<Size> rate) {
+        setRate(namespaceDownloads, namespace, rate);
+    }
+
+    private static Optional<Size> getRate(ConcurrentMap<String, Bucket> buckets, String namespace) {
+        final Bucket bucket = buckets.get(namespace);
+        return bucket == null ? Optional.<Size>absent() : bucket.getRate();
+    }
+
+    private static void setRate(ConcurrentMap<String, Bucket> buckets, String namespace, Optional<Size> rate) {
+        final Bucket bucket = buckets.get(namespace);
+        if (bucket != null) {
+            bucket.setRate(rate);
+        }
+        else if (rate.isPresent()) {
+            final Bucket existing = buckets.putIfAbsent(namespace, new Bucket(rate));
+            if (existing != null) {
+                existing.setRate(rate);
+            }
+        }
+    }
+
+    private void acquireUpload(String namespace, int sourceBytes) {
+        final int bytes = Ints.saturatedCast((long) sourceBytes * uploadCopies);
+        final Bucket namespaceBucket = namespaceUploads.get(namespace);
+        if (namespaceBucket != null) {
+            namespaceBucket.acquire(bytes);
+        }
+
+        uploads.acquire(bytes);
+    }
+
+    private void acquireDownload(String namespace, int bytes) {
+        final Bucket namespaceBucket = namespaceDownloads.get(namespace);
+        if (namespaceBucket != null) {
+            namespaceBucket.acquire(bytes);
+        }
+
+        // Only wait for download capacity if there is no idle upload capacity to take instead
+        if (!downloads.tryAcquire(bytes) && !uploads.tryBorrow(bytes)) {
+            downloads.acquire(bytes);
+        }
+    }
+
+    private void acquire(boolean upload, String namespace, int bytes) {
+        if (upload) {
+            acquireUpload(namespace, bytes);
+        }
+        else {
+            acquireDownload(namespace, bytes);
+        }
+    }
+
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        return new ThrottledOutputStream(delegate.upload(namespace, path), namespace, true);
+    }
+
+    @Override
+    public OutputStream append(String namespace, String path) throws IOException {
+        return new ThrottledOutputStream(delegate.append(namespace, path), namespace, true);
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        return new ThrottledInputStream(delegate.download(namespace, path), namespace, false);
+    }
+
+    @Override
+    public Optional<String> getVersion(String namespace, String path) throws IOException {
+        return FileStorages.getVersion(delegate, namespace, path);
+    }
+
+    @Override
+    public InputStream download(String namespace, String path, long offset, Optional<String> version) throws IOException {
+        return new ThrottledInputStream(FileStorages.download(delegate, namespace, path, offset, version), namespace, false);
+    }
+
+    // Async transfers are throttled as the source is read, or the sink written, so no thread waits on the delegate.
+    // A delegate reading the source once per copy is charged for each byte as it is first read, which pays for every
+    // copy the same as a sync upload fanned out.
+    @Override
+    public ListenableFuture<Long> uploadAsync(final String namespace, String path, final ByteSource source) {
+        final AtomicLong paid = new AtomicLong();
+        return FileStorages.asAsync(delegate).uploadAsync(namespace, path, new ByteSource() {
+            @Override
+            public InputStream openStream() throws IOException {
+                return new ThrottledInputStream(source.openStream(), namespace, true, paid);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Long> downloadAsync(final String namespace, String path, final ByteSink sink) {
+        return FileStorages.asAsync(delegate).downloadAsync(namespace, path, new ByteSink() {
+            @Override
+            public OutputStream openStream() throws IOException {
+                return new ThrottledOutputStream(sink.openStream(), namespace, false);
+            }
+        });
+    }
+
+    // Transfers go through our streams rather than straight to the delegate so they are throttled too
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        try (final InputStream in = this.download(namespace, path)) {
+            return ByteStreams.copy(Channels.newChannel(in), target);
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, String namespace, String path) throws IOException {
+        try (final OutputStream out = this.upload(namespace, path)) {
+            return ByteStreams.copy(source, Channels.newChannel(out));
+        }
+    }
+
+    // A bucket of bytes per second, unlimited while it has no rate
+    private static class Bucket {
+
+        private volatile RateLimiter limiter;
+        private volatile Size rate;
+
+        private Bucket(Optional<Size> rate) {
+            this.setRate(rate);
+        }
+
+        private synchronized void setRate(Optional<Size> rate) {
+            if (!rate.isPresent()) {
+                this.limiter = null;
+                this.rate = null;
+                return;
+            }
+
+            final long bytesPerSecond = rate.get().toBytes();
+            checkArgument(bytesPerSecond > 0, "Rate must be positive: %s", rate.get());
+
+            this.rate = rate.get();
+            if (limiter == null) {
+                limiter = RateLimiter.create(bytesPerSecond);
+            }
+            else {
+                limiter.setRate(bytesPerSecond);
+            }
+        }
+
+        private Optional<Size> getRate() {
+            return Optional.fromNullable(rate);
+        }
+
+        private void acquire(int bytes) {
+            final RateLimiter current = limiter;
+            if (current != null) {
+                current.acquire(bytes);
+            }
+        }
+
+        private boolean tryAcquire(int bytes) {
+            final RateLimiter current = limiter;
+            return current == null || current.tryAcquire(bytes);
+        }
+
+        // An unlimited bucket has nothing spare to lend
+        private boolean tryBorrow(int bytes) {
+            final RateLimiter current = limiter;
+            return current != null && current.tryAcquire(bytes);
+        }
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+
+        private final String namespace;
+        private final boolean upload;
+
+        // How far into the source has been paid for, shared by the streams opened from one source
+        private final AtomicLong paid;
+        private long position = 0;
+
+        private ThrottledInputStream(InputStream in, String namespace, boolean upload) {
+            this(in, namespace, upload, new AtomicLong());
+        }
+
+        private ThrottledInputStream(InputStream in, String namespace, boolean upload, AtomicLong paid) {
+            super(in);
+            this.namespace = namespace;
+            this.upload = upload;
+            this.paid = paid;
+        }
+
+        // Only bytes no other stream has read yet are paid for, skipped bytes are never transferred so they are free
+        private void advance(int bytes, boolean charge) {
+            position += bytes;
+
+            long current = paid.get();
+            while (current < position) {
+                if (paid.compareAndSet(current, position)) {
+                    if (charge) {
+                        acquire(upload, namespace, Ints.checkedCast(position - current));
+                    }
+
+                    return;
+                }
+
+                current = paid.get();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                this.advance(1, true);
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = in.read(b, off, len);
+            if (read > 0) {
+                this.advance(read, true);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, Integer.MAX_VALUE));
+            this.advance((int) skipped, false);
+            return skipped;
+        }
+    }
+
+    private class ThrottledOutputStream extends FilterOutputStream implements Abortable {
+
+        private final String namespace;
+        private final boolean upload;
+
+        private ThrottledOutputStream(OutputStream out, String namespace, boolean upload) {
+            super(out);
+            this.namespace = namespace;
+            this.upload = upload;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(upload, namespace, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                acquire(upload, namespace, len);
+            }
+
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void abort() {
+            FileStorages.abort(out);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.yammer.storage.file.throttled;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableMap;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.Map;
+
+// Limits for all traffic together, plus tighter limits for individual namespaces
+public class ThrottledFileStorageConfiguration extends BandwidthLimit {
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private Map<String, BandwidthLimit> namespaces = ImmutableMap.of();
+
+    public Map<String, BandwidthLimit> getNamespaces() {
+        return namespaces;
+    }
+}
@@ -0,0 +1,295 @@
+package com.yammer.storage.file.tiered;
+
+/*
+ * #%L
+ * Backups
+ * %%
+ * Copyright (C) 2013 - 2014 Microsoft Corporation
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.yammer.storage.file.ChannelFileStorage;
+import com.yammer.storage.file.FileStorage;
+import com.yammer.storage.file.FileStorages;
+import com.yammer.storage.file.MovableFileStorage;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// New files are written to a fast hot tier and later demoted to a larger cold one. Reads are served from
+// whichever tier holds the file, trying the hot tier first.
+public class TieredFileStorage implements ChannelFileStorage, MovableFileStorage {
+
+    private final FileStorage hot;
+    private final FileStorage cold;
+
+    // Reads of each file within the current access window, for deciding what is still worth keeping hot
+    private final Cache<String, AtomicInteger> accesses;
+
+    // Counts are only kept in memory, so until a whole window has been seen they under-count every file
+    private final Duration accessWindow;
+    private final Ticker ticker;
+    private volatile long countingSince;
+
+    private final Meter demotedFiles;
+    private final Meter demotedBytes;
+
+    public TieredFileStorage(String name, FileStorage hot, FileStorage cold, Duration accessWindow, MetricRegistry registry) {
+        this(name, hot, cold, accessWindow, registry, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    public TieredFileStorage(String name, FileStorage hot, FileStorage cold, Duration accessWindow, MetricRegistry registry, Ticker ticker) {
+        this.hot = hot;
+        this.cold = cold;
+        this.accessWindow = accessWindow;
+        this.ticker = ticker;
+
+        accesses = CacheBuilder.newBuilder()
+                .expireAfterWrite(accessWindow.getQuantity(), accessWindow.getUnit())
+                .maximumSize(100_000)
+                .ticker(ticker)
+                .build();
+        countingSince = ticker.read();
+
+        demotedFiles = registry.meter(String.format("%s-demoted-files", name));
+        demotedBytes = registry.meter(String.format("%s-demoted-bytes", name));
+    }
+
+    private static String getKey(String namespace, String path) {
+        return namespace + "/" + path;
+    }
+
+    private void recordAccess(String namespace, String path) {
+        try {
+            accesses.get(getKey(namespace, path), new Callable<AtomicInteger>() {
+                @Override
+                public AtomicInteger call() {
+                    return new AtomicInteger();
+                }
+            }).incrementAndGet();
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getAccessCount(String namespace, String path) {
+        final AtomicInteger count = accesses.getIfPresent(getKey(namespace, path));
+        return count == null ? 0 : count.get();
+    }
+
+    // Whether the access counts cover a whole window, which after a restart they don't until one has passed
+    public boolean isAccessWindowComplete() {
+        return ticker.read() - countingSince >= accessWindow.toNanoseconds();
+    }
+
+    // Moves a file from the hot tier to the cold tier, returns false if it isn't in the hot tier
+    public boolean demote(String namespace, String path) throws IOException {
+        if (!hot.exists(namespace, path)) {
+            return false;
+        }
+
+        // Left behind by an earlier demotion that didn't finish
+        cold.delete(namespace, path);
+
+        final long size = FileStorages.copy(hot, cold, namespace, path);
+
+        // The file was deleted while we were copying it, so the copy mustn't outlive it
+        if (!hot.delete(namespace, path)) {
+            cold.delete(namespace, path);
+            return false;
+        }
+
+        demotedFiles.mark();
+        demotedBytes.mark(size);
+        return true;
+    }
+
+    public FileStorage getHotStorage() {
+        return hot;
+    }
+
+    public FileStorage getColdStorage() {
+        return cold;
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void start() throws Exception {
+        hot.start();
+        cold.start();
+
+        countingSince = ticker.read();
+    }
+
+    @Override
+    @SuppressWarnings("SignatureDeclareThrowsException")
+    public void stop() throws Exception {
+        hot.stop();
+        cold.stop();
+    }
+
+    @Override
+    public OutputStream upload(String namespace, String path) throws IOException {
+        if (cold.exists(namespace, path)) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        return hot.upload(namespace, path);
+    }
+
+    @Override
+    public InputStream download(String namespace, String path) throws IOException {
+        this.recordAccess(namespace, path);
+
+        try {
+            return hot.download(namespace, path);
+        }
+        catch (FileNotFoundException e) {
+            return cold.download(namespace, path);
+        }
+    }
+
+    @Override
+    public OutputStream append(String namespace, String path) throws IOException {
+        if (cold.exists(namespace, path)) {
+            return cold.append(namespace, path);
+        }
+
+        return hot.append(namespace, path);
+    }
+
+    @Override
+    public long transferTo(String namespace, String path, WritableByteChannel target) throws IOException {
+        this.recordAccess(namespace, path);
+
+        try {
+            return FileStorages.transferTo(hot, namespace, path, target);
+        }
+        catch (FileNotFoundException e) {
+            return FileStorages.transferTo(cold, namespace, path, target);
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel source, String namespace, String path) throws IOException {
+        if (cold.exists(namespace, path)) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        return FileStorages.transferFrom(source, hot, namespace, path);
+    }
+
+    @Override
+    public boolean exists(String namespace, String path) throws IOException {
+        return hot.exists(namespace, path) || cold.exists(namespace, path);
+    }
+
+    // The file stays in whichever tier holds it
+    @Override
+    public void move(String namespace, String source, String target) throws IOException {
+        if (this.exists(namespace, target)) {
+            throw new FileAlreadyExistsException("File already exists");
+        }
+
+        FileStorages.move(hot.exists(namespace, source) ? hot : cold, namespace, source, target);
+    }
+
+    @Override
+    public boolean delete(String namespace, String path) throws IOException {
+        final boolean deletedHot = hot.delete(namespace, path);
+        final boolean deletedCold = cold.delete(namespace, path);
+        return deletedHot || deletedCold;
+    }
+
+    @Override
+    public Set<String> existsAll(String namespace, Collection<String> paths) throws IOException {
+        final Set<String> existing = hot.existsAll(namespace, paths);
+        final Set<String> remaining = Sets.difference(ImmutableSet.copyOf(paths), existing);
+        if (remaining.isEmpty()) {
+            return existing;
+        }
+
+        return ImmutableSet.copyOf(Sets.union(existing, cold.existsAll(namespace, remaining)));
+    }
+
+    @Override
+    public Set<String> deleteAll(String namespace, Collection<String> paths) throws IOException {
+        final Set<String> deletedHot = hot.deleteAll(namespace, paths);
+        final Set<String> deletedCold = cold.deleteAll(namespace, paths);
+        return ImmutableSet.copyOf(Sets.union(deletedHot, deletedCold));
+    }
+
+    @Override
+    public Set<String> list(String namespace, String prefix) throws IOException {
+        return ImmutableSet.copyOf(Sets.union(hot.list(namespace, prefix), cold.list(namespace, prefix)));
+    }
+
+    @Override
+    public boolean delete(String namespace) throws IOException {
+        final boolean deletedHot = hot.delete(namespace);
+        final boolean deletedCold = cold.delete(namespace);
+        return deletedHot || deletedCold;
+    }
+
+    @Override
+    public boolean ping() throws IOException {
+        return hot.ping() && cold.ping();
+    }
+
+    @Override
+    public Size getTotalSpace() throws IOException {
+        return Size.bytes(hot.getTotalSpace().toBytes() + cold.getTotalSpace().toBytes());
+    }
+
+    @Override
+    public Size getUsedSpace() throws IOException {
+        return Size.bytes(hot.getUsedSpace().toBytes() + cold.getUsedSpace().toBytes());
+    }
+
+    @Override
+    public Size getFreeSpace() throws IOException {
+        return Size.bytes(hot.getFreeSpace().toBytes() + cold.getFreeSpace().toBytes());
+    }
+
+    @Override
+    public String toString() {
+        return "TieredFileStorage{" +
+                "hot=" + hot +
+                ", cold=" + cold +
+                '}';
+    }
+}